@@ -9,6 +9,7 @@ import java.util.function.BiConsumer;
 
 import com.github.tjake.jlama.cli.commands.ChatCommand;
 import com.github.tjake.jlama.cli.commands.CompleteCommand;
+import com.github.tjake.jlama.cli.commands.QuantizeCommand;
 import com.github.tjake.jlama.cli.commands.ServeCommand;
 import com.github.tjake.jlama.model.AbstractModel;
 import com.github.tjake.jlama.model.ModelSupport.ModelType;
@@ -33,6 +34,7 @@ public class JlamaCli implements Runnable {
         cli.addSubcommand("chat", new ChatCommand());
         cli.addSubcommand("complete", new CompleteCommand());
         cli.addSubcommand("serve", new ServeCommand());
+        cli.addSubcommand("quantize", new QuantizeCommand());
 
         String[] pargs = args.length == 0 ? new String[]{"-h"} : args;
         cli.parseWithHandler(new RunLast(), pargs);
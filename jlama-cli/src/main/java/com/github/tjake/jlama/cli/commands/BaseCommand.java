@@ -6,6 +6,6 @@ import com.github.tjake.jlama.cli.JlamaCli;
 import picocli.CommandLine;
 
 public class BaseCommand extends JlamaCli {
-    @CommandLine.Parameters(index = "0", arity = "1", description = "The model location")
+    @CommandLine.Parameters(index = "0", arity = "1", description = "The model location, a directory or a llama .gguf file (without grouped query attention)")
     protected File model;
 }
@@ -1,8 +1,12 @@
 package com.github.tjake.jlama.cli.commands;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Optional;
+import java.util.function.BiConsumer;
 
 import com.github.tjake.jlama.model.AbstractModel;
+import com.github.tjake.jlama.model.ChatSession;
 import picocli.CommandLine.*;
 
 @Command(name = "chat", description = "Interact with the specified model")
@@ -10,10 +14,30 @@ public class ChatCommand extends ModelBaseCommand {
     @Option(names = {"-s", "--system-prompt"}, description = "Change the default system prompt for this model")
     String systemPrompt = "You are a happy demo app of a project called jlama.  You answer any question then add \"Jlama is awesome!\" after.";
 
+    @Option(names = {"--session"}, description = "File to resume the conversation from, it is saved back on exit")
+    File sessionFile;
+
     @Override
     public void run() {
         AbstractModel m = loadModel(model);
+        BiConsumer<String, Float> out = makeOutHandler();
+
+        boolean resumed = sessionFile != null && sessionFile.exists();
+        try (ChatSession session = resumed ? m.restoreSession(sessionFile.toPath()) : m.newSession()) {
+            //A new conversation's prompt ends with EOS, as chat did before sessions
+            session.generate(m.wrapPrompt(prompt, resumed ? Optional.empty() : Optional.of(systemPrompt)), prompt, temperature, tokens, true, out);
+
+            //Follow-up turns reuse the conversation's kv cache
+            if (System.console() != null) {
+                String line;
+                while ((line = System.console().readLine("\n> ")) != null && !line.isBlank())
+                    session.generate(m.wrapPrompt(line, Optional.empty()), "", temperature, tokens, out);
+            }
 
-        m.generate(m.wrapPrompt(prompt, Optional.of(systemPrompt)), prompt, temperature, tokens, true, makeOutHandler());
+            if (sessionFile != null)
+                session.save(sessionFile.toPath());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 }
@@ -12,9 +12,11 @@ import java.util.function.BiConsumer;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.github.tjake.jlama.model.AbstractModel;
+import com.github.tjake.jlama.model.KvBlockPool;
 import com.github.tjake.jlama.model.ModelSupport;
 import com.github.tjake.jlama.safetensors.Config;
 import com.github.tjake.jlama.safetensors.DType;
+import com.github.tjake.jlama.safetensors.GGUFWeights;
 import com.github.tjake.jlama.safetensors.SafeTensorSupport;
 import com.github.tjake.jlama.safetensors.Tokenizer;
 import com.github.tjake.jlama.safetensors.WeightLoader;
@@ -38,6 +40,12 @@ public class ModelBaseCommand extends BaseCommand {
     @Option(names={"--top-p"}, description = "Controls how many different words the model considers per token [0,1]", defaultValue = ".9")
     protected Float topp;
 
+    @Option(names={"--top-k"}, description = "Only consider the k most likely words per token, 0 for no limit", defaultValue = "0")
+    protected int topk;
+
+    @Option(names={"--min-p"}, description = "Only consider words at least this fraction as likely as the most likely one [0,1)", defaultValue = "0")
+    protected float minp;
+
     @Option(names={"-n", "--tokens"}, description = "Number of tokens to generate", defaultValue = "256")
     protected Integer tokens;
 
@@ -50,6 +58,27 @@ public class ModelBaseCommand extends BaseCommand {
     @Option(names={"-wq", "--working-qtype"}, description = "Working memory quantization data type")
     protected DType workingQuantizationType = DType.I8;
 
+    @Option(names={"-kv", "--kv-cache-dtype"}, description = "KV cache data type (F32, F16, BF16 or I8)")
+    protected DType kvCacheType;
+
+    @Option(names={"--prefix-cache-mb"}, description = "Memory budget in MB for reusing the kv cache of shared prompt prefixes (e.g. system prompts)", defaultValue = "0")
+    protected long prefixCacheMb;
+
+    @Option(names={"--draft-model"}, description = "Smaller model with the same tokenizer to draft tokens for speculative decoding")
+    protected File draftModel;
+
+    @Option(names={"--draft-tokens"}, description = "Number of tokens the draft model (or prompt lookup) proposes per step", defaultValue = "4")
+    protected int draftTokens;
+
+    @Option(names={"--prompt-lookup"}, description = "Speculative decoding without a draft model, proposing what followed earlier matches of the last N tokens", defaultValue = "0")
+    protected int promptLookupNgram;
+
+    @Option(names={"--coarse-logits"}, description = "Score the vocabulary with a Q4 or I8 copy of the output layer, then rescore the top candidates exactly")
+    protected DType coarseLogitsType;
+
+    @Option(names={"--coarse-logits-candidates"}, description = "Number of candidates rescored exactly with --coarse-logits", defaultValue = "256")
+    protected int coarseLogitsCandidates;
+
     @Option(names={"-tc", "--threads"}, description = "Number of threads to use")
     protected int threadCount = Runtime.getRuntime().availableProcessors() / 2;
 
@@ -62,6 +91,7 @@ public class ModelBaseCommand extends BaseCommand {
         }
 
         File baseDir = model.isFile() ? model.getParentFile() : model;
+        boolean gguf = model.isFile() && model.getName().endsWith(".gguf");
 
         //Find config
         if (!baseDir.isDirectory()) {
@@ -77,7 +107,8 @@ public class ModelBaseCommand extends BaseCommand {
             }
         }
 
-        if (configFile == null) {
+        //GGUF files carry their own config
+        if (configFile == null && !gguf) {
             System.err.println("config.json in model directory does not exist: " + baseDir);
             System.exit(1);
         }
@@ -85,15 +116,46 @@ public class ModelBaseCommand extends BaseCommand {
         try {
             PhysicalCoreExecutor.overrideThreadCount(threadCount);
 
-            ModelSupport.ModelType modelType = SafeTensorSupport.detectModel(configFile);
-
-            Config c = om.readValue(configFile, modelType.configClass);
-            Tokenizer t = modelType.tokenizerClass.getConstructor(Path.class).newInstance(baseDir.toPath());
-            WeightLoader wl = SafeTensorSupport.loadWeights(baseDir);
+            ModelSupport.ModelType modelType;
+            Config c;
+            WeightLoader wl;
+            Tokenizer t;
+            if (gguf) {
+                GGUFWeights g = GGUFWeights.open(model.toPath());
+                modelType = ModelSupport.ModelType.LLAMA;
+                c = g.config();
+                wl = g;
+                t = g.tokenizer();
+            } else {
+                modelType = SafeTensorSupport.detectModel(configFile);
+                c = om.readValue(configFile, modelType.configClass);
+                wl = SafeTensorSupport.loadWeights(baseDir);
+                //The tokenizer model sits next to the weights
+                t = modelType.tokenizerClass.getConstructor(Path.class).newInstance(baseDir.toPath());
+            }
 
-            return modelType.modelClass.getConstructor(Config.class, WeightLoader.class, Tokenizer.class, DType.class, DType.class)
+            AbstractModel m = modelType.modelClass.getConstructor(Config.class, WeightLoader.class, Tokenizer.class, DType.class, DType.class)
                     .newInstance(c, wl, t, workingMemoryType, workingQuantizationType);
 
+            m.configureSampling(topk, topp, minp);
+
+            if (coarseLogitsType != null)
+                m.configureApproximateLogits(coarseLogitsType, coarseLogitsCandidates);
+
+            if (kvCacheType != null)
+                m.configureKvCache(kvCacheType, KvBlockPool.DEFAULT_BLOCK_SIZE, Long.MAX_VALUE);
+
+            if (prefixCacheMb > 0)
+                m.configurePrefixCache(prefixCacheMb << 20);
+
+            //Loaded through this same method, which stops here for the draft itself
+            if (draftModel != null && !draftModel.equals(model))
+                m.configureSpeculativeDecoding(loadModel(draftModel), draftTokens);
+            else if (promptLookupNgram > 0 && draftModel == null)
+                m.configurePromptLookupDecoding(promptLookupNgram, draftTokens);
+
+            return m;
+
         } catch (IOException | NoSuchMethodException | InvocationTargetException | InstantiationException |
                IllegalAccessException e) {
             throw new RuntimeException(e);
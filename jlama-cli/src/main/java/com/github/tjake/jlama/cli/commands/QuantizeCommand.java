@@ -0,0 +1,40 @@
+package com.github.tjake.jlama.cli.commands;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+
+import com.github.tjake.jlama.safetensors.DType;
+import com.github.tjake.jlama.safetensors.SafeTensorSupport;
+import picocli.CommandLine.*;
+
+@Command(name = "quantize", description = "Writes a quantized copy of a model, which then loads without quantizing", mixinStandardHelpOptions = true)
+public class QuantizeCommand extends BaseCommand {
+
+    @Option(names={"-o", "--output"}, description = "Directory of the quantized model (default: <model>-jlama-<quantization>)")
+    protected File output;
+
+    @Option(names={"-q", "--quantization"}, description = "Model quantization type (Q4, Q5 or I8)", defaultValue = "Q4")
+    protected DType modelQuantization;
+
+    @Option(names={"-s", "--skip-tensor"}, description = "Don't quantize tensors whose name contains this (default: embed_tokens, lm_head)")
+    protected List<String> skipTensors;
+
+    @Override
+    public void run() {
+        if (!model.isDirectory()) {
+            System.err.println("Model directory does not exist: " + model);
+            System.exit(1);
+        }
+
+        try {
+            List<String> skip = skipTensors == null ? SafeTensorSupport.DEFAULT_SKIPPED_TENSORS : skipTensors;
+            Path out = SafeTensorSupport.quantizeModel(model.toPath(), modelQuantization, skip, Optional.ofNullable(output).map(File::toPath));
+            System.out.println("Quantized model written to " + out);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -1,8 +1,22 @@
 package com.github.tjake.jlama.math;
 
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
 import java.util.Arrays;
 
 public class FloatConversions {
+    private static final VectorSpecies<Integer> INT_SPECIES = IntVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Short> SHORT_SPECIES = VectorSpecies.of(short.class, VectorShape.forBitSize(INT_SPECIES.length() * Short.SIZE));
+    private static final ValueLayout.OfShort SHORT_LE = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfFloat FLOAT_LE = ValueLayout.JAVA_FLOAT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
 
     static short bFloat16NaN = 0x7f81;
 
@@ -301,5 +315,34 @@ public class FloatConversions {
 
         return (short) (sign | (new_exp << 10) | (v & 1023));
     }
-}
 
+    /**
+     * Decode length little endian BFloat16 values starting at offset (in bytes) of src into dst
+     */
+    public static void bFloat16ToFloat32(MemorySegment src, long offset, float[] dst, int length) {
+        int i = 0;
+        for (int limit = INT_SPECIES.loopBound(length); i < limit; i += INT_SPECIES.length()) {
+            ShortVector s = ShortVector.fromMemorySegment(SHORT_SPECIES, src, offset + (long) i * Short.BYTES, ByteOrder.LITTLE_ENDIAN);
+            IntVector bits = (IntVector) s.convertShape(VectorOperators.S2I, INT_SPECIES, 0);
+            ((FloatVector) bits.lanewise(VectorOperators.LSHL, 16).reinterpretAsFloats()).intoArray(dst, i);
+        }
+
+        for (; i < length; i++)
+            dst[i] = bFloat16ToFloat32(src.get(SHORT_LE, offset + (long) i * Short.BYTES));
+    }
+
+    /**
+     * Decode length little endian Float16 values starting at offset (in bytes) of src into dst
+     */
+    public static void float16ToFloat32(MemorySegment src, long offset, float[] dst, int length) {
+        for (int i = 0; i < length; i++)
+            dst[i] = Float.float16ToFloat(src.get(SHORT_LE, offset + (long) i * Short.BYTES));
+    }
+
+    /**
+     * Copy length little endian Float32 values starting at offset (in bytes) of src into dst
+     */
+    public static void float32ToFloat32(MemorySegment src, long offset, float[] dst, int length) {
+        MemorySegment.copy(src, FLOAT_LE, offset, dst, 0, length);
+    }
+}
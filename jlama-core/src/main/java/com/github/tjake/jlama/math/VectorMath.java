@@ -20,6 +20,31 @@ public class VectorMath {
         );
     }
 
+    @FunctionalInterface
+    public interface TileConsumer {
+        void accept(int rowStart, int rowEnd, int batchStart, int batchEnd);
+    }
+
+    //Rows of weights are kept hot in cache while a tile of the batch is streamed past them
+    public static final int ROW_TILE = 8;
+    public static final int BATCH_TILE = 32;
+
+    /**
+     * Parallel loop over a [rows x batch] matrix-matrix product in tiles.
+     * Each task owns a block of rows and walks the batch one tile at a time, so every
+     * weight block is loaded into cache once per tile rather than once per batch entry.
+     */
+    public static void pforTiled(int rows, int batchSize, TileConsumer action) {
+        int rowTile = ROW_TILE;
+        int rowTiles = (rows + rowTile - 1) / rowTile;
+        pfor(0, rowTiles, t -> {
+            int rowStart = t * rowTile;
+            int rowEnd = Math.min(rows, rowStart + rowTile);
+            for (int b = 0; b < batchSize; b += BATCH_TILE)
+                action.accept(rowStart, rowEnd, b, Math.min(batchSize, b + BATCH_TILE));
+        });
+    }
+
 
     public static void softMax(AbstractTensor t) {
         float[] x = (float[])t.getArray();
@@ -12,18 +12,23 @@ import com.github.tjake.jlama.tensor.operations.TensorOperationsProvider;
 
 import com.google.common.base.Preconditions;
 import com.google.common.primitives.Ints;
-import com.google.common.util.concurrent.AtomicDouble;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
 
 public abstract class AbstractModel {
@@ -34,7 +39,18 @@ public abstract class AbstractModel {
     protected final DType modelDType;
     protected final DType workingDType;
     protected final DType workingQType;
-    private static final ThreadLocal<AbstractTensor[]> tmpArray = new ThreadLocal<>();
+    protected volatile KvBlockPool kvBlockPool;
+    protected volatile PrefixCache prefixCache;
+    private final Set<ChatSession> sessions = ConcurrentHashMap.newKeySet();
+    private volatile long sessionBudget = Long.MAX_VALUE;
+    private volatile AbstractModel draftModel;
+    private volatile int draftTokens;
+    private volatile int promptLookupNgram;
+    private volatile int topK = 0;
+    private volatile float topP = 1.0f;
+    private volatile float minP = 0.0f;
+    private volatile AbstractTensor coarseLogitsWeights;
+    private volatile int rescoreCandidates;
 
     protected AbstractModel(Config c, WeightLoader w, Tokenizer t, DType workingMemoryDType, DType workingMemoryQType)
     {
@@ -60,6 +76,8 @@ public abstract class AbstractModel {
             this.workingQType = workingMemoryQType;
         }
 
+        this.kvBlockPool = new KvBlockPool(c, workingDType, KvBlockPool.DEFAULT_BLOCK_SIZE, Long.MAX_VALUE);
+
         logger.info("Working memory type = {}, Quantized memory type = {}", this.workingDType, this.workingQType);
     }
 
@@ -79,18 +97,153 @@ public abstract class AbstractModel {
         return c.tensorCache.get(workingDType, shape);
     }
 
+    /**
+     * Change how the kv cache is stored, F32, F16, BF16 or I8 (Q8 style block quantized).
+     * Only affects sequences started after this call.
+     */
+    public void configureKvCache(DType dType, int blockSize, long maxBytes) {
+        this.kvBlockPool = new KvBlockPool(c, dType, blockSize, maxBytes);
+        logger.info("KV cache type = {}, block size = {}", dType, blockSize);
+
+        //Cached prefixes belong to the old pool
+        if (prefixCache != null)
+            configurePrefixCache(prefixCache.maxBytes());
+    }
+
+    /**
+     * Share the kv cache of common prompt prefixes across requests, keeping up to maxBytes of unused
+     * prefix blocks around.  A budget of zero disables the prefix cache.
+     */
+    public void configurePrefixCache(long maxBytes) {
+        PrefixCache old = prefixCache;
+        this.prefixCache = maxBytes > 0 ? new PrefixCache(kvBlockPool, maxBytes) : null;
+        if (old != null)
+            old.clear();
+    }
+
+    /**
+     * Restrict sampling to the topK most likely tokens (0 for no limit), then to the most likely ones
+     * covering topP of the probability, then to those at least minP as likely as the top token.
+     * Greedy decoding (temperature 0) is unaffected.
+     */
+    public void configureSampling(int topK, float topP, float minP) {
+        Preconditions.checkArgument(topK >= 0, "topK must not be negative");
+        Preconditions.checkArgument(topP > 0 && topP <= 1, "topP must be in (0, 1]");
+        Preconditions.checkArgument(minP >= 0 && minP < 1, "minP must be in [0, 1)");
+        this.topK = topK;
+        this.topP = topP;
+        this.minP = minP;
+    }
+
+    /**
+     * Score the vocabulary with a quantized (Q4 or I8) copy of the output layer, then compute exact logits for
+     * only the top candidates.  Cuts the output layer reads per token by about the quantization ratio, while the
+     * likely tokens, and so greedy and low temperature output, are unchanged.  A null coarseType disables it.
+     */
+    public void configureApproximateLogits(DType coarseType, int candidates) {
+        Preconditions.checkArgument(coarseType == null || coarseType == DType.Q4 || coarseType == DType.I8, "Unsupported coarse logits type %s", coarseType);
+        Preconditions.checkArgument(coarseType == null || candidates > 0, "candidates must be positive");
+
+        AbstractTensor weights = getOutputLogitsWeights();
+        this.coarseLogitsWeights = coarseType == null || weights.dType() == coarseType ? null : weights.quantize(coarseType);
+        this.rescoreCandidates = candidates;
+        logger.info("Approximate logits = {}, rescoring {} candidates", coarseType, candidates);
+    }
+
+    /**
+     * Generate with speculative decoding: the draft model (a small model sharing this model's tokenizer)
+     * proposes draftTokens tokens at a time, which this model verifies in a single batched pass.
+     * The output follows the same distribution as decoding with this model alone.  A null draft disables it.
+     */
+    public void configureSpeculativeDecoding(AbstractModel draft, int draftTokens) {
+        Preconditions.checkArgument(draft == null || draft.c.vocabularySize == c.vocabularySize, "Draft model vocabulary doesn't match");
+        Preconditions.checkArgument(draft == null || draftTokens > 0, "draftTokens must be positive");
+        this.draftModel = draft;
+        this.draftTokens = draftTokens;
+        this.promptLookupNgram = 0;
+    }
+
+    /**
+     * Generate with speculative decoding drafted from the prompt and output so far: the tokens that followed the
+     * last earlier match of the trailing (up to maxNgram long) n-gram are proposed, up to draftTokens at a time.
+     * No draft model is needed.  A maxNgram of 0 disables it.
+     */
+    public void configurePromptLookupDecoding(int maxNgram, int draftTokens) {
+        Preconditions.checkArgument(maxNgram >= 0, "maxNgram must not be negative");
+        Preconditions.checkArgument(maxNgram == 0 || draftTokens > 0, "draftTokens must be positive");
+        this.promptLookupNgram = maxNgram;
+        this.draftTokens = draftTokens;
+        this.draftModel = null;
+    }
+
+    /** Start a multi-turn conversation that keeps its kv cache between turns */
+    public ChatSession newSession() {
+        ChatSession s = new ChatSession(this);
+        sessions.add(s);
+        return s;
+    }
+
+    /**
+     * Resume a session saved with {@link ChatSession#save}.  The saved kv cache is mapped from the file
+     * when it matches the current kv cache layout, otherwise it is rebuilt from the history on the next turn.
+     */
+    public ChatSession restoreSession(Path path) throws IOException {
+        ChatSession s = new ChatSession(this, SessionSnapshot.read(path, c, kvBlockPool));
+        sessions.add(s);
+        return s;
+    }
+
+    /**
+     * Limit the kv cache memory held by open sessions, the least recently used idle
+     * sessions are evicted (and rebuilt on their next turn) past this budget.
+     */
+    public void configureSessions(long maxBytes) {
+        Preconditions.checkArgument(maxBytes >= 0, "maxBytes must not be negative");
+        this.sessionBudget = maxBytes;
+        evictSessions(null);
+    }
+
+    void evictSessions(ChatSession current) {
+        long total = 0;
+        for (ChatSession s : sessions)
+            total += s.bytes();
+
+        if (total <= sessionBudget)
+            return;
+
+        List<ChatSession> idle = new ArrayList<>(sessions);
+        idle.remove(current);
+        idle.sort(Comparator.comparingLong(ChatSession::lastUsed));
+
+        for (ChatSession s : idle) {
+            if (total <= sessionBudget)
+                break;
+
+            total -= s.evict();
+        }
+    }
+
+    void removeSession(ChatSession s) {
+        sessions.remove(s);
+    }
+
+    /** Key/value memory for a sequence of up to maxPositions tokens, backed by the shared block pool */
+    protected KvCache makeKvCache(int maxPositions) {
+        return new KvCache(kvBlockPool, c.numberOfLayers, maxPositions);
+    }
+
     protected AbstractTensor maybeQuantize(AbstractTensor t) {
         AbstractTensor t2 = TensorCache.instance.get(t.dType(), t.shape());
         t2.copyFrom(t, 0, 0, t.size());
         return t2;
     }
 
-    protected AbstractTensor forward(int token_id, int pos, AbstractTensor kvbuf) {
+    protected AbstractTensor forward(int token_id, int pos, KvCache kvbuf) {
         AbstractTensor embedding = inputTokenToEmbedding(token_id, pos);
         TransformerBlock[] transformerBlocks = getTransformerBlocks();
 
         for (int i = 0; i < c.numberOfLayers; i++) {
-            AbstractTensor kvlayer = kvbuf.slice(i);
+            KvCache.Layer kvlayer = kvbuf.layer(i);
             AbstractTensor ref = embedding; //reference so we can free
             embedding = transformerBlocks[i].forward(embedding, pos, kvlayer);
             ref.close();
@@ -98,140 +251,228 @@ public abstract class AbstractModel {
         return embedding;
     }
 
-    protected AbstractTensor[] batchForward(int[] token_ids, int startPos, AbstractTensor kvbuf) {
+    /**
+     * Runs one token for each of a batch of independent sequences, each with its own position and kv memory.
+     * Used by the {@link InferenceScheduler} to decode all active sequences in one pass over the weights.
+     */
+    protected AbstractTensor[] forward(int[] token_ids, int[] positions, KvCache[] kvbufs, int batchSize) {
         TransformerBlock[] transformerBlocks = getTransformerBlocks();
-        int batchSize = token_ids.length;
 
-        AbstractTensor[] embeddings = tmpArray.get();
-        if (embeddings == null || embeddings.length < batchSize) {
-            embeddings = new AbstractTensor[batchSize];
-            tmpArray.set(embeddings);
+        AbstractTensor[] embeddings = new AbstractTensor[batchSize];
+        for (int i = 0; i < batchSize; i++)
+            embeddings[i] = inputTokenToEmbedding(token_ids[i], positions[i]);
+
+        KvCache.Layer[] kvlayers = new KvCache.Layer[batchSize];
+        for (int i = 0; i < c.numberOfLayers; i++) {
+            for (int j = 0; j < batchSize; j++)
+                kvlayers[j] = kvbufs[j].layer(i);
+
+            AbstractTensor[] refs = embeddings; //reference so we can free
+            embeddings = transformerBlocks[i].forward(refs, positions, kvlayers, batchSize);
+            for (int j = 0; j < batchSize; j++)
+                refs[j].close();
         }
+
+        return embeddings;
+    }
+
+    protected AbstractTensor[] batchForward(int[] token_ids, int startPos, KvCache kvbuf) {
+        TransformerBlock[] transformerBlocks = getTransformerBlocks();
+        int batchSize = token_ids.length;
+
+        AbstractTensor[] embeddings = new AbstractTensor[batchSize];
         AbstractTensor[] emf = embeddings;
         VectorMath.pfor(0, batchSize, i -> {
             emf[i] = inputTokenToEmbedding(token_ids[i], startPos+i);
         });
 
         for (int i = 0; i < c.numberOfLayers; i++) {
-            AbstractTensor kvlayer = kvbuf.slice(i);
-            for (int j = 0; j < batchSize; j++) {
-                AbstractTensor ref = embeddings[j];
-                embeddings[j] = transformerBlocks[i].forward(ref, startPos + j, kvlayer);
-                ref.close();
-            }
+            KvCache.Layer kvlayer = kvbuf.layer(i);
+            AbstractTensor[] refs = embeddings; //reference so we can free
+            embeddings = transformerBlocks[i].batchForward(refs, startPos, kvlayer, batchSize);
+            for (int j = 0; j < batchSize; j++)
+                refs[j].close();
         }
 
         return embeddings;
     }
 
-    protected int sample(AbstractTensor output, float temperature, float uniformSample, AbstractTensor logits) {
-        try(AbstractTensor embedding = getOutputLayerNorm().forward(output)) {
+    /**
+     * Process a prompt into empty kv memory, only running the tokens past any cached prefix.
+     * Returns the output of the last prompt token, up to the caller to close.
+     */
+    protected AbstractTensor prefill(int[] promptTokens, KvCache kvmem) {
+        int cached = attachPrefix(promptTokens, kvmem);
+        AbstractTensor last = prefill(promptTokens, cached, promptTokens.length, kvmem);
+        publishPrefix(promptTokens, kvmem);
+        return last;
+    }
 
-            AtomicDouble maxv = new AtomicDouble(Double.NEGATIVE_INFINITY);
-            AtomicInteger maxi = new AtomicInteger(Integer.MIN_VALUE);
-
-            //This is a mix of argmax and sampling with softmax
-            VectorMath.pfor(0, c.vocabularySize, i -> {
-                float v = TensorOperationsProvider.get().dotProduct(embedding, getOutputLogitsWeights().slice(i), c.embeddingLength);
-                logits.set(v, i);
-                maxv.getAndUpdate(x -> {
-                    if (v > x) {
-                        maxi.set(i);
-                        return v;
-                    }
-                    return x;
-                });
-            });
-
-            if (temperature == 0.0) {
-                return maxi.get();
-            }
+    /**
+     * Map the longest cached prefix of a prompt into empty kv memory
+     * @return the number of leading prompt tokens already processed
+     */
+    protected int attachPrefix(int[] promptTokens, KvCache kvmem) {
+        PrefixCache pc = prefixCache;
+        return pc != null && pc.pool() == kvmem.pool() ? pc.attach(kvmem, promptTokens) : 0;
+    }
 
-            float sum = 0;
-            for (int i = 0; i < c.vocabularySize; i++) {
-                float v = (float) Math.exp((logits.get(i) - maxv.get()) / temperature);
-                sum += v;
-                logits.set(v, i);
-            }
+    /**
+     * Process prompt tokens [start, end) into kv memory already holding every token before start.
+     * Returns the output of the last of them, up to the caller to close.
+     */
+    protected AbstractTensor prefill(int[] promptTokens, int start, int end, KvCache kvmem) {
+        Preconditions.checkArgument(start < end, "Nothing to prefill");
+        AbstractTensor[] batch = batchForward(Arrays.copyOfRange(promptTokens, start, end), start, kvmem);
+        for (int i = 0; i < batch.length - 1; i++)
+            batch[i].close();
+
+        return batch[batch.length - 1];
+    }
+
+    /** Let later prompts reuse the kv memory of a fully processed one */
+    protected void publishPrefix(int[] promptTokens, KvCache kvmem) {
+        PrefixCache pc = prefixCache;
+        if (pc != null && pc.pool() == kvmem.pool())
+            pc.insert(kvmem, promptTokens);
+    }
 
-            float acc = 0;
-            for (int i = 0; i < c.vocabularySize; i++) {
-                float v = logits.get(i) / sum;
-                acc += v;
-                if (acc >= uniformSample)
-                    return i;
+    /** Scratch space for sampling the tokens of one sequence, with this model's sampling settings */
+    protected Sampler makeSampler() {
+        return new Sampler(c.vocabularySize, topK, topP, minP);
+    }
+
+    protected int sample(AbstractTensor output, float temperature, float uniformSample, Sampler sampler) {
+        logits(output, sampler);
+        return sampler.sample(temperature, uniformSample);
+    }
+
+    /**
+     * Compute the output logits into the sampler
+     * @return the index of the largest logit
+     */
+    protected int logits(AbstractTensor output, Sampler sampler) {
+        try(AbstractTensor embedding = getOutputLayerNorm().forward(output)) {
+            AbstractTensor weights = getOutputLogitsWeights();
+            AbstractTensor coarse = coarseLogitsWeights;
+            try (AbstractTensor logits = makeTensor(c.vocabularySize)) {
+                //Every row of the output weights against the one embedding, a tile of rows per task
+                AbstractTensor rows = coarse == null ? weights : coarse;
+                VectorMath.pforTiled(c.vocabularySize, 1, (rowStart, rowEnd, bStart, bEnd) ->
+                        TensorOperationsProvider.get().gemv(embedding, rows, rowStart, rowEnd, logits, 0, c.embeddingLength));
+
+                int argmax = sampler.fill(logits::get);
+                if (coarse == null)
+                    return argmax;
             }
 
-            return c.vocabularySize - 1;
+            return sampler.rescore(rescoreCandidates, i -> TensorOperationsProvider.get().dotProduct(embedding, weights.slice(i), c.embeddingLength));
         }
     }
 
-    public void generate(String prompt, float temperature, int ntokens, boolean useEOS, BiConsumer<String, Float> onTokenWithTimings) {
-        generate(prompt, null, temperature, ntokens, useEOS, onTokenWithTimings);
+    /**
+     * Fill probs with the distribution sample draws from at this temperature,
+     * all of it on the largest logit when the temperature is 0.
+     */
+    protected void probabilities(AbstractTensor output, float temperature, Sampler sampler, float[] probs) {
+        logits(output, sampler);
+        sampler.probabilities(temperature, probs);
     }
 
-    public void generate(String prompt, String cleanPrompt, float temperature, int ntokens, boolean useEOS, BiConsumer<String, Float> onTokenWithTimings) {
+    protected int[] encodePrompt(String prompt, boolean useEOS) {
         long[] encoded = tokenizer.encode(prompt);
         Preconditions.checkArgument(encoded.length < c.contextLength);
 
-        if (ntokens > c.contextLength)
-            ntokens = c.contextLength;
-
-        AbstractTensor kvmem = makeTensor(c.numberOfLayers, ntokens, c.embeddingLength * 2); //k and v are concatenated
-        AbstractTensor logits = makeTensor(c.vocabularySize);
-
         int[] promptTokens = new int[useEOS ? (1 + encoded.length + 1) : (1 + encoded.length)];
 
         promptTokens[0] = c.bosToken;
         for (int i = 1; i < encoded.length; i++)
             promptTokens[i] = Ints.checkedCast(encoded[i]);
 
-        int promptLength = encoded.length;
-
-        if (useEOS) {
+        if (useEOS)
             promptTokens[promptTokens.length - 1] = c.eosToken; //Add EOS
-            promptLength++;
-        }
 
-        String clientPrompt = cleanPrompt == null ? prompt : cleanPrompt;
-        onTokenWithTimings.accept(clientPrompt, 0f);
-        long start = System.currentTimeMillis();
-        //Batch Process Prompt
-        AbstractTensor batch[] = batchForward(promptTokens, 0, kvmem);
+        return promptTokens;
+    }
 
-        long promptBatchTime = System.currentTimeMillis() - start;
-        logger.debug("{} prompt tokens in {}ms {} tokens/sec", promptLength, promptBatchTime, Math.round((((double)promptBatchTime)/(double)promptLength)));
+    /** Tokens of text that continues an existing sequence, without the BOS and padding of {@link #encodePrompt} */
+    protected int[] encodeContinuation(String text) {
+        long[] encoded = tokenizer.encode(text);
+        int[] tokens = new int[encoded.length];
+        for (int i = 0; i < encoded.length; i++)
+            tokens[i] = Ints.checkedCast(encoded[i]);
 
-        int tokensGenerated = 0;
-        AbstractTensor last = batch[batch.length - 1];
+        return tokens;
+    }
 
-        int next = sample(last, temperature, ThreadLocalRandom.current().nextFloat(), logits);
-        try {
-            String c = tokenizer.decode(next);
-            onTokenWithTimings.accept(c, (System.currentTimeMillis() - start) / (float) (0 + 1));
-        } catch (Exception e) {
-            logger.error("Failed to decode token {}", next, e);
+    public void generate(String prompt, float temperature, int ntokens, boolean useEOS, BiConsumer<String, Float> onTokenWithTimings) {
+        generate(prompt, null, temperature, ntokens, useEOS, onTokenWithTimings);
+    }
+
+    public void generate(String prompt, String cleanPrompt, float temperature, int ntokens, boolean useEOS, BiConsumer<String, Float> onTokenWithTimings) {
+        int[] promptTokens = encodePrompt(prompt, useEOS);
+        int promptLength = promptTokens.length - 1;
+
+        if (ntokens > c.contextLength)
+            ntokens = c.contextLength;
+
+        AbstractModel draft = draftModel;
+        int ngram = promptLookupNgram;
+        if (draft != null || ngram > 0) {
+            onTokenWithTimings.accept(cleanPrompt == null ? prompt : cleanPrompt, 0f);
+            try (Drafter drafter = draft != null ? new DraftModel(draft) : new PromptLookup(ngram)) {
+                new SpeculativeDecoder(this, drafter, draftTokens).generate(promptTokens, temperature, ntokens, onTokenWithTimings);
+            }
+            return;
         }
-        start = System.currentTimeMillis();
-        for (int i = promptTokens.length - 1; i < ntokens; i++)
-        {
-            AbstractTensor output = forward(next, i, kvmem);
-            tokensGenerated++;
-            next = sample(output, temperature, ThreadLocalRandom.current().nextFloat(), logits);
-
-            if (logger.isTraceEnabled())
-                logger.trace("Sampled token {} with temperature {}", next, temperature);
-
-            //Model may tell us it's done
-            if (next == c.eosToken)
-                break;
 
+        KvCache kvmem = makeKvCache(ntokens);
+        long start = System.currentTimeMillis();
+        int tokensGenerated = 0;
+        //Blocks go back to the shared pool even if generation fails
+        try {
+            Sampler sampler = makeSampler();
+
+            String clientPrompt = cleanPrompt == null ? prompt : cleanPrompt;
+            onTokenWithTimings.accept(clientPrompt, 0f);
+            start = System.currentTimeMillis();
+            //Batch Process Prompt
+            AbstractTensor last = prefill(promptTokens, kvmem);
+
+            long promptBatchTime = System.currentTimeMillis() - start;
+            logger.debug("{} prompt tokens in {}ms {} tokens/sec", promptLength, promptBatchTime, Math.round((((double)promptBatchTime)/(double)promptLength)));
+
+            int next = sample(last, temperature, ThreadLocalRandom.current().nextFloat(), sampler);
+            last.close();
             try {
                 String c = tokenizer.decode(next);
-                onTokenWithTimings.accept(c, (System.currentTimeMillis() - start) / (float) (i + 1));
+                onTokenWithTimings.accept(c, (System.currentTimeMillis() - start) / (float) (0 + 1));
             } catch (Exception e) {
                 logger.error("Failed to decode token {}", next, e);
             }
+            start = System.currentTimeMillis();
+            for (int i = promptTokens.length - 1; i < ntokens; i++)
+            {
+                AbstractTensor output = forward(next, i, kvmem);
+                tokensGenerated++;
+                next = sample(output, temperature, ThreadLocalRandom.current().nextFloat(), sampler);
+
+                if (logger.isTraceEnabled())
+                    logger.trace("Sampled token {} with temperature {}", next, temperature);
+
+                //Model may tell us it's done
+                if (next == c.eosToken)
+                    break;
+
+                try {
+                    String c = tokenizer.decode(next);
+                    onTokenWithTimings.accept(c, (System.currentTimeMillis() - start) / (float) (i + 1));
+                } catch (Exception e) {
+                    logger.error("Failed to decode token {}", next, e);
+                }
+            }
+        } finally {
+            kvmem.close();
         }
 
         long end = System.currentTimeMillis();
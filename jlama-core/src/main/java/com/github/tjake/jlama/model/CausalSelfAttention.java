@@ -55,61 +55,141 @@ public class CausalSelfAttention {
         this.ropeFrequencies = ropeFrequencies;
     }
 
-    public AbstractTensor forward(AbstractTensor input, int position, AbstractTensor kvMem) {
-        Preconditions.checkArgument(input.dims() == 1 && input.shape()[0] == c.embeddingLength);
-
-        try (AbstractTensor flashAttn_m = m.makeTensor(c.numberOfHeads);
-             AbstractTensor flashAttn_l = m.makeTensor(c.numberOfHeads);
-             AbstractTensor query = m.makeTensor(c.embeddingLength);
-             AbstractTensor value = m.makeTensor(c.embeddingLength))
-        {
+    public AbstractTensor forward(AbstractTensor input, int position, KvCache.Layer kvMem) {
+        return forward(new AbstractTensor[]{input}, new int[]{position}, new KvCache.Layer[]{kvMem}, 1)[0];
+    }
 
-            //This is our memory of the key and value vectors for each position
-            AbstractTensor kv = kvMem.slice(position);
+    /**
+     * Runs attention for a batch of tokens, each with its own position and kv memory.
+     * The batch can be independent sequences (decode) or consecutive tokens sharing kv memory (prefill).
+     * The projection weights are multiplied against the batch in tiles, see {@link VectorMath#pforTiled}
+     */
+    public AbstractTensor[] forward(AbstractTensor[] inputs, int[] positions, KvCache.Layer[] kvMems, int batchSize) {
+        Preconditions.checkArgument(inputs.length >= batchSize && positions.length >= batchSize && kvMems.length >= batchSize);
+        for (int b = 0; b < batchSize; b++)
+            Preconditions.checkArgument(inputs[b].dims() == 1 && inputs[b].shape()[0] == c.embeddingLength);
+
+        AbstractTensor[] queries = new AbstractTensor[batchSize];
+        AbstractTensor[] values = new AbstractTensor[batchSize];
+        AbstractTensor[] kvs = new AbstractTensor[batchSize];
+        boolean[] staged = new boolean[batchSize];
+        AbstractTensor[] results = new AbstractTensor[batchSize];
+
+        try {
+            for (int b = 0; b < batchSize; b++) {
+                queries[b] = m.makeTensor(c.embeddingLength);
+                values[b] = m.makeTensor(c.embeddingLength);
+                //This is our memory of the key and value vectors for each position,
+                //reduced precision caches are written once the full entry is computed
+                staged[b] = kvMems[b].get(positions[b]).dType() != values[b].dType();
+                kvs[b] = staged[b] ? m.makeTensor(c.embeddingLength * 2) : kvMems[b].get(positions[b]);
+            }
 
             // compute the query vector
-            VectorMath.pfor(0, c.embeddingLength, i -> {
-                float q = queryAttnBias.get(i) + TensorOperationsProvider.get().dotProduct(input, queryAttnWeights.slice(i), c.embeddingLength);
-                float k = keyAttnBias.get(i) + TensorOperationsProvider.get().dotProduct(input, keyAttnWeights.slice(i), c.embeddingLength);
-                float v = valueAttnBias.get(i) + TensorOperationsProvider.get().dotProduct(input, valueAttnWeights.slice(i), c.embeddingLength);
-
-                query.set(q, i);
-                kv.set(k, i);
-                kv.set(v, i + c.embeddingLength);
-            });
-
-            // apply RoPE if present (accounting for huggingface permutation)
-            // https://github.com/huggingface/transformers/blob/d533465150532b0c5de167b574e59f64c68b1154/src/transformers/models/llama/convert_llama_weights_to_hf.py#L114
-            ropeFrequencies.ifPresent(rf -> {
-                int headPiece = headSize / 2;
-                int poffset = position * headPiece;
-                // apply RoPE rotation to the q and k vectors for each head
-                for (int h = 0; h < c.numberOfHeads; h++) {
-                    // get the q and k vectors for this head
-                    int offset = h * headSize;
-                    // rotate q and k by the freq theta and freq r
-                    for (int i = offset; i < (offset + headPiece); i++) {
-                        float q0 = query.get(i);
-                        float q1 = query.get(i + headPiece);  //hf permutation is 0,64,1,65 etc...
-                        float k0 = kv.get(i);
-                        float k1 = kv.get(i + headPiece);
-                        float[] f = rf[poffset + i];
-                        float fcr = f[0];
-                        float fci = f[1];
-                        query.set(q0 * fcr - q1 * fci, i);
-                        query.set(q0 * fci + q1 * fcr, i + headPiece);
-                        kv.set(k0 * fcr - k1 * fci, i);
-                        kv.set(k0 * fci + k1 * fcr, i + headPiece);
+            VectorMath.pforTiled(c.embeddingLength, batchSize, (rowStart, rowEnd, bStart, bEnd) -> {
+                TensorOperations ops = TensorOperationsProvider.get();
+                ops.matmul(inputs, bStart, bEnd, queryAttnWeights, rowStart, rowEnd, queries, 0, c.embeddingLength);
+                ops.matmul(inputs, bStart, bEnd, keyAttnWeights, rowStart, rowEnd, kvs, 0, c.embeddingLength);
+                ops.matmul(inputs, bStart, bEnd, valueAttnWeights, rowStart, rowEnd, kvs, c.embeddingLength, c.embeddingLength);
+
+                for (int b = bStart; b < bEnd; b++) {
+                    for (int i = rowStart; i < rowEnd; i++) {
+                        queries[b].set(queries[b].get(i) + queryAttnBias.get(i), i);
+                        kvs[b].set(kvs[b].get(i) + keyAttnBias.get(i), i);
+                        kvs[b].set(kvs[b].get(i + c.embeddingLength) + valueAttnBias.get(i), i + c.embeddingLength);
                     }
                 }
             });
 
-            // with all key-value entries populated, compute attention
-            // the softmax is incrementally aggregated using the flash attention technique
-            AbstractTensor k0 = kvMem.slice(0);
+            // All keys and values for the batch are now in kv memory, each entry only attends
+            // up to its own position so attention stays causal within the batch
+            VectorMath.pfor(0, batchSize, b -> {
+                AbstractTensor query = queries[b];
+                AbstractTensor kv = kvs[b];
+                int position = positions[b];
+
+                // apply RoPE if present (accounting for huggingface permutation)
+                ropeFrequencies.ifPresent(rf -> applyRope(rf, query, kv, position));
+
+                if (staged[b])
+                    kvMems[b].put(position, kv);
+            });
+
+            VectorMath.pfor(0, batchSize, b -> attend(queries[b], values[b], positions[b], kvMems[b]));
+
+            // matmul the projection and sum into input
+            // input += c_proj_weight @ ybuf + c_proj_bias
+            AbstractTensor[] vqs = new AbstractTensor[batchSize];
+            try {
+                for (int b = 0; b < batchSize; b++) {
+                    vqs[b] = m.maybeQuantize(values[b]);
+                    results[b] = m.makeTensor(c.embeddingLength);
+                }
+
+                VectorMath.pforTiled(c.embeddingLength, batchSize, (rowStart, rowEnd, bStart, bEnd) -> {
+                    TensorOperationsProvider.get().matmul(vqs, bStart, bEnd, outputProjectionWeights, rowStart, rowEnd, results, 0, c.embeddingLength);
+                    for (int b = bStart; b < bEnd; b++) {
+                        for (int i = rowStart; i < rowEnd; i++)
+                            results[b].set(results[b].get(i) + outputProjectionBias.get(i), i);
+                    }
+                });
+            } finally {
+                for (int b = 0; b < batchSize; b++)
+                    if (vqs[b] != null) vqs[b].close();
+            }
+
+            return results;
+        } finally {
+            for (int b = 0; b < batchSize; b++) {
+                if (queries[b] != null) queries[b].close();
+                if (values[b] != null) values[b].close();
+                if (staged[b] && kvs[b] != null) kvs[b].close();
+            }
+        }
+    }
+
+    // https://github.com/huggingface/transformers/blob/d533465150532b0c5de167b574e59f64c68b1154/src/transformers/models/llama/convert_llama_weights_to_hf.py#L114
+    private void applyRope(float[][] rf, AbstractTensor query, AbstractTensor kv, int position) {
+        int headPiece = headSize / 2;
+        int poffset = position * headPiece;
+        // apply RoPE rotation to the q and k vectors for each head
+        for (int h = 0; h < c.numberOfHeads; h++) {
+            // get the q and k vectors for this head
+            int offset = h * headSize;
+            // rotate q and k by the freq theta and freq r
+            for (int i = offset; i < (offset + headPiece); i++) {
+                float q0 = query.get(i);
+                float q1 = query.get(i + headPiece);  //hf permutation is 0,64,1,65 etc...
+                float k0 = kv.get(i);
+                float k1 = kv.get(i + headPiece);
+                float[] f = rf[poffset + i];
+                float fcr = f[0];
+                float fci = f[1];
+                query.set(q0 * fcr - q1 * fci, i);
+                query.set(q0 * fci + q1 * fcr, i + headPiece);
+                kv.set(k0 * fcr - k1 * fci, i);
+                kv.set(k0 * fci + k1 * fcr, i + headPiece);
+            }
+        }
+    }
+
+    /**
+     * With all key-value entries populated up to position, compute attention into value.
+     * The softmax is incrementally aggregated using the flash attention technique
+     */
+    private void attend(AbstractTensor query, AbstractTensor value, int position, KvCache.Layer kvMem) {
+        try (AbstractTensor flashAttn_m = m.makeTensor(c.numberOfHeads);
+             AbstractTensor flashAttn_l = m.makeTensor(c.numberOfHeads))
+        {
+            AbstractTensor k0 = kvMem.get(0);
 
             // value is initially the first value for all heads
-            value.copyFrom(k0, c.embeddingLength, 0, c.embeddingLength);
+            if (k0.dType() == value.dType()) {
+                value.copyFrom(k0, c.embeddingLength, 0, c.embeddingLength);
+            } else {
+                value.clear();
+                TensorOperationsProvider.get().saxpy(1.0f, k0, value, c.embeddingLength, 0, c.embeddingLength);
+            }
 
             //POSITION ZERO
             for (int i = 0; i < c.numberOfHeads; i++) {
@@ -122,7 +202,7 @@ public class CausalSelfAttention {
             //This is where the context length gets expensive! We need to run this query token by all prior tokens.
             float[][] flashAttnHeads = new float[position][c.numberOfHeads];
             VectorMath.pfor(0, position, i -> {
-                AbstractTensor kk = kvMem.slice(i + 1);
+                AbstractTensor kk = kvMem.get(i + 1);
                 VectorMath.pfor(0, c.numberOfHeads, h -> {
                     //KEY OFFSET
                     flashAttnHeads[i][h] = TensorOperationsProvider.get().dotProduct(query, kk, h * headSize, h * headSize, headSize) * attentionScale;
@@ -131,7 +211,7 @@ public class CausalSelfAttention {
 
             //Now aggregate results per head
             for (int i = 0; i < position; i++) {
-                AbstractTensor kk = kvMem.slice(i + 1);
+                AbstractTensor kk = kvMem.get(i + 1);
                 for (int h = 0; h < c.numberOfHeads; h++) {
                     float a = flashAttnHeads[i][h];
                     if (a > flashAttn_m.get(h)) {
@@ -154,18 +234,6 @@ public class CausalSelfAttention {
                 float scale = 1.0f / flashAttn_l.get(h);
                 TensorOperationsProvider.get().scale(scale, value, (h * headSize), headSize);
             }
-
-            // matmul the projection and sum into input
-            // input += c_proj_weight @ ybuf + c_proj_bias
-            AbstractTensor result = m.makeTensor(c.embeddingLength);
-            try(AbstractTensor vq = m.maybeQuantize(value)) {
-                VectorMath.pfor(0, c.embeddingLength, i -> {
-                    float v = outputProjectionBias.get(i) + TensorOperationsProvider.get().dotProduct(vq, outputProjectionWeights.slice(i), c.embeddingLength);
-                    result.set(v, i);
-                });
-            }
-
-            return result;
         }
     }
 }
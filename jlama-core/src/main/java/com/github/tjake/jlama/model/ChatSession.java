@@ -0,0 +1,244 @@
+package com.github.tjake.jlama.model;
+
+import com.github.tjake.jlama.tensor.AbstractTensor;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/**
+ * A multi-turn conversation that keeps its kv cache between turns.
+ *
+ * Each turn only processes the tokens of the new input, then continues decoding from the end of the
+ * conversation, so latency follows the size of the turn rather than the whole history.
+ *
+ * Idle sessions may be evicted by the model to stay under its session memory budget, see
+ * {@link AbstractModel#configureSessions}.  An evicted session keeps its token history and rebuilds its
+ * kv cache on the next turn.
+ *
+ * A session can be saved with {@link #save} and resumed later with {@link AbstractModel#restoreSession}.
+ */
+public class ChatSession implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(ChatSession.class);
+
+    private final AbstractModel model;
+    private final ReentrantLock lock;
+    private KvCache kvmem;
+    private Sampler sampler;
+
+    //Every token of the conversation, the first position of them are in the kv cache
+    private int[] tokens;
+    private int length;
+    private int position;
+    private volatile long lastUsed;
+    private volatile boolean closed;
+
+    ChatSession(AbstractModel model) {
+        this.model = model;
+        this.lock = new ReentrantLock();
+        this.tokens = new int[64];
+        this.length = 0;
+        this.position = 0;
+        this.lastUsed = System.nanoTime();
+    }
+
+    /** Resume a session from a snapshot */
+    ChatSession(AbstractModel model, SessionSnapshot snapshot) {
+        this(model);
+        append(snapshot.tokens, snapshot.tokens.length);
+        this.kvmem = snapshot.kvmem;
+        this.position = snapshot.position;
+    }
+
+    /** The number of tokens in the kv cache */
+    public int position() {
+        return position;
+    }
+
+    /** The token history of the conversation */
+    public int[] tokens() {
+        lock.lock();
+        try {
+            return Arrays.copyOf(tokens, length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Bytes of kv cache currently held */
+    public long bytes() {
+        KvCache kv = kvmem;
+        return kv == null ? 0 : kv.bytes();
+    }
+
+    long lastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * Add a turn to the conversation and generate the response.
+     *
+     * @param prompt the (already wrapped) input for this turn
+     * @param cleanPrompt what to echo back to the caller, null for the prompt itself
+     * @param ntokens the maximum number of tokens to generate for this turn
+     * @param useEOS end the prompt of the first turn with EOS, as {@link AbstractModel#generate} does.
+     *               Later turns continue the conversation without one
+     */
+    public void generate(String prompt, String cleanPrompt, float temperature, int ntokens, boolean useEOS, BiConsumer<String, Float> onTokenWithTimings) {
+        lock.lock();
+        try {
+            Preconditions.checkState(!closed, "Session is closed");
+
+            //Only the conversation starts with BOS, later turns continue it
+            boolean first = length == 0;
+            int[] promptTokens = first ? model.encodePrompt(prompt, useEOS) : model.encodeContinuation(prompt);
+            Preconditions.checkArgument(promptTokens.length > 0, "Empty turn");
+            Preconditions.checkArgument(length + promptTokens.length < model.c.contextLength, "Conversation exceeds the context length");
+            append(promptTokens, promptTokens.length);
+
+            String clientPrompt = cleanPrompt == null ? prompt : cleanPrompt;
+            onTokenWithTimings.accept(clientPrompt, 0f);
+            long start = System.currentTimeMillis();
+
+            if (sampler == null)
+                sampler = model.makeSampler();
+
+            //Process everything not yet in the kv cache, the whole history if this session was evicted
+            AbstractTensor last;
+            if (kvmem == null || position == 0) {
+                if (kvmem == null)
+                    kvmem = model.makeKvCache(model.c.contextLength);
+
+                last = model.prefill(Arrays.copyOf(tokens, length), kvmem);
+            } else {
+                AbstractTensor[] batch = model.batchForward(Arrays.copyOfRange(tokens, position, length), position, kvmem);
+                for (int i = 0; i < batch.length - 1; i++)
+                    batch[i].close();
+                last = batch[batch.length - 1];
+            }
+            position = length;
+
+            //Like generate, the first sampled token takes the place of encodePrompt's last token (padding or EOS)
+            if (first) {
+                length--;
+                position--;
+            }
+
+            logger.debug("Processed {} new tokens in {}ms", promptTokens.length, System.currentTimeMillis() - start);
+
+            int next = model.sample(last, temperature, ThreadLocalRandom.current().nextFloat(), sampler);
+            last.close();
+
+            int generated = 0;
+            start = System.currentTimeMillis();
+            while (true) {
+                //Keep the sampled token in the history, its kv is added with the next forward pass (or next turn)
+                append(new int[]{next}, 1);
+                generated++;
+
+                //Model may tell us it's done
+                if (next == model.c.eosToken)
+                    break;
+
+                try {
+                    String c = model.tokenizer.decode(next);
+                    onTokenWithTimings.accept(c, (System.currentTimeMillis() - start) / (float) generated);
+                } catch (Exception e) {
+                    logger.error("Failed to decode token {}", next, e);
+                }
+
+                if (generated >= ntokens || length >= model.c.contextLength)
+                    break;
+
+                AbstractTensor output = model.forward(next, position, kvmem);
+                position++;
+                next = model.sample(output, temperature, ThreadLocalRandom.current().nextFloat(), sampler);
+                output.close();
+            }
+        } finally {
+            lastUsed = System.nanoTime();
+            lock.unlock();
+        }
+
+        model.evictSessions(this);
+    }
+
+    public void generate(String prompt, String cleanPrompt, float temperature, int ntokens, BiConsumer<String, Float> onTokenWithTimings) {
+        generate(prompt, cleanPrompt, temperature, ntokens, false, onTokenWithTimings);
+    }
+
+    public void generate(String prompt, float temperature, int ntokens, BiConsumer<String, Float> onTokenWithTimings) {
+        generate(prompt, null, temperature, ntokens, false, onTokenWithTimings);
+    }
+
+    /**
+     * Write the token history and kv cache of this session to a file.
+     * The session stays usable, it can be resumed from the file with {@link AbstractModel#restoreSession}.
+     */
+    public void save(Path path) throws IOException {
+        lock.lock();
+        try {
+            Preconditions.checkState(!closed, "Session is closed");
+            KvBlockPool pool = kvmem == null ? model.kvBlockPool : kvmem.pool();
+            SessionSnapshot.write(path, model.c, pool, Arrays.copyOf(tokens, length), position, kvmem);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void append(int[] t, int len) {
+        if (length + len > tokens.length)
+            tokens = Arrays.copyOf(tokens, Math.max(tokens.length * 2, length + len));
+
+        System.arraycopy(t, 0, tokens, length, len);
+        length += len;
+    }
+
+    /**
+     * Drop the kv cache if no turn is running, keeping the token history.
+     * @return the bytes freed
+     */
+    long evict() {
+        if (!lock.tryLock())
+            return 0;
+
+        try {
+            if (kvmem == null)
+                return 0;
+
+            long freed = kvmem.bytes();
+            kvmem.close();
+            kvmem = null;
+            position = 0;
+            logger.debug("Evicted idle session holding {} bytes", freed);
+            return freed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed)
+                return;
+
+            closed = true;
+            if (kvmem != null) kvmem.close();
+            kvmem = null;
+            sampler = null;
+        } finally {
+            lock.unlock();
+        }
+
+        model.removeSession(this);
+    }
+}
@@ -0,0 +1,88 @@
+package com.github.tjake.jlama.model;
+
+import com.github.tjake.jlama.tensor.AbstractTensor;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Drafts tokens by sampling from a smaller model that shares the target's tokenizer.
+ *
+ * The draft keeps its own kv cache.  Each proposal first catches it up with the tokens accepted since the
+ * last one, entries past the accepted tokens are simply overwritten.
+ */
+class DraftModel implements Drafter {
+    private final AbstractModel model;
+    private final KvCache kvmem;
+    private final Sampler sampler;
+    private float[][] probs;
+
+    //Tokens whose keys and values are in the kv cache
+    private final int[] fed;
+    private int fedLength;
+
+    DraftModel(AbstractModel model) {
+        this.model = model;
+        this.kvmem = model.makeKvCache(model.c.contextLength);
+        this.sampler = model.makeSampler();
+        this.probs = new float[0][];
+        this.fed = new int[model.c.contextLength];
+        this.fedLength = 0;
+    }
+
+    @Override
+    public int propose(int[] tokens, int length, int k, float temperature, int[] draft) {
+        k = Math.min(k, model.c.contextLength - length);
+        if (k <= 0)
+            return 0;
+
+        if (probs.length < k) {
+            probs = Arrays.copyOf(probs, k);
+            for (int i = 0; i < k; i++)
+                if (probs[i] == null) probs[i] = new float[model.c.vocabularySize];
+        }
+
+        //Keep what still matches the sequence, the last token is always run to get its output
+        int valid = Math.min(Arrays.mismatch(fed, 0, fedLength, tokens, 0, length - 1), length - 1);
+        if (valid < 0)
+            valid = Math.min(fedLength, length - 1);
+
+        AbstractTensor output;
+        if (fedLength == 0) {
+            output = model.prefill(Arrays.copyOf(tokens, length), kvmem);
+        } else if (length - valid == 1) {
+            output = model.forward(tokens[length - 1], length - 1, kvmem);
+        } else {
+            AbstractTensor[] batch = model.batchForward(Arrays.copyOfRange(tokens, valid, length), valid, kvmem);
+            for (int i = 0; i < batch.length - 1; i++)
+                batch[i].close();
+            output = batch[batch.length - 1];
+        }
+        System.arraycopy(tokens, valid, fed, valid, length - valid);
+        fedLength = length;
+
+        for (int i = 0; i < k; i++) {
+            model.probabilities(output, temperature, sampler, probs[i]);
+            output.close();
+            draft[i] = SpeculativeDecoder.sample(probs[i], model.c.vocabularySize, ThreadLocalRandom.current().nextFloat());
+
+            if (i == k - 1)
+                break;
+
+            output = model.forward(draft[i], length + i, kvmem);
+            fed[fedLength++] = draft[i];
+        }
+
+        return k;
+    }
+
+    @Override
+    public float[] probabilities(int i) {
+        return probs[i];
+    }
+
+    @Override
+    public void close() {
+        kvmem.close();
+    }
+}
@@ -0,0 +1,22 @@
+package com.github.tjake.jlama.model;
+
+/**
+ * Proposes tokens for a {@link SpeculativeDecoder} to verify with the target model.
+ */
+interface Drafter extends AutoCloseable {
+
+    /**
+     * Propose up to k tokens continuing tokens[0..length)
+     * @return the number of tokens written to draft
+     */
+    int propose(int[] tokens, int length, int k, float temperature, int[] draft);
+
+    /**
+     * The distribution the i-th token of the last proposal was sampled from,
+     * or null if it was picked deterministically
+     */
+    float[] probabilities(int i);
+
+    @Override
+    void close();
+}
@@ -0,0 +1,294 @@
+package com.github.tjake.jlama.model;
+
+import com.github.tjake.jlama.tensor.AbstractTensor;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Continuous batching for concurrent generation requests.
+ *
+ * Rather than each caller running its own token loop (and re-streaming every weight row per token),
+ * a single scheduler thread merges all active sequences into one decode step per iteration.
+ * Sequences join (after their prompt is processed) and leave (on EOS or token limit) at token boundaries.
+ * Prompts are processed a chunk at a time between decode steps, so a long prompt doesn't stall the sequences
+ * already generating.
+ *
+ * Since decode is memory bandwidth bound, the aggregate tokens/sec scales with the batch size.
+ */
+public class InferenceScheduler implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(InferenceScheduler.class);
+
+    public static final int DEFAULT_PREFILL_CHUNK = 128;
+
+    private final AbstractModel model;
+    private final int maxBatchSize;
+    private final int prefillChunk;
+    private final LinkedBlockingQueue<Sequence> pending;
+    private final ArrayDeque<Sequence> prefilling;
+    private final List<Sequence> active;
+    private final Thread worker;
+    private volatile boolean running;
+
+    public InferenceScheduler(AbstractModel model, int maxBatchSize) {
+        this(model, maxBatchSize, DEFAULT_PREFILL_CHUNK);
+    }
+
+    /**
+     * @param prefillChunk the most prompt tokens processed between two decode steps
+     */
+    public InferenceScheduler(AbstractModel model, int maxBatchSize, int prefillChunk) {
+        Preconditions.checkArgument(maxBatchSize > 0, "maxBatchSize must be positive");
+        Preconditions.checkArgument(prefillChunk > 0, "prefillChunk must be positive");
+        this.model = model;
+        this.maxBatchSize = maxBatchSize;
+        this.prefillChunk = prefillChunk;
+        this.pending = new LinkedBlockingQueue<>();
+        this.prefilling = new ArrayDeque<>();
+        this.active = new ArrayList<>(maxBatchSize);
+        this.running = true;
+        this.worker = new Thread(this::run, "jlama-inference-scheduler");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Queue a prompt for generation, same semantics as {@link AbstractModel#generate}.
+     * The returned future completes once the sequence finishes.
+     */
+    public CompletableFuture<Void> submit(String prompt, String cleanPrompt, float temperature, int ntokens, boolean useEOS, BiConsumer<String, Float> onTokenWithTimings) {
+        Sequence s = new Sequence(model.encodePrompt(prompt, useEOS), cleanPrompt == null ? prompt : cleanPrompt,
+                temperature, Math.min(ntokens, model.c.contextLength), onTokenWithTimings);
+
+        //Nothing is queued once close starts, so the worker's final drain sees every sequence
+        synchronized (this) {
+            Preconditions.checkState(running, "Scheduler is closed");
+            pending.add(s);
+        }
+        return s.future;
+    }
+
+    public CompletableFuture<Void> submit(String prompt, float temperature, int ntokens, boolean useEOS, BiConsumer<String, Float> onTokenWithTimings) {
+        return submit(prompt, null, temperature, ntokens, useEOS, onTokenWithTimings);
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                if (active.isEmpty() && prefilling.isEmpty()) {
+                    Sequence s = pending.poll(100, TimeUnit.MILLISECONDS);
+                    if (s != null)
+                        admit(s);
+                }
+
+                //Callers may give up on a sequence at any time
+                active.removeIf(Sequence::cancelled);
+                prefilling.removeIf(Sequence::cancelled);
+
+                //Sequences join at token boundaries
+                Sequence s;
+                while (active.size() + prefilling.size() < maxBatchSize && (s = pending.poll()) != null)
+                    admit(s);
+
+                //One chunk of prompt per decode step
+                if (!prefilling.isEmpty())
+                    prefill(prefilling.peek());
+
+                if (!active.isEmpty())
+                    step();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Throwable t) {
+                logger.error("Inference step failed", t);
+                for (Sequence s : active)
+                    s.fail(t);
+                active.clear();
+            }
+        }
+
+        for (Sequence s : active)
+            s.fail(new IllegalStateException("Scheduler closed"));
+        active.clear();
+
+        for (Sequence s : prefilling)
+            s.fail(new IllegalStateException("Scheduler closed"));
+        prefilling.clear();
+
+        Sequence s;
+        while ((s = pending.poll()) != null)
+            s.future.completeExceptionally(new IllegalStateException("Scheduler closed"));
+    }
+
+    /** Start a new sequence from any cached prefix of its prompt */
+    private void admit(Sequence s) {
+        try {
+            s.onTokenWithTimings.accept(s.clientPrompt, 0f);
+            s.start = System.currentTimeMillis();
+
+            s.kvmem = model.makeKvCache(s.ntokens);
+            s.sampler = model.makeSampler();
+            s.prefilled = model.attachPrefix(s.promptTokens, s.kvmem);
+
+            prefilling.add(s);
+        } catch (Throwable t) {
+            s.fail(t);
+        }
+    }
+
+    /** Process the next chunk of a sequence's prompt, once it's all done sample the first token and join the batch */
+    private void prefill(Sequence s) {
+        try {
+            int end = Math.min(s.promptTokens.length, s.prefilled + prefillChunk);
+            AbstractTensor last = model.prefill(s.promptTokens, s.prefilled, end, s.kvmem);
+            s.prefilled = end;
+
+            if (end < s.promptTokens.length) {
+                last.close();
+                return;
+            }
+
+            prefilling.remove(s);
+            model.publishPrefix(s.promptTokens, s.kvmem);
+
+            s.next = model.sample(last, s.temperature, ThreadLocalRandom.current().nextFloat(), s.sampler);
+            last.close();
+
+            s.emit(s.next, 1);
+            s.start = System.currentTimeMillis();
+            s.position = s.promptTokens.length - 1;
+
+            if (s.position < s.ntokens)
+                active.add(s);
+            else
+                s.finish();
+        } catch (Throwable t) {
+            prefilling.remove(s);
+            s.fail(t);
+        }
+    }
+
+    /** Run a single decode step for every active sequence */
+    private void step() {
+        int batchSize = active.size();
+        int[] tokens = new int[batchSize];
+        int[] positions = new int[batchSize];
+        KvCache[] kvmems = new KvCache[batchSize];
+
+        for (int i = 0; i < batchSize; i++) {
+            Sequence s = active.get(i);
+            tokens[i] = s.next;
+            positions[i] = s.position;
+            kvmems[i] = s.kvmem;
+        }
+
+        AbstractTensor[] outputs = model.forward(tokens, positions, kvmems, batchSize);
+
+        //Sequences leave at token boundaries
+        List<Sequence> done = new ArrayList<>();
+        for (int i = 0; i < batchSize; i++) {
+            Sequence s = active.get(i);
+            s.next = model.sample(outputs[i], s.temperature, ThreadLocalRandom.current().nextFloat(), s.sampler);
+            outputs[i].close();
+            s.generated++;
+            s.position++;
+
+            if (logger.isTraceEnabled())
+                logger.trace("Sampled token {} with temperature {}", s.next, s.temperature);
+
+            //Model may tell us it's done
+            if (s.next == model.c.eosToken || s.position >= s.ntokens) {
+                done.add(s);
+                if (s.next == model.c.eosToken)
+                    continue;
+            }
+
+            s.emit(s.next, s.generated);
+        }
+
+        for (Sequence s : done) {
+            active.remove(s);
+            s.finish();
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            running = false;
+        }
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class Sequence {
+        final int[] promptTokens;
+        final String clientPrompt;
+        final float temperature;
+        final int ntokens;
+        final BiConsumer<String, Float> onTokenWithTimings;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        KvCache kvmem;
+        Sampler sampler;
+        int prefilled;
+        int next;
+        int position;
+        int generated;
+        long start;
+
+        Sequence(int[] promptTokens, String clientPrompt, float temperature, int ntokens, BiConsumer<String, Float> onTokenWithTimings) {
+            this.promptTokens = promptTokens;
+            this.clientPrompt = clientPrompt;
+            this.temperature = temperature;
+            this.ntokens = ntokens;
+            this.onTokenWithTimings = onTokenWithTimings;
+        }
+
+        void emit(int token, int count) {
+            try {
+                String c = model.tokenizer.decode(token);
+                onTokenWithTimings.accept(c, (System.currentTimeMillis() - start) / (float) count);
+            } catch (Exception e) {
+                logger.error("Failed to decode token {}", token, e);
+            }
+        }
+
+        void release() {
+            if (kvmem != null) kvmem.close();
+            kvmem = null;
+            sampler = null;
+        }
+
+        boolean cancelled() {
+            if (!future.isCancelled())
+                return false;
+
+            release();
+            return true;
+        }
+
+        void finish() {
+            release();
+            future.complete(null);
+        }
+
+        void fail(Throwable t) {
+            release();
+            future.completeExceptionally(t);
+        }
+    }
+}
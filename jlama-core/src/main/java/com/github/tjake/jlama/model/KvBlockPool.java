@@ -0,0 +1,136 @@
+package com.github.tjake.jlama.model;
+
+import com.github.tjake.jlama.safetensors.Config;
+import com.github.tjake.jlama.safetensors.DType;
+import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.BFloat16BufferTensor;
+import com.github.tjake.jlama.tensor.Float16BufferTensor;
+import com.github.tjake.jlama.tensor.FloatBufferTensor;
+import com.github.tjake.jlama.tensor.Q8ByteBufferTensor;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+
+/**
+ * A shared pool of fixed size kv cache blocks.
+ *
+ * Each block holds the key and value vectors of every layer for {@link #blockSize} consecutive positions,
+ * with shape [numberOfLayers, blockSize, embeddingLength * 2].  Sequences map their positions onto blocks with a
+ * {@link KvCache} block table, so memory grows with the tokens actually used rather than the maximum context.
+ *
+ * Blocks are allocated lazily (off-heap when the tensor operations require it) up to the pool capacity
+ * and recycled once released.  When the pool is full, unreferenced blocks held by its {@link PrefixCache}
+ * are evicted before an allocation fails.
+ *
+ * Blocks can be stored as F32, F16, BF16 or I8.  I8 blocks keep a scale per {@link Q8ByteBufferTensor#BLOCK_SIZE}
+ * elements (the same scheme as Q8 weights) so attention can run directly against the quantized keys and values.
+ */
+public class KvBlockPool {
+    private static final Logger logger = LoggerFactory.getLogger(KvBlockPool.class);
+
+    public static final int DEFAULT_BLOCK_SIZE = 16;
+
+    private final Config c;
+    private final DType dType;
+    private final int blockSize;
+    private final long blockBytes;
+    private final long maxBlocks;
+    private final ArrayDeque<AbstractTensor> free;
+    private long allocatedBlocks;
+    private volatile PrefixCache prefixCache;
+
+    public KvBlockPool(Config c, DType dType, int blockSize, long maxBytes) {
+        Preconditions.checkArgument(blockSize > 0, "blockSize must be positive");
+        Preconditions.checkArgument(dType != DType.I8 || (c.embeddingLength * 2) % Q8ByteBufferTensor.BLOCK_SIZE == 0,
+                "I8 kv cache requires the embedding length to be a multiple of %s", Q8ByteBufferTensor.BLOCK_SIZE / 2);
+        this.c = c;
+        this.dType = dType;
+        this.blockSize = blockSize;
+        this.blockBytes = bytesPerPosition(c, dType) * blockSize;
+        this.maxBlocks = Math.max(1, maxBytes / blockBytes);
+        this.free = new ArrayDeque<>();
+        this.allocatedBlocks = 0;
+    }
+
+    /** The bytes needed to hold the keys and values of every layer for a single position */
+    public static long bytesPerPosition(Config c, DType dType) {
+        long kvLength = c.embeddingLength * 2L;
+        long bytes = kvLength * dType.size();
+
+        //Plus the F32 scale of each quantized block
+        if (dType == DType.I8)
+            bytes += (kvLength / Q8ByteBufferTensor.BLOCK_SIZE) * DType.F32.size();
+
+        return c.numberOfLayers * bytes;
+    }
+
+    public int blockSize() {
+        return blockSize;
+    }
+
+    public DType dType() {
+        return dType;
+    }
+
+    public long blockBytes() {
+        return blockBytes;
+    }
+
+    /** Bytes held by blocks currently handed out to sequences */
+    public synchronized long bytesInUse() {
+        return (allocatedBlocks - free.size()) * blockBytes;
+    }
+
+    /** Bytes allocated by this pool, both in use and free */
+    public synchronized long bytesAllocated() {
+        return allocatedBlocks * blockBytes;
+    }
+
+    /** The prefix cache asked to give back blocks when the pool is full */
+    void reclaimFrom(PrefixCache prefixCache) {
+        this.prefixCache = prefixCache;
+    }
+
+    public AbstractTensor allocate() {
+        while (true) {
+            AbstractTensor block = tryAllocate();
+            if (block != null)
+                return block;
+
+            //Evict outside the pool lock, the prefix cache releases into the pool while holding its own
+            PrefixCache pc = prefixCache;
+            if (pc == null || !pc.evictLeastRecentlyUsed())
+                throw new IllegalStateException("KV cache exhausted: " + bytesInUse() / blockBytes + " blocks of " + blockBytes + " bytes in use");
+        }
+    }
+
+    /** A free or newly allocated block, null once the pool is full */
+    private synchronized AbstractTensor tryAllocate() {
+        AbstractTensor block = free.poll();
+        if (block != null)
+            return block;
+
+        if (allocatedBlocks >= maxBlocks)
+            return null;
+
+        block = switch (dType) {
+            case F32 -> new FloatBufferTensor(c.numberOfLayers, blockSize, c.embeddingLength * 2);
+            case F16 -> new Float16BufferTensor(c.numberOfLayers, blockSize, c.embeddingLength * 2);
+            case BF16 -> new BFloat16BufferTensor(c.numberOfLayers, blockSize, c.embeddingLength * 2);
+            case I8 -> new Q8ByteBufferTensor(new int[]{c.numberOfLayers, blockSize, c.embeddingLength * 2});
+            default -> throw new UnsupportedOperationException("Unsupported kv cache type: " + dType);
+        };
+
+        allocatedBlocks++;
+        logger.debug("Allocated kv block {}", allocatedBlocks);
+        return block;
+    }
+
+    public synchronized void release(AbstractTensor block) {
+        block.clear();
+        free.offer(block);
+    }
+}
@@ -0,0 +1,182 @@
+package com.github.tjake.jlama.model;
+
+import com.github.tjake.jlama.safetensors.DType;
+import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.Q8ByteBufferTensor;
+import com.github.tjake.jlama.tensor.operations.TensorOperationsProvider;
+
+import com.google.common.base.Preconditions;
+
+import java.lang.foreign.Arena;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The key/value memory of a single sequence.
+ *
+ * Positions are mapped onto fixed size blocks from a shared {@link KvBlockPool} through a block table,
+ * blocks are taken from the pool the first time a position inside them is written.
+ *
+ * The leading blocks may be shared, read only, with other sequences through a {@link PrefixCache}, or be read only
+ * views of a restored {@link SessionSnapshot}.
+ *
+ * When the pool stores a reduced precision type the entries are read back as-is (attention works on the
+ * quantized values directly) and written through {@link Layer#put}.
+ */
+public class KvCache implements AutoCloseable {
+    private final KvBlockPool pool;
+    private final int blockSize;
+    private final int maxPositions;
+    private final List<AbstractTensor> blockTable;
+    private final List<PrefixCache.Node> sharedBlocks;
+    private final Layer[] layers;
+    private PrefixCache prefixCache;
+    private int mappedBlocks;
+    private Arena mapping;
+
+    public KvCache(KvBlockPool pool, int numberOfLayers, int maxPositions) {
+        this.pool = pool;
+        this.blockSize = pool.blockSize();
+        this.maxPositions = maxPositions;
+        this.blockTable = new ArrayList<>();
+        this.sharedBlocks = new ArrayList<>();
+        this.layers = new Layer[numberOfLayers];
+        for (int i = 0; i < numberOfLayers; i++)
+            layers[i] = new Layer(i);
+    }
+
+    /** The view of this sequence's memory for a single transformer layer */
+    public Layer layer(int layer) {
+        return layers[layer];
+    }
+
+    /** The number of positions covered by the blocks held by this sequence */
+    public synchronized int capacity() {
+        return blockTable.size() * blockSize;
+    }
+
+    KvBlockPool pool() {
+        return pool;
+    }
+
+    /** The number of blocks held by this sequence */
+    synchronized int blocks() {
+        return blockTable.size();
+    }
+
+    /** The number of leading blocks shared through the prefix cache */
+    synchronized int sharedBlocks() {
+        return sharedBlocks.size();
+    }
+
+    synchronized AbstractTensor blockAt(int index) {
+        return blockTable.get(index);
+    }
+
+    /** Start this sequence from cached prefix blocks */
+    synchronized void attach(PrefixCache cache, List<PrefixCache.Node> prefix) {
+        Preconditions.checkState(blockTable.isEmpty(), "Prefix must be attached before any position is written");
+        this.prefixCache = cache;
+        for (PrefixCache.Node n : prefix) {
+            blockTable.add(n.block);
+            sharedBlocks.add(n);
+        }
+    }
+
+    /**
+     * Start this sequence from read only blocks mapped from a session snapshot, followed by blocks already taken
+     * from the pool.  The mapping is closed with this kv cache, mapped blocks are not returned to the pool.
+     */
+    synchronized void attachMapped(Arena mapping, List<AbstractTensor> mapped, List<AbstractTensor> owned) {
+        Preconditions.checkState(blockTable.isEmpty(), "Blocks must be attached before any position is written");
+        this.mapping = mapping;
+        this.mappedBlocks = mapped.size();
+        blockTable.addAll(mapped);
+        blockTable.addAll(owned);
+    }
+
+    /** Hand the next block of this sequence over to the prefix cache, it must no longer be written */
+    synchronized void share(PrefixCache cache, PrefixCache.Node n) {
+        Preconditions.checkState(prefixCache == null || prefixCache == cache, "Already attached to a different prefix cache");
+        Preconditions.checkState(blockTable.get(sharedBlocks.size()) == n.block, "Blocks must be shared in order");
+        this.prefixCache = cache;
+        sharedBlocks.add(n);
+    }
+
+    /** Bytes of the blocks owned by this sequence, shared prefix blocks and mapped blocks are not counted */
+    public synchronized long bytes() {
+        return (blockTable.size() - sharedBlocks.size() - mappedBlocks) * pool.blockBytes();
+    }
+
+    /** The storage type of the cached keys and values */
+    public DType dType() {
+        return pool.dType();
+    }
+
+    public int maxPositions() {
+        return maxPositions;
+    }
+
+    private AbstractTensor block(int position) {
+        Preconditions.checkArgument(position >= 0 && position < maxPositions, "Position %s out of range [0, %s)", position, maxPositions);
+        int b = position / blockSize;
+
+        synchronized (this) {
+            while (blockTable.size() <= b)
+                blockTable.add(pool.allocate());
+
+            return blockTable.get(b);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        for (int i = 0; i < blockTable.size(); i++) {
+            if (i < sharedBlocks.size())
+                prefixCache.release(sharedBlocks.get(i));
+            else if (i >= mappedBlocks)
+                pool.release(blockTable.get(i));
+        }
+
+        blockTable.clear();
+        sharedBlocks.clear();
+        mappedBlocks = 0;
+        if (mapping != null) {
+            mapping.close();
+            mapping = null;
+        }
+    }
+
+    public class Layer {
+        private final int layer;
+
+        private Layer(int layer) {
+            this.layer = layer;
+        }
+
+        /** Key and value for this position (concatenated) */
+        public AbstractTensor get(int position) {
+            return block(position).slice(layer).slice(position % blockSize);
+        }
+
+        /** Store the key and value for this position, converting to the cache type if needed */
+        public void put(int position, AbstractTensor kv) {
+            AbstractTensor entry = get(position);
+            Preconditions.checkArgument(kv.size() == entry.size(), "kv entry size mismatch");
+
+            if (kv.dType() == entry.dType()) {
+                entry.copyFrom(kv, 0, 0, kv.size());
+            } else if (entry.dType() == DType.I8) {
+                try (AbstractTensor q = TensorOperationsProvider.get().quantize(kv, DType.I8)) {
+                    if (q.dType() == DType.I8)
+                        entry.copyFrom(q, 0, 0, q.size());
+                    else
+                        ((Q8ByteBufferTensor) entry).quantize(kv);
+                }
+            } else {
+                for (int i = 0; i < kv.size(); i++)
+                    entry.set(kv.get(i), i);
+            }
+        }
+    }
+}
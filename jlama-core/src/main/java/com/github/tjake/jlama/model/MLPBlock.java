@@ -3,6 +3,7 @@ package com.github.tjake.jlama.model;
 import com.github.tjake.jlama.math.ActivationFunction;
 import com.github.tjake.jlama.math.VectorMath;
 import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.operations.TensorOperations;
 import com.github.tjake.jlama.tensor.operations.TensorOperationsProvider;
 
 public class MLPBlock {
@@ -37,28 +38,61 @@ public class MLPBlock {
     // Now for FFN in PyTorch we have: self.w2(F.silu(self.w1(x)) * self.w3(x))
     // first calculate self.w1(x) and self.w3(x)
     public AbstractTensor forward(AbstractTensor lnemb) {
+        return forward(new AbstractTensor[]{lnemb}, 1)[0];
+    }
+
+    /**
+     * Runs the FFN over a batch of inputs, the weights are multiplied against the batch in tiles
+     */
+    public AbstractTensor[] forward(AbstractTensor[] lnembs, int batchSize) {
         int hiddenLength = model.c.hiddenLength;
-        try(AbstractTensor buf = model.makeTensor(hiddenLength)) {
-            VectorMath.pfor(0, hiddenLength, i -> {
-                float w1 = fullyConnectedBias.get(i) + TensorOperationsProvider.get().dotProduct(lnemb, fullyConnectedWeights.slice(i), model.c.embeddingLength);
-                float w1a = ActivationFunction.eval(activationFunction, w1);
-
-                if (upProjectionWeights != null) {
-                    float w3 = TensorOperationsProvider.get().dotProduct(lnemb, upProjectionWeights.slice(i), model.c.embeddingLength);
-                    w1a *= w3;
-                }
+        AbstractTensor[] bufs = new AbstractTensor[batchSize];
+        AbstractTensor[] ups = upProjectionWeights != null ? new AbstractTensor[batchSize] : null;
+        try {
+            for (int b = 0; b < batchSize; b++) {
+                bufs[b] = model.makeTensor(hiddenLength);
+                if (ups != null)
+                    ups[b] = model.makeTensor(hiddenLength);
+            }
+
+            VectorMath.pforTiled(hiddenLength, batchSize, (rowStart, rowEnd, bStart, bEnd) -> {
+                TensorOperations ops = TensorOperationsProvider.get();
+                ops.matmul(lnembs, bStart, bEnd, fullyConnectedWeights, rowStart, rowEnd, bufs, 0, model.c.embeddingLength);
+                if (ups != null)
+                    ops.matmul(lnembs, bStart, bEnd, upProjectionWeights, rowStart, rowEnd, ups, 0, model.c.embeddingLength);
+
+                for (int b = bStart; b < bEnd; b++) {
+                    for (int i = rowStart; i < rowEnd; i++) {
+                        float w1 = fullyConnectedBias.get(i) + bufs[b].get(i);
+                        float w1a = ActivationFunction.eval(activationFunction, w1);
 
-                buf.set(w1a, i);
+                        if (ups != null)
+                            w1a *= ups[b].get(i);
+
+                        bufs[b].set(w1a, i);
+                    }
+                }
             });
 
             //matmul the projection and sum into input
-            AbstractTensor result = model.makeTensor(model.c.embeddingLength);
-            VectorMath.pfor(0, model.c.embeddingLength, i -> {
-                float v = projectionBias.get(i) + TensorOperationsProvider.get().dotProduct(buf, projectionWeights.slice(i), hiddenLength);
-                result.set(v, i);
+            AbstractTensor[] results = new AbstractTensor[batchSize];
+            for (int b = 0; b < batchSize; b++)
+                results[b] = model.makeTensor(model.c.embeddingLength);
+
+            VectorMath.pforTiled(model.c.embeddingLength, batchSize, (rowStart, rowEnd, bStart, bEnd) -> {
+                TensorOperationsProvider.get().matmul(bufs, bStart, bEnd, projectionWeights, rowStart, rowEnd, results, 0, hiddenLength);
+                for (int b = bStart; b < bEnd; b++) {
+                    for (int i = rowStart; i < rowEnd; i++)
+                        results[b].set(results[b].get(i) + projectionBias.get(i), i);
+                }
             });
 
-            return result;
+            return results;
+        } finally {
+            for (int b = 0; b < batchSize; b++) {
+                if (bufs[b] != null) bufs[b].close();
+                if (ups != null && ups[b] != null) ups[b].close();
+            }
         }
     }
 }
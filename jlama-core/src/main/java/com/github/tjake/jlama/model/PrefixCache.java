@@ -0,0 +1,211 @@
+package com.github.tjake.jlama.model;
+
+import com.github.tjake.jlama.tensor.AbstractTensor;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shares the kv blocks of common prompt prefixes (e.g. a system prompt) across sequences.
+ *
+ * Cached blocks live in a radix tree keyed by token ids, where every edge is one {@link KvBlockPool#blockSize}
+ * chunk of tokens.  Since the keys and values at a position depend on every token before it, a block can only be
+ * reused by a sequence that shares the full path from the root.  Cached blocks are immutable: sequences attach to
+ * whole blocks and only ever write past them.
+ *
+ * Blocks not referenced by any sequence are evicted least recently used first (leaves before their parents)
+ * once the cache holds more than maxBytes, or when the pool has no block left for a sequence.
+ */
+public class PrefixCache {
+    private static final Logger logger = LoggerFactory.getLogger(PrefixCache.class);
+
+    private final KvBlockPool pool;
+    private final int blockSize;
+    private final long maxBytes;
+    private final Node root;
+    private final List<Node> nodes;
+    private long clock;
+
+    public PrefixCache(KvBlockPool pool, long maxBytes) {
+        Preconditions.checkArgument(maxBytes >= 0, "maxBytes must not be negative");
+        this.pool = pool;
+        this.blockSize = pool.blockSize();
+        this.maxBytes = maxBytes;
+        this.root = new Node(null, null, null);
+        this.nodes = new ArrayList<>();
+        this.clock = 0;
+        pool.reclaimFrom(this);
+    }
+
+    public KvBlockPool pool() {
+        return pool;
+    }
+
+    public long maxBytes() {
+        return maxBytes;
+    }
+
+    /** Bytes held by cached blocks */
+    public synchronized long bytesCached() {
+        return nodes.size() * pool.blockBytes();
+    }
+
+    /**
+     * Map the longest cached prefix of tokens into an empty kv cache.
+     * At least the last token is always left uncached so the caller has an output to sample from.
+     *
+     * @return the number of leading tokens whose keys and values are already present
+     */
+    public synchronized int attach(KvCache kv, int[] tokens) {
+        Preconditions.checkArgument(kv.pool() == pool, "kv cache belongs to a different pool");
+
+        int maxBlocks = Math.max(0, tokens.length - 1) / blockSize;
+        List<Node> path = new ArrayList<>(maxBlocks);
+        Node n = root;
+        for (int i = 0; i < maxBlocks; i++) {
+            n = n.children.get(new Chunk(tokens, i * blockSize, blockSize));
+            if (n == null)
+                break;
+
+            path.add(n);
+        }
+
+        for (Node p : path) {
+            p.refs++;
+            p.lastUsed = ++clock;
+        }
+
+        kv.attach(this, path);
+
+        if (!path.isEmpty())
+            logger.debug("Reusing {} cached prefix tokens", path.size() * blockSize);
+
+        return path.size() * blockSize;
+    }
+
+    /**
+     * Publish the full blocks of an already processed prefix so later sequences can attach to them.
+     * Ownership of newly cached blocks moves from the kv cache to this cache.
+     *
+     * Only blocks before the last token are published, since generation may still overwrite that position.
+     */
+    public synchronized void insert(KvCache kv, int[] tokens) {
+        Preconditions.checkArgument(kv.pool() == pool, "kv cache belongs to a different pool");
+
+        int blocks = Math.min(Math.max(0, tokens.length - 1) / blockSize, kv.blocks());
+        Node n = root;
+        for (int i = 0; i < blocks; i++) {
+            Chunk key = new Chunk(tokens, i * blockSize, blockSize);
+            Node child = n.children.get(key);
+
+            if (child == null) {
+                //Only the sequence's own blocks can be published, and only as a continuation of its shared prefix
+                if (i != kv.sharedBlocks())
+                    break;
+
+                child = new Node(n, key, kv.blockAt(i));
+                n.children.put(key, child);
+                nodes.add(child);
+                child.refs++;
+                kv.share(this, child);
+            } else if (i >= kv.sharedBlocks()) {
+                //Another sequence published the same prefix first, keep using our private copy
+                break;
+            }
+
+            child.lastUsed = ++clock;
+            n = child;
+        }
+
+        evict();
+    }
+
+    /** Called when a kv cache holding a shared block is closed */
+    synchronized void release(Node n) {
+        Preconditions.checkState(n.refs > 0, "Released an unreferenced prefix block");
+        n.refs--;
+        evict();
+    }
+
+    /** Drop every unreferenced block */
+    public synchronized void clear() {
+        evict(0);
+    }
+
+    private void evict() {
+        evict(maxBytes);
+    }
+
+    private void evict(long limit) {
+        while (bytesCached() > limit) {
+            //Everything left is in use
+            if (!evictLeastRecentlyUsed())
+                break;
+        }
+    }
+
+    /**
+     * Give the least recently used unreferenced leaf block back to the pool.
+     * @return false if every cached block is in use
+     */
+    synchronized boolean evictLeastRecentlyUsed() {
+        Node victim = null;
+        for (Node n : nodes) {
+            if (n.refs == 0 && n.children.isEmpty() && (victim == null || n.lastUsed < victim.lastUsed))
+                victim = n;
+        }
+
+        if (victim == null)
+            return false;
+
+        victim.parent.children.remove(victim.key);
+        nodes.remove(victim);
+        pool.release(victim.block);
+        return true;
+    }
+
+    /** A cached block, the tokens leading to it are the keys on the path from the root */
+    static class Node {
+        final Node parent;
+        final Chunk key;
+        final AbstractTensor block;
+        final Map<Chunk, Node> children;
+        int refs;
+        long lastUsed;
+
+        Node(Node parent, Chunk key, AbstractTensor block) {
+            this.parent = parent;
+            this.key = key;
+            this.block = block;
+            this.children = new HashMap<>();
+        }
+    }
+
+    /** The token ids covered by a single block */
+    static final class Chunk {
+        private final int[] tokens;
+        private final int hash;
+
+        Chunk(int[] tokens, int offset, int length) {
+            this.tokens = Arrays.copyOfRange(tokens, offset, offset + length);
+            this.hash = Arrays.hashCode(this.tokens);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Chunk other && Arrays.equals(tokens, other.tokens);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.github.tjake.jlama.model;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Drafts tokens without a second model by copying from the sequence itself: the most recent earlier
+ * occurrence of the trailing n-gram (longest first, down to a single token) proposes the tokens that
+ * followed it.  Works well when the output repeats spans of the prompt, e.g. summaries and code edits.
+ */
+class PromptLookup implements Drafter {
+    private final int maxNgram;
+
+    PromptLookup(int maxNgram) {
+        Preconditions.checkArgument(maxNgram > 0, "maxNgram must be positive");
+        this.maxNgram = maxNgram;
+    }
+
+    @Override
+    public int propose(int[] tokens, int length, int k, float temperature, int[] draft) {
+        for (int n = Math.min(maxNgram, length - 1); n > 0; n--) {
+            int suffix = length - n;
+            for (int start = suffix - 1; start >= 0; start--) {
+                if (!matches(tokens, start, suffix, n))
+                    continue;
+
+                int count = Math.min(k, length - (start + n));
+                System.arraycopy(tokens, start + n, draft, 0, count);
+                return count;
+            }
+        }
+
+        return 0;
+    }
+
+    private static boolean matches(int[] tokens, int a, int b, int n) {
+        for (int i = 0; i < n; i++)
+            if (tokens[a + i] != tokens[b + i])
+                return false;
+
+        return true;
+    }
+
+    @Override
+    public float[] probabilities(int i) {
+        return null;
+    }
+
+    @Override
+    public void close() {
+    }
+}
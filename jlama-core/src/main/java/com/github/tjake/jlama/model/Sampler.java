@@ -0,0 +1,427 @@
+package com.github.tjake.jlama.model;
+
+import com.github.tjake.jlama.math.VectorMath;
+
+import com.google.common.base.Preconditions;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.util.Arrays;
+
+/**
+ * Picks the next token from the output logits, one per sequence since it holds scratch space.
+ *
+ * The vocabulary is split in fixed chunks that are processed in parallel, each chunk keeps its own partial
+ * results (max, sum, top-k candidates) which are merged at the end, so threads never contend on shared state.
+ * Softmax is vectorized, and top-k / top-p / min-p only order the candidates above a probability threshold
+ * (using partial selection for top-k) rather than sorting the vocabulary.
+ */
+public class Sampler {
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+    static final int CHUNK_SIZE = 1024;
+
+    /** Computes the logit of a single token */
+    @FunctionalInterface
+    public interface LogitFunction {
+        float apply(int token);
+    }
+
+    private final int vocabularySize;
+    private final int topK;
+    private final float topP;
+    private final float minP;
+
+    private final float[] logits;
+    private final float[] probs;
+    private final int chunks;
+    private final float[] chunkMax;
+    private final int[] chunkArgmax;
+    private final double[] chunkSum;
+    private final double[] chunkMass;
+
+    //Per chunk candidates for truncated sampling
+    private final int[][] chunkCandidates;
+    private final int[] chunkCandidateCount;
+    private int[] candidates;
+    private long[] sortKeys;
+    private int[] rescoreTokens;
+    private long[] rescoreKeys;
+    private int[] histogram;
+
+    /**
+     * @param topK only sample from the k most likely tokens, 0 for all
+     * @param topP only sample from the most likely tokens covering this much probability, 1 for all
+     * @param minP only sample from tokens at least this fraction as likely as the most likely one, 0 for all
+     */
+    public Sampler(int vocabularySize, int topK, float topP, float minP) {
+        Preconditions.checkArgument(topK >= 0, "topK must not be negative");
+        Preconditions.checkArgument(topP > 0 && topP <= 1, "topP must be in (0, 1]");
+        Preconditions.checkArgument(minP >= 0 && minP < 1, "minP must be in [0, 1)");
+
+        this.vocabularySize = vocabularySize;
+        this.topK = topK >= vocabularySize ? 0 : topK;
+        this.topP = topP;
+        this.minP = minP;
+
+        this.logits = new float[vocabularySize];
+        this.probs = new float[vocabularySize];
+        this.chunks = (vocabularySize + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        this.chunkMax = new float[chunks];
+        this.chunkArgmax = new int[chunks];
+        this.chunkSum = new double[chunks];
+        this.chunkMass = new double[chunks];
+        this.chunkCandidates = new int[chunks][];
+        this.chunkCandidateCount = new int[chunks];
+        this.candidates = new int[0];
+        this.sortKeys = new long[0];
+    }
+
+    private boolean truncated() {
+        return topK > 0 || topP < 1f || minP > 0f;
+    }
+
+    /** The logits of the last {@link #fill} */
+    public float[] logits() {
+        return logits;
+    }
+
+    /**
+     * Compute the logit of every token, in parallel by chunk
+     * @return the index of the largest logit
+     */
+    public int fill(LogitFunction f) {
+        VectorMath.pfor(0, chunks, c -> {
+            int start = c * CHUNK_SIZE;
+            int end = Math.min(vocabularySize, start + CHUNK_SIZE);
+            float max = Float.NEGATIVE_INFINITY;
+            int argmax = start;
+            for (int i = start; i < end; i++) {
+                float v = f.apply(i);
+                logits[i] = v;
+                if (v > max) {
+                    max = v;
+                    argmax = i;
+                }
+            }
+            chunkMax[c] = max;
+            chunkArgmax[c] = argmax;
+        });
+
+        return argmax();
+    }
+
+    /**
+     * Two stage logits: after a {@link #fill} with approximate logits, recompute the
+     * count largest exactly.  The rest keep their approximate value.
+     * @return the index of the largest logit
+     */
+    public int rescore(int count, LogitFunction exact) {
+        if (count >= vocabularySize)
+            return fill(exact);
+
+        if (rescoreTokens == null || rescoreTokens.length < count) {
+            rescoreTokens = new int[count];
+            rescoreKeys = new long[vocabularySize];
+        }
+        if (histogram == null)
+            histogram = new int[1 << 16];
+
+        //Radix select on the top 16 bits of the ordered logits: count them, find the bucket holding the
+        //count-th largest, then only the ties in that bucket need ordering
+        Arrays.fill(histogram, 0);
+        for (int i = 0; i < vocabularySize; i++)
+            histogram[orderedBits(logits[i]) >>> 16]++;
+
+        int bucket = orderedBits(logits[argmax()]) >>> 16;
+        int above = 0;
+        while (above + histogram[bucket] < count)
+            above += histogram[bucket--];
+
+        int n = 0, ties = 0;
+        for (int i = 0; i < vocabularySize; i++) {
+            int bits = orderedBits(logits[i]);
+            int b = bits >>> 16;
+            if (b > bucket)
+                rescoreTokens[n++] = i;
+            else if (b == bucket)
+                rescoreKeys[ties++] = ((long) bits << 32) | i;
+        }
+
+        selectLargest(rescoreKeys, 0, ties, count - n);
+        for (int i = 0; n < count; i++)
+            rescoreTokens[n++] = (int) rescoreKeys[i];
+
+        VectorMath.pfor(0, count, i -> {
+            int token = rescoreTokens[i];
+            logits[token] = exact.apply(token);
+        });
+
+        VectorMath.pfor(0, chunks, c -> {
+            int start = c * CHUNK_SIZE;
+            int end = Math.min(vocabularySize, start + CHUNK_SIZE);
+            float max = Float.NEGATIVE_INFINITY;
+            int argmax = start;
+            for (int i = start; i < end; i++) {
+                if (logits[i] > max) {
+                    max = logits[i];
+                    argmax = i;
+                }
+            }
+            chunkMax[c] = max;
+            chunkArgmax[c] = argmax;
+        });
+
+        return argmax();
+    }
+
+    /** Float bits as an unsigned int with the same ordering as the float */
+    private static int orderedBits(float f) {
+        int bits = Float.floatToRawIntBits(f);
+        return bits ^ ((bits >> 31) | Integer.MIN_VALUE);
+    }
+
+    private int argmax() {
+        int best = 0;
+        for (int c = 1; c < chunks; c++)
+            if (chunkMax[c] > chunkMax[best])
+                best = c;
+
+        return chunkArgmax[best];
+    }
+
+    /**
+     * Sample a token from the logits of the last {@link #fill}, greedily when the temperature is 0
+     * @param uniformSample a uniform random number in [0, 1)
+     */
+    public int sample(float temperature, float uniformSample) {
+        int maxi = argmax();
+        if (temperature == 0.0f)
+            return maxi;
+
+        double total = softmax(logits[maxi], temperature);
+
+        if (!truncated()) {
+            //Find the chunk holding the sample, then the token within it
+            double target = uniformSample * total;
+            double acc = 0;
+            for (int c = 0; c < chunks; c++) {
+                if (acc + chunkSum[c] <= target && c < chunks - 1) {
+                    acc += chunkSum[c];
+                    continue;
+                }
+
+                int end = Math.min(vocabularySize, (c + 1) * CHUNK_SIZE);
+                for (int i = c * CHUNK_SIZE; i < end; i++) {
+                    acc += probs[i];
+                    if (acc > target)
+                        return i;
+                }
+            }
+            return maxi;
+        }
+
+        int n = select(total);
+        double mass = 0;
+        for (int i = 0; i < n; i++)
+            mass += probs[candidates[i]];
+
+        double target = uniformSample * mass;
+        double acc = 0;
+        for (int i = 0; i < n; i++) {
+            acc += probs[candidates[i]];
+            if (acc > target)
+                return candidates[i];
+        }
+        return candidates[0];
+    }
+
+    /**
+     * Fill out with the distribution {@link #sample} draws from, all of it on the largest logit
+     * when the temperature is 0
+     */
+    public void probabilities(float temperature, float[] out) {
+        int maxi = argmax();
+        if (temperature == 0.0f) {
+            Arrays.fill(out, 0, vocabularySize, 0f);
+            out[maxi] = 1f;
+            return;
+        }
+
+        double total = softmax(logits[maxi], temperature);
+
+        if (!truncated()) {
+            float inv = (float) (1.0 / total);
+            VectorMath.pfor(0, chunks, c -> {
+                int start = c * CHUNK_SIZE;
+                int end = Math.min(vocabularySize, start + CHUNK_SIZE);
+                int i = start;
+                for (int upper = start + SPECIES.loopBound(end - start); i < upper; i += SPECIES.length())
+                    FloatVector.fromArray(SPECIES, probs, i).mul(inv).intoArray(out, i);
+                for (; i < end; i++)
+                    out[i] = probs[i] * inv;
+            });
+            return;
+        }
+
+        int n = select(total);
+        double mass = 0;
+        for (int i = 0; i < n; i++)
+            mass += probs[candidates[i]];
+
+        Arrays.fill(out, 0, vocabularySize, 0f);
+        for (int i = 0; i < n; i++)
+            out[candidates[i]] = (float) (probs[candidates[i]] / mass);
+    }
+
+    /**
+     * Unnormalized softmax of the logits into probs, the most likely token gets 1.  Sums are kept in
+     * double, in float the top-p cutoff drifts by more than a token over a large vocabulary
+     * @return the sum of probs
+     */
+    private double softmax(float max, float temperature) {
+        float scale = 1f / temperature;
+        VectorMath.pfor(0, chunks, c -> {
+            int start = c * CHUNK_SIZE;
+            int end = Math.min(vocabularySize, start + CHUNK_SIZE);
+            double s = 0;
+            int i = start;
+            for (int upper = start + SPECIES.loopBound(end - start); i < upper; i += SPECIES.length()) {
+                FloatVector v = FloatVector.fromArray(SPECIES, logits, i).sub(max).mul(scale).lanewise(VectorOperators.EXP);
+                v.intoArray(probs, i);
+                s += v.reduceLanes(VectorOperators.ADD);
+            }
+
+            for (; i < end; i++) {
+                float v = (float) Math.exp((logits[i] - max) * scale);
+                probs[i] = v;
+                s += v;
+            }
+            chunkSum[c] = s;
+        });
+
+        double total = 0;
+        for (int c = 0; c < chunks; c++)
+            total += chunkSum[c];
+
+        return total;
+    }
+
+    /**
+     * Pick the tokens that survive top-k, min-p and top-p into candidates, most likely first
+     * @return the number of candidates
+     */
+    private int select(double total) {
+        //Gather everything above a threshold, lowering it until there are enough tokens for top-k and top-p
+        float threshold = topK > 0 || topP < 1f ? Math.max(minP, 1e-3f) : minP;
+        int n;
+        while (true) {
+            float t = threshold;
+            VectorMath.pfor(0, chunks, c -> gather(c, t));
+            n = merge();
+
+            if (threshold <= minP)
+                break;
+
+            double mass = 0;
+            for (int c = 0; c < chunks; c++)
+                mass += chunkMass[c];
+
+            if ((topK == 0 || n >= topK) && (topP >= 1f || mass >= topP * total))
+                break;
+
+            threshold = threshold < 1e-12f ? minP : Math.max(minP, threshold / 32);
+        }
+
+        //Probabilities are positive so their bits sort like the floats, the token rides in the low bits
+        if (sortKeys.length < n)
+            sortKeys = new long[n];
+
+        for (int i = 0; i < n; i++)
+            sortKeys[i] = ((long) Float.floatToRawIntBits(probs[candidates[i]]) << 32) | candidates[i];
+
+        //Only the top k need to be ordered
+        if (topK > 0 && n > topK) {
+            selectLargest(sortKeys, 0, n, topK);
+            n = topK;
+        }
+
+        Arrays.sort(sortKeys, 0, n);
+        for (int i = 0; i < n; i++)
+            candidates[i] = (int) sortKeys[n - 1 - i];
+
+        //probs are relative to the most likely token, which is 1
+        int kept = 1;
+        double acc = probs[candidates[0]];
+        while (kept < n && probs[candidates[kept]] >= minP && acc < topP * total)
+            acc += probs[candidates[kept++]];
+
+        return kept;
+    }
+
+    /** Collect the tokens of a chunk at or above the threshold */
+    private void gather(int c, float threshold) {
+        int start = c * CHUNK_SIZE;
+        int end = Math.min(vocabularySize, start + CHUNK_SIZE);
+        int[] found = chunkCandidates[c];
+        if (found == null)
+            found = chunkCandidates[c] = new int[16];
+
+        int size = 0;
+        double mass = 0;
+        for (int i = start; i < end; i++) {
+            float v = probs[i];
+            if (v >= threshold && v > 0) {
+                if (size == found.length)
+                    found = chunkCandidates[c] = Arrays.copyOf(found, Math.min(CHUNK_SIZE, found.length * 2));
+                found[size++] = i;
+                mass += v;
+            }
+        }
+        chunkCandidateCount[c] = size;
+        chunkMass[c] = mass;
+    }
+
+    /** Concatenate the per chunk candidates */
+    private int merge() {
+        int n = 0;
+        for (int c = 0; c < chunks; c++)
+            n += chunkCandidateCount[c];
+
+        if (candidates.length < n)
+            candidates = new int[n];
+
+        n = 0;
+        for (int c = 0; c < chunks; c++) {
+            System.arraycopy(chunkCandidates[c], 0, candidates, n, chunkCandidateCount[c]);
+            n += chunkCandidateCount[c];
+        }
+        return n;
+    }
+
+    /** Partially order keys[from, from + n) so its k largest come first (quickselect), keys are distinct */
+    private static void selectLargest(long[] keys, int from, int n, int k) {
+        int lo = from, hi = from + n - 1;
+        k += from;
+        while (lo < hi) {
+            long pivot = keys[(lo + hi) >>> 1];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (keys[i] > pivot) i++;
+                while (keys[j] < pivot) j--;
+                if (i <= j) {
+                    long t = keys[i];
+                    keys[i++] = keys[j];
+                    keys[j--] = t;
+                }
+            }
+
+            if (k - 1 <= j)
+                hi = j;
+            else if (k - 1 >= i)
+                lo = i;
+            else
+                break;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.github.tjake.jlama.model;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.github.tjake.jlama.safetensors.Config;
+import com.github.tjake.jlama.safetensors.DType;
+import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.BFloat16BufferTensor;
+import com.github.tjake.jlama.tensor.Float16BufferTensor;
+import com.github.tjake.jlama.tensor.FloatBufferTensor;
+import com.github.tjake.jlama.tensor.Q8ByteBufferTensor;
+
+import com.google.common.base.Preconditions;
+import com.google.common.primitives.Ints;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads and writes the state of a {@link ChatSession}: its token history, position and kv cache blocks.
+ *
+ * The layout follows safetensors: an 8 byte little endian header length, a json header, then the raw kv blocks
+ * (for I8 each block's bytes are followed by its F32 scales).  The block data is 64 byte aligned.
+ *
+ * On restore the file is mapped read only.  Full blocks are used in place as read only views of the mapping, decoding
+ * only ever writes past them.  The partially filled last block is copied into a block from the pool since the session
+ * continues writing into it.  A snapshot on a read only file or mount can be restored and is never changed by
+ * continuing the session.
+ */
+class SessionSnapshot {
+    private static final Logger logger = LoggerFactory.getLogger(SessionSnapshot.class);
+    private static final ObjectMapper om = new ObjectMapper();
+    private static final int VERSION = 1;
+    private static final int ALIGNMENT = 64;
+
+    final int[] tokens;
+    final int position;
+    final KvCache kvmem;
+
+    private SessionSnapshot(int[] tokens, int position, KvCache kvmem) {
+        this.tokens = tokens;
+        this.position = position;
+        this.kvmem = kvmem;
+    }
+
+    static void write(Path path, Config c, KvBlockPool pool, int[] tokens, int position, KvCache kvmem) throws IOException {
+        int blocks = kvmem == null ? 0 : (position + pool.blockSize() - 1) / pool.blockSize();
+
+        ObjectNode header = om.createObjectNode();
+        header.put("version", VERSION);
+        header.put("dtype", pool.dType().name());
+        header.put("block_size", pool.blockSize());
+        header.put("layers", c.numberOfLayers);
+        header.put("embedding_length", c.embeddingLength);
+        header.put("position", blocks == 0 ? 0 : position);
+        header.put("blocks", blocks);
+        ArrayNode t = header.putArray("tokens");
+        for (int token : tokens)
+            t.add(token);
+
+        byte[] json = om.writeValueAsBytes(header);
+        long dataOffset = align(Long.BYTES + json.length);
+
+        //Write beside the target and rename over it, so a failed save leaves the previous snapshot intact
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer head = ByteBuffer.allocate(Ints.checkedCast(dataOffset)).order(ByteOrder.LITTLE_ENDIAN);
+            head.putLong(json.length).put(json).position(0);
+            writeFully(ch, head);
+
+            //Stage through a direct buffer so heap and off-heap blocks are written the same way
+            ByteBuffer staging = ByteBuffer.allocateDirect(Ints.checkedCast(pool.blockBytes()));
+            MemorySegment stagingSegment = MemorySegment.ofBuffer(staging);
+            for (int i = 0; i < blocks; i++) {
+                AbstractTensor block = kvmem.blockAt(i);
+                long size = block.size() * (long) pool.dType().size();
+                MemorySegment.copy(block.getMemorySegment(), 0, stagingSegment, 0, size);
+
+                if (block instanceof Q8ByteBufferTensor q) {
+                    FloatBufferTensor scales = q.getBlockF();
+                    MemorySegment.copy(scales.getMemorySegment(), 0, stagingSegment, size, scales.size() * (long) Float.BYTES);
+                }
+
+                staging.clear();
+                writeFully(ch, staging);
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        logger.debug("Saved session with {} tokens and {} kv blocks to {}", tokens.length, blocks, path);
+    }
+
+    /**
+     * Load a session saved by {@link #write}.  If the kv layout doesn't match the pool only the token history
+     * is restored, the kv cache is then rebuilt on the next turn.
+     */
+    static SessionSnapshot read(Path path, Config c, KvBlockPool pool) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer lengthBuf = ch.map(FileChannel.MapMode.READ_ONLY, 0, Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            int headerLength = Ints.checkedCast(lengthBuf.getLong());
+            byte[] json = new byte[headerLength];
+            ch.map(FileChannel.MapMode.READ_ONLY, Long.BYTES, headerLength).get(json);
+
+            JsonNode header = om.readTree(json);
+            Preconditions.checkArgument(header.get("version").asInt() == VERSION, "Unsupported session snapshot version %s", header.get("version"));
+
+            JsonNode t = header.get("tokens");
+            int[] tokens = new int[t.size()];
+            for (int i = 0; i < tokens.length; i++)
+                tokens[i] = t.get(i).asInt();
+
+            int position = header.get("position").asInt();
+            int blocks = header.get("blocks").asInt();
+
+            boolean compatible = DType.valueOf(header.get("dtype").asText()) == pool.dType()
+                    && header.get("block_size").asInt() == pool.blockSize()
+                    && header.get("layers").asInt() == c.numberOfLayers
+                    && header.get("embedding_length").asInt() == c.embeddingLength;
+
+            if (blocks == 0 || !compatible) {
+                if (!compatible)
+                    logger.warn("Session snapshot {} doesn't match the kv cache layout, it will be rebuilt", path);
+
+                return new SessionSnapshot(tokens, 0, null);
+            }
+
+            long dataOffset = align(Long.BYTES + headerLength);
+            int full = position / pool.blockSize();
+            KvCache kvmem = new KvCache(pool, c.numberOfLayers, c.contextLength);
+            List<AbstractTensor> mapped = new ArrayList<>(full);
+            List<AbstractTensor> copies = new ArrayList<>(blocks - full);
+            Arena arena = Arena.ofShared();
+            try {
+                MemorySegment data = ch.map(FileChannel.MapMode.READ_ONLY, dataOffset, blocks * pool.blockBytes(), arena);
+                for (int i = 0; i < full; i++)
+                    mapped.add(view(data.asSlice(i * pool.blockBytes(), pool.blockBytes()), c, pool));
+
+                //The last block is still being filled, copy it so the session can keep writing into it
+                for (int i = full; i < blocks; i++) {
+                    AbstractTensor block = pool.allocate();
+                    copies.add(block);
+
+                    long offset = i * pool.blockBytes();
+                    long size = block.size() * (long) pool.dType().size();
+                    MemorySegment.copy(data, offset, block.getMemorySegment(), 0, size);
+
+                    if (block instanceof Q8ByteBufferTensor q) {
+                        FloatBufferTensor scales = q.getBlockF();
+                        MemorySegment.copy(data, offset + size, scales.getMemorySegment(), 0, scales.size() * (long) Float.BYTES);
+                    }
+                }
+            } catch (Throwable e) {
+                for (AbstractTensor block : copies)
+                    pool.release(block);
+                arena.close();
+                throw e;
+            }
+
+            if (mapped.isEmpty())
+                arena.close();
+
+            kvmem.attachMapped(mapped.isEmpty() ? null : arena, mapped, copies);
+            return new SessionSnapshot(tokens, position, kvmem);
+        }
+    }
+
+    /** A read only block over its bytes in the mapping, laid out as {@link #write} stores it */
+    private static AbstractTensor view(MemorySegment block, Config c, KvBlockPool pool) {
+        int[] shape = new int[]{c.numberOfLayers, pool.blockSize(), c.embeddingLength * 2};
+        int elements = c.numberOfLayers * pool.blockSize() * c.embeddingLength * 2;
+        ByteBuffer b = block.asByteBuffer().order(ByteOrder.LITTLE_ENDIAN);
+
+        return switch (pool.dType()) {
+            case F32 -> new FloatBufferTensor(b.asFloatBuffer(), shape, true);
+            case F16 -> new Float16BufferTensor(b.asShortBuffer(), shape, true);
+            case BF16 -> new BFloat16BufferTensor(b.asShortBuffer(), shape, true, true);
+            case I8 -> {
+                ByteBuffer scales = b.slice(elements, elements / Q8ByteBufferTensor.BLOCK_SIZE * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                int[] scaleShape = new int[]{shape[0], shape[1], shape[2] / Q8ByteBufferTensor.BLOCK_SIZE};
+                yield new Q8ByteBufferTensor("kv", b.slice(0, elements), new FloatBufferTensor(scales.asFloatBuffer(), scaleShape, true), shape, true);
+            }
+            default -> throw new UnsupportedOperationException("Unsupported kv cache type: " + pool.dType());
+        };
+    }
+
+    private static long align(long offset) {
+        return (offset + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer b) throws IOException {
+        while (b.hasRemaining())
+            ch.write(b);
+    }
+}
@@ -0,0 +1,276 @@
+package com.github.tjake.jlama.model;
+
+import com.github.tjake.jlama.safetensors.Tokenizer;
+import com.github.tjake.jlama.tensor.AbstractTensor;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.IntConsumer;
+import java.util.random.RandomGenerator;
+
+/**
+ * Speculative decoding: a {@link Drafter} cheaply proposes the next few tokens and the target model scores all
+ * of them in one batched forward pass.  Since decoding is bound by reading the weights, checking several tokens
+ * costs about the same as generating one.
+ *
+ * Proposals are accepted with rejection sampling (Leviathan et al. / Chen et al.): draft token x is kept with
+ * probability min(1, p(x) / q(x)), where p and q are the target and draft distributions.  On the first rejection
+ * a replacement is sampled from max(0, p - q), and if every proposal is kept one more token is sampled from the
+ * target's last output.  The generated text therefore follows the target's distribution exactly, at
+ * temperature 0 it is the target's greedy output.
+ */
+class SpeculativeDecoder {
+    private static final Logger logger = LoggerFactory.getLogger(SpeculativeDecoder.class);
+
+    /**
+     * The model being decoded as the decoding loop sees it: a kv cache it runs tokens into and the output
+     * distributions of the last run.  Lets the loop be checked without weights.
+     */
+    interface Target extends AutoCloseable {
+        int vocabularySize();
+
+        int contextLength();
+
+        int eosToken();
+
+        /**
+         * Run tokens at positions [start, start + tokens.length), entries already at those positions are
+         * overwritten.  A start of 0 is the prompt, of which only the last output is kept.
+         */
+        void forward(int[] tokens, int start);
+
+        /** Fill p with the distribution following the i-th token of the last {@link #forward} */
+        void probabilities(int i, float temperature, float[] p);
+
+        @Override
+        void close();
+    }
+
+    private final Target target;
+    private final Tokenizer tokenizer;
+    private final Drafter drafter;
+    private final int draftTokens;
+
+    private long proposed, accepted, passes;
+
+    SpeculativeDecoder(AbstractModel model, Drafter drafter, int draftTokens) {
+        this(new ModelTarget(model), model.tokenizer, drafter, draftTokens);
+    }
+
+    SpeculativeDecoder(Target target, Tokenizer tokenizer, Drafter drafter, int draftTokens) {
+        Preconditions.checkArgument(draftTokens > 0, "draftTokens must be positive");
+        this.target = target;
+        this.tokenizer = tokenizer;
+        this.drafter = drafter;
+        this.draftTokens = draftTokens;
+    }
+
+    /**
+     * Generate until ntokens positions are used (as {@link AbstractModel#generate} does) or EOS.
+     */
+    void generate(int[] promptTokens, float temperature, int ntokens, BiConsumer<String, Float> onTokenWithTimings) {
+        long start = System.currentTimeMillis();
+        AtomicInteger generated = new AtomicInteger();
+        decode(promptTokens, temperature, ntokens, ThreadLocalRandom.current(), next -> {
+            try {
+                String c = tokenizer.decode(next);
+                onTokenWithTimings.accept(c, (System.currentTimeMillis() - start) / (float) generated.incrementAndGet());
+            } catch (Exception e) {
+                logger.error("Failed to decode token {}", next, e);
+            }
+        });
+
+        long elapsed = System.currentTimeMillis() - start;
+        //The first token comes from the prompt pass.  Whether a pass of k + 1 tokens costs about as much as one
+        //decoding step depends on the model and hardware, so compare ms per token against a run without speculation
+        double tokensPerPass = passes == 0 ? 0 : (generated.get() - 1) / (double) passes;
+        System.out.printf("\n\nelapsed: %ds, %fms per token\n", TimeUnit.MILLISECONDS.toSeconds(elapsed), elapsed / (float) generated.get());
+        System.out.printf("acceptance rate: %.1f%%, %.2f tokens per target pass\n",
+                proposed == 0 ? 0 : 100.0 * accepted / proposed, tokensPerPass);
+    }
+
+    /**
+     * The decoding loop, each token is handed to onToken as it is accepted
+     * @return the number of tokens generated
+     */
+    int decode(int[] promptTokens, float temperature, int ntokens, RandomGenerator random, IntConsumer onToken) {
+        int vocab = target.vocabularySize();
+        int eos = target.eosToken();
+        int limit = Math.min(ntokens, target.contextLength());
+
+        float[] p = new float[vocab];
+        int[] tokens = new int[target.contextLength() + 1];
+        int[] draft = new int[draftTokens];
+
+        long start = System.currentTimeMillis();
+        int generated = 0;
+        try {
+            target.forward(promptTokens, 0);
+            logger.debug("{} prompt tokens in {}ms", promptTokens.length, System.currentTimeMillis() - start);
+
+            //Like AbstractModel.generate, the first sampled token takes the place of encodePrompt's trailing
+            //padding, so neither the kv cache nor the drafter's history keep it
+            target.probabilities(promptTokens.length - 1, temperature, p);
+            System.arraycopy(promptTokens, 0, tokens, 0, promptTokens.length - 1);
+            int length = promptTokens.length - 1;
+            tokens[length++] = sample(p, vocab, random.nextFloat());
+
+            //The kv cache holds every token but the last, which is run at the start of the next verification pass.
+            //Up to limit positions are run, so the history ends at most one token past them
+            while (true) {
+                int next = tokens[length - 1];
+                if (next == eos)
+                    break;
+
+                generated++;
+                onToken.accept(next);
+
+                if (length > limit)
+                    break;
+
+                int k = drafter.propose(tokens, length, Math.min(draftTokens, limit - length), temperature, draft);
+
+                int[] batch = new int[k + 1];
+                batch[0] = next;
+                System.arraycopy(draft, 0, batch, 1, k);
+                target.forward(batch, length - 1);
+                passes++;
+                proposed += k;
+
+                int n = 0;
+                int replacement = -1;
+                for (; n < k; n++) {
+                    target.probabilities(n, temperature, p);
+                    replacement = verify(p, drafter.probabilities(n), draft[n], vocab, random);
+                    if (replacement != -1)
+                        break;
+                }
+
+                if (n == k) {
+                    target.probabilities(k, temperature, p);
+                    replacement = sample(p, vocab, random.nextFloat());
+                }
+                accepted += n;
+
+                //Emit the kept drafts, the replacement becomes the last token
+                boolean eosDraft = false;
+                for (int i = 0; i < n; i++) {
+                    tokens[length++] = draft[i];
+                    if (draft[i] == eos) {
+                        eosDraft = true;
+                        break;
+                    }
+
+                    generated++;
+                    onToken.accept(draft[i]);
+                }
+
+                if (eosDraft)
+                    break;
+
+                tokens[length++] = replacement;
+            }
+        } finally {
+            target.close();
+        }
+
+        return generated;
+    }
+
+    /** Decodes with a model, prompts go through {@link AbstractModel#prefill} so they can share cached prefixes */
+    static class ModelTarget implements Target {
+        private final AbstractModel model;
+        private final KvCache kvmem;
+        private final Sampler sampler;
+        private AbstractTensor[] outputs;
+        private int first;
+
+        ModelTarget(AbstractModel model) {
+            this.model = model;
+            this.kvmem = model.makeKvCache(model.c.contextLength);
+            this.sampler = model.makeSampler();
+            this.outputs = new AbstractTensor[0];
+        }
+
+        @Override
+        public int vocabularySize() {
+            return model.c.vocabularySize;
+        }
+
+        @Override
+        public int contextLength() {
+            return model.c.contextLength;
+        }
+
+        @Override
+        public int eosToken() {
+            return model.c.eosToken;
+        }
+
+        @Override
+        public void forward(int[] tokens, int start) {
+            release();
+            if (start == 0) {
+                outputs = new AbstractTensor[]{model.prefill(tokens, kvmem)};
+                first = tokens.length - 1;
+            } else {
+                outputs = model.batchForward(tokens, start, kvmem);
+                first = 0;
+            }
+        }
+
+        @Override
+        public void probabilities(int i, float temperature, float[] p) {
+            model.probabilities(outputs[i - first], temperature, sampler, p);
+        }
+
+        private void release() {
+            for (AbstractTensor output : outputs)
+                output.close();
+            outputs = new AbstractTensor[0];
+        }
+
+        @Override
+        public void close() {
+            release();
+            kvmem.close();
+        }
+    }
+
+    /**
+     * Rejection sampling of a single draft token x, p and q are the target and draft distributions
+     * (a null q means the drafter proposed x deterministically).
+     *
+     * @return -1 if x is kept, otherwise the replacement sampled from max(0, p - q), which overwrites p
+     */
+    static int verify(float[] p, float[] q, int x, int size, RandomGenerator random) {
+        float qx = q == null ? 1f : q[x];
+        if (random.nextFloat() * qx < p[x])
+            return -1;
+
+        //Rejected, resample from what the target has left over
+        float sum = 0;
+        for (int i = 0; i < size; i++) {
+            p[i] = Math.max(0f, p[i] - (q == null ? (i == x ? 1f : 0f) : q[i]));
+            sum += p[i];
+        }
+        return sum > 0 ? sample(p, size, random.nextFloat() * sum) : x;
+    }
+
+    /** Draw from an (unnormalized) distribution, uniformSample is in [0, sum of probs) */
+    static int sample(float[] probs, int size, float uniformSample) {
+        float acc = 0;
+        for (int i = 0; i < size; i++) {
+            acc += probs[i];
+            if (acc > uniformSample)
+                return i;
+        }
+        return size - 1;
+    }
+}
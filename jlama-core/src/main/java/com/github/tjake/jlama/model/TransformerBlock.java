@@ -18,8 +18,6 @@ public class TransformerBlock {
     private final MLPBlock mlpBlock;
 
     private final Optional<LayerNorm> postMlpNorm;
-    private static final ThreadLocal<AbstractTensor[]> tmpArray = new ThreadLocal<>();
-    private static final ThreadLocal<AbstractTensor[]> tmpArray2 = new ThreadLocal<>();
 
     public TransformerBlock(AbstractModel model, LayerNorm preAttentionNorm, CausalSelfAttention attention, LayerNorm postAttentionNorm, MLPBlock mlpBlock)
     {
@@ -45,106 +43,72 @@ public class TransformerBlock {
         this.postMlpNorm = Optional.of(postMlpNorm);
     }
 
-    public AbstractTensor forward(AbstractTensor embedding, int position, AbstractTensor kvBuffer) {
-
-        AbstractTensor lnemb = preAttentionNorm.map(ln -> ln.forward(embedding)).orElse(embedding);
-        AbstractTensor postAttention;
-        try(AbstractTensor qlnemb = model.maybeQuantize(lnemb)) {
-            postAttention = attention.forward(qlnemb, position, kvBuffer);
-        }
-
-        //residual connection
-        TensorOperationsProvider.get().accumulate(postAttention, embedding);
-
-        AbstractTensor lnemb2 = postAttentionNorm.forward(postAttention);
-        AbstractTensor postMlp;
-        try(AbstractTensor qlnemb2 = model.maybeQuantize(lnemb2)) {
-            postMlp = mlpBlock.forward(qlnemb2);
-        }
-
-        //residual connection
-        TensorOperationsProvider.get().accumulate(postMlp, postAttention);
-
-        //Release any tmp buffers
-        if (lnemb != embedding)
-            lnemb.close();
-
-        lnemb2.close();
-        postAttention.close();
-
-        return postMlpNorm.map(ln -> {
-            AbstractTensor lnout = ln.forward(postMlp);
-            postMlp.close();
-            return lnout;
-        }).orElse(postMlp);
+    public AbstractTensor forward(AbstractTensor embedding, int position, KvCache.Layer kvBuffer) {
+        return forward(new AbstractTensor[]{embedding}, new int[]{position}, new KvCache.Layer[]{kvBuffer}, 1)[0];
     }
 
-    public AbstractTensor[] batchForward(AbstractTensor[] embeddings, int startPos, AbstractTensor kvBuffer, int batchSize) {
-        boolean cleanlnemb = false;
-        AbstractTensor[] lnemb = embeddings;
-        if (preAttentionNorm.isPresent()) {
-            cleanlnemb = true;
-            LayerNorm ln = preAttentionNorm.get();
-            lnemb = tmpArray.get();
-            if (lnemb == null || lnemb.length < batchSize) {
-                lnemb = new AbstractTensor[batchSize];
-                tmpArray.set(lnemb);
-            }
-            for (int i = 0; i < batchSize; i++)
-                lnemb[i] = ln.forward(embeddings[i]);
+    /**
+     * Runs this layer for a batch of independent sequences (one token each), so the attention
+     * and mlp weights are only streamed once for the whole batch.
+     */
+    public AbstractTensor[] forward(AbstractTensor[] embeddings, int[] positions, KvCache.Layer[] kvBuffers, int batchSize) {
+        AbstractTensor[] lnemb = new AbstractTensor[batchSize];
+        AbstractTensor[] qlnemb = new AbstractTensor[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+            AbstractTensor embedding = embeddings[i];
+            lnemb[i] = preAttentionNorm.map(ln -> ln.forward(embedding)).orElse(embedding);
+            qlnemb[i] = model.maybeQuantize(lnemb[i]);
         }
 
+        AbstractTensor[] postAttention = attention.forward(qlnemb, positions, kvBuffers, batchSize);
 
-        AbstractTensor[] postAttention = tmpArray2.get();
-        if (postAttention == null || postAttention.length < batchSize) {
-            postAttention = new AbstractTensor[batchSize];
-            tmpArray2.set(postAttention);
-        }
-
-        for (int i = 0; i < batchSize; i++)
-            postAttention[i] = attention.forward(lnemb[i], startPos + i, kvBuffer);
+        for (int i = 0; i < batchSize; i++) {
+            qlnemb[i].close();
 
-        //residual connection
-        for (int i = 0; i < batchSize; i++)
+            //residual connection
             TensorOperationsProvider.get().accumulate(postAttention[i], embeddings[i]);
 
-        //Release any tmp buffers
-        if (cleanlnemb)
-            for (int i = 0; i < batchSize; i++)
+            //Release any tmp buffers
+            if (lnemb[i] != embeddings[i])
                 lnemb[i].close();
 
-        AbstractTensor[] lnemb2 = tmpArray.get();
-        if (lnemb2 == null || lnemb2.length < batchSize) {
-            lnemb2 = new AbstractTensor[batchSize];
-            tmpArray.set(lnemb2);
+            lnemb[i] = postAttentionNorm.forward(postAttention[i]);
+            qlnemb[i] = model.maybeQuantize(lnemb[i]);
         }
-        for (int i = 0; i < batchSize; i++)
-            lnemb2[i] = postAttentionNorm.forward(postAttention[i]);
 
-        AbstractTensor[] postMlp = lnemb2;
+        AbstractTensor[] postMlp = mlpBlock.forward(qlnemb, batchSize);
+
         for (int i = 0; i < batchSize; i++) {
-            AbstractTensor ref = lnemb2[i];
-            postMlp[i] = mlpBlock.forward(ref);
-            ref.close();
-        }
+            qlnemb[i].close();
+            lnemb[i].close();
 
-        //residual connection
-        for (int i = 0; i < batchSize; i++)
+            //residual connection
             TensorOperationsProvider.get().accumulate(postMlp[i], postAttention[i]);
-
-        for (int i = 0; i < batchSize; i++)
             postAttention[i].close();
 
-
-        if (postMlpNorm.isPresent()) {
-            LayerNorm ln = postMlpNorm.get();
-            for (int i = 0; i < batchSize; i++) {
+            if (postMlpNorm.isPresent()) {
                 AbstractTensor ref = postMlp[i];
-                postMlp[i] = ln.forward(ref);
+                postMlp[i] = postMlpNorm.get().forward(ref);
                 ref.close();
             }
         }
 
         return postMlp;
     }
+
+    /**
+     * Prompt processing: a batch of consecutive tokens starting at startPos that share the same kv memory.
+     * Every token's key and value is written before any attention is computed, and each token only attends up
+     * to its own position, so this stays causal.
+     */
+    public AbstractTensor[] batchForward(AbstractTensor[] embeddings, int startPos, KvCache.Layer kvBuffer, int batchSize) {
+        int[] positions = new int[batchSize];
+        KvCache.Layer[] kvBuffers = new KvCache.Layer[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+            positions[i] = startPos + i;
+            kvBuffers[i] = kvBuffer;
+        }
+
+        return forward(embeddings, positions, kvBuffers, batchSize);
+    }
 }
@@ -99,7 +99,7 @@ public class BertModel extends AbstractModel {
         long[] encoded = tokenizer.encode(input);
         Preconditions.checkArgument(encoded.length < c.contextLength);
 
-        AbstractTensor kvmem = makeTensor(c.numberOfLayers, encoded.length, c.embeddingLength * 2); //k and v are concatenated
+        KvCache kvmem = makeKvCache(encoded.length);
 
         int promptLength = encoded.length;
         float avgp = 1.0f/promptLength;
@@ -79,7 +79,7 @@ public class GPT2Model extends AbstractModel {
     }
 
     @Override
-    public AbstractTensor forward(int token_id, int pos, AbstractTensor kvbuf) {
+    public AbstractTensor forward(int token_id, int pos, KvCache kvbuf) {
 
         AbstractTensor embedding = makeTensor(c.embeddingLength);
 
@@ -89,7 +89,7 @@ public class GPT2Model extends AbstractModel {
         }
 
         for (int i = 0; i < c.numberOfLayers; i++) {
-            AbstractTensor kvlayer = kvbuf.slice(i);
+            KvCache.Layer kvlayer = kvbuf.layer(i);
             AbstractTensor ref = embedding; //reference so we can free
             embedding = transformerBlocks[i].forward(embedding, pos, kvlayer);
             ref.close();
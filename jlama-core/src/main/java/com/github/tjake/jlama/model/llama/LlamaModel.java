@@ -34,16 +34,18 @@ public class LlamaModel extends AbstractModel {
     public LlamaModel(Config config, WeightLoader weights, Tokenizer tokenizer, DType workingDType, DType workingQType) {
         super(config, weights, tokenizer, workingDType, workingQType);
 
-        DType qType = DType.Q4;
+        //Pre-quantized models (see SafeTensorSupport.quantizeModel) are used as they are, as are GGUF quantized tensors
+        DType qType = modelDType == DType.I8 || modelDType == DType.Q5 ? modelDType : modelDType == DType.Q8_0 ? DType.I8 : DType.Q4;
 
-        logger.info("Quantizing model with {} - Please hold...", qType);
+        if (modelDType != qType && modelDType != DType.Q4_K && modelDType != DType.Q6_K && modelDType != DType.Q4_0 && modelDType != DType.Q8_0)
+            logger.info("Quantizing model with {} - Please hold...", qType);
 
         //LLama doesn't use bias, will optimize this away later
         this.noBias = makeTensor(c.hiddenLength);
 
-        this.wte = weights.load("model.embed_tokens.weight").quantize(workingDType); //Don't quantize this, it's used for the embedding layer
+        this.wte = weights.load("model.embed_tokens.weight"); //Don't quantize this, it's used for the embedding layer
         this.outputLayerNorm = new RMSNorm(this, noBias, weights.load("model.norm.weight").quantize(qType));
-        this.classificationWeights = weights.load("lm_head.weight").quantize(workingDType); //Don't quantize this, it's the output layer
+        this.classificationWeights = weights.load("lm_head.weight"); //Don't quantize this, it's the output layer
 
         this.transformerBlocks = new TransformerBlock[c.numberOfLayers];
 
@@ -54,19 +56,19 @@ public class LlamaModel extends AbstractModel {
             String prefix = base + "self_attn.";
             CausalSelfAttention attention = new CausalSelfAttention(this,
                     noBias, noBias, noBias,
-                    weights.load(prefix + "q_proj.weight").quantize(qType),
-                    weights.load(prefix + "k_proj.weight").quantize(qType),
-                    weights.load(prefix + "v_proj.weight").quantize(qType),
+                    weights.load(prefix + "q_proj.weight", qType),
+                    weights.load(prefix + "k_proj.weight", qType),
+                    weights.load(prefix + "v_proj.weight", qType),
                     noBias,
-                    weights.load(prefix + "o_proj.weight").quantize(qType),
+                    weights.load(prefix + "o_proj.weight", qType),
                     Optional.of(ropeFreqs));
 
             prefix = base + "mlp.";
 
             MLPBlock mlp = new MLPBlock(this, ActivationFunction.Type.SILU,
-                    noBias, weights.load(prefix + "gate_proj.weight").quantize(qType), //w1
-                    noBias, weights.load(prefix + "down_proj.weight").quantize(qType), //w2
-                    weights.load(prefix + "up_proj.weight").quantize(qType));          //w3
+                    noBias, weights.load(prefix + "gate_proj.weight", qType), //w1
+                    noBias, weights.load(prefix + "down_proj.weight", qType), //w2
+                    weights.load(prefix + "up_proj.weight", qType));          //w3
 
             this.transformerBlocks[i] = new TransformerBlock( this,
                     new RMSNorm(this, noBias, weights.load(base + "input_layernorm.weight").quantize(qType)), attention,
@@ -29,7 +29,15 @@ public enum DType {
     U64(8),
 
     Q4(1),
-    Q5(1);
+    Q5(1),
+
+    // Q4_K is 4-bit values in super-blocks of 256 with 6-bit scales and mins per 32 (4.5 bits per weight)
+    Q4_K(1),
+    // Q6_K is 6-bit values in super-blocks of 256 with 8-bit scales per 16 (6.5625 bits per weight)
+    Q6_K(1),
+    // Q4_0 and Q8_0 are ggml's blocks of 32 with the F16 scale in front, the values of Q4 and I8 (4.5 and 8.5 bits per weight)
+    Q4_0(1),
+    Q8_0(1);
 
     private final int size;
 
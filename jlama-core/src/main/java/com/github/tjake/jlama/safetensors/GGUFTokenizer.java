@@ -0,0 +1,159 @@
+package com.github.tjake.jlama.safetensors;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A sentencepiece tokenizer built from the vocabulary in a GGUF file, so a model needs no tokenizer.model next to it.
+ *
+ * Like sentencepiece's BPE models the text is split into characters which are merged into the highest scoring
+ * pieces of the vocabulary, characters it doesn't have fall back to byte tokens.
+ * As with {@link com.github.tjake.jlama.model.llama.LlamaTokenizer} no BOS is added.
+ */
+public class GGUFTokenizer implements Tokenizer {
+    static final String SPIECE_UNDERLINE = "▁";
+
+    // tokenizer.ggml.token_type values
+    static final int NORMAL = 1;
+    static final int UNKNOWN = 2;
+    static final int CONTROL = 3;
+    static final int BYTE = 6;
+
+    private static final Pattern BYTE_TOKEN = Pattern.compile("<0x([0-9A-Fa-f]{2})>");
+
+    private final List<String> tokens;
+    private final float[] scores;
+    private final int[] types;
+    private final Map<String, Integer> ids;
+    private final int[] byteTokens;
+
+    //A merge of two neighbouring symbols, best score first then leftmost
+    private record Bigram(int left, int right, String piece, float score) implements Comparable<Bigram> {
+        @Override
+        public int compareTo(Bigram o) {
+            int c = Float.compare(o.score, score);
+            return c != 0 ? c : Integer.compare(left, o.left);
+        }
+    }
+
+    GGUFTokenizer(List<String> tokens, float[] scores, int[] types, int unknownToken) {
+        this.tokens = tokens;
+        this.scores = scores;
+        this.types = types;
+        this.ids = new HashMap<>();
+        this.byteTokens = new int[256];
+        Arrays.fill(byteTokens, unknownToken);
+
+        for (int i = 0; i < tokens.size(); i++) {
+            if (types[i] == BYTE) {
+                Matcher m = BYTE_TOKEN.matcher(tokens.get(i));
+                if (m.matches())
+                    byteTokens[Integer.parseInt(m.group(1), 16)] = i;
+            } else if (types[i] != CONTROL && types[i] != UNKNOWN) {
+                ids.putIfAbsent(tokens.get(i), i);
+            }
+        }
+    }
+
+    @Override
+    public List<String> tokenize(String sentence) {
+        long[] encoded = encode(sentence);
+        List<String> pieces = new ArrayList<>(encoded.length);
+        for (long id : encoded)
+            pieces.add(tokens.get((int) id));
+        return pieces;
+    }
+
+    @Override
+    public long[] encode(String sentence) {
+        //Sentencepiece's dummy prefix, then every space becomes part of the piece that follows it
+        String text = SPIECE_UNDERLINE + sentence.replace(" ", SPIECE_UNDERLINE);
+        String[] symbols = text.codePoints().mapToObj(Character::toString).toArray(String[]::new);
+        int n = symbols.length;
+
+        //Symbols still in play form a linked list, merged ones are null
+        int[] prev = new int[n], next = new int[n];
+        for (int i = 0; i < n; i++) {
+            prev[i] = i - 1;
+            next[i] = i + 1;
+        }
+
+        PriorityQueue<Bigram> queue = new PriorityQueue<>();
+        for (int i = 0; i + 1 < n; i++)
+            addBigram(queue, symbols, i, i + 1);
+
+        while (!queue.isEmpty()) {
+            Bigram b = queue.poll();
+            //Stale once either side was merged into something else
+            if (symbols[b.left] == null || symbols[b.right] == null || !(symbols[b.left] + symbols[b.right]).equals(b.piece))
+                continue;
+
+            symbols[b.left] = b.piece;
+            symbols[b.right] = null;
+            next[b.left] = next[b.right];
+            if (next[b.right] < n)
+                prev[next[b.right]] = b.left;
+
+            if (prev[b.left] >= 0)
+                addBigram(queue, symbols, prev[b.left], b.left);
+            if (next[b.left] < n)
+                addBigram(queue, symbols, b.left, next[b.left]);
+        }
+
+        List<Integer> encoded = new ArrayList<>();
+        for (int i = 0; i < n; i = next[i]) {
+            Integer id = ids.get(symbols[i]);
+            if (id != null) {
+                encoded.add(id);
+            } else {
+                for (byte c : symbols[i].getBytes(StandardCharsets.UTF_8))
+                    encoded.add(byteTokens[c & 0xFF]);
+            }
+        }
+
+        return encoded.stream().mapToLong(Integer::longValue).toArray();
+    }
+
+    private void addBigram(PriorityQueue<Bigram> queue, String[] symbols, int left, int right) {
+        String piece = symbols[left] + symbols[right];
+        Integer id = ids.get(piece);
+        if (id != null)
+            queue.add(new Bigram(left, right, piece, scores[id]));
+    }
+
+    @Override
+    public String decode(long id) {
+        int i = (int) id;
+        return switch (types[i]) {
+            case CONTROL -> "";
+            case UNKNOWN -> " ⁇ ";
+            case BYTE -> new String(new char[]{(char) byteValue(i)});
+            default -> tokens.get(i).replace(SPIECE_UNDERLINE, " ");
+        };
+    }
+
+    @Override
+    public String decode(long[] ids) {
+        //Byte tokens are gathered first, a character can be split over several of them
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (long id : ids) {
+            int i = (int) id;
+            if (types[i] == BYTE)
+                out.write(byteValue(i));
+            else
+                out.writeBytes(decode(id).getBytes(StandardCharsets.UTF_8));
+        }
+
+        String s = out.toString(StandardCharsets.UTF_8);
+        //Drop the dummy prefix
+        return s.startsWith(" ") ? s.substring(1) : s;
+    }
+
+    private int byteValue(int id) {
+        Matcher m = BYTE_TOKEN.matcher(tokens.get(id));
+        return m.matches() ? Integer.parseInt(m.group(1), 16) : '?';
+    }
+}
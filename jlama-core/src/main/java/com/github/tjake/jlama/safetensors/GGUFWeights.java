@@ -0,0 +1,454 @@
+package com.github.tjake.jlama.safetensors;
+
+import com.github.tjake.jlama.math.VectorMath;
+import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.FloatBufferTensor;
+import com.github.tjake.jlama.tensor.Q40ByteBufferTensor;
+import com.github.tjake.jlama.tensor.Q4KByteBufferTensor;
+import com.github.tjake.jlama.tensor.Q6KByteBufferTensor;
+import com.github.tjake.jlama.tensor.Q80ByteBufferTensor;
+import com.github.tjake.jlama.tensor.operations.TensorOperationsProvider;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.primitives.Ints;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Loads the weights of a llama model from a GGUF file (the llama.cpp format).
+ *
+ * The file is mapped whole like {@link SafeTensorIndex}.  Tensors are looked up by their huggingface names,
+ * F32, F16 and BF16 tensors are views of the mapping, as are the quantized types since jlama has tensors with
+ * ggml's block layout for them.  Only the rows of q and k are copied, into the order jlama's rotary embeddings expect.
+ *
+ * The hyperparameters and the tokenizer vocabulary come from the metadata, see {@link #config()} and {@link #tokenizer()}.
+ */
+public class GGUFWeights implements WeightLoader, AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(GGUFWeights.class);
+
+    private static final int MAGIC = 0x46554747; // "GGUF" little endian
+    private static final int DEFAULT_ALIGNMENT = 32;
+
+    private static final ValueLayout.OfByte U8 = ValueLayout.JAVA_BYTE;
+    private static final ValueLayout.OfShort U16 = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfInt U32 = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfLong U64 = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfFloat F32 = ValueLayout.JAVA_FLOAT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfDouble F64 = ValueLayout.JAVA_DOUBLE_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    // ggml tensor types
+    static final int GGML_F32 = 0;
+    static final int GGML_F16 = 1;
+    static final int GGML_Q4_0 = 2;
+    static final int GGML_Q8_0 = 8;
+    static final int GGML_Q4_K = 12;
+    static final int GGML_Q6_K = 14;
+    static final int GGML_BF16 = 30;
+
+    private static final Pattern LAYER_TENSOR = Pattern.compile("model\\.layers\\.(\\d+)\\.(.+)");
+    private static final Map<String, String> LAYER_NAMES = ImmutableMap.<String, String>builder()
+            .put("self_attn.q_proj.weight", "attn_q.weight")
+            .put("self_attn.k_proj.weight", "attn_k.weight")
+            .put("self_attn.v_proj.weight", "attn_v.weight")
+            .put("self_attn.o_proj.weight", "attn_output.weight")
+            .put("mlp.gate_proj.weight", "ffn_gate.weight")
+            .put("mlp.down_proj.weight", "ffn_down.weight")
+            .put("mlp.up_proj.weight", "ffn_up.weight")
+            .put("input_layernorm.weight", "attn_norm.weight")
+            .put("post_attention_layernorm.weight", "ffn_norm.weight")
+            .build();
+
+    private record GGUFTensor(String name, int type, int[] shape, long offset) {}
+
+    private final Arena arena = Arena.ofShared();
+    private final Map<String, Object> metadata;
+    private final Map<String, GGUFTensor> tensors;
+    private final MemorySegment data;
+
+    // Views of the F32, F16 and BF16 tensors
+    private final Weights floatWeights;
+    private final DType dType;
+
+    public static GGUFWeights open(Path file) throws IOException {
+        return new GGUFWeights(file);
+    }
+
+    private GGUFWeights(Path file) throws IOException {
+        MemorySegment mapping;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            mapping = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size(), arena);
+        }
+
+        try {
+            Reader r = new Reader(mapping);
+            if (r.u32() != MAGIC)
+                throw new IllegalArgumentException("Not a GGUF file: " + file);
+
+            int version = r.u32();
+            if (version < 2)
+                throw new IllegalArgumentException("Unsupported GGUF version " + version + ": " + file);
+
+            long tensorCount = r.u64();
+            long kvCount = r.u64();
+
+            Map<String, Object> metadata = new LinkedHashMap<>();
+            for (long i = 0; i < kvCount; i++) {
+                String key = r.string();
+                metadata.put(key, r.value(r.u32()));
+            }
+
+            Map<String, GGUFTensor> tensors = new LinkedHashMap<>();
+            for (long i = 0; i < tensorCount; i++) {
+                String name = r.string();
+                int[] shape = new int[r.u32()];
+                //ggml lists the dimensions innermost first
+                for (int d = shape.length - 1; d >= 0; d--)
+                    shape[d] = Ints.checkedCast(r.u64());
+                tensors.put(name, new GGUFTensor(name, r.u32(), shape, r.u64()));
+            }
+
+            long alignment = ((Number) metadata.getOrDefault("general.alignment", DEFAULT_ALIGNMENT)).longValue();
+            long dataStart = (r.position + alignment - 1) / alignment * alignment;
+
+            this.metadata = Collections.unmodifiableMap(metadata);
+            this.tensors = Collections.unmodifiableMap(tensors);
+            this.data = mapping.asSlice(dataStart);
+            this.floatWeights = new Weights(Collections.emptyMap(), floatTensorInfos(tensors), data);
+            this.dType = findDType(tensors);
+        } catch (RuntimeException e) {
+            arena.close();
+            throw e;
+        }
+
+        logger.debug("Mapped {} tensors from {}", tensors.size(), file);
+    }
+
+    private static Map<String, TensorInfo> floatTensorInfos(Map<String, GGUFTensor> tensors) {
+        Map<String, TensorInfo> infos = new HashMap<>();
+        for (GGUFTensor t : tensors.values()) {
+            DType type = switch (t.type) {
+                case GGML_F32 -> DType.F32;
+                case GGML_F16 -> DType.F16;
+                case GGML_BF16 -> DType.BF16;
+                default -> null;
+            };
+
+            if (type != null) {
+                long[] shape = Arrays.stream(t.shape).asLongStream().toArray();
+                infos.put(t.name, new TensorInfo(type, shape, new long[]{t.offset, t.offset + (long) size(t.shape) * type.size()}));
+            }
+        }
+        return infos;
+    }
+
+    /** The type most tensors are loaded as */
+    private static DType findDType(Map<String, GGUFTensor> tensors) {
+        EnumMap<DType, Integer> counts = new EnumMap<>(DType.class);
+        for (GGUFTensor t : tensors.values()) {
+            DType type = switch (t.type) {
+                case GGML_F32 -> DType.F32;
+                case GGML_F16 -> DType.F16;
+                case GGML_BF16 -> DType.BF16;
+                case GGML_Q4_0 -> DType.Q4_0;
+                case GGML_Q8_0 -> DType.Q8_0;
+                case GGML_Q4_K -> DType.Q4_K;
+                case GGML_Q6_K -> DType.Q6_K;
+                default -> null;
+            };
+
+            if (type != null)
+                counts.merge(type, 1, Integer::sum);
+        }
+
+        return counts.entrySet().stream().max(Map.Entry.comparingByValue()).map(Map.Entry::getKey).orElse(null);
+    }
+
+    /** The key/value metadata of the file, arrays are lists */
+    public Map<String, Object> metadata() {
+        return metadata;
+    }
+
+    /** The hyperparameters of the model, only llama models without grouped query attention are supported */
+    public Config config() {
+        String arch = (String) metadata.get("general.architecture");
+        Preconditions.checkArgument("llama".equals(arch), "Unsupported GGUF architecture %s", arch);
+
+        int heads = intValue("llama.attention.head_count");
+        int kvHeads = metadata.containsKey("llama.attention.head_count_kv") ? intValue("llama.attention.head_count_kv") : heads;
+        Preconditions.checkArgument(kvHeads == heads, "Grouped query attention isn't supported (%s heads, %s kv heads)", heads, kvHeads);
+
+        return new Config(intValue("llama.context_length"),
+                intValue("llama.embedding_length"),
+                intValue("llama.feed_forward_length"),
+                heads,
+                intValue("llama.block_count"),
+                ((Number) metadata.get("llama.attention.layer_norm_rms_epsilon")).floatValue(),
+                metadata.containsKey("llama.vocab_size") ? intValue("llama.vocab_size") : tokens().size(),
+                intValue("tokenizer.ggml.bos_token_id"),
+                intValue("tokenizer.ggml.eos_token_id"));
+    }
+
+    /** The tokenizer vocabulary, indexed by token id */
+    @SuppressWarnings("unchecked")
+    public List<String> tokens() {
+        return (List<String>) list("tokenizer.ggml.tokens");
+    }
+
+    /** The sentencepiece score of each token */
+    @SuppressWarnings("unchecked")
+    public float[] scores() {
+        List<Float> scores = (List<Float>) list("tokenizer.ggml.scores");
+        float[] s = new float[scores.size()];
+        for (int i = 0; i < s.length; i++)
+            s[i] = scores.get(i);
+        return s;
+    }
+
+    /**
+     * A tokenizer for the vocabulary, so the model needs no tokenizer.model next to it.
+     * Files without token types get them from the special token ids and the <0xXX> names of byte tokens.
+     */
+    @SuppressWarnings("unchecked")
+    public Tokenizer tokenizer() {
+        List<String> tokens = tokens();
+        int unknownToken = metadata.containsKey("tokenizer.ggml.unknown_token_id") ? intValue("tokenizer.ggml.unknown_token_id") : 0;
+
+        int[] types = new int[tokens.size()];
+        if (metadata.containsKey("tokenizer.ggml.token_type")) {
+            List<Integer> t = (List<Integer>) list("tokenizer.ggml.token_type");
+            for (int i = 0; i < types.length; i++)
+                types[i] = t.get(i);
+        } else {
+            for (int i = 0; i < types.length; i++)
+                types[i] = tokens.get(i).matches("<0x[0-9A-Fa-f]{2}>") ? GGUFTokenizer.BYTE : GGUFTokenizer.NORMAL;
+            types[unknownToken] = GGUFTokenizer.UNKNOWN;
+            types[intValue("tokenizer.ggml.bos_token_id")] = GGUFTokenizer.CONTROL;
+            types[intValue("tokenizer.ggml.eos_token_id")] = GGUFTokenizer.CONTROL;
+        }
+
+        return new GGUFTokenizer(tokens, scores(), types, unknownToken);
+    }
+
+    private List<?> list(String key) {
+        Object v = metadata.get(key);
+        if (v == null)
+            throw new NoSuchElementException(key);
+        return (List<?>) v;
+    }
+
+    private int intValue(String key) {
+        Object v = metadata.get(key);
+        if (v == null)
+            throw new NoSuchElementException(key);
+        return Ints.checkedCast(((Number) v).longValue());
+    }
+
+    /** The GGUF name of a huggingface tensor name, GGUF names are used as they are */
+    static String ggufName(String name) {
+        Matcher m = LAYER_TENSOR.matcher(name);
+        if (m.matches() && LAYER_NAMES.containsKey(m.group(2)))
+            return "blk." + m.group(1) + "." + LAYER_NAMES.get(m.group(2));
+
+        return switch (name) {
+            case "model.embed_tokens.weight" -> "token_embd.weight";
+            case "model.norm.weight" -> "output_norm.weight";
+            case "lm_head.weight" -> "output.weight";
+            default -> name;
+        };
+    }
+
+    private GGUFTensor tensor(String name) {
+        GGUFTensor t = tensors.get(ggufName(name));
+        //The output layer is often tied to the embeddings
+        if (t == null && name.equals("lm_head.weight"))
+            t = tensors.get("token_embd.weight");
+        if (t == null)
+            throw new NoSuchElementException(name);
+        return t;
+    }
+
+    @Override
+    public AbstractTensor load(String name) {
+        GGUFTensor t = tensor(name);
+        int[] rows = rowOrder(t);
+
+        switch (t.type) {
+            case GGML_Q4_0:
+            case GGML_Q8_0:
+            case GGML_Q4_K:
+            case GGML_Q6_K:
+                return blocks(t, rows);
+            case GGML_F32:
+            case GGML_F16:
+            case GGML_BF16:
+                AbstractTensor view = floatWeights.load(t.name);
+                return rows == null ? view : permuteRows(view, rows);
+            default:
+                throw new IllegalArgumentException("Unsupported GGUF tensor type: " + t.type + " for " + name);
+        }
+    }
+
+    /** Tensors stored quantized are used as they are, quantizing them again would only lose precision */
+    @Override
+    public AbstractTensor load(String name, DType quantizeTo) {
+        AbstractTensor t = load(name);
+        return switch (t.dType()) {
+            case Q4, Q5, I8, Q4_K, Q6_K, Q4_0, Q8_0 -> t;
+            default -> t.quantize(quantizeTo);
+        };
+    }
+
+    /**
+     * llama.cpp interleaves the rows of each attention head of q and k so rotary embeddings pair neighbours,
+     * jlama pairs each row with the one half a head further (like huggingface).
+     * @return the stored row of each row, or null when the rows are in order
+     */
+    private int[] rowOrder(GGUFTensor t) {
+        if (!t.name.endsWith(".attn_q.weight") && !t.name.endsWith(".attn_k.weight"))
+            return null;
+
+        int headSize = intValue("llama.embedding_length") / intValue("llama.attention.head_count");
+        int half = headSize / 2;
+        int[] rows = new int[t.shape[0]];
+        for (int r = 0; r < rows.length; r++) {
+            int head = r / headSize, i = r % headSize;
+            rows[r] = head * headSize + (i % half) * 2 + i / half;
+        }
+        return rows;
+    }
+
+    /**
+     * Q4_0, Q8_0, Q4_K and Q6_K tensors have ggml's layout, so they are views of the file unless they must be
+     * on heap or have their rows reordered.
+     */
+    private AbstractTensor blocks(GGUFTensor t, int[] rows) {
+        int blockSize = t.type == GGML_Q4_0 || t.type == GGML_Q8_0 ? Q40ByteBufferTensor.BLOCK_SIZE : Q4KByteBufferTensor.BLOCK_SIZE;
+        Preconditions.checkArgument(t.shape.length == 2 && t.shape[1] % blockSize == 0, "%s must be a matrix of whole blocks", t.name);
+        int blockBytes = switch (t.type) {
+            case GGML_Q4_0 -> Q40ByteBufferTensor.BLOCK_BYTES;
+            case GGML_Q8_0 -> Q80ByteBufferTensor.BLOCK_BYTES;
+            case GGML_Q4_K -> Q4KByteBufferTensor.BLOCK_BYTES;
+            default -> Q6KByteBufferTensor.BLOCK_BYTES;
+        };
+        int rowBytes = t.shape[1] / blockSize * blockBytes;
+        MemorySegment stored = data.asSlice(t.offset, (long) t.shape[0] * rowBytes);
+
+        if (rows == null && TensorOperationsProvider.get().requiresOffHeapTensor()) {
+            ByteBuffer b = stored.asByteBuffer().order(ByteOrder.LITTLE_ENDIAN);
+            return switch (t.type) {
+                case GGML_Q4_0 -> new Q40ByteBufferTensor(t.name, b, t.shape, true);
+                case GGML_Q8_0 -> new Q80ByteBufferTensor(t.name, b, t.shape, true);
+                case GGML_Q4_K -> new Q4KByteBufferTensor(t.name, b, t.shape, true);
+                default -> new Q6KByteBufferTensor(t.name, b, t.shape, true);
+            };
+        }
+
+        AbstractTensor q = switch (t.type) {
+            case GGML_Q4_0 -> new Q40ByteBufferTensor(t.shape);
+            case GGML_Q8_0 -> new Q80ByteBufferTensor(t.shape);
+            case GGML_Q4_K -> new Q4KByteBufferTensor(t.shape);
+            default -> new Q6KByteBufferTensor(t.shape);
+        };
+        logger.debug("Copying {} {}", t.name, Arrays.toString(t.shape));
+        MemorySegment values = q.getMemorySegment();
+        VectorMath.pfor(0, t.shape[0], r -> MemorySegment.copy(stored, (long) (rows == null ? r : rows[r]) * rowBytes, values, (long) r * rowBytes, rowBytes));
+        return q;
+    }
+
+    private static AbstractTensor permuteRows(AbstractTensor t, int[] rows) {
+        int columns = t.shape()[1];
+        FloatBufferTensor p = new FloatBufferTensor(t.shape());
+        VectorMath.pfor(0, rows.length, r -> {
+            for (int i = 0; i < columns; i++)
+                p.set(t.get(rows[r], i), r, i);
+        });
+        return p;
+    }
+
+    private static int size(int[] shape) {
+        int size = 1;
+        for (int d : shape)
+            size = Math.multiplyExact(size, d);
+        return size;
+    }
+
+    @Override
+    public DType getModelDType() {
+        return dType;
+    }
+
+    /** Unmaps the file, tensors that are views of it must not be used afterwards */
+    @Override
+    public void close() {
+        arena.close();
+    }
+
+    /** Reads the header fields in order */
+    private static class Reader {
+        private final MemorySegment s;
+        private long position;
+
+        Reader(MemorySegment s) {
+            this.s = s;
+        }
+
+        int u32() {
+            int v = s.get(U32, position);
+            position += Integer.BYTES;
+            return v;
+        }
+
+        long u64() {
+            long v = s.get(U64, position);
+            position += Long.BYTES;
+            return v;
+        }
+
+        String string() {
+            int length = Ints.checkedCast(u64());
+            byte[] b = s.asSlice(position, length).toArray(ValueLayout.JAVA_BYTE);
+            position += length;
+            return new String(b, StandardCharsets.UTF_8);
+        }
+
+        Object value(int type) {
+            Object v;
+            switch (type) {
+                case 0: v = Byte.toUnsignedInt(s.get(U8, position)); position += 1; return v;
+                case 1: v = (int) s.get(U8, position); position += 1; return v;
+                case 2: v = Short.toUnsignedInt(s.get(U16, position)); position += 2; return v;
+                case 3: v = (int) s.get(U16, position); position += 2; return v;
+                case 4: return Integer.toUnsignedLong(u32());
+                case 5: return u32();
+                case 6: v = s.get(F32, position); position += 4; return v;
+                case 7: v = s.get(U8, position) != 0; position += 1; return v;
+                case 8: return string();
+                case 9:
+                    int elementType = u32();
+                    int count = Ints.checkedCast(u64());
+                    List<Object> values = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++)
+                        values.add(value(elementType));
+                    return values;
+                case 10:
+                case 11: return u64();
+                case 12: v = s.get(F64, position); position += 8; return v;
+                default: throw new IllegalArgumentException("Unknown GGUF value type " + type);
+            }
+        }
+    }
+}
@@ -5,21 +5,30 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.github.tjake.jlama.tensor.AbstractTensor;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.Futures;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class SafeTensorIndex implements WeightLoader, AutoCloseable {
     private static final Logger logger = LoggerFactory.getLogger(SafeTensorIndex.class);
     private static final ObjectMapper om = new ObjectMapper();
+    private static final ValueLayout.OfLong HEADER_LENGTH = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
 
     public static final String SINGLE_MODEL_NAME = "model.safetensors";
     public static final String MODEL_INDEX_JSON = "model.safetensors.index.json";
@@ -33,8 +42,12 @@ public class SafeTensorIndex implements WeightLoader, AutoCloseable {
     private final Map<String, Weights> weightMap = new HashMap<>();
 
 
-    // Map from file name to RandomAccessFile
-    private final Map<String, RandomAccessFile> fileMap = new HashMap<>();
+    // Map from file name to its mapping, every mapping belongs to the arena
+    private final Map<String, MemorySegment> fileMap = new HashMap<>();
+    private final Arena arena = Arena.ofShared();
+
+    /** Shards mapped at once by {@link #loadWeights}, opening one is mostly reading its header */
+    static final int MAX_CONCURRENT_SHARDS = 4;
 
     public static SafeTensorIndex loadWithWeights(Path modelRoot) throws IOException {
         File indexFile = Paths.get(modelRoot.toString(), MODEL_INDEX_JSON).toFile();
@@ -52,96 +65,95 @@ public class SafeTensorIndex implements WeightLoader, AutoCloseable {
         return index;
     }
 
+    /**
+     * Maps each file whole, with 64 bit offsets so there is no need to split it.  Nothing is read up front,
+     * pages are faulted in as tensors are used and the OS can share them between processes.
+     *
+     * Shards are opened concurrently, at most {@link #MAX_CONCURRENT_SHARDS} at a time.
+     */
     static void loadWeights(SafeTensorIndex index, Path modelRoot) throws IOException {
-        for (Map.Entry<String, String> e : index.weightFileMap.entrySet()) {
-            // Only load the file if it's not already loaded
-            if (!index.fileMap.containsKey(e.getValue())) {
-                RandomAccessFile raf = new RandomAccessFile(Paths.get(modelRoot.toString(), e.getValue()).toFile(), "r");
-                index.fileMap.put(e.getValue(), raf);
-
-                //Read the first 1MB of the file to get the TensorInfo
-                ByteBuffer header = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, Math.min(1 << 20, raf.length()));
-
-                Map<String, String> metadata = new HashMap<>();
-                Map<String, TensorInfo> tensorInfoMap = SafeTensorSupport.readTensorInfoMap(header, Optional.of(metadata));
-                int endOfHeaderPosition = header.position();
-
-                Map<List<Long>, List<String>> splits = index.computeMmapSplits(tensorInfoMap, raf.length());
-                for (Map.Entry<List<Long>, List<String>> split : splits.entrySet()) {
-                    long offset = split.getKey().get(0);
-                    long length = split.getKey().get(1);
-                    List<String> tensors = split.getValue();
-
-                    ByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, endOfHeaderPosition + offset, (length - offset)).load();
-                    Map<String, TensorInfo> mmapTensorInfoMap = tensorInfoMap.entrySet().stream()
-                            .filter(x -> tensors.contains(x.getKey())).collect(ImmutableMap.toImmutableMap(Map.Entry::getKey, Map.Entry::getValue));
-
-                    Weights mmapWeights = new Weights(metadata, mmapTensorInfoMap, buf);
-                    for (String tensor : tensors) {
-                        index.weightMap.put(tensor, mmapWeights);
-                    }
+        // Only load the file if it's not already loaded
+        List<String> files = index.weightFileMap.values().stream().distinct().filter(f -> !index.fileMap.containsKey(f)).toList();
+        if (files.isEmpty())
+            return;
+
+        ExecutorService loaders = Executors.newFixedThreadPool(Math.min(files.size(), MAX_CONCURRENT_SHARDS));
+        try {
+            List<Future<Weights>> shards = new ArrayList<>(files.size());
+            for (String file : files)
+                shards.add(loaders.submit(() -> index.mapFile(modelRoot, file)));
+
+            for (int i = 0; i < files.size(); i++) {
+                Weights mmapWeights = Futures.getChecked(shards.get(i), IOException.class);
+                for (String tensor : mmapWeights.tensorInfoMap().keySet()) {
+                    index.weightMap.put(tensor, mmapWeights);
                 }
             }
+        } catch (IOException | RuntimeException e) {
+            index.close();
+            throw e;
+        } finally {
+            loaders.shutdown();
         }
-
     }
 
-    /**
-     * Group tensors into splits that can be mmaped together.
-     * Since mmap limitation is integer max_value length.
-     *
-     * This also adjusts (inplace) the tensor offsets to be relative to the start of the split.
-     *
-     */
-    private Map<List<Long>, List<String>> computeMmapSplits(Map<String, TensorInfo> tensorInfoMap, long fileLength) {
-        Set<String> added = new HashSet<>();
-        Map<List<Long>, List<String>> splits = new HashMap<>();
-        long lastSplitOffset = 0;
-        while (added.size() < tensorInfoMap.size()) {
-            List<String> tensors = new ArrayList<>();
-            long limit = lastSplitOffset + Integer.MAX_VALUE;
-            long startOffset = fileLength;
-            long endOffset = 0;
+    private Weights mapFile(Path modelRoot, String name) throws IOException {
+        MemorySegment file;
+        try (FileChannel ch = FileChannel.open(Paths.get(modelRoot.toString(), name), StandardOpenOption.READ)) {
+            file = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size(), arena);
+        }
 
-            for (Map.Entry<String, TensorInfo> e : tensorInfoMap.entrySet()) {
-                if (added.contains(e.getKey()))
-                    continue;
+        synchronized (fileMap) {
+            fileMap.put(name, file);
+        }
 
-                TensorInfo info = e.getValue();
+        long headerLength = file.get(HEADER_LENGTH, 0);
+        ByteBuffer header = file.asSlice(0, Long.BYTES + headerLength).asByteBuffer().order(ByteOrder.LITTLE_ENDIAN);
 
-                if (info.dataOffsets[1] < limit) {
-                    tensors.add(e.getKey());
-                    added.add(e.getKey());
+        Map<String, String> metadata = new HashMap<>();
+        Map<String, TensorInfo> tensorInfoMap = SafeTensorSupport.readTensorInfoMap(header, Optional.of(metadata));
 
-                    if (info.dataOffsets[1] > endOffset)
-                        endOffset = info.dataOffsets[1];
+        return new Weights(metadata, tensorInfoMap, file.asSlice(header.position()));
+    }
 
-                    if (info.dataOffsets[0] < startOffset)
-                        startOffset = info.dataOffsets[0];
+    public AbstractTensor load(String name) {
+        Weights w = weightMap.get(name);
+        if (w == null)
+            throw new NoSuchElementException(name);
 
-                    // Adjust the offset to be relative to the start of the split
-                    info.dataOffsets[0] -= lastSplitOffset;
-                    info.dataOffsets[1] -= lastSplitOffset;
+        return w.load(name);
+    }
 
-                    logger.debug("Adding tensor {} to split {}-{}", e.getKey(), info.dataOffsets[0], info.dataOffsets[1]);
-                }
-            }
+    @Override
+    public AbstractTensor load(String name, DType quantizeTo) {
+        return weights(name).load(name, quantizeTo);
+    }
 
-            logger.debug("Adding split {}-{} with {} tensors", startOffset, endOffset, tensors.size());
-            assert endOffset - startOffset < Integer.MAX_VALUE : "Mmap split too large " + (endOffset - startOffset) + " > " + Integer.MAX_VALUE + " " + lastSplitOffset;
-            splits.put(List.of(startOffset, endOffset), tensors);
-            lastSplitOffset = endOffset;
-        }
+    /** The names of every tensor */
+    Set<String> tensorNames() {
+        return weightMap.keySet();
+    }
 
-        return splits;
+    TensorInfo tensorInfo(String name) {
+        return weights(name).tensorInfoMap().get(name);
     }
 
-    public AbstractTensor load(String name) {
+    /** The stored bytes of a tensor, without any conversion */
+    ByteBuffer rawBytes(String name) {
+        return weights(name).rawBytes(name);
+    }
+
+    /** The files of the model, relative to its root */
+    Collection<String> files() {
+        return new TreeSet<>(weightFileMap.values());
+    }
+
+    private Weights weights(String name) {
         Weights w = weightMap.get(name);
         if (w == null)
             throw new NoSuchElementException(name);
 
-        return w.load(name);
+        return w;
     }
 
     @Override
@@ -157,16 +169,14 @@ public class SafeTensorIndex implements WeightLoader, AutoCloseable {
         this.weightFileMap = ImmutableMap.copyOf(weightFileMap);
     }
 
+    /**
+     * Unmaps the files.  Tensors loaded from them must not be used afterwards, unless they were
+     * copies (e.g. quantized at load).
+     */
     @Override
-    public void close() throws Exception {
+    public void close() {
         weightMap.clear();
-        fileMap.forEach((k,v) -> {
-            try {
-                v.close();
-            } catch (IOException e) {
-                // Close quietly
-            }
-        });
         fileMap.clear();
+        arena.close();
     }
 }
@@ -2,22 +2,39 @@ package com.github.tjake.jlama.safetensors;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.databind.type.MapType;
 import com.github.tjake.jlama.model.ModelSupport.ModelType;
+import com.github.tjake.jlama.tensor.AbstractTensor;
 
+import com.google.common.base.Preconditions;
 import com.google.common.primitives.Ints;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.stream.Stream;
 
 public class SafeTensorSupport {
+    private static final Logger logger = LoggerFactory.getLogger(SafeTensorSupport.class);
     private static final ObjectMapper om = new ObjectMapper();
     private static final MapType metadataTypeReference = om.getTypeFactory().constructMapType(Map.class, String.class, String.class);
+    private static final int ALIGNMENT = 64;
+
+    /** Tensors that are kept as they are by {@link #quantizeModel}, the models don't quantize them either */
+    public static final List<String> DEFAULT_SKIPPED_TENSORS = List.of("embed_tokens", "lm_head");
 
     public static Map<String, TensorInfo> readTensorInfoMap(ByteBuffer buf, Optional<Map<String, String>> saveMetadata) {
         long headerLength = buf.order() == ByteOrder.BIG_ENDIAN ? Long.reverseBytes(buf.getLong()) : buf.getLong();
@@ -65,6 +82,120 @@ public class SafeTensorSupport {
         return ModelType.valueOf(rootNode.get("model_type").textValue().toUpperCase());
     }
 
+    /**
+     * Write a copy of a model with its weights quantized, so loading it skips quantizing.
+     *
+     * The files are safetensors with the same names and tensors as the original, quantized tensors have a
+     * Q4, Q5 or I8 dtype and their data is the packed values (then the 5th bits of each Q5 block) followed by
+     * the F32 scale of each block.  Every
+     * tensor is 64 byte aligned so they can be used straight from a memory mapping.  Other files of the model
+     * (config, tokenizer) are copied.
+     *
+     * @param skipTensors tensors whose name contains any of these are not quantized
+     * @return the directory of the quantized model
+     */
+    public static Path quantizeModel(Path modelRoot, DType modelQuantization, List<String> skipTensors, Optional<Path> outputRoot) throws IOException {
+        Preconditions.checkArgument(modelQuantization == DType.Q4 || modelQuantization == DType.Q5 || modelQuantization == DType.I8, "Unsupported model quantization %s", modelQuantization);
+
+        ModelType modelType = detectModel(modelRoot.resolve("config.json").toFile());
+        Preconditions.checkArgument(modelType == ModelType.LLAMA, "Only llama models can be pre-quantized, not %s", modelType);
+
+        Path output = outputRoot.orElse(modelRoot.resolveSibling(modelRoot.getFileName() + "-jlama-" + modelQuantization));
+        Preconditions.checkArgument(!Files.exists(output) || !Files.isSameFile(output, modelRoot), "Output must differ from the model directory");
+        Files.createDirectories(output);
+
+        Collection<String> files = Files.exists(modelRoot.resolve(SafeTensorIndex.MODEL_INDEX_JSON))
+                ? om.readValue(modelRoot.resolve(SafeTensorIndex.MODEL_INDEX_JSON).toFile(), SafeTensorIndex.class).files()
+                : List.of(SafeTensorIndex.SINGLE_MODEL_NAME);
+
+        //One file at a time, so only a single shard is ever mapped
+        for (String file : files) {
+            try (SafeTensorIndex shard = SafeTensorIndex.loadSingleFile(modelRoot, file)) {
+                writeQuantized(shard, output.resolve(file), modelQuantization, skipTensors);
+            }
+        }
+
+        try (Stream<Path> others = Files.list(modelRoot)) {
+            for (Path p : others.filter(Files::isRegularFile).toList()) {
+                if (!p.getFileName().toString().endsWith(".safetensors"))
+                    Files.copy(p, output.resolve(p.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+
+        return output;
+    }
+
+    private static void writeQuantized(SafeTensorIndex shard, Path path, DType modelQuantization, List<String> skipTensors) throws IOException {
+        ObjectNode header = om.createObjectNode();
+        header.putObject("__metadata__").put("format", "jlama").put("quantization", modelQuantization.name());
+
+        //Lay out the tensors in name order
+        List<String> names = new ArrayList<>(new TreeSet<>(shard.tensorNames()));
+        DType[] types = new DType[names.size()];
+        long[] offsets = new long[names.size() + 1];
+        for (int i = 0; i < names.size(); i++) {
+            String name = names.get(i);
+            TensorInfo info = shard.tensorInfo(name);
+
+            boolean quantize = Weights.canQuantizeRows(info, modelQuantization) && skipTensors.stream().noneMatch(name::contains);
+
+            types[i] = quantize ? modelQuantization : info.dType;
+            long length = quantize ? Weights.quantizedLength(modelQuantization, info.shape) : info.dataOffsets[1] - info.dataOffsets[0];
+            long start = align(offsets[i]);
+            offsets[i + 1] = start + length;
+
+            ObjectNode t = header.putObject(name);
+            t.put("dtype", types[i].name());
+            t.putArray("shape").addAll(Arrays.stream(info.shape).mapToObj(om.getNodeFactory()::numberNode).toList());
+            t.putArray("data_offsets").add(start).add(start + length);
+        }
+
+        //Pad the header with spaces so the data is aligned too
+        byte[] json = om.writeValueAsBytes(header);
+        int headerLength = Ints.checkedCast(align(Long.BYTES + json.length) - Long.BYTES);
+        ByteBuffer head = ByteBuffer.allocate(Long.BYTES + headerLength).order(ByteOrder.LITTLE_ENDIAN);
+        head.putLong(headerLength).put(json);
+        while (head.hasRemaining())
+            head.put((byte) ' ');
+        head.flip();
+
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(ch, head, 0);
+
+            long dataStart = head.capacity();
+            for (int i = 0; i < names.size(); i++) {
+                String name = names.get(i);
+                TensorInfo info = shard.tensorInfo(name);
+                long position = dataStart + align(offsets[i]);
+
+                if (types[i] == info.dType) {
+                    writeFully(ch, shard.rawBytes(name), position);
+                    continue;
+                }
+
+                //Quantize straight into the file, row by row
+                logger.info("Quantizing {} to {}", name, modelQuantization);
+                try (Arena arena = Arena.ofShared()) {
+                    MemorySegment out = ch.map(FileChannel.MapMode.READ_WRITE, position, offsets[i + 1] - align(offsets[i]), arena);
+                    AbstractTensor q = Weights.quantizedTensor(name, modelQuantization, info.shape, out.asByteBuffer().order(ByteOrder.LITTLE_ENDIAN));
+                    Weights.quantizeRows(info, MemorySegment.ofBuffer(shard.rawBytes(name)), q);
+                }
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logger.info("Wrote {}", path);
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer b, long position) throws IOException {
+        while (b.hasRemaining())
+            position += ch.write(b, position);
+    }
+
+    private static long align(long offset) {
+        return (offset + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
     public static WeightLoader loadWeights(File baseDir) throws IOException {
         if (Files.exists(Paths.get(baseDir.getAbsolutePath(), SafeTensorIndex.MODEL_INDEX_JSON)))
             return SafeTensorIndex.loadWithWeights(baseDir.toPath());
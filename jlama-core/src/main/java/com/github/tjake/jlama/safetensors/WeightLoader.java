@@ -5,5 +5,10 @@ import com.github.tjake.jlama.tensor.AbstractTensor;
 public interface WeightLoader {
     AbstractTensor load(String name);
 
+    /** Load a tensor quantized to the given type, loaders may do it without a full precision copy */
+    default AbstractTensor load(String name, DType quantizeTo) {
+        return load(name).quantize(quantizeTo);
+    }
+
     DType getModelDType();
 }
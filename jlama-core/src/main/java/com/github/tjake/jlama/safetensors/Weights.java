@@ -1,31 +1,52 @@
 package com.github.tjake.jlama.safetensors;
 
 import com.github.tjake.jlama.math.FloatConversions;
+import com.github.tjake.jlama.math.VectorMath;
 import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.BFloat16BufferTensor;
 import com.github.tjake.jlama.tensor.Float16BufferTensor;
 import com.github.tjake.jlama.tensor.FloatBufferTensor;
-import com.google.common.primitives.Ints;
+import com.github.tjake.jlama.tensor.Q4ByteBufferTensor;
+import com.github.tjake.jlama.tensor.Q5ByteBufferTensor;
+import com.github.tjake.jlama.tensor.Q8ByteBufferTensor;
+import com.github.tjake.jlama.tensor.operations.TensorOperationsProvider;
 
+import java.lang.foreign.MemorySegment;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-import java.nio.ShortBuffer;
 import java.util.*;
 
 public class Weights implements WeightLoader {
     private final Map<String, String> metadata;
     private final Map<String, TensorInfo> tensorInfoMap;
-    private final ByteBuffer bytes;
+    private final MemorySegment segment;
     private final DType dType;
 
+    //Values quantized per task, small rows are grouped so the scratch row is reused
+    private static final int QUANTIZE_TASK_VALUES = 1 << 16;
+
     Weights(Map<String, String> metadata, Map<String, TensorInfo> tensorInfoMap, ByteBuffer bytes)
+    {
+        this(metadata, tensorInfoMap, MemorySegment.ofBuffer(bytes));
+    }
+
+    /**
+     * @param segment the data section of a safetensors file, tensor offsets are relative to its start.
+     *                Tensors are views of it, so it must outlive them.
+     */
+    Weights(Map<String, String> metadata, Map<String, TensorInfo> tensorInfoMap, MemorySegment segment)
     {
         this.metadata = metadata;
         this.tensorInfoMap = tensorInfoMap;
-        this.bytes = bytes.duplicate();
+        this.segment = segment;
         this.dType = findDType();
     }
 
+    /**
+     * The type most tensors are stored in, which tells a pre-quantized model apart.  Loading doesn't
+     * depend on it, each tensor keeps its own type.
+     */
     private DType findDType() {
         EnumMap<DType, Integer> counts = new EnumMap<>(DType.class);
         for (TensorInfo info : tensorInfoMap.values()) {
@@ -41,8 +62,7 @@ public class Weights implements WeightLoader {
             }
         }
 
-        //FIXME don't really support B16 atm
-        return maxType == DType.BF16 ? DType.F32 : maxType;
+        return maxType;
     }
 
     @Override
@@ -54,47 +74,156 @@ public class Weights implements WeightLoader {
         if (info.shape.length < 1)
             throw new RuntimeException("Invalid shape dimensions " + info.shape.length + " encountered for " + name);
 
-        ByteBuffer b = bytes.duplicate().order(ByteOrder.LITTLE_ENDIAN)
-                .position(Ints.checkedCast(info.dataOffsets[0]))
-                .limit(Ints.checkedCast(info.dataOffsets[1]));
+        //Every tensor keeps the type it is stored in, so F32, F16 and BF16 are views of the mapping with no copy
+        ByteBuffer b = rawBytes(name);
 
-        int len;
-        FloatBuffer fb;
-        ShortBuffer sb;
         switch (info.dType) {
             case F32:
-                fb = b.asFloatBuffer().slice();
-                return new FloatBufferTensor(fb, info.shape, true);
+                return new FloatBufferTensor(b.asFloatBuffer(), info.shape, true);
             case F16:
-                // If the majority of the weights are F32 then convert to F32
-                if (dType == DType.F32) {
-                    len = b.remaining() / DType.F16.size();
-                    ByteBuffer bb = ByteBuffer.allocateDirect(len * DType.F32.size()).order(ByteOrder.LITTLE_ENDIAN);
-                    for (int i = 0; i < len * DType.F32.size(); i += DType.F32.size()) {
-                        short s = b.getShort();
-                        float v = Float.float16ToFloat(s);
-                        bb.putFloat(i, v);
-                    }
-                    return new FloatBufferTensor(bb.asFloatBuffer(), info.shape, true);
-                } else {
-                    sb = b.asShortBuffer().slice();
-                    return new Float16BufferTensor(sb, info.shape, true);
-                }
+                return new Float16BufferTensor(b.asShortBuffer(), info.shape, true);
             case BF16:
-                //For now always convert to F32
-                len = b.remaining() / DType.F16.size();
-                fb = FloatBuffer.allocate(len);
-                for (int i = 0; i < len; i++) {
-                    short s = b.getShort();
-                    float v = FloatConversions.bFloat16ToFloat32(s);
-                    fb.put(i, v);
-                }
-                return new FloatBufferTensor(fb, info.shape, true);
+                return new BFloat16BufferTensor(b.asShortBuffer(), info.shape, true, true);
+            case Q4:
+            case Q5:
+            case I8:
+                return loadQuantized(name, info, b);
             default:
                 throw new IllegalArgumentException("Unsupported Tensor type: " + info.dType.name() + " for " + name);
         }
     }
 
+    /**
+     * Matrices stored as F32, F16 or BF16 are quantized a row at a time straight from the stored bytes,
+     * so a full precision copy of the tensor is never made.
+     */
+    @Override
+    public AbstractTensor load(String name, DType quantizeTo) throws NoSuchElementException {
+        TensorInfo info = tensorInfoMap.get(name);
+        if (info == null)
+            throw new NoSuchElementException(name);
+
+        if (!canQuantizeRows(info, quantizeTo))
+            return load(name).quantize(quantizeTo);
+
+        AbstractTensor q = switch (quantizeTo) {
+            case Q4 -> new Q4ByteBufferTensor(info.shape);
+            case Q5 -> new Q5ByteBufferTensor(info.shape);
+            default -> new Q8ByteBufferTensor(info.shape);
+        };
+        quantizeRows(info, MemorySegment.ofBuffer(rawBytes(name)), q);
+        return q;
+    }
+
+    static boolean canQuantizeRows(TensorInfo info, DType quantizeTo) {
+        return (quantizeTo == DType.Q4 || quantizeTo == DType.Q5 || quantizeTo == DType.I8)
+                && info.shape.length == 2
+                && info.shape[1] % Q8ByteBufferTensor.BLOCK_SIZE == 0
+                && (info.dType == DType.F32 || info.dType == DType.F16 || info.dType == DType.BF16);
+    }
+
+    /** Quantize the rows of a stored tensor into q, each task decodes a few rows through one scratch row */
+    static void quantizeRows(TensorInfo info, MemorySegment src, AbstractTensor q) {
+        int rows = info.shape[0];
+        int columns = info.shape[1];
+        long rowBytes = (long) columns * info.dType.size();
+        int rowsPerTask = Math.max(1, QUANTIZE_TASK_VALUES / columns);
+
+        VectorMath.pfor(0, (rows + rowsPerTask - 1) / rowsPerTask, t -> {
+            float[] row = new float[columns];
+            for (int r = t * rowsPerTask; r < Math.min(rows, (t + 1) * rowsPerTask); r++) {
+                long offset = r * rowBytes;
+                switch (info.dType) {
+                    case F32 -> FloatConversions.float32ToFloat32(src, offset, row, columns);
+                    case F16 -> FloatConversions.float16ToFloat32(src, offset, row, columns);
+                    case BF16 -> FloatConversions.bFloat16ToFloat32(src, offset, row, columns);
+                    default -> throw new IllegalArgumentException("Can't quantize " + info.dType);
+                }
+
+                AbstractTensor dst = q.slice(r);
+                if (dst instanceof Q4ByteBufferTensor q4)
+                    q4.quantize(row);
+                else if (dst instanceof Q5ByteBufferTensor q5)
+                    q5.quantize(row);
+                else
+                    ((Q8ByteBufferTensor) dst).quantize(row);
+            }
+        });
+    }
+
+    /**
+     * Pre-quantized tensors (see {@link SafeTensorSupport#quantizeModel}) hold the packed values (and for Q5 the
+     * 5th bits of each block) followed by the F32 scale of each block.  They are used straight from the mapping when tensors live off-heap.
+     */
+    private AbstractTensor loadQuantized(String name, TensorInfo info, ByteBuffer b) {
+        //Heap tensors can't view the mapping, copy it
+        if (!TensorOperationsProvider.get().requiresOffHeapTensor())
+            b = ByteBuffer.allocate(b.remaining()).order(ByteOrder.LITTLE_ENDIAN).put(b).flip();
+
+        return quantizedTensor(name, info.dType, info.shape, b);
+    }
+
+    /** A Q4, Q5 or I8 tensor over b, which holds the packed values (then Q5's 5th bits) followed by the scale of each block */
+    static AbstractTensor quantizedTensor(String name, DType dType, int[] shape, ByteBuffer b) {
+        int size = 1;
+        for (int d : shape)
+            size = Math.multiplyExact(size, d);
+
+        int dataLength = dType == DType.I8 ? size : size / 2;
+        int highBitsLength = dType == DType.Q5 ? size / blockSize(dType) * Integer.BYTES : 0;
+        int[] blockShape = Arrays.copyOf(shape, shape.length);
+        blockShape[blockShape.length - 1] /= blockSize(dType);
+
+        ByteBuffer data = b.slice(0, dataLength).order(ByteOrder.LITTLE_ENDIAN);
+        FloatBuffer scales = b.slice(dataLength + highBitsLength, size / blockSize(dType) * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        FloatBufferTensor blockF = new FloatBufferTensor(scales, blockShape, true);
+
+        return switch (dType) {
+            case Q4 -> new Q4ByteBufferTensor(name, data, blockF, shape, true);
+            case Q5 -> new Q5ByteBufferTensor(name, data, blockF, b.slice(dataLength, highBitsLength), shape, true);
+            default -> new Q8ByteBufferTensor(name, data, blockF, shape, true);
+        };
+    }
+
+    /** Bytes of a Q4, Q5 or I8 tensor with its scales */
+    static long quantizedLength(DType dType, int[] shape) {
+        long size = 1;
+        for (int d : shape)
+            size *= d;
+
+        long blocks = size / blockSize(dType);
+        return switch (dType) {
+            case Q4 -> size / 2 + blocks * Float.BYTES;
+            case Q5 -> size / 2 + blocks * (Integer.BYTES + Float.BYTES);
+            default -> size + blocks * Float.BYTES;
+        };
+    }
+
+    private static int blockSize(DType dType) {
+        return switch (dType) {
+            case Q4 -> Q4ByteBufferTensor.BLOCK_SIZE;
+            case Q5 -> Q5ByteBufferTensor.BLOCK_SIZE;
+            case I8 -> Q8ByteBufferTensor.BLOCK_SIZE;
+            default -> throw new IllegalArgumentException("Not a quantized type: " + dType);
+        };
+    }
+
+    /** The tensors and where they are */
+    Map<String, TensorInfo> tensorInfoMap() {
+        return tensorInfoMap;
+    }
+
+    /** The stored bytes of a tensor, without any conversion */
+    ByteBuffer rawBytes(String name) {
+        TensorInfo info = tensorInfoMap.get(name);
+        if (info == null)
+            throw new NoSuchElementException(name);
+
+        //Offsets are 64 bit, only a single tensor has to fit in a buffer
+        return segment.asSlice(info.dataOffsets[0], info.dataOffsets[1] - info.dataOffsets[0])
+                .asByteBuffer().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
     @Override
     public DType getModelDType() {
         return dType;
@@ -105,7 +234,7 @@ public class Weights implements WeightLoader {
         return "SafeTensor{" +
                 "metadata=" + metadata +
                 ", tensorInfoMap=" + tensorInfoMap +
-                ", bytes=" + bytes +
+                ", segment=" + segment +
                 '}';
     }
 
@@ -224,8 +224,13 @@ public abstract class AbstractTensor<V extends Vector<?>, T extends Number, A> i
             return this;
 
         return switch (dType) {
-            case Q4 -> new Q4ByteBufferTensor(this);
-            case I8 -> new Q8ByteBufferTensor(this);
+            case Q4 -> this.dType == DType.Q4 ? this : new Q4ByteBufferTensor(this);
+            case Q5 -> this.dType == DType.Q5 ? this : new Q5ByteBufferTensor(this);
+            case I8 -> this.dType == DType.I8 ? this : new Q8ByteBufferTensor(this);
+            case Q4_K -> this.dType == DType.Q4_K ? this : new Q4KByteBufferTensor(this);
+            case Q6_K -> this.dType == DType.Q6_K ? this : new Q6KByteBufferTensor(this);
+            case Q4_0 -> this.dType == DType.Q4_0 ? this : new Q40ByteBufferTensor(this);
+            case Q8_0 -> this.dType == DType.Q8_0 ? this : new Q80ByteBufferTensor(this);
             case F32 -> new FloatBufferTensor(this);
             case BF16 -> new BFloat16BufferTensor(this);
             default -> this;
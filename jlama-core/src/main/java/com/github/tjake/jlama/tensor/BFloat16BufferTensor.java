@@ -96,7 +96,7 @@ public class BFloat16BufferTensor extends AbstractTensor<ShortVector, Short, sho
 
     @Override
     public ShortVector getVector(VectorSpecies<Short> species, int offset) {
-        if (!TensorOperationsProvider.get().requiresOffHeapTensor())
+        if (b.hasArray())
             return ShortVector.fromArray(species, getArray(), getArrayOffset(offset));
         else
             return ShortVector.fromMemorySegment(species, segment, getMemorySegmentOffset(offset), ByteOrder.LITTLE_ENDIAN);
@@ -105,7 +105,7 @@ public class BFloat16BufferTensor extends AbstractTensor<ShortVector, Short, sho
     @Override
     public void intoTensor(ShortVector vector, int offset) {
         Preconditions.checkArgument(!b.isReadOnly());
-        if (!TensorOperationsProvider.get().requiresOffHeapTensor())
+        if (b.hasArray())
             vector.intoArray(getArray(), getArrayOffset(offset));
         else
             vector.intoMemorySegment(segment, getMemorySegmentOffset(offset), ByteOrder.LITTLE_ENDIAN);
@@ -130,8 +130,8 @@ public class BFloat16BufferTensor extends AbstractTensor<ShortVector, Short, sho
     public void copyFrom(AbstractTensor src, int srcOffset, int destOffset, int length) {
         Preconditions.checkArgument(this.dType == src.dType, "different types");
         Preconditions.checkArgument(!b.isReadOnly(), "Read-only");
-        segment.asSlice(getMemorySegmentOffset(destOffset), length)
-                .copyFrom(src.getMemorySegment().asSlice(src.getMemorySegmentOffset(srcOffset), length));
+        segment.asSlice(getMemorySegmentOffset(destOffset), length * dType.size())
+                .copyFrom(src.getMemorySegment().asSlice(src.getMemorySegmentOffset(srcOffset), length * dType.size()));
     }
 
     @Override
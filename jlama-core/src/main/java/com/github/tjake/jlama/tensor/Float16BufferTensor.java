@@ -47,7 +47,6 @@ public class Float16BufferTensor extends AbstractTensor<ShortVector, Short, shor
 
     private Float16BufferTensor(String name, ShortBuffer b, int[] shape, boolean cacheSlices) {
         super(DType.F16, shape, cacheSlices);
-        Preconditions.checkArgument(b.isDirect(), "Must use direct buffers");
         this.name = name;
         this.b = b;
         this.segment = MemorySegment.ofBuffer(b);
@@ -93,7 +92,7 @@ public class Float16BufferTensor extends AbstractTensor<ShortVector, Short, shor
 
     @Override
     public ShortVector getVector(VectorSpecies<Short> species, int offset) {
-        if (!TensorOperationsProvider.get().requiresOffHeapTensor())
+        if (b.hasArray())
             return ShortVector.fromArray(species, getArray(), getArrayOffset(offset));
         else
             return ShortVector.fromMemorySegment(species, segment, getMemorySegmentOffset(offset), ByteOrder.LITTLE_ENDIAN);
@@ -102,7 +101,7 @@ public class Float16BufferTensor extends AbstractTensor<ShortVector, Short, shor
     @Override
     public void intoTensor(ShortVector vector, int offset) {
         Preconditions.checkArgument(!b.isReadOnly());
-        if (!TensorOperationsProvider.get().requiresOffHeapTensor())
+        if (b.hasArray())
             vector.intoArray(getArray(), getArrayOffset(offset));
         else
             vector.intoMemorySegment(segment, getMemorySegmentOffset(offset), ByteOrder.LITTLE_ENDIAN);
@@ -127,8 +126,8 @@ public class Float16BufferTensor extends AbstractTensor<ShortVector, Short, shor
     public void copyFrom(AbstractTensor src, int srcOffset, int destOffset, int length) {
         Preconditions.checkArgument(this.dType == src.dType, "different types");
         Preconditions.checkArgument(!b.isReadOnly(), "Read-only");
-        segment.asSlice(getMemorySegmentOffset(destOffset), length)
-                .copyFrom(src.getMemorySegment().asSlice(src.getMemorySegmentOffset(srcOffset), length));
+        segment.asSlice(getMemorySegmentOffset(destOffset), length * dType.size())
+                .copyFrom(src.getMemorySegment().asSlice(src.getMemorySegmentOffset(srcOffset), length * dType.size()));
     }
 
     @Override
@@ -139,7 +139,8 @@ public final class FloatBufferTensor extends AbstractTensor<FloatVector, Float,
 
     @Override
     public FloatVector getVector(VectorSpecies<Float> species, int offset) {
-        if (!TensorOperationsProvider.get().requiresOffHeapTensor())
+        //Heap buffers are read through their array, mapped or off-heap ones through their segment
+        if (b.hasArray())
             return FloatVector.fromArray(species, getArray(), getArrayOffset(offset));
         else
             return FloatVector.fromMemorySegment(species, segment, getMemorySegmentOffset(offset), ByteOrder.LITTLE_ENDIAN);
@@ -148,7 +149,7 @@ public final class FloatBufferTensor extends AbstractTensor<FloatVector, Float,
     @Override
     public void intoTensor(FloatVector vector, int offset) {
         Preconditions.checkArgument(!b.isReadOnly());
-        if (!TensorOperationsProvider.get().requiresOffHeapTensor())
+        if (b.hasArray())
             vector.intoArray(getArray(), getArrayOffset(offset));
         else
             vector.intoMemorySegment(segment, getMemorySegmentOffset(offset), ByteOrder.LITTLE_ENDIAN);
@@ -0,0 +1,184 @@
+package com.github.tjake.jlama.tensor;
+
+import com.github.tjake.jlama.math.VectorMath;
+import com.github.tjake.jlama.safetensors.DType;
+import com.github.tjake.jlama.tensor.operations.TensorOperationsProvider;
+import com.google.common.base.Preconditions;
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * 4-bit values in blocks of 32, laid out like ggml's block_q4_0 so GGUF tensors can be used as they are.
+ *
+ * Each block is an F16 scale d then 16 bytes of values, the first half of the block in the low nibbles and
+ * the second half in the high ones.  A value is d * (q - 8).  These are the values of {@link Q4ByteBufferTensor}
+ * with the scale kept in front of each block instead of in a tensor of its own.
+ */
+public final class Q40ByteBufferTensor extends AbstractTensor<ByteVector, Byte, byte[]> {
+    public static final int BLOCK_SIZE = 32;
+    public static final int BLOCK_BYTES = Short.BYTES + BLOCK_SIZE / 2;
+
+    static final ValueLayout.OfShort F16 = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    final ByteBuffer b;
+    private final String name;
+    private final MemorySegment segment;
+
+    public Q40ByteBufferTensor(AbstractTensor ft) {
+        this(ft.shape);
+        Preconditions.checkArgument(ft.dType != DType.Q4_0, "This should never happen, likely a bug");
+
+        int columns = shape[shape.length - 1];
+        int rows = size() / columns;
+        VectorMath.pfor(0, rows, r -> {
+            float[] row = new float[columns];
+            for (int i = 0; i < columns; i++)
+                row[i] = ft.get(shape.length == 1 ? new int[]{i} : new int[]{r, i});
+
+            (shape.length == 1 ? this : (Q40ByteBufferTensor) slice(r)).quantize(row);
+        });
+    }
+
+    public Q40ByteBufferTensor(int[] shape) {
+        super(DType.Q4_0, shape, true);
+        Preconditions.checkArgument(shape.length <= 2 && shape[shape.length - 1] % BLOCK_SIZE == 0, "Rows must be a multiple of %s", BLOCK_SIZE);
+        this.name = "tmp";
+        int bytes = size() / BLOCK_SIZE * BLOCK_BYTES;
+        this.b = TensorOperationsProvider.get().requiresOffHeapTensor()
+                ? ByteBuffer.allocateDirect(bytes).order(ByteOrder.LITTLE_ENDIAN)
+                : ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        this.segment = MemorySegment.ofBuffer(b);
+    }
+
+    public Q40ByteBufferTensor(String name, ByteBuffer b, int[] shape, boolean cacheSlices) {
+        super(DType.Q4_0, shape, cacheSlices);
+        Preconditions.checkArgument(shape[shape.length - 1] % BLOCK_SIZE == 0, "Rows must be a multiple of %s", BLOCK_SIZE);
+        this.name = name;
+        this.b = b;
+        this.segment = MemorySegment.ofBuffer(b);
+    }
+
+    /** Quantize a vector of the same size into this tensor, each block is scaled by its largest magnitude like ggml does */
+    public void quantize(float[] values) {
+        Preconditions.checkArgument(this.dims() == 1 && values.length == this.size(), "Must be a vector of the same size");
+        Preconditions.checkArgument(!b.isReadOnly(), "Can't modify a read only buffer");
+
+        for (int start = 0; start < values.length; start += BLOCK_SIZE) {
+            float max = 0;
+            for (int i = 0; i < BLOCK_SIZE; i++) {
+                if (Math.abs(values[start + i]) > Math.abs(max))
+                    max = values[start + i];
+            }
+
+            float scale = max / -8;
+            float iscale = scale != 0 ? 1 / scale : 0;
+
+            long offset = (long) start / BLOCK_SIZE * BLOCK_BYTES;
+            segment.set(F16, offset, Float.floatToFloat16(scale));
+            for (int i = 0; i < BLOCK_SIZE / 2; i++) {
+                int q0 = Math.min(15, (int) (values[start + i] * iscale + 8.5f));
+                int q1 = Math.min(15, (int) (values[start + i + BLOCK_SIZE / 2] * iscale + 8.5f));
+                segment.set(ValueLayout.JAVA_BYTE, offset + Short.BYTES + i, (byte) (q0 | (q1 << 4)));
+            }
+        }
+    }
+
+    @Override
+    protected AbstractTensor make(int... shape) {
+        return new Q40ByteBufferTensor(shape);
+    }
+
+    @Override
+    protected AbstractTensor make(int offset, int length, int[] shape, boolean cacheSlices) {
+        Preconditions.checkArgument(offset % BLOCK_SIZE == 0 && length % BLOCK_SIZE == 0, "Slices must be whole blocks");
+        return new Q40ByteBufferTensor(name, b.slice(getMemorySegmentOffset(offset), getMemorySegmentOffset(length)).order(ByteOrder.LITTLE_ENDIAN), shape, cacheSlices);
+    }
+
+    @Override
+    public float get(int... dims) {
+        Preconditions.checkArgument(dims.length == shape.length, "Must specify all dimensions");
+        int i = getOffset(dims);
+        long block = getMemorySegmentOffset(i);
+        int within = i % BLOCK_SIZE;
+
+        int packed = segment.get(ValueLayout.JAVA_BYTE, block + Short.BYTES + within % (BLOCK_SIZE / 2));
+        int q = within < BLOCK_SIZE / 2 ? packed & 0xF : (packed >> 4) & 0xF;
+        return Float.float16ToFloat(segment.get(F16, block)) * (q - 8);
+    }
+
+    @Override
+    public void set(float v, int... dims) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public byte[] getArray() {
+        if (b.hasArray())
+            return b.array();
+        else
+            throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int getArrayOffset(int i) {
+        return b.arrayOffset() + getMemorySegmentOffset(i);
+    }
+
+    @Override
+    public ByteVector getVector(VectorSpecies<Byte> species, int offset) {
+        return ByteVector.fromMemorySegment(species, segment, getMemorySegmentOffset(offset), ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public void intoTensor(ByteVector vector, int offset) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public MemorySegment getMemorySegment() {
+        return segment;
+    }
+
+    /** The byte offset of the block holding the value at offset */
+    @Override
+    public int getMemorySegmentOffset(int offset) {
+        return offset / BLOCK_SIZE * BLOCK_BYTES;
+    }
+
+    @Override
+    public boolean hasMemorySegment() {
+        return true;
+    }
+
+    @Override
+    public void copyFrom(AbstractTensor src, int srcOffset, int destOffset, int length) {
+        Preconditions.checkArgument(this.dType == src.dType, "different types");
+        Preconditions.checkArgument(!b.isReadOnly(), "Read-only");
+        Preconditions.checkArgument(srcOffset % BLOCK_SIZE == 0 && destOffset % BLOCK_SIZE == 0 && length % BLOCK_SIZE == 0, "Copies must be whole blocks");
+        segment.asSlice(getMemorySegmentOffset(destOffset), getMemorySegmentOffset(length))
+                .copyFrom(src.getMemorySegment().asSlice(src.getMemorySegmentOffset(srcOffset), getMemorySegmentOffset(length)));
+    }
+
+    @Override
+    public void clear() {
+        Preconditions.checkArgument(!b.isReadOnly(), "Can't clear a read-only buffer");
+        segment.fill((byte) 0);
+    }
+
+    @Override
+    public String toString() {
+        byte[] sample = new byte[Math.min(10, b.remaining())];
+        b.duplicate().get(sample);
+        return "Q40BufferTensor{" +
+                "name='" + name + '\'' +
+                "shape=" + Arrays.toString(shape) +
+                ", b=" + Arrays.toString(sample) +
+                "...}";
+    }
+}
@@ -5,7 +5,12 @@ import com.github.tjake.jlama.safetensors.DType;
 import com.github.tjake.jlama.tensor.operations.TensorOperationsProvider;
 import com.google.common.base.Preconditions;
 import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
 import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
 import jdk.incubator.vector.VectorSpecies;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,6 +18,7 @@ import org.slf4j.LoggerFactory;
 import java.lang.foreign.MemorySegment;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -25,6 +31,11 @@ public final class Q4ByteBufferTensor extends AbstractTensor<ByteVector, Byte, b
     public static final int HALF_BLOCK = (BLOCK_SIZE / 2);
     private static final float I_BLOCK_SIZE = 1.0f / BLOCK_SIZE;
 
+    //Half a block per vector at most, so the two halves that share bytes are loaded side by side
+    private static final VectorSpecies<Float> QUANTIZE_SPECIES = FloatVector.SPECIES_PREFERRED.length() > HALF_BLOCK ? FloatVector.SPECIES_512 : FloatVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> QUANTIZE_INT_SPECIES = QUANTIZE_SPECIES.withLanes(int.class);
+    private static final VectorSpecies<Byte> QUANTIZE_BYTE_SPECIES = QUANTIZE_SPECIES.length() >= 8 ? VectorSpecies.of(byte.class, VectorShape.forBitSize(QUANTIZE_SPECIES.length() * Byte.SIZE)) : null;
+
     final ByteBuffer b;
     final FloatBufferTensor blockF; //Deltas
     private final String name;
@@ -112,6 +123,63 @@ public final class Q4ByteBufferTensor extends AbstractTensor<ByteVector, Byte, b
     }
 
 
+    /** Quantize a vector of the same size into this tensor, block by block */
+    public void quantize(AbstractTensor ft) {
+        Preconditions.checkArgument(ft.dims() == 1 && this.dims() == 1 && ft.size() == this.size(), "Must be vectors of the same size");
+        Preconditions.checkArgument(!b.isReadOnly(), "Can't modify a read only buffer");
+        for (int i = 0; i < ft.size(); i += BLOCK_SIZE)
+            processBlock(ft, new int[]{i});
+    }
+
+    /**
+     * Quantize values into this vector, block by block.  Same result as {@link #quantize(AbstractTensor)}
+     * but each block is handled with a few vector ops, this is what quantizing weights at load time uses.
+     */
+    public void quantize(float[] values) {
+        Preconditions.checkArgument(this.dims() == 1 && values.length == this.size(), "Must be a vector of the same size");
+        Preconditions.checkArgument(!b.isReadOnly(), "Can't modify a read only buffer");
+        if (QUANTIZE_BYTE_SPECIES == null) {
+            quantize(new FloatBufferTensor(FloatBuffer.wrap(values), shape, false));
+            return;
+        }
+
+        int step = QUANTIZE_SPECIES.length();
+        for (int i = 0; i < values.length; i += BLOCK_SIZE) {
+            FloatVector amaxv = FloatVector.zero(QUANTIZE_SPECIES);
+            for (int j = 0; j < BLOCK_SIZE; j += step)
+                amaxv = amaxv.max(FloatVector.fromArray(QUANTIZE_SPECIES, values, i + j).abs());
+            float amax = amaxv.reduceLanes(VectorOperators.MAX);
+
+            //The scale keeps the sign of the first value with the largest magnitude
+            float max = Float.MIN_VALUE;
+            if (amax > Float.MIN_VALUE) {
+                for (int j = 0; j < BLOCK_SIZE; j += step) {
+                    VectorMask<Float> m = FloatVector.fromArray(QUANTIZE_SPECIES, values, i + j).abs().eq(amax);
+                    if (m.anyTrue()) {
+                        max = values[i + j + m.firstTrue()];
+                        break;
+                    }
+                }
+            }
+
+            float scale = max / -8f;
+            float iscale = scale != 0.0f ? 1.0f / scale : 0.0f;
+            blockF.set(scale, i / BLOCK_SIZE);
+
+            for (int j = 0; j < HALF_BLOCK; j += step) {
+                IntVector lo = quantize4(values, i + j, iscale);
+                IntVector hi = quantize4(values, i + HALF_BLOCK + j, iscale);
+                ByteVector packed = (ByteVector) lo.or(hi.lanewise(VectorOperators.LSHL, 4)).convertShape(VectorOperators.I2B, QUANTIZE_BYTE_SPECIES, 0);
+                packed.intoMemorySegment(segment, (i / 2) + j, ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+    }
+
+    private static IntVector quantize4(float[] values, int offset, float iscale) {
+        FloatVector f = FloatVector.fromArray(QUANTIZE_SPECIES, values, offset).mul(iscale).add(8.5f);
+        return ((IntVector) f.convertShape(VectorOperators.F2I, QUANTIZE_INT_SPECIES, 0)).min(15);
+    }
+
     private static int[] makeBlockShape(int[] shape) {
         int[] blockShape = new int[shape.length];
         for (int i = 0; i < shape.length; i++) {
@@ -125,7 +193,7 @@ public final class Q4ByteBufferTensor extends AbstractTensor<ByteVector, Byte, b
     }
 
 
-    protected Q4ByteBufferTensor(int[] shape) {
+    public Q4ByteBufferTensor(int[] shape) {
         super(DType.Q4, shape, true);
         Preconditions.checkArgument(this.size() % BLOCK_SIZE == 0, "Tensor must be a multiple of BLOCK_SIZE");
         this.blockF = new FloatBufferTensor(makeBlockShape(shape));
@@ -0,0 +1,251 @@
+package com.github.tjake.jlama.tensor;
+
+import com.github.tjake.jlama.math.VectorMath;
+import com.github.tjake.jlama.safetensors.DType;
+import com.github.tjake.jlama.tensor.operations.TensorOperationsProvider;
+import com.google.common.base.Preconditions;
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * 4-bit values in super-blocks of 256, laid out like ggml's block_q4_K so GGUF tensors can be used as they are.
+ *
+ * Each super-block is an F16 scale d and an F16 scale dmin, then 12 bytes holding a 6-bit scale and a 6-bit min
+ * for each of its 8 sub-blocks of 32, then the 128 bytes of values.  A value is d * scale * q - dmin * min.
+ * Each 32 bytes hold two sub-blocks, the first in the low nibbles and the second in the high ones.
+ */
+public final class Q4KByteBufferTensor extends AbstractTensor<ByteVector, Byte, byte[]> {
+    public static final int BLOCK_SIZE = 256;
+    public static final int SUB_BLOCK_SIZE = 32;
+    public static final int BLOCK_BYTES = 2 * Short.BYTES + 12 + BLOCK_SIZE / 2;
+
+    static final ValueLayout.OfShort F16 = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    final ByteBuffer b;
+    private final String name;
+    private final MemorySegment segment;
+
+    public Q4KByteBufferTensor(AbstractTensor ft) {
+        this(ft.shape);
+        Preconditions.checkArgument(ft.dType != DType.Q4_K, "This should never happen, likely a bug");
+
+        int columns = shape[shape.length - 1];
+        int rows = size() / columns;
+        VectorMath.pfor(0, rows, r -> {
+            float[] row = new float[columns];
+            for (int i = 0; i < columns; i++)
+                row[i] = ft.get(shape.length == 1 ? new int[]{i} : new int[]{r, i});
+
+            (shape.length == 1 ? this : (Q4KByteBufferTensor) slice(r)).quantize(row);
+        });
+    }
+
+    public Q4KByteBufferTensor(int[] shape) {
+        super(DType.Q4_K, shape, true);
+        Preconditions.checkArgument(shape.length <= 2 && shape[shape.length - 1] % BLOCK_SIZE == 0, "Rows must be a multiple of %s", BLOCK_SIZE);
+        this.name = "tmp";
+        int bytes = size() / BLOCK_SIZE * BLOCK_BYTES;
+        this.b = TensorOperationsProvider.get().requiresOffHeapTensor()
+                ? ByteBuffer.allocateDirect(bytes).order(ByteOrder.LITTLE_ENDIAN)
+                : ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        this.segment = MemorySegment.ofBuffer(b);
+    }
+
+    public Q4KByteBufferTensor(String name, ByteBuffer b, int[] shape, boolean cacheSlices) {
+        super(DType.Q4_K, shape, cacheSlices);
+        Preconditions.checkArgument(shape[shape.length - 1] % BLOCK_SIZE == 0, "Rows must be a multiple of %s", BLOCK_SIZE);
+        this.name = name;
+        this.b = b;
+        this.segment = MemorySegment.ofBuffer(b);
+    }
+
+    /**
+     * Quantize a vector of the same size into this tensor.  Each sub-block gets the scale and min that span
+     * its values, then the scales and mins are quantized to 6 bits against the largest of each.
+     */
+    public void quantize(float[] values) {
+        Preconditions.checkArgument(this.dims() == 1 && values.length == this.size(), "Must be a vector of the same size");
+        Preconditions.checkArgument(!b.isReadOnly(), "Can't modify a read only buffer");
+
+        int subBlocks = BLOCK_SIZE / SUB_BLOCK_SIZE;
+        float[] scales = new float[subBlocks];
+        float[] mins = new float[subBlocks];
+        byte[] block = new byte[BLOCK_BYTES];
+        int[] q = new int[BLOCK_SIZE];
+
+        for (int start = 0; start < values.length; start += BLOCK_SIZE) {
+            float maxScale = 0, maxMin = 0;
+            for (int j = 0; j < subBlocks; j++) {
+                float min = 0, max = 0;
+                for (int l = 0; l < SUB_BLOCK_SIZE; l++) {
+                    float v = values[start + j * SUB_BLOCK_SIZE + l];
+                    min = Math.min(min, v);
+                    max = Math.max(max, v);
+                }
+                scales[j] = (max - min) / 15;
+                mins[j] = -min;
+                maxScale = Math.max(maxScale, scales[j]);
+                maxMin = Math.max(maxMin, mins[j]);
+            }
+
+            short d = Float.floatToFloat16(maxScale / 63);
+            short dmin = Float.floatToFloat16(maxMin / 63);
+            float iscale = maxScale > 0 ? 63 / maxScale : 0;
+            float imin = maxMin > 0 ? 63 / maxMin : 0;
+
+            Arrays.fill(block, (byte) 0);
+            for (int j = 0; j < subBlocks; j++) {
+                int ls = Math.min(63, Math.round(iscale * scales[j]));
+                int lm = Math.min(63, Math.round(imin * mins[j]));
+                if (j < 4) {
+                    block[4 + j] = (byte) ls;
+                    block[4 + j + 4] = (byte) lm;
+                } else {
+                    block[4 + j + 4] = (byte) ((ls & 0xF) | ((lm & 0xF) << 4));
+                    block[4 + j - 4] |= (byte) ((ls >> 4) << 6);
+                    block[4 + j] |= (byte) ((lm >> 4) << 6);
+                }
+            }
+
+            //The values are quantized against the rounded scales and mins they are read back with
+            float df = Float.float16ToFloat(d), dminf = Float.float16ToFloat(dmin);
+            MemorySegment header = MemorySegment.ofArray(block);
+            for (int j = 0; j < subBlocks; j++) {
+                float scale = df * scale(header, 0, j);
+                float min = dminf * min(header, 0, j);
+                for (int l = 0; l < SUB_BLOCK_SIZE; l++) {
+                    int i = j * SUB_BLOCK_SIZE + l;
+                    q[i] = scale == 0 ? 0 : Math.max(0, Math.min(15, Math.round((values[start + i] + min) / scale)));
+                }
+            }
+
+            for (int j = 0; j < BLOCK_SIZE; j += 2 * SUB_BLOCK_SIZE)
+                for (int l = 0; l < SUB_BLOCK_SIZE; l++)
+                    block[16 + j / 2 + l] = (byte) (q[j + l] | (q[j + l + SUB_BLOCK_SIZE] << 4));
+
+            long offset = (long) start / BLOCK_SIZE * BLOCK_BYTES;
+            MemorySegment.copy(block, 0, segment, ValueLayout.JAVA_BYTE, offset, BLOCK_BYTES);
+            segment.set(F16, offset, d);
+            segment.set(F16, offset + Short.BYTES, dmin);
+        }
+    }
+
+    /** The 6-bit scale of sub-block j of the super-block at offset */
+    public static int scale(MemorySegment s, long offset, int j) {
+        long scales = offset + 2 * Short.BYTES;
+        return j < 4
+                ? s.get(ValueLayout.JAVA_BYTE, scales + j) & 63
+                : (s.get(ValueLayout.JAVA_BYTE, scales + j + 4) & 0xF) | ((s.get(ValueLayout.JAVA_BYTE, scales + j - 4) & 0xFF) >> 6 << 4);
+    }
+
+    /** The 6-bit min of sub-block j of the super-block at offset */
+    public static int min(MemorySegment s, long offset, int j) {
+        long scales = offset + 2 * Short.BYTES;
+        return j < 4
+                ? s.get(ValueLayout.JAVA_BYTE, scales + j + 4) & 63
+                : ((s.get(ValueLayout.JAVA_BYTE, scales + j + 4) & 0xFF) >> 4) | ((s.get(ValueLayout.JAVA_BYTE, scales + j) & 0xFF) >> 6 << 4);
+    }
+
+    @Override
+    protected AbstractTensor make(int... shape) {
+        return new Q4KByteBufferTensor(shape);
+    }
+
+    @Override
+    protected AbstractTensor make(int offset, int length, int[] shape, boolean cacheSlices) {
+        Preconditions.checkArgument(offset % BLOCK_SIZE == 0 && length % BLOCK_SIZE == 0, "Slices must be whole super-blocks");
+        return new Q4KByteBufferTensor(name, b.slice(getMemorySegmentOffset(offset), getMemorySegmentOffset(length)).order(ByteOrder.LITTLE_ENDIAN), shape, cacheSlices);
+    }
+
+    @Override
+    public float get(int... dims) {
+        Preconditions.checkArgument(dims.length == shape.length, "Must specify all dimensions");
+        int i = getOffset(dims);
+        long block = getMemorySegmentOffset(i);
+        int within = i % BLOCK_SIZE;
+        int j = within / SUB_BLOCK_SIZE;
+
+        int packed = segment.get(ValueLayout.JAVA_BYTE, block + 16 + (within / (2 * SUB_BLOCK_SIZE)) * SUB_BLOCK_SIZE + within % SUB_BLOCK_SIZE);
+        int q = j % 2 == 0 ? packed & 0xF : (packed >> 4) & 0xF;
+
+        float d = Float.float16ToFloat(segment.get(F16, block));
+        float dmin = Float.float16ToFloat(segment.get(F16, block + Short.BYTES));
+        return d * scale(segment, block, j) * q - dmin * min(segment, block, j);
+    }
+
+    @Override
+    public void set(float v, int... dims) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public byte[] getArray() {
+        if (b.hasArray())
+            return b.array();
+        else
+            throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int getArrayOffset(int i) {
+        return b.arrayOffset() + getMemorySegmentOffset(i);
+    }
+
+    @Override
+    public ByteVector getVector(VectorSpecies<Byte> species, int offset) {
+        return ByteVector.fromMemorySegment(species, segment, getMemorySegmentOffset(offset), ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public void intoTensor(ByteVector vector, int offset) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public MemorySegment getMemorySegment() {
+        return segment;
+    }
+
+    /** The byte offset of the super-block holding the value at offset */
+    @Override
+    public int getMemorySegmentOffset(int offset) {
+        return offset / BLOCK_SIZE * BLOCK_BYTES;
+    }
+
+    @Override
+    public boolean hasMemorySegment() {
+        return true;
+    }
+
+    @Override
+    public void copyFrom(AbstractTensor src, int srcOffset, int destOffset, int length) {
+        Preconditions.checkArgument(this.dType == src.dType, "different types");
+        Preconditions.checkArgument(!b.isReadOnly(), "Read-only");
+        Preconditions.checkArgument(srcOffset % BLOCK_SIZE == 0 && destOffset % BLOCK_SIZE == 0 && length % BLOCK_SIZE == 0, "Copies must be whole super-blocks");
+        segment.asSlice(getMemorySegmentOffset(destOffset), getMemorySegmentOffset(length))
+                .copyFrom(src.getMemorySegment().asSlice(src.getMemorySegmentOffset(srcOffset), getMemorySegmentOffset(length)));
+    }
+
+    @Override
+    public void clear() {
+        Preconditions.checkArgument(!b.isReadOnly(), "Can't clear a read-only buffer");
+        segment.fill((byte) 0);
+    }
+
+    @Override
+    public String toString() {
+        byte[] sample = new byte[Math.min(10, b.remaining())];
+        b.duplicate().get(sample);
+        return "Q4KBufferTensor{" +
+                "name='" + name + '\'' +
+                "shape=" + Arrays.toString(shape) +
+                ", b=" + Arrays.toString(sample) +
+                "...}";
+    }
+}
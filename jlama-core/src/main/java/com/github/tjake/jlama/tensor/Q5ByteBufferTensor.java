@@ -5,11 +5,9 @@ import com.github.tjake.jlama.safetensors.DType;
 import com.github.tjake.jlama.tensor.operations.TensorOperationsProvider;
 import com.google.common.base.Preconditions;
 import jdk.incubator.vector.ByteVector;
-import jdk.incubator.vector.FloatVector;
 import jdk.incubator.vector.VectorSpecies;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import sun.nio.ch.DirectBuffer;
 
 import java.lang.foreign.MemorySegment;
 import java.nio.ByteBuffer;
@@ -18,21 +16,29 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
-public class Q5ByteBufferTensor extends AbstractTensor<ByteVector, Byte, byte[]> {
+/**
+ * 5-bit values in blocks of 32 with an F32 scale per block, a value is (q - 16) * scale.
+ *
+ * The low 4 bits are packed like {@link Q4ByteBufferTensor}, value j of a block in the low nibble of byte j
+ * and value j + 16 in the high one.  The 5th bits of a block are an int, bit j for value j.
+ */
+public final class Q5ByteBufferTensor extends AbstractTensor<ByteVector, Byte, byte[]> {
     private static final Logger logger = LoggerFactory.getLogger(Q5ByteBufferTensor.class);
     public static final int BLOCK_SIZE = 32;
+    public static final int HALF_BLOCK = (BLOCK_SIZE / 2);
     private static final float I_BLOCK_SIZE = 1.0f / BLOCK_SIZE;
 
     final ByteBuffer b;
     final FloatBufferTensor blockF; //Deltas
-    final int[] b5; //Fith bit of quants
+    final ByteBuffer b5; //Fifth bit of each value, an int per block
     private final String name;
     private final MemorySegment segment;
+    private final MemorySegment b5Segment;
 
     public Q5ByteBufferTensor(AbstractTensor ft) {
         this(ft.shape);
         Preconditions.checkArgument(ft.dType != DType.Q5, "This should never happen, likely a bug");
-        Preconditions.checkArgument(ft.size() % BLOCK_SIZE == 0, "I8 buffer must be a multiple of BLOCK_SIZE");
+        Preconditions.checkArgument(ft.size() % BLOCK_SIZE == 0, "Q5 buffer must be a multiple of BLOCK_SIZE");
 
         List<int[]> startBlockCursors = new ArrayList<>();
         int[] cursor = new int[ft.shape.length];
@@ -52,49 +58,56 @@ public class Q5ByteBufferTensor extends AbstractTensor<ByteVector, Byte, byte[]>
 
     void processBlock(AbstractTensor ft, int[] blockStartCursor) {
         int[] cursor = Arrays.copyOf(blockStartCursor, blockStartCursor.length);
+        float[] values = new float[BLOCK_SIZE];
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            values[i] = ft.get(cursor);
+            ft.iterate(cursor);
+        }
+
+        quantizeBlock(values, 0, blockStartCursor);
+    }
+
+    /** Quantize a vector of the same size into this tensor, block by block */
+    public void quantize(float[] values) {
+        Preconditions.checkArgument(this.dims() == 1 && values.length == this.size(), "Must be a vector of the same size");
+        Preconditions.checkArgument(!b.isReadOnly(), "Can't modify a read only buffer");
+        for (int i = 0; i < values.length; i += BLOCK_SIZE)
+            quantizeBlock(values, i, new int[]{i});
+    }
+
+    private void quantizeBlock(float[] values, int from, int[] blockStartCursor) {
         float max = Float.MIN_VALUE;
         float amax = Float.MIN_VALUE;
 
         //Accumulate the max value for this block
         for (int i = 0; i < BLOCK_SIZE; i++) {
-            float v = ft.get(cursor);
+            float v = values[from + i];
             float absv = v < 0 ? -v : v;
             if (absv > amax) {
                 max = v;
                 amax = absv;
             }
-            ft.iterate(cursor);
         }
 
         // Process the block and save it
         float scale = max / -16f;
         float iscale = scale != 0.0f ? 1.0f / scale : 0.0f;
         this.blockF.set(scale, makeBlockShape(blockStartCursor));
-        int i = ft.getOffset(blockStartCursor);
-        int q = 0;
-
-        // Reset the cursor
-        cursor = Arrays.copyOf(blockStartCursor, blockStartCursor.length);
-        for (int j = 0;  j < BLOCK_SIZE / 2; j++, i+=2) {
-            float f0 = ft.get(cursor) * iscale;
-            ft.iterate(cursor);
-            float f1 = ft.get(cursor) * iscale;
-            ft.iterate(cursor);
-
-            short fb0 =  (byte) Math.min(31, (byte)(f0 + 16.5f));
-            short fb1 =  (byte) Math.min(31, (byte)(f1 + 16.5f));
+        int i = getOffset(blockStartCursor);
 
-            this.b.put(i/2, (byte) ((fb0 & 0x0F) | ((fb1 & 0x0F) << 4)));
+        int qh = 0;
+        for (int j = 0; j < HALF_BLOCK; j++) {
+            int q0 = Math.min(31, (int) (values[from + j] * iscale + 16.5f));
+            int q1 = Math.min(31, (int) (values[from + j + HALF_BLOCK] * iscale + 16.5f));
 
-            // 5th bit of each quant placed deterministically
-            q |= ((fb0 & 0x10) >>> 4) << (j + 0);
-            q |= ((fb1 & 0x10) >>> 4) << (j + BLOCK_SIZE/2);
+            this.b.put(i / 2 + j, (byte) ((q0 & 0x0F) | ((q1 & 0x0F) << 4)));
+            qh |= ((q0 & 0x10) >>> 4) << j;
+            qh |= ((q1 & 0x10) >>> 4) << (j + HALF_BLOCK);
         }
 
-        this.b5[getOffset(makeBlockShape(blockStartCursor))] = q;
+        this.b5.putInt(i / BLOCK_SIZE * Integer.BYTES, qh);
     }
 
-
     private static int[] makeBlockShape(int[] shape) {
         int[] blockShape = new int[shape.length];
         for (int i = 0; i < shape.length; i++) {
@@ -107,31 +120,31 @@ public class Q5ByteBufferTensor extends AbstractTensor<ByteVector, Byte, byte[]>
         return blockShape;
     }
 
-
-    protected Q5ByteBufferTensor(int[] shape) {
+    public Q5ByteBufferTensor(int[] shape) {
         super(DType.Q5, shape, true);
         Preconditions.checkArgument(this.size() % BLOCK_SIZE == 0, "Tensor must be a multiple of BLOCK_SIZE");
         this.blockF = new FloatBufferTensor(makeBlockShape(shape));
-        this.b5 = new int[Arrays.stream(makeBlockShape(shape)).sum()];
         this.name = "tmp";
 
         if (TensorOperationsProvider.get().requiresOffHeapTensor()) {
             this.b = ByteBuffer.allocateDirect(this.size() / 2).order(ByteOrder.LITTLE_ENDIAN);
-            this.segment = MemorySegment.ofBuffer(b);
+            this.b5 = ByteBuffer.allocateDirect(this.size() / BLOCK_SIZE * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
         } else {
             this.b = ByteBuffer.allocate(this.size() / 2).order(ByteOrder.LITTLE_ENDIAN);
-            this.segment = MemorySegment.ofBuffer(b);
+            this.b5 = ByteBuffer.allocate(this.size() / BLOCK_SIZE * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
         }
+        this.segment = MemorySegment.ofBuffer(b);
+        this.b5Segment = MemorySegment.ofBuffer(b5);
     }
 
-    public Q5ByteBufferTensor(String name, ByteBuffer b, FloatBufferTensor blockF, int[] b5, int[] shape, boolean cacheSlices) {
+    public Q5ByteBufferTensor(String name, ByteBuffer b, FloatBufferTensor blockF, ByteBuffer b5, int[] shape, boolean cacheSlices) {
         super(DType.Q5, shape, cacheSlices);
-        Preconditions.checkArgument(b.isDirect(), "Must use direct buffers");
         this.name = name;
         this.b = b;
         this.blockF = blockF;
-        this.b5 = b5;
+        this.b5 = b5.order(ByteOrder.LITTLE_ENDIAN);
         this.segment = MemorySegment.ofBuffer(b);
+        this.b5Segment = MemorySegment.ofBuffer(b5);
     }
 
     @Override
@@ -142,7 +155,8 @@ public class Q5ByteBufferTensor extends AbstractTensor<ByteVector, Byte, byte[]>
     @Override
     protected AbstractTensor make(int offset, int length, int[] shape, boolean cacheSlices) {
         FloatBufferTensor newBlockF = (FloatBufferTensor) this.blockF.make((int)(offset * I_BLOCK_SIZE), (int)(length * I_BLOCK_SIZE), makeBlockShape(shape), cacheSlices);
-        return new Q5ByteBufferTensor(name, b.slice(offset, length), newBlockF, b5, shape, cacheSlices);
+        ByteBuffer newB5 = b5.slice(offset / BLOCK_SIZE * Integer.BYTES, length / BLOCK_SIZE * Integer.BYTES);
+        return new Q5ByteBufferTensor(name, b.slice(offset / 2, length / 2), newBlockF, newB5, shape, cacheSlices);
     }
 
     @Override
@@ -151,21 +165,14 @@ public class Q5ByteBufferTensor extends AbstractTensor<ByteVector, Byte, byte[]>
         Preconditions.checkArgument(dims.length == shape.length, "Must specify all dimensions");
         int i = getOffset(dims);
         float scale = blockF.get(makeBlockShape(dims));
-        int q = b5[getOffset(makeBlockShape(dims))];
-        byte b0 = this.b.get(i/2);
-        int j = i % BLOCK_SIZE / 2;
-
-        byte xh;
-        int x;
-        if (i % 2 == 0) {
-            xh = (byte) (((q >> (j + 0)) << 4) & 0x10);
-            x = ((b0 & 0x0F) | xh) - 16;
-        } else {
-            xh = (byte) (((q >> (j + 12))     ) & 0x10); // j + 12 == j + BLOCK_SIZE/2 << 4
-            x = ((b0 >> 4 & 0x0F) | xh) - 16;
-        }
+        int qh = getHighBitsForIndex(i);
+
+        // Represents the offset in the packed byte array
+        int j = i % BLOCK_SIZE;
+        byte b0 = this.b.get(((int)(i * I_BLOCK_SIZE)) * HALF_BLOCK + j % HALF_BLOCK);
+        int x = (j < HALF_BLOCK ? b0 & 0x0F : b0 >> 4 & 0x0F) | (((qh >>> j) & 1) << 4);
 
-        return x * scale;
+        return (x - 16) * scale;
     }
 
     public final float getFactorForIndex(int i) {
@@ -175,6 +182,20 @@ public class Q5ByteBufferTensor extends AbstractTensor<ByteVector, Byte, byte[]>
         return blockF.get(ix);
     }
 
+    /** The 5th bits of the block holding the value at i */
+    public final int getHighBitsForIndex(int i) {
+        return b5.getInt((int)(i * I_BLOCK_SIZE) * Integer.BYTES);
+    }
+
+    public final FloatBufferTensor getBlockF() {
+        return blockF;
+    }
+
+    /** The 5th bits of each block, an int per block */
+    public final MemorySegment getHighBits() {
+        return b5Segment;
+    }
+
     @Override
     public void set(float v, int... dims) {
         throw new UnsupportedOperationException();
@@ -190,10 +211,9 @@ public class Q5ByteBufferTensor extends AbstractTensor<ByteVector, Byte, byte[]>
 
     @Override
     public int getArrayOffset(int i) {
-        return b.arrayOffset() + i;
+        return b.arrayOffset() + i/2;
     }
 
-
     @Override
     public MemorySegment getMemorySegment() {
         return segment;
@@ -201,7 +221,7 @@ public class Q5ByteBufferTensor extends AbstractTensor<ByteVector, Byte, byte[]>
 
     @Override
     public int getMemorySegmentOffset(int offset) {
-        return offset * dType.size();
+        return offset/2;
     }
 
     @Override
@@ -213,8 +233,13 @@ public class Q5ByteBufferTensor extends AbstractTensor<ByteVector, Byte, byte[]>
     public void copyFrom(AbstractTensor src, int srcOffset, int destOffset, int length) {
         Preconditions.checkArgument(this.dType == src.dType, "different types");
         Preconditions.checkArgument(!b.isReadOnly(), "Read-only");
-        segment.asSlice(getMemorySegmentOffset(destOffset), length)
-                .copyFrom(src.getMemorySegment().asSlice(src.getMemorySegmentOffset(srcOffset), length));
+        Preconditions.checkArgument(srcOffset % BLOCK_SIZE == 0 && destOffset % BLOCK_SIZE == 0 && length % BLOCK_SIZE == 0, "Copies must be whole blocks");
+        Q5ByteBufferTensor q = (Q5ByteBufferTensor) src;
+        segment.asSlice(getMemorySegmentOffset(destOffset), length / 2)
+                .copyFrom(q.segment.asSlice(q.getMemorySegmentOffset(srcOffset), length / 2));
+        b5Segment.asSlice(destOffset / BLOCK_SIZE * Integer.BYTES, length / BLOCK_SIZE * Integer.BYTES)
+                .copyFrom(q.b5Segment.asSlice(srcOffset / BLOCK_SIZE * Integer.BYTES, length / BLOCK_SIZE * Integer.BYTES));
+        blockF.copyFrom(q.blockF, srcOffset / BLOCK_SIZE, destOffset / BLOCK_SIZE, length / BLOCK_SIZE);
     }
 
     @Override
@@ -238,11 +263,12 @@ public class Q5ByteBufferTensor extends AbstractTensor<ByteVector, Byte, byte[]>
     public void clear() {
         Preconditions.checkArgument(!b.isReadOnly(), "Can't clear a read-only buffer");
         segment.fill((byte)0);
+        b5Segment.fill((byte)0);
     }
 
     @Override
     public String toString() {
-        byte[] sample = new byte[Math.min(10, b.remaining())];
+        byte[] sample = new byte[Math.min(BLOCK_SIZE, b.remaining())];
         b.duplicate().get(sample);
         return "Q5BufferTensor{" +
                 "name='" + name + '\'' +
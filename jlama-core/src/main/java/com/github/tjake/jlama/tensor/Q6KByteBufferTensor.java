@@ -0,0 +1,228 @@
+package com.github.tjake.jlama.tensor;
+
+import com.github.tjake.jlama.math.VectorMath;
+import com.github.tjake.jlama.safetensors.DType;
+import com.github.tjake.jlama.tensor.operations.TensorOperationsProvider;
+import com.google.common.base.Preconditions;
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * 6-bit values in super-blocks of 256, laid out like ggml's block_q6_K so GGUF tensors can be used as they are.
+ *
+ * Each super-block is 128 bytes with the low 4 bits of each value, 64 bytes with the high 2 bits, a signed
+ * 8-bit scale for each of its 16 sub-blocks of 16, then an F16 scale d.  A value is d * scale * (q - 32).
+ * Each half of 128 values spreads over 64 low bytes and 32 high bytes: low nibbles, then high nibbles, of
+ * the first and second 32 low bytes, with the high bits of all four in one byte.
+ */
+public final class Q6KByteBufferTensor extends AbstractTensor<ByteVector, Byte, byte[]> {
+    public static final int BLOCK_SIZE = 256;
+    public static final int SUB_BLOCK_SIZE = 16;
+    public static final int BLOCK_BYTES = BLOCK_SIZE / 2 + BLOCK_SIZE / 4 + BLOCK_SIZE / SUB_BLOCK_SIZE + Short.BYTES;
+
+    public static final int HIGH_BITS_OFFSET = BLOCK_SIZE / 2;
+    public static final int SCALES_OFFSET = HIGH_BITS_OFFSET + BLOCK_SIZE / 4;
+    public static final int D_OFFSET = SCALES_OFFSET + BLOCK_SIZE / SUB_BLOCK_SIZE;
+
+    static final ValueLayout.OfShort F16 = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    final ByteBuffer b;
+    private final String name;
+    private final MemorySegment segment;
+
+    public Q6KByteBufferTensor(AbstractTensor ft) {
+        this(ft.shape);
+        Preconditions.checkArgument(ft.dType != DType.Q6_K, "This should never happen, likely a bug");
+
+        int columns = shape[shape.length - 1];
+        int rows = size() / columns;
+        VectorMath.pfor(0, rows, r -> {
+            float[] row = new float[columns];
+            for (int i = 0; i < columns; i++)
+                row[i] = ft.get(shape.length == 1 ? new int[]{i} : new int[]{r, i});
+
+            (shape.length == 1 ? this : (Q6KByteBufferTensor) slice(r)).quantize(row);
+        });
+    }
+
+    public Q6KByteBufferTensor(int[] shape) {
+        super(DType.Q6_K, shape, true);
+        Preconditions.checkArgument(shape.length <= 2 && shape[shape.length - 1] % BLOCK_SIZE == 0, "Rows must be a multiple of %s", BLOCK_SIZE);
+        this.name = "tmp";
+        int bytes = size() / BLOCK_SIZE * BLOCK_BYTES;
+        this.b = TensorOperationsProvider.get().requiresOffHeapTensor()
+                ? ByteBuffer.allocateDirect(bytes).order(ByteOrder.LITTLE_ENDIAN)
+                : ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        this.segment = MemorySegment.ofBuffer(b);
+    }
+
+    public Q6KByteBufferTensor(String name, ByteBuffer b, int[] shape, boolean cacheSlices) {
+        super(DType.Q6_K, shape, cacheSlices);
+        Preconditions.checkArgument(shape[shape.length - 1] % BLOCK_SIZE == 0, "Rows must be a multiple of %s", BLOCK_SIZE);
+        this.name = name;
+        this.b = b;
+        this.segment = MemorySegment.ofBuffer(b);
+    }
+
+    /**
+     * Quantize a vector of the same size into this tensor.  Each sub-block is scaled by its largest magnitude,
+     * then the scales are quantized to 8 bits against the largest of them.
+     */
+    public void quantize(float[] values) {
+        Preconditions.checkArgument(this.dims() == 1 && values.length == this.size(), "Must be a vector of the same size");
+        Preconditions.checkArgument(!b.isReadOnly(), "Can't modify a read only buffer");
+
+        int subBlocks = BLOCK_SIZE / SUB_BLOCK_SIZE;
+        float[] scales = new float[subBlocks];
+        byte[] block = new byte[BLOCK_BYTES];
+        int[] q = new int[BLOCK_SIZE];
+
+        for (int start = 0; start < values.length; start += BLOCK_SIZE) {
+            float maxScale = 0;
+            for (int j = 0; j < subBlocks; j++) {
+                float max = 0;
+                for (int l = 0; l < SUB_BLOCK_SIZE; l++) {
+                    float v = values[start + j * SUB_BLOCK_SIZE + l];
+                    if (Math.abs(v) > Math.abs(max))
+                        max = v;
+                }
+                scales[j] = max / -32;
+                if (Math.abs(scales[j]) > Math.abs(maxScale))
+                    maxScale = scales[j];
+            }
+
+            float iscale = maxScale != 0 ? -128 / maxScale : 0;
+            short d = Float.floatToFloat16(maxScale != 0 ? 1 / iscale : 0);
+            float df = Float.float16ToFloat(d);
+
+            for (int j = 0; j < subBlocks; j++) {
+                int ls = Math.min(127, Math.round(iscale * scales[j]));
+                block[SCALES_OFFSET + j] = (byte) ls;
+
+                //The values are quantized against the rounded scale they are read back with
+                float scale = df * ls;
+                for (int l = 0; l < SUB_BLOCK_SIZE; l++) {
+                    int i = j * SUB_BLOCK_SIZE + l;
+                    q[i] = scale == 0 ? 32 : Math.max(-32, Math.min(31, Math.round(values[start + i] / scale))) + 32;
+                }
+            }
+
+            for (int n = 0; n < BLOCK_SIZE; n += 128) {
+                int low = n / 2, high = HIGH_BITS_OFFSET + n / 4;
+                for (int l = 0; l < 32; l++) {
+                    int q1 = q[n + l], q2 = q[n + l + 32], q3 = q[n + l + 64], q4 = q[n + l + 96];
+                    block[low + l] = (byte) ((q1 & 0xF) | ((q3 & 0xF) << 4));
+                    block[low + l + 32] = (byte) ((q2 & 0xF) | ((q4 & 0xF) << 4));
+                    block[high + l] = (byte) ((q1 >> 4) | ((q2 >> 4) << 2) | ((q3 >> 4) << 4) | ((q4 >> 4) << 6));
+                }
+            }
+
+            long offset = (long) start / BLOCK_SIZE * BLOCK_BYTES;
+            MemorySegment.copy(block, 0, segment, ValueLayout.JAVA_BYTE, offset, BLOCK_BYTES);
+            segment.set(F16, offset + D_OFFSET, d);
+        }
+    }
+
+    @Override
+    protected AbstractTensor make(int... shape) {
+        return new Q6KByteBufferTensor(shape);
+    }
+
+    @Override
+    protected AbstractTensor make(int offset, int length, int[] shape, boolean cacheSlices) {
+        Preconditions.checkArgument(offset % BLOCK_SIZE == 0 && length % BLOCK_SIZE == 0, "Slices must be whole super-blocks");
+        return new Q6KByteBufferTensor(name, b.slice(getMemorySegmentOffset(offset), getMemorySegmentOffset(length)).order(ByteOrder.LITTLE_ENDIAN), shape, cacheSlices);
+    }
+
+    @Override
+    public float get(int... dims) {
+        Preconditions.checkArgument(dims.length == shape.length, "Must specify all dimensions");
+        int i = getOffset(dims);
+        long block = getMemorySegmentOffset(i);
+        int within = i % BLOCK_SIZE;
+        int n = within / 128, quarter = within % 128 / 32, l = within % 32;
+
+        int low = segment.get(ValueLayout.JAVA_BYTE, block + n * 64 + l + (quarter % 2) * 32);
+        int high = segment.get(ValueLayout.JAVA_BYTE, block + HIGH_BITS_OFFSET + n * 32 + l);
+        int q = ((quarter < 2 ? low & 0xF : (low >> 4) & 0xF) | (((high >> (2 * quarter)) & 3) << 4)) - 32;
+
+        float d = Float.float16ToFloat(segment.get(F16, block + D_OFFSET));
+        return d * segment.get(ValueLayout.JAVA_BYTE, block + SCALES_OFFSET + within / SUB_BLOCK_SIZE) * q;
+    }
+
+    @Override
+    public void set(float v, int... dims) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public byte[] getArray() {
+        if (b.hasArray())
+            return b.array();
+        else
+            throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int getArrayOffset(int i) {
+        return b.arrayOffset() + getMemorySegmentOffset(i);
+    }
+
+    @Override
+    public ByteVector getVector(VectorSpecies<Byte> species, int offset) {
+        return ByteVector.fromMemorySegment(species, segment, getMemorySegmentOffset(offset), ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public void intoTensor(ByteVector vector, int offset) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public MemorySegment getMemorySegment() {
+        return segment;
+    }
+
+    /** The byte offset of the super-block holding the value at offset */
+    @Override
+    public int getMemorySegmentOffset(int offset) {
+        return offset / BLOCK_SIZE * BLOCK_BYTES;
+    }
+
+    @Override
+    public boolean hasMemorySegment() {
+        return true;
+    }
+
+    @Override
+    public void copyFrom(AbstractTensor src, int srcOffset, int destOffset, int length) {
+        Preconditions.checkArgument(this.dType == src.dType, "different types");
+        Preconditions.checkArgument(!b.isReadOnly(), "Read-only");
+        Preconditions.checkArgument(srcOffset % BLOCK_SIZE == 0 && destOffset % BLOCK_SIZE == 0 && length % BLOCK_SIZE == 0, "Copies must be whole super-blocks");
+        segment.asSlice(getMemorySegmentOffset(destOffset), getMemorySegmentOffset(length))
+                .copyFrom(src.getMemorySegment().asSlice(src.getMemorySegmentOffset(srcOffset), getMemorySegmentOffset(length)));
+    }
+
+    @Override
+    public void clear() {
+        Preconditions.checkArgument(!b.isReadOnly(), "Can't clear a read-only buffer");
+        segment.fill((byte) 0);
+    }
+
+    @Override
+    public String toString() {
+        byte[] sample = new byte[Math.min(10, b.remaining())];
+        b.duplicate().get(sample);
+        return "Q6KBufferTensor{" +
+                "name='" + name + '\'' +
+                "shape=" + Arrays.toString(shape) +
+                ", b=" + Arrays.toString(sample) +
+                "...}";
+    }
+}
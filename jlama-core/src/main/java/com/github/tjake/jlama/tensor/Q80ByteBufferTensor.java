@@ -0,0 +1,174 @@
+package com.github.tjake.jlama.tensor;
+
+import com.github.tjake.jlama.math.VectorMath;
+import com.github.tjake.jlama.safetensors.DType;
+import com.github.tjake.jlama.tensor.operations.TensorOperationsProvider;
+import com.google.common.base.Preconditions;
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * 8-bit values in blocks of 32, laid out like ggml's block_q8_0 so GGUF tensors can be used as they are.
+ *
+ * Each block is an F16 scale d then the 32 signed bytes of values, a value is d * q.  These are the values
+ * of {@link Q8ByteBufferTensor} with the scale kept in front of each block instead of in a tensor of its own.
+ */
+public final class Q80ByteBufferTensor extends AbstractTensor<ByteVector, Byte, byte[]> {
+    public static final int BLOCK_SIZE = 32;
+    public static final int BLOCK_BYTES = Short.BYTES + BLOCK_SIZE;
+
+    static final ValueLayout.OfShort F16 = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    final ByteBuffer b;
+    private final String name;
+    private final MemorySegment segment;
+
+    public Q80ByteBufferTensor(AbstractTensor ft) {
+        this(ft.shape);
+        Preconditions.checkArgument(ft.dType != DType.Q8_0, "This should never happen, likely a bug");
+
+        int columns = shape[shape.length - 1];
+        int rows = size() / columns;
+        VectorMath.pfor(0, rows, r -> {
+            float[] row = new float[columns];
+            for (int i = 0; i < columns; i++)
+                row[i] = ft.get(shape.length == 1 ? new int[]{i} : new int[]{r, i});
+
+            (shape.length == 1 ? this : (Q80ByteBufferTensor) slice(r)).quantize(row);
+        });
+    }
+
+    public Q80ByteBufferTensor(int[] shape) {
+        super(DType.Q8_0, shape, true);
+        Preconditions.checkArgument(shape.length <= 2 && shape[shape.length - 1] % BLOCK_SIZE == 0, "Rows must be a multiple of %s", BLOCK_SIZE);
+        this.name = "tmp";
+        int bytes = size() / BLOCK_SIZE * BLOCK_BYTES;
+        this.b = TensorOperationsProvider.get().requiresOffHeapTensor()
+                ? ByteBuffer.allocateDirect(bytes).order(ByteOrder.LITTLE_ENDIAN)
+                : ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        this.segment = MemorySegment.ofBuffer(b);
+    }
+
+    public Q80ByteBufferTensor(String name, ByteBuffer b, int[] shape, boolean cacheSlices) {
+        super(DType.Q8_0, shape, cacheSlices);
+        Preconditions.checkArgument(shape[shape.length - 1] % BLOCK_SIZE == 0, "Rows must be a multiple of %s", BLOCK_SIZE);
+        this.name = name;
+        this.b = b;
+        this.segment = MemorySegment.ofBuffer(b);
+    }
+
+    /** Quantize a vector of the same size into this tensor, each block is scaled by its largest magnitude like ggml does */
+    public void quantize(float[] values) {
+        Preconditions.checkArgument(this.dims() == 1 && values.length == this.size(), "Must be a vector of the same size");
+        Preconditions.checkArgument(!b.isReadOnly(), "Can't modify a read only buffer");
+
+        for (int start = 0; start < values.length; start += BLOCK_SIZE) {
+            float max = 0;
+            for (int i = 0; i < BLOCK_SIZE; i++)
+                max = Math.max(max, Math.abs(values[start + i]));
+
+            float scale = max / Byte.MAX_VALUE;
+            float iscale = scale != 0 ? 1 / scale : 0;
+
+            long offset = (long) start / BLOCK_SIZE * BLOCK_BYTES;
+            segment.set(F16, offset, Float.floatToFloat16(scale));
+            for (int i = 0; i < BLOCK_SIZE; i++)
+                segment.set(ValueLayout.JAVA_BYTE, offset + Short.BYTES + i, (byte) Math.round(values[start + i] * iscale));
+        }
+    }
+
+    @Override
+    protected AbstractTensor make(int... shape) {
+        return new Q80ByteBufferTensor(shape);
+    }
+
+    @Override
+    protected AbstractTensor make(int offset, int length, int[] shape, boolean cacheSlices) {
+        Preconditions.checkArgument(offset % BLOCK_SIZE == 0 && length % BLOCK_SIZE == 0, "Slices must be whole blocks");
+        return new Q80ByteBufferTensor(name, b.slice(getMemorySegmentOffset(offset), getMemorySegmentOffset(length)).order(ByteOrder.LITTLE_ENDIAN), shape, cacheSlices);
+    }
+
+    @Override
+    public float get(int... dims) {
+        Preconditions.checkArgument(dims.length == shape.length, "Must specify all dimensions");
+        int i = getOffset(dims);
+        long block = getMemorySegmentOffset(i);
+        return Float.float16ToFloat(segment.get(F16, block)) * segment.get(ValueLayout.JAVA_BYTE, block + Short.BYTES + i % BLOCK_SIZE);
+    }
+
+    @Override
+    public void set(float v, int... dims) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public byte[] getArray() {
+        if (b.hasArray())
+            return b.array();
+        else
+            throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int getArrayOffset(int i) {
+        return b.arrayOffset() + getMemorySegmentOffset(i);
+    }
+
+    @Override
+    public ByteVector getVector(VectorSpecies<Byte> species, int offset) {
+        return ByteVector.fromMemorySegment(species, segment, getMemorySegmentOffset(offset), ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public void intoTensor(ByteVector vector, int offset) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public MemorySegment getMemorySegment() {
+        return segment;
+    }
+
+    /** The byte offset of the block holding the value at offset */
+    @Override
+    public int getMemorySegmentOffset(int offset) {
+        return offset / BLOCK_SIZE * BLOCK_BYTES;
+    }
+
+    @Override
+    public boolean hasMemorySegment() {
+        return true;
+    }
+
+    @Override
+    public void copyFrom(AbstractTensor src, int srcOffset, int destOffset, int length) {
+        Preconditions.checkArgument(this.dType == src.dType, "different types");
+        Preconditions.checkArgument(!b.isReadOnly(), "Read-only");
+        Preconditions.checkArgument(srcOffset % BLOCK_SIZE == 0 && destOffset % BLOCK_SIZE == 0 && length % BLOCK_SIZE == 0, "Copies must be whole blocks");
+        segment.asSlice(getMemorySegmentOffset(destOffset), getMemorySegmentOffset(length))
+                .copyFrom(src.getMemorySegment().asSlice(src.getMemorySegmentOffset(srcOffset), getMemorySegmentOffset(length)));
+    }
+
+    @Override
+    public void clear() {
+        Preconditions.checkArgument(!b.isReadOnly(), "Can't clear a read-only buffer");
+        segment.fill((byte) 0);
+    }
+
+    @Override
+    public String toString() {
+        byte[] sample = new byte[Math.min(10, b.remaining())];
+        b.duplicate().get(sample);
+        return "Q80BufferTensor{" +
+                "name='" + name + '\'' +
+                "shape=" + Arrays.toString(shape) +
+                ", b=" + Arrays.toString(sample) +
+                "...}";
+    }
+}
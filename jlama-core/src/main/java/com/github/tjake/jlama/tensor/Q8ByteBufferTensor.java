@@ -6,6 +6,10 @@ import com.github.tjake.jlama.tensor.operations.TensorOperationsProvider;
 import com.google.common.base.Preconditions;
 import jdk.incubator.vector.ByteVector;
 import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
 import jdk.incubator.vector.VectorSpecies;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,6 +21,7 @@ import java.lang.foreign.MemorySegment;
 import java.lang.foreign.ValueLayout;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -26,6 +31,10 @@ public class Q8ByteBufferTensor extends AbstractTensor<ByteVector, Byte, byte[]>
     public static final int BLOCK_SIZE = 32;
     public static final float I_BLOCK_SIZE = 1.0f / BLOCK_SIZE;
 
+    private static final VectorSpecies<Float> QUANTIZE_SPECIES = FloatVector.SPECIES_PREFERRED.length() > BLOCK_SIZE ? FloatVector.SPECIES_512 : FloatVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> QUANTIZE_INT_SPECIES = QUANTIZE_SPECIES.withLanes(int.class);
+    private static final VectorSpecies<Byte> QUANTIZE_BYTE_SPECIES = QUANTIZE_SPECIES.length() >= 8 ? VectorSpecies.of(byte.class, VectorShape.forBitSize(QUANTIZE_SPECIES.length() * Byte.SIZE)) : null;
+
     final ByteBuffer b;
     final FloatBufferTensor blockF;
     private final String name;
@@ -76,6 +85,48 @@ public class Q8ByteBufferTensor extends AbstractTensor<ByteVector, Byte, byte[]>
         }
     }
 
+    /** Quantize a vector of the same size into this tensor, block by block */
+    public void quantize(AbstractTensor ft) {
+        Preconditions.checkArgument(ft.dims() == 1 && this.dims() == 1 && ft.size() == this.size(), "Must be vectors of the same size");
+        Preconditions.checkArgument(!b.isReadOnly(), "Can't modify a read only buffer");
+        for (int i = 0; i < ft.size(); i += BLOCK_SIZE)
+            processBlock(ft, new int[]{i});
+    }
+
+    /**
+     * Quantize values into this vector, block by block.  Same result as {@link #quantize(AbstractTensor)}
+     * but each block is handled with a few vector ops, this is what quantizing weights at load time uses.
+     */
+    public void quantize(float[] values) {
+        Preconditions.checkArgument(this.dims() == 1 && values.length == this.size(), "Must be a vector of the same size");
+        Preconditions.checkArgument(!b.isReadOnly(), "Can't modify a read only buffer");
+        if (QUANTIZE_BYTE_SPECIES == null) {
+            quantize(new FloatBufferTensor(FloatBuffer.wrap(values), shape, false));
+            return;
+        }
+
+        int step = QUANTIZE_SPECIES.length();
+        for (int i = 0; i < values.length; i += BLOCK_SIZE) {
+            FloatVector amaxv = FloatVector.zero(QUANTIZE_SPECIES);
+            for (int j = 0; j < BLOCK_SIZE; j += step)
+                amaxv = amaxv.max(FloatVector.fromArray(QUANTIZE_SPECIES, values, i + j).abs());
+
+            float max = Math.max(Float.MIN_VALUE, amaxv.reduceLanes(VectorOperators.MAX));
+            float iscale = 127f / max;
+            float scale = iscale != 0.0f ? 1.0f / iscale : 0.0f;
+            blockF.set(scale, i / BLOCK_SIZE);
+
+            for (int j = 0; j < BLOCK_SIZE; j += step) {
+                //Math.round is floor(x + 0.5), the conversion truncates so step back where that rounded up
+                FloatVector f = FloatVector.fromArray(QUANTIZE_SPECIES, values, i + j).mul(iscale).add(0.5f);
+                IntVector q = (IntVector) f.convertShape(VectorOperators.F2I, QUANTIZE_INT_SPECIES, 0);
+                VectorMask<Integer> up = f.lt((FloatVector) q.convertShape(VectorOperators.I2F, QUANTIZE_SPECIES, 0)).cast(QUANTIZE_INT_SPECIES);
+                q = q.lanewise(VectorOperators.SUB, 1, up);
+                ((ByteVector) q.convertShape(VectorOperators.I2B, QUANTIZE_BYTE_SPECIES, 0)).intoMemorySegment(segment, i + j, ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+    }
+
     private static int[] makeBlockShape(int[] shape) {
         int[] blockShape = new int[shape.length];
         for (int i = 0; i < shape.length; i++) {
@@ -103,7 +154,7 @@ public class Q8ByteBufferTensor extends AbstractTensor<ByteVector, Byte, byte[]>
         }
     }
 
-    private Q8ByteBufferTensor(String name, ByteBuffer b, FloatBufferTensor blockF, int[] shape, boolean cacheSlices) {
+    public Q8ByteBufferTensor(String name, ByteBuffer b, FloatBufferTensor blockF, int[] shape, boolean cacheSlices) {
         super(DType.I8, shape, cacheSlices);
         this.name = name;
         this.b = b;
@@ -174,7 +225,7 @@ public class Q8ByteBufferTensor extends AbstractTensor<ByteVector, Byte, byte[]>
 
     @Override
     public ByteVector getVector(VectorSpecies<Byte> species, int offset) {
-        if (!TensorOperationsProvider.get().requiresOffHeapTensor())
+        if (b.hasArray())
             return ByteVector.fromArray(species, getArray(), getArrayOffset(offset));
         else
             return ByteVector.fromMemorySegment(species, segment, getMemorySegmentOffset(offset), ByteOrder.LITTLE_ENDIAN);
@@ -183,7 +234,7 @@ public class Q8ByteBufferTensor extends AbstractTensor<ByteVector, Byte, byte[]>
     @Override
     public void intoTensor(ByteVector vector, int offset) {
         Preconditions.checkArgument(!b.isReadOnly());
-        if (!TensorOperationsProvider.get().requiresOffHeapTensor())
+        if (b.hasArray())
             vector.intoArray(getArray(), getArrayOffset(offset));
         else
             vector.intoMemorySegment(segment, getMemorySegmentOffset(offset), ByteOrder.LITTLE_ENDIAN);
@@ -208,14 +259,19 @@ public class Q8ByteBufferTensor extends AbstractTensor<ByteVector, Byte, byte[]>
     public void copyFrom(AbstractTensor src, int srcOffset, int destOffset, int length) {
         Preconditions.checkArgument(this.dType == src.dType, "different types");
         Preconditions.checkArgument(!b.isReadOnly(), "Read-only");
+        Preconditions.checkArgument(srcOffset % BLOCK_SIZE == 0 && destOffset % BLOCK_SIZE == 0 && length % BLOCK_SIZE == 0, "Copies must be block aligned");
         segment.asSlice(getMemorySegmentOffset(destOffset), length)
                 .copyFrom(src.getMemorySegment().asSlice(src.getMemorySegmentOffset(srcOffset), length));
+
+        //The block scales travel with the quantized values
+        blockF.copyFrom(((Q8ByteBufferTensor) src).blockF, (int)(srcOffset * I_BLOCK_SIZE), (int)(destOffset * I_BLOCK_SIZE), (int)(length * I_BLOCK_SIZE));
     }
 
     @Override
     public void clear() {
         Preconditions.checkArgument(!b.isReadOnly(), "Can't clear a read-only buffer");
         segment.fill((byte)0);
+        blockF.clear();
     }
 
     @Override
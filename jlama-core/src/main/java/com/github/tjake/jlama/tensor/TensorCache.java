@@ -71,6 +71,8 @@ public class TensorCache {
             case F16 -> new Float16BufferTensor(shape);
             case BF16 -> new BFloat16BufferTensor(shape);
             case I8 -> new Q8ByteBufferTensor(shape);
+            case Q4 -> new Q4ByteBufferTensor(shape);
+            case Q5 -> new Q5ByteBufferTensor(shape);
             default -> throw new RuntimeException("Unsupported tensor type: " + dType);
         };
 
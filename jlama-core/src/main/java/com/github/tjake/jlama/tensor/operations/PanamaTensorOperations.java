@@ -7,11 +7,21 @@ import com.google.common.base.Preconditions;
 import com.github.tjake.jlama.safetensors.DType;
 import com.github.tjake.jlama.tensor.AbstractTensor;
 import com.github.tjake.jlama.tensor.BFloat16BufferTensor;
+import com.github.tjake.jlama.tensor.Float16BufferTensor;
 import com.github.tjake.jlama.tensor.FloatBufferTensor;
 import com.github.tjake.jlama.tensor.Q4ByteBufferTensor;
+import com.github.tjake.jlama.tensor.Q40ByteBufferTensor;
+import com.github.tjake.jlama.tensor.Q4KByteBufferTensor;
+import com.github.tjake.jlama.tensor.Q5ByteBufferTensor;
+import com.github.tjake.jlama.tensor.Q6KByteBufferTensor;
+import com.github.tjake.jlama.tensor.Q80ByteBufferTensor;
 import com.github.tjake.jlama.tensor.Q8ByteBufferTensor;
 import jdk.incubator.vector.*;
 
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+
 final public class PanamaTensorOperations implements TensorOperations
 {
     static final ByteVector Q4_BYTE_SUB_128 = ByteVector.broadcast(ByteVector.SPECIES_128, 8);
@@ -22,6 +32,13 @@ final public class PanamaTensorOperations implements TensorOperations
     static final ByteVector Q4_BYTE_MASK_64 = ByteVector.broadcast(ByteVector.SPECIES_64, 0xF);
     static final ByteVector Q4_BYTE_SHIFT_64 = ByteVector.broadcast(ByteVector.SPECIES_64, 4);
 
+    //Spread the 5th bits of the first or last 16 values of a Q5 block over a byte each
+    static final VectorShuffle<Byte> Q5_LOW_BITS_128 = VectorShuffle.fromOp(ByteVector.SPECIES_128, i -> i / 8);
+    static final VectorShuffle<Byte> Q5_HIGH_BITS_128 = VectorShuffle.fromOp(ByteVector.SPECIES_128, i -> 2 + i / 8);
+    static final ByteVector Q5_BIT_128 = ByteVector.fromArray(ByteVector.SPECIES_128, new byte[]{1, 2, 4, 8, 16, 32, 64, -128, 1, 2, 4, 8, 16, 32, 64, -128}, 0);
+    static final ByteVector Q5_BYTE_ZERO_128 = ByteVector.zero(ByteVector.SPECIES_128);
+    static final ByteVector Q5_BYTE_SUB_128 = ByteVector.broadcast(ByteVector.SPECIES_128, 16);
+
 
     static final IntVector BF16_BYTE_SHIFT_512 = IntVector.broadcast(IntVector.SPECIES_512, 16);
     static final FloatVector F32_ROUND_UP_512 = FloatVector.broadcast(FloatVector.SPECIES_512, 0.5f);
@@ -29,6 +46,25 @@ final public class PanamaTensorOperations implements TensorOperations
     static final IntVector BF16_BYTE_SHIFT_256 = IntVector.broadcast(IntVector.SPECIES_256, 16);
     static final FloatVector F32_ROUND_UP_256 = FloatVector.broadcast(FloatVector.SPECIES_256, 0.5f);
 
+    //F16 -> F32: shift the exponent and mantissa into place and rebias the exponent with a multiply (handles subnormals)
+    static final int F16_EXP_MANT_MASK = 0x7fff;
+    static final int F16_SIGN_MASK = 0x8000;
+    static final int F16_EXP_MASK = 0x7c00;
+    static final float F16_REBIAS = 0x1.0p112f;
+
+    static final VectorSpecies<Float> WIDE_SPECIES = FloatVector.SPECIES_PREFERRED;
+    static final VectorSpecies<Integer> WIDE_INT_SPECIES = WIDE_SPECIES.withLanes(int.class);
+    static final VectorSpecies<Short> WIDE_SHORT_SPECIES = VectorSpecies.of(short.class, VectorShape.forBitSize(WIDE_SPECIES.length() * Short.SIZE));
+
+    //Bytes are loaded at least 64 bits at a time, each load widens to WIDE_PARTS float vectors
+    static final VectorSpecies<Byte> WIDE_BYTE_SPECIES = VectorSpecies.of(byte.class, VectorShape.forBitSize(Math.max(64, WIDE_SPECIES.length() * Byte.SIZE)));
+    static final int WIDE_PARTS = WIDE_BYTE_SPECIES.length() / WIDE_SPECIES.length();
+    static final VectorMask<Byte> WIDE_BYTE_MASK = WIDE_BYTE_SPECIES.indexInRange(0, WIDE_SPECIES.length());
+    static final ValueLayout.OfShort F16_LE = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    //Rows of weights multiplied together in matmul
+    static final int GEMV_ROWS = 4;
+
     private final MachineSpec.Type vectorType;
     public PanamaTensorOperations(MachineSpec.Type vectorType) {
         this.vectorType = vectorType;
@@ -56,13 +92,23 @@ final public class PanamaTensorOperations implements TensorOperations
                     case AVX_256 -> dotProductF32I8_256((FloatBufferTensor) a, (Q8ByteBufferTensor) b, aoffset, boffset, limit);
                     default -> throw new UnsupportedOperationException(MachineSpec.VECTOR_TYPE.name());
                 };
-                //case Q5 -> dotProductF32Q5((FloatBufferTensor) a, (Q5ByteBufferTensor) b, aoffset, boffset, limit);
+                case F16 -> switch (vectorType) {
+                    case AVX_512 -> dotProductF32F16_512((FloatBufferTensor) a, (Float16BufferTensor) b, aoffset, boffset, limit);
+                    case AVX_256 -> dotProductF32F16_256((FloatBufferTensor) a, (Float16BufferTensor) b, aoffset, boffset, limit);
+                    default -> dotProductWidened(a, b, aoffset, boffset, limit);
+                };
+                case BF16 -> dotProduct(b, a, boffset, aoffset, limit);
+                case Q5 -> dotProductQ5(a, (Q5ByteBufferTensor) b, aoffset, boffset, limit);
                 case Q4 -> switch (vectorType) {
                     case AVX_512 -> dotProductF32Q4_512((FloatBufferTensor) a, (Q4ByteBufferTensor) b, aoffset, boffset, limit);
                     case AVX_256 -> dotProductF32Q4_256((FloatBufferTensor) a, (Q4ByteBufferTensor) b, aoffset, boffset, limit);
                     case ARM_128 -> dotProductF32Q4_arm((FloatBufferTensor) a, (Q4ByteBufferTensor) b, aoffset, boffset, limit);
                     default -> throw new UnsupportedOperationException(MachineSpec.VECTOR_TYPE.name());
                 };
+                case Q4_K -> dotProductQ4K(a, (Q4KByteBufferTensor) b, aoffset, boffset, limit);
+                case Q6_K -> dotProductQ6K(a, (Q6KByteBufferTensor) b, aoffset, boffset, limit);
+                case Q4_0 -> dotProductQ40(a, (Q40ByteBufferTensor) b, aoffset, boffset, limit);
+                case Q8_0 -> dotProductQ80(a, (Q80ByteBufferTensor) b, aoffset, boffset, limit);
                 default -> throw new UnsupportedOperationException(b.dType().name());
             };
             case I8 -> switch (b.dType()) {
@@ -76,14 +122,40 @@ final public class PanamaTensorOperations implements TensorOperations
                     case AVX_256 -> QDotProductI8Q4_256((Q8ByteBufferTensor) a, (Q4ByteBufferTensor) b, aoffset, boffset, limit);
                     default -> throw new UnsupportedOperationException();
                 };
+                case Q5 -> switch (vectorType) {
+                    case AVX_512 -> QDotProductI8Q5_512((Q8ByteBufferTensor) a, (Q5ByteBufferTensor) b, aoffset, boffset, limit);
+                    case AVX_256 -> QDotProductI8Q5_256((Q8ByteBufferTensor) a, (Q5ByteBufferTensor) b, aoffset, boffset, limit);
+                    default -> dotProductQ5(a, (Q5ByteBufferTensor) b, aoffset, boffset, limit);
+                };
+                //Weights kept in their stored type
+                case F32, F16, BF16 -> dotProduct(b, a, boffset, aoffset, limit);
+                case Q4_K -> dotProductQ4K(a, (Q4KByteBufferTensor) b, aoffset, boffset, limit);
+                case Q6_K -> dotProductQ6K(a, (Q6KByteBufferTensor) b, aoffset, boffset, limit);
+                case Q4_0 -> dotProductQ40(a, (Q40ByteBufferTensor) b, aoffset, boffset, limit);
+                case Q8_0 -> dotProductQ80(a, (Q80ByteBufferTensor) b, aoffset, boffset, limit);
                 default -> throw new UnsupportedOperationException();
             };
+            case F16 -> switch (b.dType()) {
+                case F32, F16, BF16 -> dotProductWidened(a, b, aoffset, boffset, limit);
+                case Q5 -> dotProductQ5(a, (Q5ByteBufferTensor) b, aoffset, boffset, limit);
+                case Q4_K -> dotProductQ4K(a, (Q4KByteBufferTensor) b, aoffset, boffset, limit);
+                case Q6_K -> dotProductQ6K(a, (Q6KByteBufferTensor) b, aoffset, boffset, limit);
+                case Q4_0 -> dotProductQ40(a, (Q40ByteBufferTensor) b, aoffset, boffset, limit);
+                case Q8_0 -> dotProductQ80(a, (Q80ByteBufferTensor) b, aoffset, boffset, limit);
+                case I8 -> switch (vectorType) {
+                    case AVX_512 -> dotProductF16I8_512((Float16BufferTensor) a, (Q8ByteBufferTensor) b, aoffset, boffset, limit);
+                    case AVX_256 -> dotProductF16I8_256((Float16BufferTensor) a, (Q8ByteBufferTensor) b, aoffset, boffset, limit);
+                    default -> throw new UnsupportedOperationException(MachineSpec.VECTOR_TYPE.name());
+                };
+                default -> throw new UnsupportedOperationException(b.dType().name());
+            };
             case BF16 -> switch (b.dType()) {
                 case F32 -> switch (vectorType) {
                     case AVX_512 -> dotProductBF16F32_512((BFloat16BufferTensor) a, (FloatBufferTensor) b, aoffset, boffset, limit);
                     case AVX_256 -> dotProductBF16F32_256((BFloat16BufferTensor) a, (FloatBufferTensor) b, aoffset, boffset, limit);
-                    default -> throw new UnsupportedOperationException(MachineSpec.VECTOR_TYPE.name());
+                    default -> dotProductWidened(a, b, aoffset, boffset, limit);
                 };
+                case F16 -> dotProductWidened(a, b, aoffset, boffset, limit);
                 case I8 -> switch (vectorType) {
                     case AVX_512 -> dotProductBF16I8_512((BFloat16BufferTensor) a, (Q8ByteBufferTensor) b, aoffset, boffset, limit);
                     case AVX_256 -> dotProductBF16I8_256((BFloat16BufferTensor) a, (Q8ByteBufferTensor) b, aoffset, boffset, limit);
@@ -97,14 +169,247 @@ final public class PanamaTensorOperations implements TensorOperations
                 case BF16 -> switch (vectorType) {
                     case AVX_512 -> dotProductBF16_512((BFloat16BufferTensor) a, (BFloat16BufferTensor) b, aoffset, boffset, limit);
                     case AVX_256 -> dotProductBF16_256((BFloat16BufferTensor) a, (BFloat16BufferTensor) b, aoffset, boffset, limit);
-                    default -> throw new UnsupportedOperationException(MachineSpec.VECTOR_TYPE.name());
+                    default -> dotProductWidened(a, b, aoffset, boffset, limit);
                 };
+                case Q5 -> dotProductQ5(a, (Q5ByteBufferTensor) b, aoffset, boffset, limit);
+                case Q4_K -> dotProductQ4K(a, (Q4KByteBufferTensor) b, aoffset, boffset, limit);
+                case Q6_K -> dotProductQ6K(a, (Q6KByteBufferTensor) b, aoffset, boffset, limit);
+                case Q4_0 -> dotProductQ40(a, (Q40ByteBufferTensor) b, aoffset, boffset, limit);
+                case Q8_0 -> dotProductQ80(a, (Q80ByteBufferTensor) b, aoffset, boffset, limit);
                 default -> throw new UnsupportedOperationException(b.dType().name());
             };
             default -> throw new UnsupportedOperationException();
         };
     }
 
+    @Override
+    public void matmul(AbstractTensor[] a, int batchStart, int batchEnd, AbstractTensor b, int rowStart, int rowEnd, AbstractTensor[] result, int resultOffset, int limit) {
+        Preconditions.checkArgument(b.dims() == 2 && limit % 32 == 0);
+        float[] dots = new float[GEMV_ROWS];
+
+        //Each block of rows stays in cache while the batch goes past it
+        for (int i = rowStart; i < rowEnd; i += GEMV_ROWS) {
+            int end = Math.min(rowEnd, i + GEMV_ROWS);
+            boolean whole = end - i == GEMV_ROWS;
+            AbstractTensor b0 = b.slice(i);
+            AbstractTensor b1 = whole ? b.slice(i + 1) : null, b2 = whole ? b.slice(i + 2) : null, b3 = whole ? b.slice(i + 3) : null;
+            for (int j = batchStart; j < batchEnd; j++) {
+                if (whole && dotProductRows(a[j], b0, b1, b2, b3, limit, dots)) {
+                    for (int r = 0; r < GEMV_ROWS; r++)
+                        result[j].set(dots[r], resultOffset + i + r);
+                } else {
+                    for (int r = i; r < end; r++)
+                        result[j].set(dotProduct(a[j], b.slice(r), limit), resultOffset + r);
+                }
+            }
+        }
+    }
+
+    /**
+     * The dot products of a with GEMV_ROWS rows, each activation vector is loaded once for all of them.
+     * The Q4 kernels take the rows two at a time, more than that doesn't all inline and the vectors get boxed
+     * @return false if there is no blocked kernel for these types
+     */
+    private boolean dotProductRows(AbstractTensor a, AbstractTensor b0, AbstractTensor b1, AbstractTensor b2, AbstractTensor b3, int limit, float[] out) {
+        switch (a.dType()) {
+            case F32 -> {
+                switch (b0.dType()) {
+                    case F32 -> dotProductF32Rows((FloatBufferTensor) a, (FloatBufferTensor) b0, (FloatBufferTensor) b1, (FloatBufferTensor) b2, (FloatBufferTensor) b3, limit, out);
+                    case Q4 -> {
+                        switch (vectorType) {
+                            case AVX_512 -> {
+                                dotProductF32Q4Rows2_512((FloatBufferTensor) a, (Q4ByteBufferTensor) b0, (Q4ByteBufferTensor) b1, limit, out, 0);
+                                dotProductF32Q4Rows2_512((FloatBufferTensor) a, (Q4ByteBufferTensor) b2, (Q4ByteBufferTensor) b3, limit, out, 2);
+                            }
+                            case AVX_256 -> {
+                                dotProductF32Q4Rows2_256((FloatBufferTensor) a, (Q4ByteBufferTensor) b0, (Q4ByteBufferTensor) b1, limit, out, 0);
+                                dotProductF32Q4Rows2_256((FloatBufferTensor) a, (Q4ByteBufferTensor) b2, (Q4ByteBufferTensor) b3, limit, out, 2);
+                            }
+                            default -> { return false; }
+                        }
+                    }
+                    default -> { return false; }
+                }
+            }
+            case I8 -> {
+                if (b0.dType() != DType.Q4)
+                    return false;
+                switch (vectorType) {
+                    case AVX_512 -> {
+                        dotProductI8Q4Rows2_512((Q8ByteBufferTensor) a, (Q4ByteBufferTensor) b0, (Q4ByteBufferTensor) b1, limit, out, 0);
+                        dotProductI8Q4Rows2_512((Q8ByteBufferTensor) a, (Q4ByteBufferTensor) b2, (Q4ByteBufferTensor) b3, limit, out, 2);
+                    }
+                    case AVX_256 -> {
+                        dotProductI8Q4Rows2_256((Q8ByteBufferTensor) a, (Q4ByteBufferTensor) b0, (Q4ByteBufferTensor) b1, limit, out, 0);
+                        dotProductI8Q4Rows2_256((Q8ByteBufferTensor) a, (Q4ByteBufferTensor) b2, (Q4ByteBufferTensor) b3, limit, out, 2);
+                    }
+                    default -> { return false; }
+                }
+            }
+            default -> { return false; }
+        }
+        return true;
+    }
+
+    private void dotProductF32Rows(FloatBufferTensor a, FloatBufferTensor b0, FloatBufferTensor b1, FloatBufferTensor b2, FloatBufferTensor b3, int limit, float[] out) {
+        VectorSpecies<Float> species = FloatVector.SPECIES_PREFERRED;
+        FloatVector acc0 = FloatVector.zero(species), acc1 = FloatVector.zero(species), acc2 = FloatVector.zero(species), acc3 = FloatVector.zero(species);
+
+        for (int i = 0; i < limit; i += species.length()) {
+            FloatVector va = a.getVector(species, i);
+            acc0 = va.fma(b0.getVector(species, i), acc0);
+            acc1 = va.fma(b1.getVector(species, i), acc1);
+            acc2 = va.fma(b2.getVector(species, i), acc2);
+            acc3 = va.fma(b3.getVector(species, i), acc3);
+        }
+
+        out[0] = acc0.reduceLanes(VectorOperators.ADD);
+        out[1] = acc1.reduceLanes(VectorOperators.ADD);
+        out[2] = acc2.reduceLanes(VectorOperators.ADD);
+        out[3] = acc3.reduceLanes(VectorOperators.ADD);
+    }
+
+    private void dotProductF32Q4Rows2_512(FloatBufferTensor a, Q4ByteBufferTensor b0, Q4ByteBufferTensor b1, int limit, float[] out, int o) {
+        FloatVector acc0 = FloatVector.zero(FloatVector.SPECIES_512), acc1 = acc0;
+
+        for (int i = 0; i < limit; i += Q4ByteBufferTensor.BLOCK_SIZE) {
+            var af0 = a.getVector(FloatVector.SPECIES_512, i);
+            var af1 = a.getVector(FloatVector.SPECIES_512, i + Q4ByteBufferTensor.HALF_BLOCK);
+
+            acc0 = blockF32Q4_512(af0, af1, b0, i, acc0);
+            acc1 = blockF32Q4_512(af0, af1, b1, i, acc1);
+        }
+
+        out[o] = acc0.reduceLanes(VectorOperators.ADD);
+        out[o + 1] = acc1.reduceLanes(VectorOperators.ADD);
+    }
+
+    private static FloatVector blockF32Q4_512(FloatVector af0, FloatVector af1, Q4ByteBufferTensor b, int boffset, FloatVector acc) {
+        var scale = FloatVector.broadcast(FloatVector.SPECIES_512, b.getFactorForIndex(boffset));
+        var bf0 = b.getVector(ByteVector.SPECIES_128, boffset);
+
+        var low0 = bf0.lanewise(VectorOperators.AND, Q4_BYTE_MASK_128)
+                .sub(Q4_BYTE_SUB_128)
+                .convertShape(VectorOperators.B2F, FloatVector.SPECIES_512, 0);
+
+        var high0 = bf0.lanewise(VectorOperators.ASHR, Q4_BYTE_SHIFT_128)
+                .lanewise(VectorOperators.AND, Q4_BYTE_MASK_128)
+                .sub(Q4_BYTE_SUB_128)
+                .convertShape(VectorOperators.B2F, FloatVector.SPECIES_512, 0);
+
+        var t = af0.mul(low0).add(af1.mul(high0));
+        return t.fma(scale, acc);
+    }
+
+    private void dotProductF32Q4Rows2_256(FloatBufferTensor a, Q4ByteBufferTensor b0, Q4ByteBufferTensor b1, int limit, float[] out, int o) {
+        FloatVector acc0 = FloatVector.zero(FloatVector.SPECIES_256), acc1 = acc0;
+
+        for (int i = 0; i < limit; i += Q4ByteBufferTensor.BLOCK_SIZE) {
+            var af0 = a.getVector(FloatVector.SPECIES_256, i);
+            var af1 = a.getVector(FloatVector.SPECIES_256, i + 8);
+            var af2 = a.getVector(FloatVector.SPECIES_256, i + Q4ByteBufferTensor.HALF_BLOCK);
+            var af3 = a.getVector(FloatVector.SPECIES_256, i + Q4ByteBufferTensor.HALF_BLOCK + 8);
+
+            acc0 = blockF32Q4_256(af0, af1, af2, af3, b0, i, acc0);
+            acc1 = blockF32Q4_256(af0, af1, af2, af3, b1, i, acc1);
+        }
+
+        out[o] = acc0.reduceLanes(VectorOperators.ADD);
+        out[o + 1] = acc1.reduceLanes(VectorOperators.ADD);
+    }
+
+    private static FloatVector blockF32Q4_256(FloatVector af0, FloatVector af1, FloatVector af2, FloatVector af3, Q4ByteBufferTensor b, int boffset, FloatVector acc) {
+        var scale = FloatVector.broadcast(FloatVector.SPECIES_256, b.getFactorForIndex(boffset));
+        var bf0 = b.getVector(ByteVector.SPECIES_64, boffset);
+        var bf1 = b.getVector(ByteVector.SPECIES_64, boffset + 16);
+
+        var low0 = bf0.lanewise(VectorOperators.AND, Q4_BYTE_MASK_64).sub(Q4_BYTE_SUB_64)
+                .convertShape(VectorOperators.B2F, FloatVector.SPECIES_256, 0);
+        var high0 = bf0.lanewise(VectorOperators.ASHR, Q4_BYTE_SHIFT_64).lanewise(VectorOperators.AND, Q4_BYTE_MASK_64).sub(Q4_BYTE_SUB_64)
+                .convertShape(VectorOperators.B2F, FloatVector.SPECIES_256, 0);
+        var low1 = bf1.lanewise(VectorOperators.AND, Q4_BYTE_MASK_64).sub(Q4_BYTE_SUB_64)
+                .convertShape(VectorOperators.B2F, FloatVector.SPECIES_256, 0);
+        var high1 = bf1.lanewise(VectorOperators.ASHR, Q4_BYTE_SHIFT_64).lanewise(VectorOperators.AND, Q4_BYTE_MASK_64).sub(Q4_BYTE_SUB_64)
+                .convertShape(VectorOperators.B2F, FloatVector.SPECIES_256, 0);
+
+        var t = af0.mul(low0);
+        t = af1.fma(low1, t);
+        t = af2.fma(high0, t);
+        t = af3.fma(high1, t);
+        return t.fma(scale, acc);
+    }
+
+    private void dotProductI8Q4Rows2_512(Q8ByteBufferTensor a, Q4ByteBufferTensor b0, Q4ByteBufferTensor b1, int limit, float[] out, int o) {
+        FloatVector acc0 = FloatVector.zero(FloatVector.SPECIES_512), acc1 = acc0;
+
+        for (int i = 0; i < limit; i += Q8ByteBufferTensor.BLOCK_SIZE) {
+            float ascale = a.getFactorForIndex(i);
+            var af = a.getVector(ByteVector.SPECIES_256, i)
+                    .convertShape(VectorOperators.B2S, ShortVector.SPECIES_512, 0);
+            var af0 = (ShortVector) af.castShape(ShortVector.SPECIES_256, 0);
+            var af1 = (ShortVector) af.castShape(ShortVector.SPECIES_256, 1);
+
+            acc0 = blockI8Q4_512(ascale, af0, af1, b0, i, acc0);
+            acc1 = blockI8Q4_512(ascale, af0, af1, b1, i, acc1);
+        }
+
+        out[o] = acc0.reduceLanes(VectorOperators.ADD);
+        out[o + 1] = acc1.reduceLanes(VectorOperators.ADD);
+    }
+
+    private static FloatVector blockI8Q4_512(float ascale, ShortVector af0, ShortVector af1, Q4ByteBufferTensor b, int boffset, FloatVector acc) {
+        var scale = FloatVector.broadcast(FloatVector.SPECIES_512, ascale * b.getFactorForIndex(boffset));
+        var bf0 = b.getVector(ByteVector.SPECIES_128, boffset);
+
+        var low0 = bf0.lanewise(VectorOperators.AND, Q4_BYTE_MASK_128)
+                .sub(Q4_BYTE_SUB_128)
+                .convertShape(VectorOperators.B2S, ShortVector.SPECIES_256, 0);
+
+        var high0 = bf0.lanewise(VectorOperators.ASHR, Q4_BYTE_SHIFT_128)
+                .lanewise(VectorOperators.AND, Q4_BYTE_MASK_128)
+                .sub(Q4_BYTE_SUB_128)
+                .convertShape(VectorOperators.B2S, ShortVector.SPECIES_256, 0);
+
+        var isum = low0.mul(af0).add(high0.mul(af1));
+        return scale.fma(isum.convertShape(VectorOperators.S2F, FloatVector.SPECIES_512, 0).reinterpretAsFloats(), acc);
+    }
+
+    private void dotProductI8Q4Rows2_256(Q8ByteBufferTensor a, Q4ByteBufferTensor b0, Q4ByteBufferTensor b1, int limit, float[] out, int o) {
+        FloatVector acc0 = FloatVector.zero(FloatVector.SPECIES_256), acc1 = acc0;
+
+        for (int i = 0; i < limit; i += Q8ByteBufferTensor.BLOCK_SIZE) {
+            float ascale = a.getFactorForIndex(i);
+            var af0 = (ShortVector) a.getVector(ByteVector.SPECIES_128, i)
+                    .convertShape(VectorOperators.B2S, ShortVector.SPECIES_256, 0);
+            var af1 = (ShortVector) a.getVector(ByteVector.SPECIES_128, i + 16)
+                    .convertShape(VectorOperators.B2S, ShortVector.SPECIES_256, 0);
+
+            acc0 = blockI8Q4_256(ascale, af0, af1, b0, i, acc0);
+            acc1 = blockI8Q4_256(ascale, af0, af1, b1, i, acc1);
+        }
+
+        out[o] = acc0.reduceLanes(VectorOperators.ADD);
+        out[o + 1] = acc1.reduceLanes(VectorOperators.ADD);
+    }
+
+    private static FloatVector blockI8Q4_256(float ascale, ShortVector af0, ShortVector af1, Q4ByteBufferTensor b, int boffset, FloatVector acc) {
+        var scale = FloatVector.broadcast(FloatVector.SPECIES_256, ascale * b.getFactorForIndex(boffset));
+        var bf0 = b.getVector(ByteVector.SPECIES_128, boffset);
+
+        var low0 = bf0.lanewise(VectorOperators.AND, Q4_BYTE_MASK_128)
+                .sub(Q4_BYTE_SUB_128)
+                .convertShape(VectorOperators.B2S, ShortVector.SPECIES_256, 0);
+
+        var high0 = bf0.lanewise(VectorOperators.ASHR, Q4_BYTE_SHIFT_128)
+                .lanewise(VectorOperators.AND, Q4_BYTE_MASK_128)
+                .sub(Q4_BYTE_SUB_128)
+                .convertShape(VectorOperators.B2S, ShortVector.SPECIES_256, 0);
+
+        var isum = low0.mul(af0).add(high0.mul(af1));
+        acc = scale.fma(isum.convertShape(VectorOperators.S2F, FloatVector.SPECIES_256, 0).reinterpretAsFloats(), acc);
+        return scale.fma(isum.convertShape(VectorOperators.S2F, FloatVector.SPECIES_256, 1).reinterpretAsFloats(), acc);
+    }
+
     @Override
     public AbstractTensor quantize(AbstractTensor t, DType qtype) {
         return switch (t.dType()) {
@@ -400,6 +705,106 @@ final public class PanamaTensorOperations implements TensorOperations
         return acc.reduceLanes(VectorOperators.ADD);
     }
 
+    private float QDotProductI8Q5_256(Q8ByteBufferTensor a, Q5ByteBufferTensor b, int aoffset, int boffset, int limit) {
+        Preconditions.checkArgument(
+                aoffset % Q8ByteBufferTensor.BLOCK_SIZE == 0 &&
+                        boffset % Q5ByteBufferTensor.BLOCK_SIZE == 0 &&
+                        limit % Q5ByteBufferTensor.BLOCK_SIZE == 0
+        );
+
+        final int blockSize = Q5ByteBufferTensor.BLOCK_SIZE;
+        int alim = aoffset + limit;
+
+        FloatVector acc = FloatVector.zero(FloatVector.SPECIES_256);
+
+        for (; aoffset < alim; aoffset += blockSize, boffset += blockSize) {
+            final var scale = FloatVector.broadcast(FloatVector.SPECIES_256, a.getFactorForIndex(aoffset) * b.getFactorForIndex(boffset));
+
+            final var af0 = a.getVector(ByteVector.SPECIES_128, aoffset)
+                    .convertShape(VectorOperators.B2S, ShortVector.SPECIES_256, 0)
+                    .reinterpretAsShorts();
+
+            final var af1 = a.getVector(ByteVector.SPECIES_128, aoffset + Q5ByteBufferTensor.HALF_BLOCK)
+                    .convertShape(VectorOperators.B2S, ShortVector.SPECIES_256, 0)
+                    .reinterpretAsShorts();
+
+            //Make 16 bytes + 32 bits -> 32 5bit -> 32 shorts
+            final int qh = b.getHighBitsForIndex(boffset);
+            final var bf0 = b.getVector(ByteVector.SPECIES_128, boffset);
+
+            final var low0 = bf0.lanewise(VectorOperators.AND, Q4_BYTE_MASK_128)
+                    .or(q5HighBits(qh, Q5_LOW_BITS_128))
+                    .sub(Q5_BYTE_SUB_128)
+                    .convertShape(VectorOperators.B2S, ShortVector.SPECIES_256, 0);
+
+            final var high0 = bf0.lanewise(VectorOperators.LSHR, Q4_BYTE_SHIFT_128)
+                    .or(q5HighBits(qh, Q5_HIGH_BITS_128))
+                    .sub(Q5_BYTE_SUB_128)
+                    .convertShape(VectorOperators.B2S, ShortVector.SPECIES_256, 0);
+
+            var isum = low0.mul(af0);
+            isum = isum.add(high0.mul(af1));
+
+            final var r0 = isum.convertShape(VectorOperators.S2F, FloatVector.SPECIES_256, 0).reinterpretAsFloats();
+            final var r1 = isum.convertShape(VectorOperators.S2F, FloatVector.SPECIES_256, 1).reinterpretAsFloats();
+
+            acc = scale.fma(r0, acc);
+            acc = scale.fma(r1, acc);
+        }
+
+        return acc.reduceLanes(VectorOperators.ADD);
+    }
+
+    private float QDotProductI8Q5_512(Q8ByteBufferTensor a, Q5ByteBufferTensor b, int aoffset, int boffset, int limit) {
+        Preconditions.checkArgument(
+                aoffset % Q8ByteBufferTensor.BLOCK_SIZE == 0 &&
+                        boffset % Q5ByteBufferTensor.BLOCK_SIZE == 0 &&
+                        limit % Q5ByteBufferTensor.BLOCK_SIZE == 0
+        );
+
+        final int blockSize = Q5ByteBufferTensor.BLOCK_SIZE;
+        int alim = aoffset + limit;
+
+        FloatVector acc = FloatVector.zero(FloatVector.SPECIES_512);
+
+        for (; aoffset < alim; aoffset += blockSize, boffset += blockSize) {
+            final var scale = FloatVector.broadcast(FloatVector.SPECIES_512, a.getFactorForIndex(aoffset) * b.getFactorForIndex(boffset));
+
+            final var af = a.getVector(ByteVector.SPECIES_256, aoffset)
+                    .convertShape(VectorOperators.B2S, ShortVector.SPECIES_512, 0)
+                    .reinterpretAsShorts();
+
+            //Make 16 bytes + 32 bits -> 32 5bit -> 32 shorts
+            final int qh = b.getHighBitsForIndex(boffset);
+            final var bf0 = b.getVector(ByteVector.SPECIES_128, boffset);
+
+            final var low0 = bf0.lanewise(VectorOperators.AND, Q4_BYTE_MASK_128)
+                    .or(q5HighBits(qh, Q5_LOW_BITS_128))
+                    .sub(Q5_BYTE_SUB_128)
+                    .convertShape(VectorOperators.B2S, ShortVector.SPECIES_256, 0);
+
+            final var high0 = bf0.lanewise(VectorOperators.LSHR, Q4_BYTE_SHIFT_128)
+                    .or(q5HighBits(qh, Q5_HIGH_BITS_128))
+                    .sub(Q5_BYTE_SUB_128)
+                    .convertShape(VectorOperators.B2S, ShortVector.SPECIES_256, 0);
+
+            var isum = low0.mul(af.castShape(ShortVector.SPECIES_256, 0));
+            isum = isum.add(high0.mul(af.castShape(ShortVector.SPECIES_256, 1)));
+
+            final var r0 = isum.convertShape(VectorOperators.S2F, FloatVector.SPECIES_512, 0).reinterpretAsFloats();
+
+            acc = scale.fma(r0, acc);
+        }
+
+        return acc.reduceLanes(VectorOperators.ADD);
+    }
+
+    /** The 5th bits of half a Q5 block as a byte per value, 16 where the bit is set */
+    private static ByteVector q5HighBits(int qh, VectorShuffle<Byte> half) {
+        ByteVector bits = IntVector.broadcast(IntVector.SPECIES_128, qh).reinterpretAsBytes().rearrange(half).and(Q5_BIT_128);
+        return Q5_BYTE_ZERO_128.blend((byte) 16, bits.compare(VectorOperators.NE, 0));
+    }
+
     private float dotProductF32I8_256(FloatBufferTensor a, Q8ByteBufferTensor b, int aoffset, int boffset, int limit) {
         Preconditions.checkArgument(
                 boffset % Q8ByteBufferTensor.BLOCK_SIZE == 0 &&
@@ -927,6 +1332,351 @@ final public class PanamaTensorOperations implements TensorOperations
         return acc.reduceLanes(VectorOperators.ADD);
     }
 
+    static FloatVector f16ToF32_512(ShortVector h) {
+        var hi = h.convertShape(VectorOperators.ZERO_EXTEND_S2I, IntVector.SPECIES_512, 0).reinterpretAsInts();
+
+        var f = hi.and(F16_EXP_MANT_MASK)
+                .lanewise(VectorOperators.LSHL, 13)
+                .reinterpretAsFloats()
+                .mul(F16_REBIAS)
+                .reinterpretAsInts();
+
+        //Inf and NaN keep their all ones exponent
+        var special = hi.and(F16_EXP_MASK).eq(F16_EXP_MASK);
+        f = f.blend(f.or(0x7f800000), special);
+
+        return f.or(hi.and(F16_SIGN_MASK).lanewise(VectorOperators.LSHL, 16)).reinterpretAsFloats();
+    }
+
+    static FloatVector f16ToF32_256(ShortVector h) {
+        var hi = h.convertShape(VectorOperators.ZERO_EXTEND_S2I, IntVector.SPECIES_256, 0).reinterpretAsInts();
+
+        var f = hi.and(F16_EXP_MANT_MASK)
+                .lanewise(VectorOperators.LSHL, 13)
+                .reinterpretAsFloats()
+                .mul(F16_REBIAS)
+                .reinterpretAsInts();
+
+        //Inf and NaN keep their all ones exponent
+        var special = hi.and(F16_EXP_MASK).eq(F16_EXP_MASK);
+        f = f.blend(f.or(0x7f800000), special);
+
+        return f.or(hi.and(F16_SIGN_MASK).lanewise(VectorOperators.LSHL, 16)).reinterpretAsFloats();
+    }
+
+    private float dotProductF32F16_512(FloatBufferTensor a, Float16BufferTensor b, int aoffset, int boffset, int limit) {
+        int alim = aoffset + limit;
+        int blim = boffset + limit;
+        int slen = FloatVector.SPECIES_512.length();
+
+        FloatVector acc = FloatVector.zero(FloatVector.SPECIES_512);
+
+        for (; aoffset < alim && boffset < blim; aoffset += slen, boffset += slen) {
+            var af = a.getVector(FloatVector.SPECIES_512, aoffset);
+            var bf = f16ToF32_512(b.getVector(ShortVector.SPECIES_256, boffset));
+            acc = af.fma(bf, acc);
+        }
+
+        return acc.reduceLanes(VectorOperators.ADD);
+    }
+
+    private float dotProductF32F16_256(FloatBufferTensor a, Float16BufferTensor b, int aoffset, int boffset, int limit) {
+        int alim = aoffset + limit;
+        int blim = boffset + limit;
+        int slen = FloatVector.SPECIES_256.length();
+
+        FloatVector acc = FloatVector.zero(FloatVector.SPECIES_256);
+
+        for (; aoffset < alim && boffset < blim; aoffset += slen, boffset += slen) {
+            var af = a.getVector(FloatVector.SPECIES_256, aoffset);
+            var bf = f16ToF32_256(b.getVector(ShortVector.SPECIES_128, boffset));
+            acc = af.fma(bf, acc);
+        }
+
+        return acc.reduceLanes(VectorOperators.ADD);
+    }
+
+    public float dotProductF16I8_512(Float16BufferTensor a, Q8ByteBufferTensor b, final int aoffset, final int boffset, int limit) {
+        int ao = aoffset;
+        int bo = boffset;
+        final int alim = aoffset + limit;
+        final int blim = boffset + limit;
+        final int slen = ByteVector.SPECIES_128.length();
+
+        FloatVector acc = FloatVector.zero(FloatVector.SPECIES_512);
+
+        for (; ao < alim && bo < blim; ao += slen, bo += slen) {
+            FloatVector scale = FloatVector.broadcast(FloatVector.SPECIES_512, b.getFactorForIndex(bo));
+            var af = f16ToF32_512(a.getVector(ShortVector.SPECIES_256, ao)).mul(scale);
+            var bf = b.getVector(ByteVector.SPECIES_128, bo)
+                    .convertShape(VectorOperators.B2F, FloatVector.SPECIES_512, 0);
+
+            acc = af.fma(bf, acc);
+        }
+
+        return acc.reduceLanes(VectorOperators.ADD);
+    }
+
+    public float dotProductF16I8_256(Float16BufferTensor a, Q8ByteBufferTensor b, final int aoffset, final int boffset, int limit) {
+        int ao = aoffset;
+        int bo = boffset;
+        final int alim = aoffset + limit;
+        final int blim = boffset + limit;
+        final int slen = ByteVector.SPECIES_64.length();
+
+        FloatVector acc = FloatVector.zero(FloatVector.SPECIES_256);
+
+        for (; ao < alim && bo < blim; ao += slen, bo += slen) {
+            FloatVector scale = FloatVector.broadcast(FloatVector.SPECIES_256, b.getFactorForIndex(bo));
+            var af = f16ToF32_256(a.getVector(ShortVector.SPECIES_128, ao)).mul(scale);
+            var bf = b.getVector(ByteVector.SPECIES_64, bo)
+                    .convertShape(VectorOperators.B2F, FloatVector.SPECIES_256, 0);
+
+            acc = af.fma(bf, acc);
+        }
+
+        return acc.reduceLanes(VectorOperators.ADD);
+    }
+
+    /**
+     * Any mix of F32, F16 and BF16, each side widened to F32 in the preferred vector size.
+     * Covers the pairs without a dedicated kernel, weights keep the type they are stored in.
+     */
+    private float dotProductWidened(AbstractTensor a, AbstractTensor b, int aoffset, int boffset, int limit) {
+        FloatVector acc = FloatVector.zero(WIDE_SPECIES);
+        int slen = WIDE_SPECIES.length();
+        int upperBound = WIDE_SPECIES.loopBound(limit);
+        int i = 0;
+        for (; i < upperBound; i += slen)
+            acc = widen(a, aoffset + i).fma(widen(b, boffset + i), acc);
+
+        float res = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < limit; i++)
+            res += a.get(aoffset + i) * b.get(boffset + i);
+
+        return res;
+    }
+
+    /** Q5 weights against activations of any type that widens, a block at a time */
+    private float dotProductQ5(AbstractTensor a, Q5ByteBufferTensor b, int aoffset, int boffset, int limit) {
+        Preconditions.checkArgument(boffset % Q5ByteBufferTensor.BLOCK_SIZE == 0 && limit % Q5ByteBufferTensor.BLOCK_SIZE == 0);
+
+        int lanes = WIDE_SPECIES.length();
+        int parts = Q5ByteBufferTensor.HALF_BLOCK / lanes;
+        FloatVector acc = FloatVector.zero(WIDE_SPECIES);
+
+        for (int i = 0; i < limit; i += Q5ByteBufferTensor.BLOCK_SIZE) {
+            int ao = aoffset + i;
+            int bo = boffset + i;
+
+            int qh = b.getHighBitsForIndex(bo);
+            ByteVector packed = b.getVector(ByteVector.SPECIES_128, bo);
+            ByteVector low = packed.lanewise(VectorOperators.AND, Q4_BYTE_MASK_128).or(q5HighBits(qh, Q5_LOW_BITS_128)).sub(Q5_BYTE_SUB_128);
+            ByteVector high = packed.lanewise(VectorOperators.LSHR, Q4_BYTE_SHIFT_128).or(q5HighBits(qh, Q5_HIGH_BITS_128)).sub(Q5_BYTE_SUB_128);
+
+            FloatVector block = FloatVector.zero(WIDE_SPECIES);
+            for (int p = 0; p < parts; p++) {
+                block = widen(a, ao + p * lanes).fma((FloatVector) low.convertShape(VectorOperators.B2F, WIDE_SPECIES, p), block);
+                block = widen(a, ao + Q5ByteBufferTensor.HALF_BLOCK + p * lanes).fma((FloatVector) high.convertShape(VectorOperators.B2F, WIDE_SPECIES, p), block);
+            }
+            acc = block.fma(FloatVector.broadcast(WIDE_SPECIES, b.getFactorForIndex(bo)), acc);
+        }
+
+        return acc.reduceLanes(VectorOperators.ADD);
+    }
+
+    /**
+     * Q4_K weights against activations of any type that widens, a super-block at a time.  Each pair of
+     * sub-blocks shares its bytes, the first in the low nibbles and the second in the high ones.
+     */
+    private float dotProductQ4K(AbstractTensor a, Q4KByteBufferTensor b, int aoffset, int boffset, int limit) {
+        Preconditions.checkArgument(boffset % Q4KByteBufferTensor.BLOCK_SIZE == 0 && limit % Q4KByteBufferTensor.BLOCK_SIZE == 0);
+
+        MemorySegment s = b.getMemorySegment();
+        int lanes = WIDE_SPECIES.length();
+        int step = WIDE_BYTE_SPECIES.length();
+        FloatVector acc = FloatVector.zero(WIDE_SPECIES);
+
+        for (int i = 0; i < limit; i += Q4KByteBufferTensor.BLOCK_SIZE) {
+            long block = b.getMemorySegmentOffset(boffset + i);
+            float d = Float.float16ToFloat(s.get(F16_LE, block));
+            float dmin = Float.float16ToFloat(s.get(F16_LE, block + Short.BYTES));
+
+            for (int j = 0; j < 8; j += 2) {
+                FloatVector scale0 = FloatVector.broadcast(WIDE_SPECIES, d * Q4KByteBufferTensor.scale(s, block, j));
+                FloatVector min0 = FloatVector.broadcast(WIDE_SPECIES, -dmin * Q4KByteBufferTensor.min(s, block, j));
+                FloatVector scale1 = FloatVector.broadcast(WIDE_SPECIES, d * Q4KByteBufferTensor.scale(s, block, j + 1));
+                FloatVector min1 = FloatVector.broadcast(WIDE_SPECIES, -dmin * Q4KByteBufferTensor.min(s, block, j + 1));
+
+                long q = block + 16 + j * 16;
+                int ao = aoffset + i + j * 32;
+                for (int l = 0; l < 32; l += step) {
+                    ByteVector packed = ByteVector.fromMemorySegment(WIDE_BYTE_SPECIES, s, q + l, ByteOrder.LITTLE_ENDIAN);
+                    ByteVector low = packed.and((byte) 0xF);
+                    ByteVector high = packed.lanewise(VectorOperators.LSHR, 4);
+
+                    for (int p = 0; p < WIDE_PARTS; p++) {
+                        int o = ao + l + p * lanes;
+                        var w0 = (FloatVector) low.convertShape(VectorOperators.B2F, WIDE_SPECIES, p);
+                        var w1 = (FloatVector) high.convertShape(VectorOperators.B2F, WIDE_SPECIES, p);
+                        acc = widen(a, o).fma(w0.fma(scale0, min0), acc);
+                        acc = widen(a, o + 32).fma(w1.fma(scale1, min1), acc);
+                    }
+                }
+            }
+        }
+
+        return acc.reduceLanes(VectorOperators.ADD);
+    }
+
+    /**
+     * Q6_K weights against activations of any type that widens, a super-block at a time.  The four quarters of
+     * each half are rebuilt from the nibbles of 64 bytes and the 2 bit pairs of 32 more.
+     */
+    private float dotProductQ6K(AbstractTensor a, Q6KByteBufferTensor b, int aoffset, int boffset, int limit) {
+        Preconditions.checkArgument(boffset % Q6KByteBufferTensor.BLOCK_SIZE == 0 && limit % Q6KByteBufferTensor.BLOCK_SIZE == 0);
+
+        MemorySegment s = b.getMemorySegment();
+        int lanes = WIDE_SPECIES.length();
+        int step = WIDE_BYTE_SPECIES.length();
+        FloatVector acc = FloatVector.zero(WIDE_SPECIES);
+
+        for (int i = 0; i < limit; i += Q6KByteBufferTensor.BLOCK_SIZE) {
+            long block = b.getMemorySegmentOffset(boffset + i);
+            float d = Float.float16ToFloat(s.get(F16_LE, block + Q6KByteBufferTensor.D_OFFSET));
+
+            for (int n = 0; n < 2; n++) {
+                long ql = block + n * 64;
+                long qh = block + Q6KByteBufferTensor.HIGH_BITS_OFFSET + n * 32;
+                long sc = block + Q6KByteBufferTensor.SCALES_OFFSET + n * 8;
+                int ao = aoffset + i + n * 128;
+
+                for (int l = 0; l < 32; l += step) {
+                    int is = l / Q6KByteBufferTensor.SUB_BLOCK_SIZE;
+                    FloatVector d0 = FloatVector.broadcast(WIDE_SPECIES, d * s.get(ValueLayout.JAVA_BYTE, sc + is));
+                    FloatVector d1 = FloatVector.broadcast(WIDE_SPECIES, d * s.get(ValueLayout.JAVA_BYTE, sc + is + 2));
+                    FloatVector d2 = FloatVector.broadcast(WIDE_SPECIES, d * s.get(ValueLayout.JAVA_BYTE, sc + is + 4));
+                    FloatVector d3 = FloatVector.broadcast(WIDE_SPECIES, d * s.get(ValueLayout.JAVA_BYTE, sc + is + 6));
+
+                    ByteVector low0 = ByteVector.fromMemorySegment(WIDE_BYTE_SPECIES, s, ql + l, ByteOrder.LITTLE_ENDIAN);
+                    ByteVector low1 = ByteVector.fromMemorySegment(WIDE_BYTE_SPECIES, s, ql + l + 32, ByteOrder.LITTLE_ENDIAN);
+                    ByteVector high = ByteVector.fromMemorySegment(WIDE_BYTE_SPECIES, s, qh + l, ByteOrder.LITTLE_ENDIAN);
+
+                    ByteVector q0 = low0.and((byte) 0xF).or(high.and((byte) 3).lanewise(VectorOperators.LSHL, 4)).sub((byte) 32);
+                    ByteVector q1 = low1.and((byte) 0xF).or(high.lanewise(VectorOperators.LSHR, 2).and((byte) 3).lanewise(VectorOperators.LSHL, 4)).sub((byte) 32);
+                    ByteVector q2 = low0.lanewise(VectorOperators.LSHR, 4).or(high.lanewise(VectorOperators.LSHR, 4).and((byte) 3).lanewise(VectorOperators.LSHL, 4)).sub((byte) 32);
+                    ByteVector q3 = low1.lanewise(VectorOperators.LSHR, 4).or(high.lanewise(VectorOperators.LSHR, 6).lanewise(VectorOperators.LSHL, 4)).sub((byte) 32);
+
+                    for (int p = 0; p < WIDE_PARTS; p++) {
+                        int o = ao + l + p * lanes;
+                        acc = widen(a, o).fma(((FloatVector) q0.convertShape(VectorOperators.B2F, WIDE_SPECIES, p)).mul(d0), acc);
+                        acc = widen(a, o + 32).fma(((FloatVector) q1.convertShape(VectorOperators.B2F, WIDE_SPECIES, p)).mul(d1), acc);
+                        acc = widen(a, o + 64).fma(((FloatVector) q2.convertShape(VectorOperators.B2F, WIDE_SPECIES, p)).mul(d2), acc);
+                        acc = widen(a, o + 96).fma(((FloatVector) q3.convertShape(VectorOperators.B2F, WIDE_SPECIES, p)).mul(d3), acc);
+                    }
+                }
+            }
+        }
+
+        return acc.reduceLanes(VectorOperators.ADD);
+    }
+
+    /**
+     * Q4_0 weights against activations of any type that widens, a block at a time.  The first half of
+     * each block is in the low nibbles and the second half in the high ones.
+     */
+    private float dotProductQ40(AbstractTensor a, Q40ByteBufferTensor b, int aoffset, int boffset, int limit) {
+        Preconditions.checkArgument(boffset % Q40ByteBufferTensor.BLOCK_SIZE == 0 && limit % Q40ByteBufferTensor.BLOCK_SIZE == 0);
+
+        MemorySegment s = b.getMemorySegment();
+        int lanes = WIDE_SPECIES.length();
+        int step = WIDE_BYTE_SPECIES.length();
+        int half = Q40ByteBufferTensor.BLOCK_SIZE / 2;
+        FloatVector acc = FloatVector.zero(WIDE_SPECIES);
+
+        for (int i = 0; i < limit; i += Q40ByteBufferTensor.BLOCK_SIZE) {
+            long block = b.getMemorySegmentOffset(boffset + i);
+            FloatVector scale = FloatVector.broadcast(WIDE_SPECIES, Float.float16ToFloat(s.get(F16_LE, block)));
+            FloatVector block0 = FloatVector.zero(WIDE_SPECIES);
+
+            int ao = aoffset + i;
+            for (int l = 0; l < half; l += step) {
+                ByteVector packed = ByteVector.fromMemorySegment(WIDE_BYTE_SPECIES, s, block + Short.BYTES + l, ByteOrder.LITTLE_ENDIAN);
+                ByteVector low = packed.and((byte) 0xF).sub((byte) 8);
+                ByteVector high = packed.lanewise(VectorOperators.LSHR, 4).sub((byte) 8);
+
+                for (int p = 0; p < WIDE_PARTS; p++) {
+                    int o = ao + l + p * lanes;
+                    block0 = widen(a, o).fma((FloatVector) low.convertShape(VectorOperators.B2F, WIDE_SPECIES, p), block0);
+                    block0 = widen(a, o + half).fma((FloatVector) high.convertShape(VectorOperators.B2F, WIDE_SPECIES, p), block0);
+                }
+            }
+            acc = block0.fma(scale, acc);
+        }
+
+        return acc.reduceLanes(VectorOperators.ADD);
+    }
+
+    /** Q8_0 weights against activations of any type that widens, a block at a time */
+    private float dotProductQ80(AbstractTensor a, Q80ByteBufferTensor b, int aoffset, int boffset, int limit) {
+        Preconditions.checkArgument(boffset % Q80ByteBufferTensor.BLOCK_SIZE == 0 && limit % Q80ByteBufferTensor.BLOCK_SIZE == 0);
+
+        MemorySegment s = b.getMemorySegment();
+        int lanes = WIDE_SPECIES.length();
+        int step = WIDE_BYTE_SPECIES.length();
+        FloatVector acc = FloatVector.zero(WIDE_SPECIES);
+
+        for (int i = 0; i < limit; i += Q80ByteBufferTensor.BLOCK_SIZE) {
+            long block = b.getMemorySegmentOffset(boffset + i);
+            FloatVector scale = FloatVector.broadcast(WIDE_SPECIES, Float.float16ToFloat(s.get(F16_LE, block)));
+            FloatVector block0 = FloatVector.zero(WIDE_SPECIES);
+
+            int ao = aoffset + i;
+            for (int l = 0; l < Q80ByteBufferTensor.BLOCK_SIZE; l += step) {
+                ByteVector q = ByteVector.fromMemorySegment(WIDE_BYTE_SPECIES, s, block + Short.BYTES + l, ByteOrder.LITTLE_ENDIAN);
+                for (int p = 0; p < WIDE_PARTS; p++)
+                    block0 = widen(a, ao + l + p * lanes).fma((FloatVector) q.convertShape(VectorOperators.B2F, WIDE_SPECIES, p), block0);
+            }
+            acc = block0.fma(scale, acc);
+        }
+
+        return acc.reduceLanes(VectorOperators.ADD);
+    }
+
+    private static FloatVector widen(AbstractTensor t, int offset) {
+        return switch (t.dType()) {
+            case F32 -> ((FloatBufferTensor) t).getVector(WIDE_SPECIES, offset);
+            case BF16 -> ((BFloat16BufferTensor) t).getVector(WIDE_SHORT_SPECIES, offset)
+                    .convertShape(VectorOperators.ZERO_EXTEND_S2I, WIDE_INT_SPECIES, 0)
+                    .lanewise(VectorOperators.LSHL, 16)
+                    .reinterpretAsFloats();
+            case F16 -> {
+                var hi = ((Float16BufferTensor) t).getVector(WIDE_SHORT_SPECIES, offset)
+                        .convertShape(VectorOperators.ZERO_EXTEND_S2I, WIDE_INT_SPECIES, 0).reinterpretAsInts();
+
+                var f = hi.and(F16_EXP_MANT_MASK)
+                        .lanewise(VectorOperators.LSHL, 13)
+                        .reinterpretAsFloats()
+                        .mul(F16_REBIAS)
+                        .reinterpretAsInts();
+
+                var special = hi.and(F16_EXP_MASK).eq(F16_EXP_MASK);
+                f = f.blend(f.or(0x7f800000), special);
+
+                yield f.or(hi.and(F16_SIGN_MASK).lanewise(VectorOperators.LSHL, 16)).reinterpretAsFloats();
+            }
+            case I8 -> {
+                //A vector never crosses a block, the lanes past the vector are masked off
+                Q8ByteBufferTensor q = (Q8ByteBufferTensor) t;
+                var b = WIDE_PARTS == 1
+                        ? ByteVector.fromMemorySegment(WIDE_BYTE_SPECIES, q.getMemorySegment(), q.getMemorySegmentOffset(offset), ByteOrder.LITTLE_ENDIAN)
+                        : ByteVector.fromMemorySegment(WIDE_BYTE_SPECIES, q.getMemorySegment(), q.getMemorySegmentOffset(offset), ByteOrder.LITTLE_ENDIAN, WIDE_BYTE_MASK);
+                yield ((FloatVector) b.convertShape(VectorOperators.B2F, WIDE_SPECIES, 0)).mul(q.getFactorForIndex(offset));
+            }
+            default -> throw new UnsupportedOperationException(t.dType().name());
+        };
+    }
+
     private float dotProductF32(FloatBufferTensor a, FloatBufferTensor b, int aoffset, int boffset, int limit) {
         FloatVector acc = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
         int upperBound = FloatVector.SPECIES_PREFERRED.loopBound(limit);
@@ -1152,9 +1902,32 @@ final public class PanamaTensorOperations implements TensorOperations
 
     @Override
     public void saxpy(float alpha, AbstractTensor x, AbstractTensor y, int xoffset, int yoffset, int limit) {
-        Preconditions.checkArgument(x.dType() == y.dType());
         Preconditions.checkArgument(limit % 8 == 0);
 
+        //Quantized x accumulating into a F32 y (e.g. a quantized kv cache)
+        if (x.dType() != y.dType() && y.dType() == DType.F32) {
+            switch (x.dType()) {
+                case I8: switch (vectorType) {
+                    case AVX_512: saxpyI8F32_512(alpha, (Q8ByteBufferTensor) x, (FloatBufferTensor) y, xoffset, yoffset, limit); return;
+                    case AVX_256: saxpyI8F32_256(alpha, (Q8ByteBufferTensor) x, (FloatBufferTensor) y, xoffset, yoffset, limit); return;
+                    default: throw new UnsupportedOperationException();
+                }
+                case F16: switch (vectorType) {
+                    case AVX_512: saxpyF16F32_512(alpha, (Float16BufferTensor) x, (FloatBufferTensor) y, xoffset, yoffset, limit); return;
+                    case AVX_256: saxpyF16F32_256(alpha, (Float16BufferTensor) x, (FloatBufferTensor) y, xoffset, yoffset, limit); return;
+                    default: throw new UnsupportedOperationException();
+                }
+                case BF16: switch (vectorType) {
+                    case AVX_512: saxpyBF16F32_512(alpha, (BFloat16BufferTensor) x, (FloatBufferTensor) y, xoffset, yoffset, limit); return;
+                    case AVX_256: saxpyBF16F32_256(alpha, (BFloat16BufferTensor) x, (FloatBufferTensor) y, xoffset, yoffset, limit); return;
+                    default: throw new UnsupportedOperationException();
+                }
+                default: throw new UnsupportedOperationException();
+            }
+        }
+
+        Preconditions.checkArgument(x.dType() == y.dType());
+
         switch (x.dType()) {
             case F32: saxpyF32(alpha, (FloatBufferTensor) x, (FloatBufferTensor) y, xoffset, yoffset, limit); break;
             case BF16: switch (vectorType) {
@@ -1261,9 +2034,32 @@ final public class PanamaTensorOperations implements TensorOperations
 
     @Override
     public void sxpby(float beta, AbstractTensor x, AbstractTensor y, int xoffset, int yoffset, int limit) {
-        Preconditions.checkArgument(x.dType() == y.dType());
         Preconditions.checkArgument(limit % 8 == 0);
 
+        //Quantized x accumulating into a F32 y (e.g. a quantized kv cache)
+        if (x.dType() != y.dType() && y.dType() == DType.F32) {
+            switch (x.dType()) {
+                case I8: switch (vectorType) {
+                    case AVX_512: sxpbyI8F32_512(beta, (Q8ByteBufferTensor) x, (FloatBufferTensor) y, xoffset, yoffset, limit); return;
+                    case AVX_256: sxpbyI8F32_256(beta, (Q8ByteBufferTensor) x, (FloatBufferTensor) y, xoffset, yoffset, limit); return;
+                    default: throw new UnsupportedOperationException();
+                }
+                case F16: switch (vectorType) {
+                    case AVX_512: sxpbyF16F32_512(beta, (Float16BufferTensor) x, (FloatBufferTensor) y, xoffset, yoffset, limit); return;
+                    case AVX_256: sxpbyF16F32_256(beta, (Float16BufferTensor) x, (FloatBufferTensor) y, xoffset, yoffset, limit); return;
+                    default: throw new UnsupportedOperationException();
+                }
+                case BF16: switch (vectorType) {
+                    case AVX_512: sxpbyBF16F32_512(beta, (BFloat16BufferTensor) x, (FloatBufferTensor) y, xoffset, yoffset, limit); return;
+                    case AVX_256: sxpbyBF16F32_256(beta, (BFloat16BufferTensor) x, (FloatBufferTensor) y, xoffset, yoffset, limit); return;
+                    default: throw new UnsupportedOperationException();
+                }
+                default: throw new UnsupportedOperationException();
+            }
+        }
+
+        Preconditions.checkArgument(x.dType() == y.dType());
+
         switch (x.dType()) {
             case F32: sxpbyF32(beta, (FloatBufferTensor) x, (FloatBufferTensor) y, xoffset, yoffset, limit); break;
             case BF16: switch (vectorType) {
@@ -1370,4 +2166,222 @@ final public class PanamaTensorOperations implements TensorOperations
             y.set(v, yo);
         }
     }
+
+    void saxpyI8F32_512(float alpha, Q8ByteBufferTensor x, FloatBufferTensor y, int xoffset, int yoffset, int limit) {
+        Preconditions.checkArgument(xoffset % Q8ByteBufferTensor.BLOCK_SIZE == 0 && limit % Q8ByteBufferTensor.BLOCK_SIZE == 0);
+
+        int xo = xoffset;
+        int yo = yoffset;
+        int slen = Q8ByteBufferTensor.BLOCK_SIZE;
+
+        for (; xo < (xoffset + limit) && yo < (yoffset + limit); xo += slen, yo += slen) {
+            //Fold the block scale into alpha
+            FloatVector scale = FloatVector.broadcast(FloatVector.SPECIES_512, alpha * x.getFactorForIndex(xo));
+
+            var xv = x.getVector(ByteVector.SPECIES_128, xo).convertShape(VectorOperators.B2F, FloatVector.SPECIES_512, 0).reinterpretAsFloats();
+            var yv = y.getVector(FloatVector.SPECIES_512, yo);
+            y.intoTensor(xv.fma(scale, yv), yo);
+
+            xv = x.getVector(ByteVector.SPECIES_128, xo + 16).convertShape(VectorOperators.B2F, FloatVector.SPECIES_512, 0).reinterpretAsFloats();
+            yv = y.getVector(FloatVector.SPECIES_512, yo + 16);
+            y.intoTensor(xv.fma(scale, yv), yo + 16);
+        }
+    }
+
+    void saxpyI8F32_256(float alpha, Q8ByteBufferTensor x, FloatBufferTensor y, int xoffset, int yoffset, int limit) {
+        Preconditions.checkArgument(xoffset % Q8ByteBufferTensor.BLOCK_SIZE == 0 && limit % Q8ByteBufferTensor.BLOCK_SIZE == 0);
+
+        int xo = xoffset;
+        int yo = yoffset;
+        int slen = ByteVector.SPECIES_64.length();
+
+        for (; xo < (xoffset + limit) && yo < (yoffset + limit); ) {
+            //Fold the block scale into alpha
+            FloatVector scale = FloatVector.broadcast(FloatVector.SPECIES_256, alpha * x.getFactorForIndex(xo));
+
+            for (int j = 0; j < 4; j++, xo += slen, yo += slen) {
+                var xv = x.getVector(ByteVector.SPECIES_64, xo).convertShape(VectorOperators.B2F, FloatVector.SPECIES_256, 0).reinterpretAsFloats();
+                var yv = y.getVector(FloatVector.SPECIES_256, yo);
+                y.intoTensor(xv.fma(scale, yv), yo);
+            }
+        }
+    }
+
+    void saxpyF16F32_512(float alpha, Float16BufferTensor x, FloatBufferTensor y, int xoffset, int yoffset, int limit) {
+        int upperBound = FloatVector.SPECIES_512.loopBound(limit);
+        Preconditions.checkArgument(upperBound == limit);
+
+        int xo = xoffset;
+        int yo = yoffset;
+        int len = FloatVector.SPECIES_512.length();
+
+        for (; xo < (xoffset + upperBound) && yo < (yoffset + upperBound); xo += len, yo += len) {
+            var xv = f16ToF32_512(x.getVector(ShortVector.SPECIES_256, xo));
+            var yv = y.getVector(FloatVector.SPECIES_512, yo);
+            y.intoTensor(xv.mul(alpha).add(yv), yo);
+        }
+    }
+
+    void saxpyF16F32_256(float alpha, Float16BufferTensor x, FloatBufferTensor y, int xoffset, int yoffset, int limit) {
+        int upperBound = FloatVector.SPECIES_256.loopBound(limit);
+        Preconditions.checkArgument(upperBound == limit);
+
+        int xo = xoffset;
+        int yo = yoffset;
+        int len = FloatVector.SPECIES_256.length();
+
+        for (; xo < (xoffset + upperBound) && yo < (yoffset + upperBound); xo += len, yo += len) {
+            var xv = f16ToF32_256(x.getVector(ShortVector.SPECIES_128, xo));
+            var yv = y.getVector(FloatVector.SPECIES_256, yo);
+            y.intoTensor(xv.mul(alpha).add(yv), yo);
+        }
+    }
+
+    void sxpbyI8F32_512(float beta, Q8ByteBufferTensor x, FloatBufferTensor y, int xoffset, int yoffset, int limit) {
+        Preconditions.checkArgument(xoffset % Q8ByteBufferTensor.BLOCK_SIZE == 0 && limit % Q8ByteBufferTensor.BLOCK_SIZE == 0);
+
+        int xo = xoffset;
+        int yo = yoffset;
+        int slen = Q8ByteBufferTensor.BLOCK_SIZE;
+
+        for (; xo < (xoffset + limit) && yo < (yoffset + limit); xo += slen, yo += slen) {
+            FloatVector scale = FloatVector.broadcast(FloatVector.SPECIES_512, x.getFactorForIndex(xo));
+
+            var xv = x.getVector(ByteVector.SPECIES_128, xo).convertShape(VectorOperators.B2F, FloatVector.SPECIES_512, 0).reinterpretAsFloats();
+            var yv = y.getVector(FloatVector.SPECIES_512, yo);
+            y.intoTensor(xv.mul(scale).add(yv.mul(beta)), yo);
+
+            xv = x.getVector(ByteVector.SPECIES_128, xo + 16).convertShape(VectorOperators.B2F, FloatVector.SPECIES_512, 0).reinterpretAsFloats();
+            yv = y.getVector(FloatVector.SPECIES_512, yo + 16);
+            y.intoTensor(xv.mul(scale).add(yv.mul(beta)), yo + 16);
+        }
+    }
+
+    void sxpbyI8F32_256(float beta, Q8ByteBufferTensor x, FloatBufferTensor y, int xoffset, int yoffset, int limit) {
+        Preconditions.checkArgument(xoffset % Q8ByteBufferTensor.BLOCK_SIZE == 0 && limit % Q8ByteBufferTensor.BLOCK_SIZE == 0);
+
+        int xo = xoffset;
+        int yo = yoffset;
+        int slen = ByteVector.SPECIES_64.length();
+
+        for (; xo < (xoffset + limit) && yo < (yoffset + limit); ) {
+            FloatVector scale = FloatVector.broadcast(FloatVector.SPECIES_256, x.getFactorForIndex(xo));
+
+            for (int j = 0; j < 4; j++, xo += slen, yo += slen) {
+                var xv = x.getVector(ByteVector.SPECIES_64, xo).convertShape(VectorOperators.B2F, FloatVector.SPECIES_256, 0).reinterpretAsFloats();
+                var yv = y.getVector(FloatVector.SPECIES_256, yo);
+                y.intoTensor(xv.mul(scale).add(yv.mul(beta)), yo);
+            }
+        }
+    }
+
+    void sxpbyF16F32_512(float beta, Float16BufferTensor x, FloatBufferTensor y, int xoffset, int yoffset, int limit) {
+        int upperBound = FloatVector.SPECIES_512.loopBound(limit);
+        Preconditions.checkArgument(upperBound == limit);
+
+        int xo = xoffset;
+        int yo = yoffset;
+        int len = FloatVector.SPECIES_512.length();
+
+        for (; xo < (xoffset + upperBound) && yo < (yoffset + upperBound); xo += len, yo += len) {
+            var xv = f16ToF32_512(x.getVector(ShortVector.SPECIES_256, xo));
+            var yv = y.getVector(FloatVector.SPECIES_512, yo);
+            y.intoTensor(xv.add(yv.mul(beta)), yo);
+        }
+    }
+
+    void sxpbyF16F32_256(float beta, Float16BufferTensor x, FloatBufferTensor y, int xoffset, int yoffset, int limit) {
+        int upperBound = FloatVector.SPECIES_256.loopBound(limit);
+        Preconditions.checkArgument(upperBound == limit);
+
+        int xo = xoffset;
+        int yo = yoffset;
+        int len = FloatVector.SPECIES_256.length();
+
+        for (; xo < (xoffset + upperBound) && yo < (yoffset + upperBound); xo += len, yo += len) {
+            var xv = f16ToF32_256(x.getVector(ShortVector.SPECIES_128, xo));
+            var yv = y.getVector(FloatVector.SPECIES_256, yo);
+            y.intoTensor(xv.add(yv.mul(beta)), yo);
+        }
+    }
+
+    void saxpyBF16F32_512(float alpha, BFloat16BufferTensor x, FloatBufferTensor y, int xoffset, int yoffset, int limit) {
+        int upperBound = FloatVector.SPECIES_512.loopBound(limit);
+        Preconditions.checkArgument(upperBound == limit);
+
+        int xo = xoffset;
+        int yo = yoffset;
+        int len = FloatVector.SPECIES_512.length();
+
+        for (; xo < (xoffset + upperBound) && yo < (yoffset + upperBound); xo += len, yo += len) {
+            //Convert BF16 to F32
+            var xv = x.getVector(ShortVector.SPECIES_256, xo)
+                    .convertShape(VectorOperators.S2I, IntVector.SPECIES_512, 0)
+                    .lanewise(VectorOperators.LSHL, BF16_BYTE_SHIFT_512)
+                    .reinterpretAsFloats();
+
+            var yv = y.getVector(FloatVector.SPECIES_512, yo);
+            y.intoTensor(xv.mul(alpha).add(yv), yo);
+        }
+    }
+
+    void saxpyBF16F32_256(float alpha, BFloat16BufferTensor x, FloatBufferTensor y, int xoffset, int yoffset, int limit) {
+        int upperBound = FloatVector.SPECIES_256.loopBound(limit);
+        Preconditions.checkArgument(upperBound == limit);
+
+        int xo = xoffset;
+        int yo = yoffset;
+        int len = FloatVector.SPECIES_256.length();
+
+        for (; xo < (xoffset + upperBound) && yo < (yoffset + upperBound); xo += len, yo += len) {
+            //Convert BF16 to F32
+            var xv = x.getVector(ShortVector.SPECIES_128, xo)
+                    .convertShape(VectorOperators.S2I, IntVector.SPECIES_256, 0)
+                    .lanewise(VectorOperators.LSHL, BF16_BYTE_SHIFT_256)
+                    .reinterpretAsFloats();
+
+            var yv = y.getVector(FloatVector.SPECIES_256, yo);
+            y.intoTensor(xv.mul(alpha).add(yv), yo);
+        }
+    }
+
+    void sxpbyBF16F32_512(float beta, BFloat16BufferTensor x, FloatBufferTensor y, int xoffset, int yoffset, int limit) {
+        int upperBound = FloatVector.SPECIES_512.loopBound(limit);
+        Preconditions.checkArgument(upperBound == limit);
+
+        int xo = xoffset;
+        int yo = yoffset;
+        int len = FloatVector.SPECIES_512.length();
+
+        for (; xo < (xoffset + upperBound) && yo < (yoffset + upperBound); xo += len, yo += len) {
+            //Convert BF16 to F32
+            var xv = x.getVector(ShortVector.SPECIES_256, xo)
+                    .convertShape(VectorOperators.S2I, IntVector.SPECIES_512, 0)
+                    .lanewise(VectorOperators.LSHL, BF16_BYTE_SHIFT_512)
+                    .reinterpretAsFloats();
+
+            var yv = y.getVector(FloatVector.SPECIES_512, yo);
+            y.intoTensor(xv.add(yv.mul(beta)), yo);
+        }
+    }
+
+    void sxpbyBF16F32_256(float beta, BFloat16BufferTensor x, FloatBufferTensor y, int xoffset, int yoffset, int limit) {
+        int upperBound = FloatVector.SPECIES_256.loopBound(limit);
+        Preconditions.checkArgument(upperBound == limit);
+
+        int xo = xoffset;
+        int yo = yoffset;
+        int len = FloatVector.SPECIES_256.length();
+
+        for (; xo < (xoffset + upperBound) && yo < (yoffset + upperBound); xo += len, yo += len) {
+            //Convert BF16 to F32
+            var xv = x.getVector(ShortVector.SPECIES_128, xo)
+                    .convertShape(VectorOperators.S2I, IntVector.SPECIES_256, 0)
+                    .lanewise(VectorOperators.LSHL, BF16_BYTE_SHIFT_256)
+                    .reinterpretAsFloats();
+
+            var yv = y.getVector(FloatVector.SPECIES_256, yo);
+            y.intoTensor(xv.add(yv.mul(beta)), yo);
+        }
+    }
 }
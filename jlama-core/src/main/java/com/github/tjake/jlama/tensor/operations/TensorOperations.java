@@ -18,6 +18,29 @@ public interface TensorOperations
 
     float dotProduct(AbstractTensor a, AbstractTensor b, int aoffset, int boffset, int limit);
 
+    /**
+     * Batched matrix-vector products against rows [rowStart, rowEnd) of the weight matrix b.
+     * For each activation a[j] with j in [batchStart, batchEnd), result[j] at resultOffset + i is set to
+     * the dot product of a[j] and row i over limit values.
+     *
+     * Implementations walk the rows a few at a time so each load of the activations is used by all of them.
+     */
+    default void matmul(AbstractTensor[] a, int batchStart, int batchEnd, AbstractTensor b, int rowStart, int rowEnd, AbstractTensor[] result, int resultOffset, int limit) {
+        Preconditions.checkArgument(b.dims() == 2);
+        for (int i = rowStart; i < rowEnd; i++) {
+            AbstractTensor row = b.slice(i);
+            for (int j = batchStart; j < batchEnd; j++)
+                result[j].set(dotProduct(a[j], row, limit), resultOffset + i);
+        }
+    }
+
+    /**
+     * A single activation against rows [rowStart, rowEnd) of b, see {@link #matmul}
+     */
+    default void gemv(AbstractTensor a, AbstractTensor b, int rowStart, int rowEnd, AbstractTensor result, int resultOffset, int limit) {
+        matmul(new AbstractTensor[]{a}, 0, 1, b, rowStart, rowEnd, new AbstractTensor[]{result}, resultOffset, limit);
+    }
+
     /**
      * For each position in the tensor, add a to b.  Must be same size.
      */
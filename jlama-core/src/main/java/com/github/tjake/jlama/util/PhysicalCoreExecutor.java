@@ -28,6 +28,10 @@ public class PhysicalCoreExecutor {
         this.pool = new ForkJoinPool(cores);
     }
 
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
     public void execute(Runnable run) {
         pool.submit(run).join();
     }
@@ -0,0 +1,42 @@
+#include <cpuid.h>
+#include "vector_simd.h"
+
+// Built without any ISA flags in every variant of the library, so the loader can call it on any x86 CPU
+int cpu_features() {
+    unsigned int eax, ebx, ecx, edx;
+    if (!__get_cpuid(1, &eax, &ebx, &ecx, &edx) || (ecx & bit_OSXSAVE) == 0)
+        return 0;
+
+    int f16c = (ecx & bit_F16C) != 0;
+    int fma = (ecx & bit_FMA) != 0;
+
+    // The OS has to save the ymm and zmm registers too, not just the CPU have them
+    unsigned int xcr0_lo, xcr0_hi;
+    __asm__ volatile("xgetbv" : "=a"(xcr0_lo), "=d"(xcr0_hi) : "c"(0));
+    int ymm = (xcr0_lo & 0x6) == 0x6;
+    int zmm = (xcr0_lo & 0xE6) == 0xE6;
+
+    int flags = 0;
+    if (ymm && f16c)
+        flags |= HAS_F16C;
+
+    if (__get_cpuid_count(7, 0, &eax, &ebx, &ecx, &edx)) {
+        if (ymm && fma && (ebx & bit_AVX2))
+            flags |= HAS_AVX2_FMA;
+
+        int avx512 = zmm && (ebx & bit_AVX512F) && (ebx & bit_AVX512BW) && (ebx & bit_AVX512VL) && (ebx & bit_AVX512DQ);
+        if (avx512)
+            flags |= HAS_AVX512;
+
+        if (avx512 && (ecx & bit_AVX512VNNI))
+            flags |= HAS_AVX512_VNNI;
+    }
+
+    if (__get_cpuid_count(7, 1, &eax, &ebx, &ecx, &edx)) {
+        // AVX-VNNI, the VEX encoded instructions on cores without AVX-512
+        if (ymm && (eax & (1 << 4)))
+            flags |= HAS_AVX_VNNI;
+    }
+
+    return flags;
+}
@@ -2,6 +2,7 @@
 #include <immintrin.h>
 #include <inttypes.h>
 #include <math.h>
+#include <string.h>
 #include "vector_simd.h"
 
 // https://github.com/Maratyszcza/FP16
@@ -113,8 +114,8 @@ float dot_product_f16_f16c_512(const short* a, int aoffset, const short* b, int
 
     for(; ao < alim && bo < blim; ao += 16, bo += 16) {
         // Load and convert float16 data to float32 using F16C
-        __m512 va = _mm512_cvtph_ps(_mm256_load_si256((__m256i const*)(a + ao)));
-        __m512 vb = _mm512_cvtph_ps(_mm256_load_si256((__m256i const*)(b + bo)));
+        __m512 va = _mm512_cvtph_ps(_mm256_loadu_si256((__m256i const*)(a + ao)));
+        __m512 vb = _mm512_cvtph_ps(_mm256_loadu_si256((__m256i const*)(b + bo)));
 
         // Multiply and accumulate
         sum = _mm512_fmadd_ps(va, vb, sum);
@@ -122,7 +123,7 @@ float dot_product_f16_f16c_512(const short* a, int aoffset, const short* b, int
 
     // Horizontal sum of the vector to get dot product
     float result[16];
-    _mm512_store_ps(result, sum);
+    _mm512_storeu_ps(result, sum);
 
     float dot = 0.0;
     for(int i = 0; i < 16; ++i) {
@@ -154,8 +155,8 @@ float dot_product_f16_256(const short* a, int aoffset, const short* b, int boffs
             btmp[i] = f16_to_f32(*(b + bo + i));
         }
 
-        __m256 va = _mm256_load_ps(atmp);
-        __m256 vb = _mm256_load_ps(btmp);
+        __m256 va = _mm256_loadu_ps(atmp);
+        __m256 vb = _mm256_loadu_ps(btmp);
 
         // Multiply and accumulate
         sum = _mm256_fmadd_ps(va, vb, sum);
@@ -163,7 +164,7 @@ float dot_product_f16_256(const short* a, int aoffset, const short* b, int boffs
 
     // Horizontal sum of the vector to get dot product
     float result[8];
-    _mm256_store_ps(result, sum);
+    _mm256_storeu_ps(result, sum);
 
     float dot = 0.0;
     for(int i = 0; i < 8; ++i) {
@@ -218,11 +219,11 @@ float dot_product_f16_512(const short* a, int aoffset, const short* b, int boffs
 
 float dot_product_f16(int flags, const short* a, int aoffset, const short* b, int boffset, int length) {
     if ( (flags & HAS_F16C) != 0 ) {
-       return ((flags & HAS_AVX2) != 0)
+       return ((flags & HAS_AVX512) != 0)
                ? dot_product_f16_f16c_512(a, aoffset, b, boffset, length)
                : dot_product_f16_f16c_256(a, aoffset, b, boffset, length);
     } else {
-       return ((flags & HAS_AVX2) != 0)
+       return ((flags & HAS_AVX512) != 0)
                    ? dot_product_f16_512(a, aoffset, b, boffset, length)
                    : dot_product_f16_256(a, aoffset, b, boffset, length);
     }
@@ -339,7 +340,7 @@ float dot_product_f16_q8_256(const short* a, int aoffset, const float *bf, const
         for(int i = 0; i < 8; i++) {
             atmp[i] = f16_to_f32(*(a + ao + i));
         }
-        __m256 va = _mm256_load_ps(atmp);
+        __m256 va = _mm256_loadu_ps(atmp);
 
         // Load 8 bytes into a 128-bit integer register
         __m128i int_vb = _mm_loadu_si128((__m128i const*)(b + bo));
@@ -388,7 +389,7 @@ float dot_product_f16_q8_512(const short* a, int aoffset, const float *bf, const
         for(int i = 0; i < 16; i++) {
             atmp[i] = f16_to_f32(*(a + ao + i));
         }
-        __m512 va = _mm512_load_ps(atmp);
+        __m512 va = _mm512_loadu_ps(atmp);
 
         // Load 16 bytes into a 256-bit integer register
         __m128i int_vb = _mm_loadu_si128((__m128i const*)(b + bo));
@@ -424,11 +425,11 @@ float dot_product_f16_q8_512(const short* a, int aoffset, const float *bf, const
 
 float dot_product_f16_q8(int flags, const short* a, int aoffset, const float *bf, const char* b, int boffset, int length) {
     if ( (flags & HAS_F16C) != 0 ) {
-       return ((flags & HAS_AVX2) != 0)
+       return ((flags & HAS_AVX512) != 0)
                ? dot_product_f16_q8_f16c_512(a, aoffset, bf, b, boffset, length)
                : dot_product_f16_q8_f16c_256(a, aoffset, bf, b, boffset, length);
     } else {
-       return ((flags & HAS_AVX2) != 0)
+       return ((flags & HAS_AVX512) != 0)
                    ? dot_product_f16_q8_512(a, aoffset, bf, b, boffset, length)
                    : dot_product_f16_q8_256(a, aoffset, bf, b, boffset, length);
     }
@@ -436,7 +437,7 @@ float dot_product_f16_q8(int flags, const short* a, int aoffset, const float *bf
 
 
 float dot_product_f16_q4(int flags, const short* a, int aoffset, const float *bf, const char* b, int boffset, int length) {
-    return 0.0f;
+    return dot_product_widened(flags, DTYPE_F16, NULL, a, aoffset, DTYPE_Q4, bf, NULL, b, boffset, length);
 }
 
 float dot_product_f32_q8_256(const float* a, int aoffset, const float *bf, const char* b, int boffset, int length) {
@@ -453,7 +454,7 @@ float dot_product_f32_q8_256(const float* a, int aoffset, const float *bf, const
         __m256 vb_f32 = _mm256_set1_ps(*(bf + bf_idx));
 
         // Load float32
-        __m256 va = _mm256_load_ps(a + ao);
+        __m256 va = _mm256_loadu_ps(a + ao);
 
         // Load 8 bytes into a 128-bit integer register
         __m128i int_vb = _mm_loadu_si128((__m128i const*)(b + bo));
@@ -499,7 +500,7 @@ float dot_product_f32_q8_512(const float* a, int aoffset, const float *bf, const
         __m512 vb_f32 = _mm512_set1_ps(*(bf + bf_idx));
 
         // Load float32
-        __m512 va = _mm512_load_ps(a + ao);
+        __m512 va = _mm512_loadu_ps(a + ao);
 
         // Load 16 bytes into a 256-bit integer register
         __m128i int_vb = _mm_loadu_si128((__m128i const*)(b + bo));
@@ -535,7 +536,7 @@ float dot_product_f32_q8_512(const float* a, int aoffset, const float *bf, const
 
 
 float dot_product_f32_q8(int flags, const float* a, int aoffset, const float *bf, const char* b, int boffset, int length) {
-    return ((flags & HAS_AVX2) != 0)
+    return ((flags & HAS_AVX512) != 0)
            ? dot_product_f32_q8_512(a, aoffset, bf, b, boffset, length)
            : dot_product_f32_q8_256(a, aoffset, bf, b, boffset, length);
 }
@@ -605,7 +606,7 @@ float dot_product_f32_512(const float* a, int aoffset, const float* b, int boffs
 }
 
 float dot_product_f32(int flags, const float* a, int aoffset, const float* b, int boffset, int length) {
-    return ((flags & HAS_AVX2) != 0)
+    return ((flags & HAS_AVX512) != 0)
            ? dot_product_f32_512(a, aoffset, b, boffset, length)
            : dot_product_f32_256(a, aoffset, b, boffset, length);
 }
@@ -618,21 +619,21 @@ float dot_product_f32_q4_256(const float* a, int aoffset, const float *bf, const
     int alim = aoffset + length;
     int blim = boffset + length;
 
-    // perform a block at a time
-    for(; ao < alim && bo < blim; ao += 32, bo += 16) {
-        int bf_idx = (bo*2) / Q4_BLOCK_SIZE;
+    // perform a block at a time, boffset is in values like the other kernels
+    for(; ao < alim && bo < blim; ao += Q4_BLOCK_SIZE, bo += Q4_BLOCK_SIZE) {
+        int bf_idx = bo / Q4_BLOCK_SIZE;
         // broadcast the float32 version of 'factor' to all elements
         __m256 vb_f32 = _mm256_set1_ps(*(bf + bf_idx));
 
         // Load float32
-        __m256 va0 = _mm256_load_ps(a + ao);
-        __m256 va1 = _mm256_load_ps(a + ao + 8);
-        __m256 va2 = _mm256_load_ps(a + ao + 8 + 8);
-        __m256 va3 = _mm256_load_ps(a + ao + 8 + 8 + 8);
+        __m256 va0 = _mm256_loadu_ps(a + ao);
+        __m256 va1 = _mm256_loadu_ps(a + ao + 8);
+        __m256 va2 = _mm256_loadu_ps(a + ao + 8 + 8);
+        __m256 va3 = _mm256_loadu_ps(a + ao + 8 + 8 + 8);
 
         // Load 8 bytes into a 128-bit integer register
-        __m128i int_vb0 = _mm_loadl_epi64((__m128i const*)(b + bo)); // Load lower 64 bits
-        __m128i int_vb1 = _mm_loadl_epi64((__m128i const*)(b + bo + 8)); // Load lower 64 bits
+        __m128i int_vb0 = _mm_loadl_epi64((__m128i const*)(b + bo / 2)); // Load lower 64 bits
+        __m128i int_vb1 = _mm_loadl_epi64((__m128i const*)(b + bo / 2 + 8)); // Load lower 64 bits
 
         // Mask to keep the first 4 bits of each byte
         __m128i mask_first_4bits = _mm_set1_epi8(0xF);
@@ -685,7 +686,7 @@ float dot_product_f32_q4_256(const float* a, int aoffset, const float *bf, const
 
     // Horizontal sum of the vector to get dot product
     __attribute__((aligned(16))) float result[8];
-    _mm256_store_ps(result, sum);
+    _mm256_storeu_ps(result, sum);
 
     float dot = 0.0;
     for(int i = 0; i < 8; ++i) {
@@ -704,18 +705,18 @@ float dot_product_f32_q4_512(const float* a, int aoffset, const float *bf, const
     int alim = aoffset + length;
     int blim = boffset + length;
 
-    // perform a block at a time
-    for(; ao < alim && bo < blim; ao += 32, bo += 16) {
-        int bf_idx = (bo*2) / Q4_BLOCK_SIZE;
+    // perform a block at a time, boffset is in values like the other kernels
+    for(; ao < alim && bo < blim; ao += Q4_BLOCK_SIZE, bo += Q4_BLOCK_SIZE) {
+        int bf_idx = bo / Q4_BLOCK_SIZE;
         // broadcast the float32 version of 'factor' to all elements
         __m512 vb_f32 = _mm512_set1_ps(*(bf + bf_idx));
 
         // Load float32
-        __m512 va0 = _mm512_load_ps(a + ao);
-        __m512 va1 = _mm512_load_ps(a + ao + 16);
+        __m512 va0 = _mm512_loadu_ps(a + ao);
+        __m512 va1 = _mm512_loadu_ps(a + ao + 16);
 
         // Load 8 bytes into a 128-bit integer register
-        __m128i int_vb0 = _mm_load_si128((__m128i const*)(b + bo)); // Load 128 bits
+        __m128i int_vb0 = _mm_loadu_si128((__m128i const*)(b + bo / 2)); // Load 128 bits
 
         // Mask to keep the first 4 bits of each byte
         __m128i mask_first_4bits = _mm_set1_epi8(0xF);
@@ -754,7 +755,7 @@ float dot_product_f32_q4_512(const float* a, int aoffset, const float *bf, const
 
     // Horizontal sum of the vector to get dot product
     __attribute__((aligned(16))) float result[16];
-    _mm512_store_ps(result, sum);
+    _mm512_storeu_ps(result, sum);
 
     float dot = 0.0;
     for(int i = 0; i < 16; ++i) {
@@ -768,7 +769,1567 @@ float dot_product_f32_q4_512(const float* a, int aoffset, const float *bf, const
 }
 
 float dot_product_f32_q4(int flags, const float* a, int aoffset, const float *bf, const char* b, int boffset, int length) {
-    return ((flags & HAS_AVX2) != 0)
+    return ((flags & HAS_AVX512) != 0)
            ? dot_product_f32_q4_512(a, aoffset, bf, b, boffset, length)
            : dot_product_f32_q4_256(a, aoffset, bf, b, boffset, length);
 }
+
+static inline float f16_at(const uint8_t* p) {
+    short h;
+    memcpy(&h, p, sizeof(h));
+    return f16_to_f32(h);
+}
+
+// The 6 bit scale and min of sub-block j of a Q4_K super-block
+static inline void q4k_scale_min(int j, const uint8_t* scales, int* sc, int* m) {
+    if (j < 4) {
+        *sc = scales[j] & 63;
+        *m = scales[j + 4] & 63;
+    } else {
+        *sc = (scales[j + 4] & 0xF) | ((scales[j - 4] >> 6) << 4);
+        *m = (scales[j + 4] >> 4) | ((scales[j] >> 6) << 4);
+    }
+}
+
+float dot_product_f32_q4k_256(const float* a, int aoffset, const char* b, int boffset, int length) {
+    __m256 sum = _mm256_setzero_ps();
+    __m128i mask_first_4bits = _mm_set1_epi8(0xF);
+
+    // perform a super-block at a time
+    for (int i = 0; i < length; i += QK_K) {
+        const uint8_t* block = (const uint8_t*)b + ((boffset + i) / QK_K) * Q4_K_BLOCK_BYTES;
+        float d = f16_at(block);
+        float dmin = f16_at(block + 2);
+        const uint8_t* q = block + 16;
+        const float* ap = a + aoffset + i;
+
+        // each 32 bytes hold two sub-blocks, the first in the low nibbles
+        for (int j = 0; j < 8; j += 2, q += 32, ap += 64) {
+            int sc0, m0, sc1, m1;
+            q4k_scale_min(j, block + 4, &sc0, &m0);
+            q4k_scale_min(j + 1, block + 4, &sc1, &m1);
+
+            __m256 scale0 = _mm256_set1_ps(d * sc0);
+            __m256 min0 = _mm256_set1_ps(-dmin * m0);
+            __m256 scale1 = _mm256_set1_ps(d * sc1);
+            __m256 min1 = _mm256_set1_ps(-dmin * m1);
+
+            for (int l = 0; l < 32; l += 8) {
+                __m128i bytes = _mm_loadl_epi64((__m128i const*)(q + l));
+                __m128i first_4bits = _mm_and_si128(bytes, mask_first_4bits);
+                __m128i last_4bits = _mm_and_si128(_mm_srli_epi16(bytes, 4), mask_first_4bits);
+
+                __m256 w0 = _mm256_fmadd_ps(_mm256_cvtepi32_ps(_mm256_cvtepu8_epi32(first_4bits)), scale0, min0);
+                __m256 w1 = _mm256_fmadd_ps(_mm256_cvtepi32_ps(_mm256_cvtepu8_epi32(last_4bits)), scale1, min1);
+
+                sum = _mm256_fmadd_ps(_mm256_loadu_ps(ap + l), w0, sum);
+                sum = _mm256_fmadd_ps(_mm256_loadu_ps(ap + 32 + l), w1, sum);
+            }
+        }
+    }
+
+    // Horizontal sum of the vector to get dot product
+    __attribute__((aligned(16))) float result[8];
+    _mm256_storeu_ps(result, sum);
+
+    float dot = 0.0;
+    for(int i = 0; i < 8; ++i) {
+        dot += result[i];
+    }
+
+    return dot;
+}
+
+float dot_product_f32_q4k_512(const float* a, int aoffset, const char* b, int boffset, int length) {
+#if defined(__AVX512F__)
+    __m512 sum = _mm512_setzero_ps();
+    __m128i mask_first_4bits = _mm_set1_epi8(0xF);
+
+    // perform a super-block at a time
+    for (int i = 0; i < length; i += QK_K) {
+        const uint8_t* block = (const uint8_t*)b + ((boffset + i) / QK_K) * Q4_K_BLOCK_BYTES;
+        float d = f16_at(block);
+        float dmin = f16_at(block + 2);
+        const uint8_t* q = block + 16;
+        const float* ap = a + aoffset + i;
+
+        // each 32 bytes hold two sub-blocks, the first in the low nibbles
+        for (int j = 0; j < 8; j += 2, q += 32, ap += 64) {
+            int sc0, m0, sc1, m1;
+            q4k_scale_min(j, block + 4, &sc0, &m0);
+            q4k_scale_min(j + 1, block + 4, &sc1, &m1);
+
+            __m512 scale0 = _mm512_set1_ps(d * sc0);
+            __m512 min0 = _mm512_set1_ps(-dmin * m0);
+            __m512 scale1 = _mm512_set1_ps(d * sc1);
+            __m512 min1 = _mm512_set1_ps(-dmin * m1);
+
+            for (int l = 0; l < 32; l += 16) {
+                __m128i bytes = _mm_loadu_si128((__m128i const*)(q + l));
+                __m128i first_4bits = _mm_and_si128(bytes, mask_first_4bits);
+                __m128i last_4bits = _mm_and_si128(_mm_srli_epi16(bytes, 4), mask_first_4bits);
+
+                __m512 w0 = _mm512_fmadd_ps(_mm512_cvtepi32_ps(_mm512_cvtepu8_epi32(first_4bits)), scale0, min0);
+                __m512 w1 = _mm512_fmadd_ps(_mm512_cvtepi32_ps(_mm512_cvtepu8_epi32(last_4bits)), scale1, min1);
+
+                sum = _mm512_fmadd_ps(_mm512_loadu_ps(ap + l), w0, sum);
+                sum = _mm512_fmadd_ps(_mm512_loadu_ps(ap + 32 + l), w1, sum);
+            }
+        }
+    }
+
+    return _mm512_reduce_add_ps(sum);
+#else
+    return dot_product_f32_q4k_256(a, aoffset, b, boffset, length);
+#endif
+}
+
+float dot_product_f32_q4k(int flags, const float* a, int aoffset, const char* b, int boffset, int length) {
+    return ((flags & HAS_AVX512) != 0)
+           ? dot_product_f32_q4k_512(a, aoffset, b, boffset, length)
+           : dot_product_f32_q4k_256(a, aoffset, b, boffset, length);
+}
+
+// The four quarters of each half of a Q6_K super-block, from the nibbles of 64 bytes and 2 bit pairs of 32 more
+static inline void q6k_unpack(__m128i low0, __m128i low1, __m128i high, __m128i* q) {
+    __m128i mask_first_4bits = _mm_set1_epi8(0xF);
+    __m128i mask_2bits = _mm_set1_epi8(3);
+    __m128i thirty_two = _mm_set1_epi8(32);
+
+    q[0] = _mm_or_si128(_mm_and_si128(low0, mask_first_4bits), _mm_slli_epi16(_mm_and_si128(high, mask_2bits), 4));
+    q[1] = _mm_or_si128(_mm_and_si128(low1, mask_first_4bits), _mm_slli_epi16(_mm_and_si128(_mm_srli_epi16(high, 2), mask_2bits), 4));
+    q[2] = _mm_or_si128(_mm_and_si128(_mm_srli_epi16(low0, 4), mask_first_4bits), _mm_slli_epi16(_mm_and_si128(_mm_srli_epi16(high, 4), mask_2bits), 4));
+    q[3] = _mm_or_si128(_mm_and_si128(_mm_srli_epi16(low1, 4), mask_first_4bits), _mm_slli_epi16(_mm_and_si128(_mm_srli_epi16(high, 6), mask_2bits), 4));
+
+    for (int k = 0; k < 4; k++)
+        q[k] = _mm_sub_epi8(q[k], thirty_two);
+}
+
+float dot_product_f32_q6k_256(const float* a, int aoffset, const char* b, int boffset, int length) {
+    __m256 sum = _mm256_setzero_ps();
+
+    // perform a super-block at a time
+    for (int i = 0; i < length; i += QK_K) {
+        const uint8_t* block = (const uint8_t*)b + ((boffset + i) / QK_K) * Q6_K_BLOCK_BYTES;
+        float d = f16_at(block + 208);
+
+        for (int n = 0; n < 2; n++) {
+            const uint8_t* ql = block + n * 64;
+            const uint8_t* qh = block + 128 + n * 32;
+            const int8_t* sc = (const int8_t*)(block + 192 + n * 8);
+            const float* ap = a + aoffset + i + n * 128;
+
+            for (int l = 0; l < 32; l += 8) {
+                int is = l / 16;
+                __m128i q[4];
+                q6k_unpack(_mm_loadl_epi64((__m128i const*)(ql + l)),
+                           _mm_loadl_epi64((__m128i const*)(ql + 32 + l)),
+                           _mm_loadl_epi64((__m128i const*)(qh + l)), q);
+
+                for (int k = 0; k < 4; k++) {
+                    __m256 w = _mm256_mul_ps(_mm256_cvtepi32_ps(_mm256_cvtepi8_epi32(q[k])), _mm256_set1_ps(d * sc[is + 2 * k]));
+                    sum = _mm256_fmadd_ps(_mm256_loadu_ps(ap + 32 * k + l), w, sum);
+                }
+            }
+        }
+    }
+
+    // Horizontal sum of the vector to get dot product
+    __attribute__((aligned(16))) float result[8];
+    _mm256_storeu_ps(result, sum);
+
+    float dot = 0.0;
+    for(int i = 0; i < 8; ++i) {
+        dot += result[i];
+    }
+
+    return dot;
+}
+
+float dot_product_f32_q6k_512(const float* a, int aoffset, const char* b, int boffset, int length) {
+#if defined(__AVX512F__)
+    __m512 sum = _mm512_setzero_ps();
+
+    // perform a super-block at a time
+    for (int i = 0; i < length; i += QK_K) {
+        const uint8_t* block = (const uint8_t*)b + ((boffset + i) / QK_K) * Q6_K_BLOCK_BYTES;
+        float d = f16_at(block + 208);
+
+        for (int n = 0; n < 2; n++) {
+            const uint8_t* ql = block + n * 64;
+            const uint8_t* qh = block + 128 + n * 32;
+            const int8_t* sc = (const int8_t*)(block + 192 + n * 8);
+            const float* ap = a + aoffset + i + n * 128;
+
+            for (int l = 0; l < 32; l += 16) {
+                int is = l / 16;
+                __m128i q[4];
+                q6k_unpack(_mm_loadu_si128((__m128i const*)(ql + l)),
+                           _mm_loadu_si128((__m128i const*)(ql + 32 + l)),
+                           _mm_loadu_si128((__m128i const*)(qh + l)), q);
+
+                for (int k = 0; k < 4; k++) {
+                    __m512 w = _mm512_mul_ps(_mm512_cvtepi32_ps(_mm512_cvtepi8_epi32(q[k])), _mm512_set1_ps(d * sc[is + 2 * k]));
+                    sum = _mm512_fmadd_ps(_mm512_loadu_ps(ap + 32 * k + l), w, sum);
+                }
+            }
+        }
+    }
+
+    return _mm512_reduce_add_ps(sum);
+#else
+    return dot_product_f32_q6k_256(a, aoffset, b, boffset, length);
+#endif
+}
+
+float dot_product_f32_q6k(int flags, const float* a, int aoffset, const char* b, int boffset, int length) {
+    return ((flags & HAS_AVX512) != 0)
+           ? dot_product_f32_q6k_512(a, aoffset, b, boffset, length)
+           : dot_product_f32_q6k_256(a, aoffset, b, boffset, length);
+}
+
+// Sums the products of each 4 adjacent signed bytes of a and b as 8 ints
+static inline __m256i mul_sum_i8_pairs(__m256i a, __m256i b) {
+    // maddubs wants one side unsigned, so move the sign of b onto a
+    __m256i abs_b = _mm256_sign_epi8(b, b);
+    __m256i signed_a = _mm256_sign_epi8(a, b);
+    return _mm256_madd_epi16(_mm256_maddubs_epi16(abs_b, signed_a), _mm256_set1_epi16(1));
+}
+
+// The 32 values of a Q5 block as signed bytes, low nibbles first then high nibbles, less 16 unless the 5th bit is set
+static inline __m256i q5_unpack(const char* b, int qh) {
+    __m128i packed = _mm_loadu_si128((__m128i const*)b);
+    __m128i mask_first_4bits = _mm_set1_epi8(0xF);
+    __m256i q = _mm256_set_m128i(_mm_and_si128(_mm_srli_epi16(packed, 4), mask_first_4bits),
+                                 _mm_and_si128(packed, mask_first_4bits));
+
+    // Spread bit i of qh to byte i, 0xFF where it's set
+    __m256i spread = _mm256_shuffle_epi8(_mm256_set1_epi32(qh),
+                                         _mm256_set_epi64x(0x0303030303030303, 0x0202020202020202, 0x0101010101010101, 0x0000000000000000));
+    __m256i bits = _mm256_cmpeq_epi8(_mm256_or_si256(spread, _mm256_set1_epi64x(0x7fbfdfeff7fbfdfe)), _mm256_set1_epi8(-1));
+
+    // q | 0xF0 is q - 16 as a signed byte
+    return _mm256_or_si256(q, _mm256_andnot_si256(bits, _mm256_set1_epi8((char)0xF0)));
+}
+
+float dot_product_f32_q5_256(const float* a, int aoffset, const float *bf, const int* bh, const char* b, int boffset, int length) {
+    __m256 sum = _mm256_setzero_ps();
+
+    int ao = aoffset;
+    int bo = boffset;
+    int alim = aoffset + length;
+
+    // perform a block at a time
+    for(; ao < alim; ao += Q5_BLOCK_SIZE, bo += Q5_BLOCK_SIZE) {
+        int b_idx = bo / Q5_BLOCK_SIZE;
+        __m256 vb_f32 = _mm256_set1_ps(bf[b_idx]);
+
+        __m256i q = q5_unpack(b + bo / 2, bh[b_idx]);
+        __m128i q0 = _mm256_castsi256_si128(q);
+        __m128i q1 = _mm256_extracti128_si256(q, 1);
+
+        __m256 block = _mm256_mul_ps(_mm256_loadu_ps(a + ao), _mm256_cvtepi32_ps(_mm256_cvtepi8_epi32(q0)));
+        block = _mm256_fmadd_ps(_mm256_loadu_ps(a + ao + 8), _mm256_cvtepi32_ps(_mm256_cvtepi8_epi32(_mm_srli_si128(q0, 8))), block);
+        block = _mm256_fmadd_ps(_mm256_loadu_ps(a + ao + 16), _mm256_cvtepi32_ps(_mm256_cvtepi8_epi32(q1)), block);
+        block = _mm256_fmadd_ps(_mm256_loadu_ps(a + ao + 24), _mm256_cvtepi32_ps(_mm256_cvtepi8_epi32(_mm_srli_si128(q1, 8))), block);
+
+        sum = _mm256_fmadd_ps(vb_f32, block, sum);
+    }
+
+    // Horizontal sum of the vector to get dot product
+    __attribute__((aligned(16))) float result[8];
+    _mm256_storeu_ps(result, sum);
+
+    float dot = 0.0;
+    for(int i = 0; i < 8; ++i) {
+        dot += result[i];
+    }
+
+    return dot;
+}
+
+float dot_product_f32_q5_512(const float* a, int aoffset, const float *bf, const int* bh, const char* b, int boffset, int length) {
+#if defined(__AVX512F__)
+    __m512 sum = _mm512_setzero_ps();
+
+    int ao = aoffset;
+    int bo = boffset;
+    int alim = aoffset + length;
+
+    // perform a block at a time
+    for(; ao < alim; ao += Q5_BLOCK_SIZE, bo += Q5_BLOCK_SIZE) {
+        int b_idx = bo / Q5_BLOCK_SIZE;
+        __m512 vb_f32 = _mm512_set1_ps(bf[b_idx]);
+
+        __m256i q = q5_unpack(b + bo / 2, bh[b_idx]);
+
+        __m512 block = _mm512_mul_ps(_mm512_loadu_ps(a + ao), _mm512_cvtepi32_ps(_mm512_cvtepi8_epi32(_mm256_castsi256_si128(q))));
+        block = _mm512_fmadd_ps(_mm512_loadu_ps(a + ao + 16), _mm512_cvtepi32_ps(_mm512_cvtepi8_epi32(_mm256_extracti128_si256(q, 1))), block);
+
+        sum = _mm512_fmadd_ps(vb_f32, block, sum);
+    }
+
+    return _mm512_reduce_add_ps(sum);
+#else
+    return dot_product_f32_q5_256(a, aoffset, bf, bh, b, boffset, length);
+#endif
+}
+
+float dot_product_f32_q5(int flags, const float* a, int aoffset, const float *bf, const int* bh, const char* b, int boffset, int length) {
+    return ((flags & HAS_AVX512) != 0)
+           ? dot_product_f32_q5_512(a, aoffset, bf, bh, b, boffset, length)
+           : dot_product_f32_q5_256(a, aoffset, bf, bh, b, boffset, length);
+}
+
+float dot_product_q8_q5_256(const float *af, const char* a, int aoffset, const float *bf, const int* bh, const char* b, int boffset, int length) {
+    __m256 sum = _mm256_setzero_ps();
+
+    int ao = aoffset;
+    int bo = boffset;
+    int alim = aoffset + length;
+
+    // perform a block at a time
+    for(; ao < alim; ao += Q5_BLOCK_SIZE, bo += Q5_BLOCK_SIZE) {
+        int b_idx = bo / Q5_BLOCK_SIZE;
+        __m256 scale = _mm256_set1_ps(af[ao / Q8_BLOCK_SIZE] * bf[b_idx]);
+
+        __m256i qa = _mm256_loadu_si256((__m256i const*)(a + ao));
+        __m256i qb = q5_unpack(b + bo / 2, bh[b_idx]);
+
+        sum = _mm256_fmadd_ps(scale, _mm256_cvtepi32_ps(mul_sum_i8_pairs(qa, qb)), sum);
+    }
+
+    // Horizontal sum of the vector to get dot product
+    __attribute__((aligned(16))) float result[8];
+    _mm256_storeu_ps(result, sum);
+
+    float dot = 0.0;
+    for(int i = 0; i < 8; ++i) {
+        dot += result[i];
+    }
+
+    return dot;
+}
+
+float dot_product_q8_q5(int flags, const float *af, const char* a, int aoffset, const float *bf, const int* bh, const char* b, int boffset, int length) {
+    // A block of 32 int8 pairs is one 256 bit register either way
+    return dot_product_q8_q5_256(af, a, aoffset, bf, bh, b, boffset, length);
+}
+
+static inline float sum_f32_256(__m256 v) {
+    __m128 s = _mm_add_ps(_mm256_castps256_ps128(v), _mm256_extractf128_ps(v, 1));
+    s = _mm_add_ps(s, _mm_movehl_ps(s, s));
+    s = _mm_add_ss(s, _mm_movehdup_ps(s));
+    return _mm_cvtss_f32(s);
+}
+
+// The 32 values of a Q4 block as signed bytes, low nibbles first then high nibbles
+static inline __m256i q4_unpack(const char* b) {
+    __m128i packed = _mm_loadu_si128((__m128i const*)b);
+    __m128i mask_first_4bits = _mm_set1_epi8(0xF);
+    __m256i q = _mm256_set_m128i(_mm_and_si128(_mm_srli_epi16(packed, 4), mask_first_4bits),
+                                 _mm_and_si128(packed, mask_first_4bits));
+    return _mm256_sub_epi8(q, _mm256_set1_epi8(8));
+}
+
+// VPDPBUSD multiplies unsigned by signed bytes and sums each 4 into an int, the kernels below are built
+// for it with target attributes so the library still builds, and runs, on CPUs without it
+#if (defined(__clang__) && __clang_major__ >= 12) || (!defined(__clang__) && defined(__GNUC__) && __GNUC__ >= 11)
+#define VNNI_TARGETS 1
+#define AVX_VNNI __attribute__((target("avx2,fma,avxvnni")))
+#define AVX512_VNNI __attribute__((target("avx512f,avx512bw,avx512vl,avx512vnni")))
+
+AVX_VNNI static inline __m256i mul_sum_i8_pairs_avxvnni(__m256i a, __m256i b) {
+    // Same trick as maddubs, the sign of b moves onto a, but no saturating 16 bit step
+    return _mm256_dpbusd_avx_epi32(_mm256_setzero_si256(), _mm256_sign_epi8(b, b), _mm256_sign_epi8(a, b));
+}
+
+AVX_VNNI float dot_product_q8_avxvnni_256(const float *af, const char* a, int aoffset, const float *bf, const char* b, int boffset, int length) {
+    __m256 sum = _mm256_setzero_ps();
+
+    for (int ao = aoffset, bo = boffset; ao < aoffset + length; ao += Q8_BLOCK_SIZE, bo += Q8_BLOCK_SIZE) {
+        __m256 scale = _mm256_set1_ps(af[ao / Q8_BLOCK_SIZE] * bf[bo / Q8_BLOCK_SIZE]);
+        __m256i qa = _mm256_loadu_si256((__m256i const*)(a + ao));
+        __m256i qb = _mm256_loadu_si256((__m256i const*)(b + bo));
+        sum = _mm256_fmadd_ps(scale, _mm256_cvtepi32_ps(mul_sum_i8_pairs_avxvnni(qa, qb)), sum);
+    }
+
+    return sum_f32_256(sum);
+}
+
+AVX_VNNI float dot_product_q8_q4_avxvnni_256(const float *af, const char* a, int aoffset, const float *bf, const char* b, int boffset, int length) {
+    __m256 sum = _mm256_setzero_ps();
+    __m128i mask_first_4bits = _mm_set1_epi8(0xF);
+    __m256i eight = _mm256_set1_epi8(8);
+
+    for (int ao = aoffset, bo = boffset; ao < aoffset + length; ao += Q4_BLOCK_SIZE, bo += Q4_BLOCK_SIZE) {
+        __m256 scale = _mm256_set1_ps(af[ao / Q8_BLOCK_SIZE] * bf[bo / Q4_BLOCK_SIZE]);
+        __m256i qa = _mm256_loadu_si256((__m256i const*)(a + ao));
+
+        // The nibbles are already the unsigned side, take the 8 back off as 8 * sum(a)
+        __m128i packed = _mm_loadu_si128((__m128i const*)(b + bo / 2));
+        __m256i qb = _mm256_set_m128i(_mm_and_si128(_mm_srli_epi16(packed, 4), mask_first_4bits),
+                                      _mm_and_si128(packed, mask_first_4bits));
+        __m256i dot = _mm256_sub_epi32(_mm256_dpbusd_avx_epi32(_mm256_setzero_si256(), qb, qa),
+                                       _mm256_dpbusd_avx_epi32(_mm256_setzero_si256(), eight, qa));
+
+        sum = _mm256_fmadd_ps(scale, _mm256_cvtepi32_ps(dot), sum);
+    }
+
+    return sum_f32_256(sum);
+}
+
+// Two blocks per register, an odd block at the end is loaded with the upper half masked off
+AVX512_VNNI static inline __m512 q8_scales_512(const float *af, int ao, const float *bf, int bo, int pair) {
+    __m512 s0 = _mm512_set1_ps(af[ao / Q8_BLOCK_SIZE] * bf[bo / Q8_BLOCK_SIZE]);
+    __m512 s1 = pair ? _mm512_set1_ps(af[ao / Q8_BLOCK_SIZE + 1] * bf[bo / Q8_BLOCK_SIZE + 1]) : _mm512_setzero_ps();
+    return _mm512_mask_blend_ps(0xFF00, s0, s1);
+}
+
+AVX512_VNNI float dot_product_q8_vnni_512(const float *af, const char* a, int aoffset, const float *bf, const char* b, int boffset, int length) {
+    __m512 sum = _mm512_setzero_ps();
+
+    for (int i = 0; i < length; i += 2 * Q8_BLOCK_SIZE) {
+        int ao = aoffset + i, bo = boffset + i;
+        int pair = i + Q8_BLOCK_SIZE < length;
+        __mmask64 m = pair ? ~0ULL : 0xFFFFFFFFULL;
+
+        __m512i qa = _mm512_maskz_loadu_epi8(m, a + ao);
+        __m512i qb = _mm512_maskz_loadu_epi8(m, b + bo);
+
+        // No sign_epi8 at this width, negate a where b is negative instead
+        __m512i signed_a = _mm512_mask_sub_epi8(qa, _mm512_movepi8_mask(qb), _mm512_setzero_si512(), qa);
+        __m512i dot = _mm512_dpbusd_epi32(_mm512_setzero_si512(), _mm512_abs_epi8(qb), signed_a);
+
+        sum = _mm512_fmadd_ps(q8_scales_512(af, ao, bf, bo, pair), _mm512_cvtepi32_ps(dot), sum);
+    }
+
+    return _mm512_reduce_add_ps(sum);
+}
+
+// The unsigned nibbles of two Q4 blocks in the order of their 64 activations, the second block zeroed unless pair
+AVX512_VNNI static inline __m512i q4_pair_512(const char* b, int pair) {
+    __m256i mask_first_4bits = _mm256_set1_epi8(0xF);
+    __m256i packed = _mm256_maskz_loadu_epi8(pair ? 0xFFFFFFFFU : 0xFFFFU, b);
+
+    // Low then high nibbles of each block: lanes of 16 go lo0 lo1 hi0 hi1, shuffled to lo0 hi0 lo1 hi1
+    __m256i lo = _mm256_and_si256(packed, mask_first_4bits);
+    __m256i hi = _mm256_and_si256(_mm256_srli_epi16(packed, 4), mask_first_4bits);
+    __m512i qb = _mm512_inserti64x4(_mm512_castsi256_si512(lo), hi, 1);
+    return _mm512_shuffle_i64x2(qb, qb, _MM_SHUFFLE(3, 1, 2, 0));
+}
+
+// The scales of two blocks in one load, each spread over its half of the register
+AVX512_VNNI static inline __m512 block_scales_512(const float* s, int pair) {
+    return _mm512_permutexvar_ps(_mm512_set_epi32(1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0, 0),
+                                 _mm512_castps128_ps512(_mm_maskz_loadu_ps(pair ? 3 : 1, s)));
+}
+
+AVX512_VNNI float dot_product_q8_q4_vnni_512(const float *af, const char* a, int aoffset, const float *bf, const char* b, int boffset, int length) {
+    __m512 sum = _mm512_setzero_ps();
+    __m512i eight = _mm512_set1_epi8(8);
+
+    for (int i = 0; i < length; i += 2 * Q4_BLOCK_SIZE) {
+        int ao = aoffset + i, bo = boffset + i;
+        int pair = i + Q4_BLOCK_SIZE < length;
+
+        __m512i qa = _mm512_maskz_loadu_epi8(pair ? ~0ULL : 0xFFFFFFFFULL, a + ao);
+        __m512i qb = q4_pair_512(b + bo / 2, pair);
+
+        __m512i dot = _mm512_sub_epi32(_mm512_dpbusd_epi32(_mm512_setzero_si512(), qb, qa),
+                                       _mm512_dpbusd_epi32(_mm512_setzero_si512(), eight, qa));
+
+        sum = _mm512_fmadd_ps(q8_scales_512(af, ao, bf, bo, pair), _mm512_cvtepi32_ps(dot), sum);
+    }
+
+    return _mm512_reduce_add_ps(sum);
+}
+#endif
+
+float dot_product_q8_256(const float *af, const char* a, int aoffset, const float *bf, const char* b, int boffset, int length) {
+    __m256 sum = _mm256_setzero_ps();
+
+    int ao = aoffset;
+    int bo = boffset;
+    int alim = aoffset + length;
+
+    // perform a block at a time
+    for(; ao < alim; ao += Q8_BLOCK_SIZE, bo += Q8_BLOCK_SIZE) {
+        __m256 scale = _mm256_set1_ps(af[ao / Q8_BLOCK_SIZE] * bf[bo / Q8_BLOCK_SIZE]);
+
+        __m256i qa = _mm256_loadu_si256((__m256i const*)(a + ao));
+        __m256i qb = _mm256_loadu_si256((__m256i const*)(b + bo));
+
+        sum = _mm256_fmadd_ps(scale, _mm256_cvtepi32_ps(mul_sum_i8_pairs(qa, qb)), sum);
+    }
+
+    return sum_f32_256(sum);
+}
+
+float dot_product_q8(int flags, const float *af, const char* a, int aoffset, const float *bf, const char* b, int boffset, int length) {
+#if defined(VNNI_TARGETS)
+    if ((flags & HAS_AVX512_VNNI) != 0)
+        return dot_product_q8_vnni_512(af, a, aoffset, bf, b, boffset, length);
+    if ((flags & HAS_AVX_VNNI) != 0)
+        return dot_product_q8_avxvnni_256(af, a, aoffset, bf, b, boffset, length);
+#endif
+    return dot_product_q8_256(af, a, aoffset, bf, b, boffset, length);
+}
+
+float dot_product_q8_q4_256(const float *af, const char* a, int aoffset, const float *bf, const char* b, int boffset, int length) {
+    __m256 sum = _mm256_setzero_ps();
+
+    int ao = aoffset;
+    int bo = boffset;
+    int alim = aoffset + length;
+
+    // perform a block at a time
+    for(; ao < alim; ao += Q4_BLOCK_SIZE, bo += Q4_BLOCK_SIZE) {
+        __m256 scale = _mm256_set1_ps(af[ao / Q8_BLOCK_SIZE] * bf[bo / Q4_BLOCK_SIZE]);
+
+        __m256i qa = _mm256_loadu_si256((__m256i const*)(a + ao));
+        __m256i qb = q4_unpack(b + bo / 2);
+
+        sum = _mm256_fmadd_ps(scale, _mm256_cvtepi32_ps(mul_sum_i8_pairs(qa, qb)), sum);
+    }
+
+    return sum_f32_256(sum);
+}
+
+float dot_product_q8_q4(int flags, const float *af, const char* a, int aoffset, const float *bf, const char* b, int boffset, int length) {
+#if defined(VNNI_TARGETS)
+    if ((flags & HAS_AVX512_VNNI) != 0)
+        return dot_product_q8_q4_vnni_512(af, a, aoffset, bf, b, boffset, length);
+    if ((flags & HAS_AVX_VNNI) != 0)
+        return dot_product_q8_q4_avxvnni_256(af, a, aoffset, bf, b, boffset, length);
+#endif
+    return dot_product_q8_q4_256(af, a, aoffset, bf, b, boffset, length);
+}
+
+// ggml's Q4_0 and Q8_0 blocks, the F16 scale in front of the values of a Q4 or I8 block
+float dot_product_f32_q4_0_256(const float* a, int aoffset, const char* b, int boffset, int length) {
+    __m256 sum = _mm256_setzero_ps();
+    __m128i mask_first_4bits = _mm_set1_epi8(0xF);
+    __m128i eight = _mm_set1_epi8(8);
+
+    for (int i = 0; i < length; i += Q4_BLOCK_SIZE) {
+        const uint8_t* block = (const uint8_t*)b + ((boffset + i) / Q4_BLOCK_SIZE) * Q4_0_BLOCK_BYTES;
+        const float* ap = a + aoffset + i;
+        __m256 dot = _mm256_setzero_ps();
+
+        // the first half of the block in the low nibbles, the second in the high ones
+        for (int l = 0; l < Q4_BLOCK_SIZE / 2; l += 8) {
+            __m128i bytes = _mm_loadl_epi64((__m128i const*)(block + 2 + l));
+            __m128i first_4bits = _mm_sub_epi8(_mm_and_si128(bytes, mask_first_4bits), eight);
+            __m128i last_4bits = _mm_sub_epi8(_mm_and_si128(_mm_srli_epi16(bytes, 4), mask_first_4bits), eight);
+
+            dot = _mm256_fmadd_ps(_mm256_loadu_ps(ap + l), _mm256_cvtepi32_ps(_mm256_cvtepi8_epi32(first_4bits)), dot);
+            dot = _mm256_fmadd_ps(_mm256_loadu_ps(ap + Q4_BLOCK_SIZE / 2 + l), _mm256_cvtepi32_ps(_mm256_cvtepi8_epi32(last_4bits)), dot);
+        }
+
+        sum = _mm256_fmadd_ps(_mm256_set1_ps(f16_at(block)), dot, sum);
+    }
+
+    return sum_f32_256(sum);
+}
+
+float dot_product_f32_q4_0_512(const float* a, int aoffset, const char* b, int boffset, int length) {
+#if defined(__AVX512F__)
+    __m512 sum = _mm512_setzero_ps();
+    __m128i mask_first_4bits = _mm_set1_epi8(0xF);
+    __m128i eight = _mm_set1_epi8(8);
+
+    for (int i = 0; i < length; i += Q4_BLOCK_SIZE) {
+        const uint8_t* block = (const uint8_t*)b + ((boffset + i) / Q4_BLOCK_SIZE) * Q4_0_BLOCK_BYTES;
+        const float* ap = a + aoffset + i;
+
+        __m128i bytes = _mm_loadu_si128((__m128i const*)(block + 2));
+        __m128i first_4bits = _mm_sub_epi8(_mm_and_si128(bytes, mask_first_4bits), eight);
+        __m128i last_4bits = _mm_sub_epi8(_mm_and_si128(_mm_srli_epi16(bytes, 4), mask_first_4bits), eight);
+
+        __m512 dot = _mm512_mul_ps(_mm512_loadu_ps(ap), _mm512_cvtepi32_ps(_mm512_cvtepi8_epi32(first_4bits)));
+        dot = _mm512_fmadd_ps(_mm512_loadu_ps(ap + 16), _mm512_cvtepi32_ps(_mm512_cvtepi8_epi32(last_4bits)), dot);
+
+        sum = _mm512_fmadd_ps(_mm512_set1_ps(f16_at(block)), dot, sum);
+    }
+
+    return _mm512_reduce_add_ps(sum);
+#else
+    return dot_product_f32_q4_0_256(a, aoffset, b, boffset, length);
+#endif
+}
+
+float dot_product_f32_q4_0(int flags, const float* a, int aoffset, const char* b, int boffset, int length) {
+    return ((flags & HAS_AVX512) != 0)
+           ? dot_product_f32_q4_0_512(a, aoffset, b, boffset, length)
+           : dot_product_f32_q4_0_256(a, aoffset, b, boffset, length);
+}
+
+float dot_product_f32_q8_0_256(const float* a, int aoffset, const char* b, int boffset, int length) {
+    __m256 sum = _mm256_setzero_ps();
+
+    for (int i = 0; i < length; i += Q8_BLOCK_SIZE) {
+        const uint8_t* block = (const uint8_t*)b + ((boffset + i) / Q8_BLOCK_SIZE) * Q8_0_BLOCK_BYTES;
+        const float* ap = a + aoffset + i;
+        __m256 dot = _mm256_setzero_ps();
+
+        for (int l = 0; l < Q8_BLOCK_SIZE; l += 8) {
+            __m128i bytes = _mm_loadl_epi64((__m128i const*)(block + 2 + l));
+            dot = _mm256_fmadd_ps(_mm256_loadu_ps(ap + l), _mm256_cvtepi32_ps(_mm256_cvtepi8_epi32(bytes)), dot);
+        }
+
+        sum = _mm256_fmadd_ps(_mm256_set1_ps(f16_at(block)), dot, sum);
+    }
+
+    return sum_f32_256(sum);
+}
+
+float dot_product_f32_q8_0_512(const float* a, int aoffset, const char* b, int boffset, int length) {
+#if defined(__AVX512F__)
+    __m512 sum = _mm512_setzero_ps();
+
+    for (int i = 0; i < length; i += Q8_BLOCK_SIZE) {
+        const uint8_t* block = (const uint8_t*)b + ((boffset + i) / Q8_BLOCK_SIZE) * Q8_0_BLOCK_BYTES;
+        const float* ap = a + aoffset + i;
+
+        __m512 dot = _mm512_mul_ps(_mm512_loadu_ps(ap), _mm512_cvtepi32_ps(_mm512_cvtepi8_epi32(_mm_loadu_si128((__m128i const*)(block + 2)))));
+        dot = _mm512_fmadd_ps(_mm512_loadu_ps(ap + 16), _mm512_cvtepi32_ps(_mm512_cvtepi8_epi32(_mm_loadu_si128((__m128i const*)(block + 18)))), dot);
+
+        sum = _mm512_fmadd_ps(_mm512_set1_ps(f16_at(block)), dot, sum);
+    }
+
+    return _mm512_reduce_add_ps(sum);
+#else
+    return dot_product_f32_q8_0_256(a, aoffset, b, boffset, length);
+#endif
+}
+
+float dot_product_f32_q8_0(int flags, const float* a, int aoffset, const char* b, int boffset, int length) {
+    return ((flags & HAS_AVX512) != 0)
+           ? dot_product_f32_q8_0_512(a, aoffset, b, boffset, length)
+           : dot_product_f32_q8_0_256(a, aoffset, b, boffset, length);
+}
+
+// I8 activations against Q4_0 or Q8_0 weights, a block of integer products at a time like dot_product_q8
+float dot_product_q8_q4_0_256(const float *af, const char* a, int aoffset, const char* b, int boffset, int length) {
+    __m256 sum = _mm256_setzero_ps();
+
+    for (int ao = aoffset, bo = boffset; ao < aoffset + length; ao += Q4_BLOCK_SIZE, bo += Q4_BLOCK_SIZE) {
+        const char* block = b + (bo / Q4_BLOCK_SIZE) * Q4_0_BLOCK_BYTES;
+        __m256 scale = _mm256_set1_ps(af[ao / Q8_BLOCK_SIZE] * f16_at((const uint8_t*)block));
+        __m256i qa = _mm256_loadu_si256((__m256i const*)(a + ao));
+        __m256i qb = q4_unpack(block + 2);
+        sum = _mm256_fmadd_ps(scale, _mm256_cvtepi32_ps(mul_sum_i8_pairs(qa, qb)), sum);
+    }
+
+    return sum_f32_256(sum);
+}
+
+float dot_product_q8_q8_0_256(const float *af, const char* a, int aoffset, const char* b, int boffset, int length) {
+    __m256 sum = _mm256_setzero_ps();
+
+    for (int ao = aoffset, bo = boffset; ao < aoffset + length; ao += Q8_BLOCK_SIZE, bo += Q8_BLOCK_SIZE) {
+        const char* block = b + (bo / Q8_BLOCK_SIZE) * Q8_0_BLOCK_BYTES;
+        __m256 scale = _mm256_set1_ps(af[ao / Q8_BLOCK_SIZE] * f16_at((const uint8_t*)block));
+        __m256i qa = _mm256_loadu_si256((__m256i const*)(a + ao));
+        __m256i qb = _mm256_loadu_si256((__m256i const*)(block + 2));
+        sum = _mm256_fmadd_ps(scale, _mm256_cvtepi32_ps(mul_sum_i8_pairs(qa, qb)), sum);
+    }
+
+    return sum_f32_256(sum);
+}
+
+#if defined(VNNI_TARGETS)
+AVX_VNNI float dot_product_q8_q4_0_avxvnni_256(const float *af, const char* a, int aoffset, const char* b, int boffset, int length) {
+    __m256 sum = _mm256_setzero_ps();
+
+    for (int ao = aoffset, bo = boffset; ao < aoffset + length; ao += Q4_BLOCK_SIZE, bo += Q4_BLOCK_SIZE) {
+        const char* block = b + (bo / Q4_BLOCK_SIZE) * Q4_0_BLOCK_BYTES;
+        __m256 scale = _mm256_set1_ps(af[ao / Q8_BLOCK_SIZE] * f16_at((const uint8_t*)block));
+        __m256i qa = _mm256_loadu_si256((__m256i const*)(a + ao));
+        __m256i qb = q4_unpack(block + 2);
+        sum = _mm256_fmadd_ps(scale, _mm256_cvtepi32_ps(mul_sum_i8_pairs_avxvnni(qa, qb)), sum);
+    }
+
+    return sum_f32_256(sum);
+}
+
+AVX_VNNI float dot_product_q8_q8_0_avxvnni_256(const float *af, const char* a, int aoffset, const char* b, int boffset, int length) {
+    __m256 sum = _mm256_setzero_ps();
+
+    for (int ao = aoffset, bo = boffset; ao < aoffset + length; ao += Q8_BLOCK_SIZE, bo += Q8_BLOCK_SIZE) {
+        const char* block = b + (bo / Q8_BLOCK_SIZE) * Q8_0_BLOCK_BYTES;
+        __m256 scale = _mm256_set1_ps(af[ao / Q8_BLOCK_SIZE] * f16_at((const uint8_t*)block));
+        __m256i qa = _mm256_loadu_si256((__m256i const*)(a + ao));
+        __m256i qb = _mm256_loadu_si256((__m256i const*)(block + 2));
+        sum = _mm256_fmadd_ps(scale, _mm256_cvtepi32_ps(mul_sum_i8_pairs_avxvnni(qa, qb)), sum);
+    }
+
+    return sum_f32_256(sum);
+}
+#endif
+
+float dot_product_q8_q4_0(int flags, const float *af, const char* a, int aoffset, const char* b, int boffset, int length) {
+#if defined(VNNI_TARGETS)
+    if ((flags & HAS_AVX_VNNI) != 0)
+        return dot_product_q8_q4_0_avxvnni_256(af, a, aoffset, b, boffset, length);
+#endif
+    return dot_product_q8_q4_0_256(af, a, aoffset, b, boffset, length);
+}
+
+float dot_product_q8_q8_0(int flags, const float *af, const char* a, int aoffset, const char* b, int boffset, int length) {
+#if defined(VNNI_TARGETS)
+    if ((flags & HAS_AVX_VNNI) != 0)
+        return dot_product_q8_q8_0_avxvnni_256(af, a, aoffset, b, boffset, length);
+#endif
+    return dot_product_q8_q8_0_256(af, a, aoffset, b, boffset, length);
+}
+
+// F16 and BF16 weights against F32 activations, converted a register at a time
+float dot_product_f32_f16_256(const float* a, int aoffset, const short* b, int boffset, int length) {
+    __m256 sum = _mm256_setzero_ps();
+
+    for(int i = 0; i < length; i += 8) {
+        __m256 vb = _mm256_cvtph_ps(_mm_loadu_si128((__m128i const*)(b + boffset + i)));
+        sum = _mm256_fmadd_ps(_mm256_loadu_ps(a + aoffset + i), vb, sum);
+    }
+
+    return sum_f32_256(sum);
+}
+
+float dot_product_f32_f16_512(const float* a, int aoffset, const short* b, int boffset, int length) {
+#if defined(__AVX512F__)
+    __m512 sum = _mm512_setzero_ps();
+
+    for(int i = 0; i < length; i += 16) {
+        __m512 vb = _mm512_cvtph_ps(_mm256_loadu_si256((__m256i const*)(b + boffset + i)));
+        sum = _mm512_fmadd_ps(_mm512_loadu_ps(a + aoffset + i), vb, sum);
+    }
+
+    return _mm512_reduce_add_ps(sum);
+#else
+    return dot_product_f32_f16_256(a, aoffset, b, boffset, length);
+#endif
+}
+
+static inline __m256 bf16_load_256(const short* p) {
+    return _mm256_castsi256_ps(_mm256_slli_epi32(_mm256_cvtepu16_epi32(_mm_loadu_si128((__m128i const*)p)), 16));
+}
+
+float dot_product_f32_bf16_256(const float* a, int aoffset, const short* b, int boffset, int length) {
+    __m256 sum = _mm256_setzero_ps();
+
+    for(int i = 0; i < length; i += 8)
+        sum = _mm256_fmadd_ps(_mm256_loadu_ps(a + aoffset + i), bf16_load_256(b + boffset + i), sum);
+
+    return sum_f32_256(sum);
+}
+
+float dot_product_bf16_256(const short* a, int aoffset, const short* b, int boffset, int length) {
+    __m256 sum = _mm256_setzero_ps();
+
+    for(int i = 0; i < length; i += 8)
+        sum = _mm256_fmadd_ps(bf16_load_256(a + aoffset + i), bf16_load_256(b + boffset + i), sum);
+
+    return sum_f32_256(sum);
+}
+
+#if defined(__AVX512F__)
+static inline __m512 bf16_load_512(const short* p) {
+    return _mm512_castsi512_ps(_mm512_slli_epi32(_mm512_cvtepu16_epi32(_mm256_loadu_si256((__m256i const*)p)), 16));
+}
+#endif
+
+float dot_product_f32_bf16_512(const float* a, int aoffset, const short* b, int boffset, int length) {
+#if defined(__AVX512F__)
+    __m512 sum = _mm512_setzero_ps();
+
+    for(int i = 0; i < length; i += 16)
+        sum = _mm512_fmadd_ps(_mm512_loadu_ps(a + aoffset + i), bf16_load_512(b + boffset + i), sum);
+
+    return _mm512_reduce_add_ps(sum);
+#else
+    return dot_product_f32_bf16_256(a, aoffset, b, boffset, length);
+#endif
+}
+
+float dot_product_bf16_512(const short* a, int aoffset, const short* b, int boffset, int length) {
+#if defined(__AVX512F__)
+    __m512 sum = _mm512_setzero_ps();
+
+    for(int i = 0; i < length; i += 16)
+        sum = _mm512_fmadd_ps(bf16_load_512(a + aoffset + i), bf16_load_512(b + boffset + i), sum);
+
+    return _mm512_reduce_add_ps(sum);
+#else
+    return dot_product_bf16_256(a, aoffset, b, boffset, length);
+#endif
+}
+
+float dot_product_f32_bf16(int flags, const float* a, int aoffset, const short* b, int boffset, int length) {
+    return ((flags & HAS_AVX512) != 0)
+           ? dot_product_f32_bf16_512(a, aoffset, b, boffset, length)
+           : dot_product_f32_bf16_256(a, aoffset, b, boffset, length);
+}
+
+float dot_product_bf16(int flags, const short* a, int aoffset, const short* b, int boffset, int length) {
+    return ((flags & HAS_AVX512) != 0)
+           ? dot_product_bf16_512(a, aoffset, b, boffset, length)
+           : dot_product_bf16_256(a, aoffset, b, boffset, length);
+}
+
+// Widens length values of an F16, BF16 or I8 tensor from offset into out
+static void widen_f32(int flags, int type, const float* f, const void* t, int offset, float* out, int length) {
+    switch (type) {
+        case DTYPE_F16: {
+            const short* h = (const short*)t + offset;
+            if ((flags & HAS_F16C) != 0) {
+                for (int i = 0; i < length; i += 8)
+                    _mm256_storeu_ps(out + i, _mm256_cvtph_ps(_mm_loadu_si128((__m128i const*)(h + i))));
+            } else {
+                for (int i = 0; i < length; i++)
+                    out[i] = f16_to_f32(h[i]);
+            }
+            break;
+        }
+        case DTYPE_BF16: {
+            const short* h = (const short*)t + offset;
+            for (int i = 0; i < length; i += 8)
+                _mm256_storeu_ps(out + i, bf16_load_256(h + i));
+            break;
+        }
+        case DTYPE_I8: {
+            const char* q = (const char*)t + offset;
+            for (int i = 0; i < length; i += 8) {
+                __m256 v = _mm256_cvtepi32_ps(_mm256_cvtepi8_epi32(_mm_loadl_epi64((__m128i const*)(q + i))));
+                _mm256_storeu_ps(out + i, _mm256_mul_ps(v, _mm256_set1_ps(f[(offset + i) / Q8_BLOCK_SIZE])));
+            }
+            break;
+        }
+        default:
+            memcpy(out, (const float*)t + offset, length * sizeof(float));
+    }
+}
+
+// An F32 activation against weights of any type
+static float dot_product_f32_typed(int flags, const float* a, int aoffset, int btype, const float *bf, const int* bh, const char* b, int boffset, int length) {
+    switch (btype) {
+        case DTYPE_F16:
+            return (flags & HAS_F16C) != 0
+                   ? ((flags & HAS_AVX512) != 0
+                        ? dot_product_f32_f16_512(a, aoffset, (const short*)b, boffset, length)
+                        : dot_product_f32_f16_256(a, aoffset, (const short*)b, boffset, length))
+                   : dot_product_widened(flags, DTYPE_F16, NULL, b, boffset, DTYPE_F32, NULL, NULL, (const char*)a, aoffset, length);
+        case DTYPE_BF16: return dot_product_f32_bf16(flags, a, aoffset, (const short*)b, boffset, length);
+        case DTYPE_I8: return dot_product_f32_q8(flags, a, aoffset, bf, b, boffset, length);
+        case DTYPE_Q4: return dot_product_f32_q4(flags, a, aoffset, bf, b, boffset, length);
+        case DTYPE_Q5: return dot_product_f32_q5(flags, a, aoffset, bf, bh, b, boffset, length);
+        case DTYPE_Q4_K: return dot_product_f32_q4k(flags, a, aoffset, b, boffset, length);
+        case DTYPE_Q6_K: return dot_product_f32_q6k(flags, a, aoffset, b, boffset, length);
+        case DTYPE_Q4_0: return dot_product_f32_q4_0(flags, a, aoffset, b, boffset, length);
+        case DTYPE_Q8_0: return dot_product_f32_q8_0(flags, a, aoffset, b, boffset, length);
+        default: return dot_product_f32(flags, a, aoffset, (const float*)b, boffset, length);
+    }
+}
+
+float dot_product_f32_f16(int flags, const float* a, int aoffset, const short* b, int boffset, int length) {
+    return dot_product_f32_typed(flags, a, aoffset, DTYPE_F16, NULL, NULL, (const char*)b, boffset, length);
+}
+
+#define WIDEN_CHUNK 256
+
+float dot_product_widened(int flags, int atype, const float *af, const void* a, int aoffset, int btype, const float *bf, const int* bh, const char* b, int boffset, int length) {
+    float chunk[WIDEN_CHUNK];
+    float dot = 0.0f;
+
+    // A multiple of the k-quant super-block so each chunk lines up with the weights
+    for (int i = 0; i < length; i += WIDEN_CHUNK) {
+        int n = length - i < WIDEN_CHUNK ? length - i : WIDEN_CHUNK;
+        widen_f32(flags, atype, af, a, aoffset + i, chunk, n);
+        dot += dot_product_f32_typed(flags, chunk, 0, btype, bf, bh, b, boffset + i, n);
+    }
+
+    return dot;
+}
+
+// Element-wise operations, y is always the one written
+void accumulate_f32(int flags, float* a, const float* b, int length) {
+    int i = 0;
+#if defined(__AVX512F__)
+    if ((flags & HAS_AVX512) != 0) {
+        for (; i + 16 <= length; i += 16)
+            _mm512_storeu_ps(a + i, _mm512_add_ps(_mm512_loadu_ps(a + i), _mm512_loadu_ps(b + i)));
+    }
+#endif
+    for (; i + 8 <= length; i += 8)
+        _mm256_storeu_ps(a + i, _mm256_add_ps(_mm256_loadu_ps(a + i), _mm256_loadu_ps(b + i)));
+
+    for (; i < length; i++)
+        a[i] += b[i];
+}
+
+static inline __m128i bf16_from_f32_256(__m256 v) {
+    // Truncated like the vector API kernels, the upper halves pack down to the 8 shorts
+    __m256i hi = _mm256_srli_epi32(_mm256_castps_si256(v), 16);
+    return _mm_packus_epi32(_mm256_castsi256_si128(hi), _mm256_extracti128_si256(hi, 1));
+}
+
+void accumulate_bf16(int flags, short* a, const short* b, int length) {
+    int i = 0;
+    for (; i + 8 <= length; i += 8)
+        _mm_storeu_si128((__m128i*)(a + i), bf16_from_f32_256(_mm256_add_ps(bf16_load_256(a + i), bf16_load_256(b + i))));
+
+    for (; i < length; i++)
+        a[i] = (short)(f32_to_bits(f32_from_bits((uint32_t)(uint16_t)a[i] << 16) + f32_from_bits((uint32_t)(uint16_t)b[i] << 16)) >> 16);
+}
+
+void scale_f32(int flags, float factor, float* a, int offset, int length) {
+    float* p = a + offset;
+    __m256 f = _mm256_set1_ps(factor);
+    int i = 0;
+    for (; i + 8 <= length; i += 8)
+        _mm256_storeu_ps(p + i, _mm256_mul_ps(_mm256_loadu_ps(p + i), f));
+
+    for (; i < length; i++)
+        p[i] *= factor;
+}
+
+void scale_bf16(int flags, float factor, short* a, int offset, int length) {
+    short* p = a + offset;
+    __m256 f = _mm256_set1_ps(factor);
+    int i = 0;
+    for (; i + 8 <= length; i += 8)
+        _mm_storeu_si128((__m128i*)(p + i), bf16_from_f32_256(_mm256_mul_ps(bf16_load_256(p + i), f)));
+
+    for (; i < length; i++)
+        p[i] = (short)(f32_to_bits(f32_from_bits((uint32_t)(uint16_t)p[i] << 16) * factor) >> 16);
+}
+
+// Loads 8 values of x as F32, whatever its type
+static inline __m256 load_typed_256(int flags, int type, const float* xf, const void* x, int offset) {
+    switch (type) {
+        case DTYPE_F16: {
+            if ((flags & HAS_F16C) != 0)
+                return _mm256_cvtph_ps(_mm_loadu_si128((__m128i const*)((const short*)x + offset)));
+
+            float tmp[8];
+            for (int i = 0; i < 8; i++)
+                tmp[i] = f16_to_f32(((const short*)x)[offset + i]);
+            return _mm256_loadu_ps(tmp);
+        }
+        case DTYPE_BF16: return bf16_load_256((const short*)x + offset);
+        case DTYPE_I8: return _mm256_mul_ps(_mm256_cvtepi32_ps(_mm256_cvtepi8_epi32(_mm_loadl_epi64((__m128i const*)((const char*)x + offset)))),
+                                            _mm256_set1_ps(xf[offset / Q8_BLOCK_SIZE]));
+        default: return _mm256_loadu_ps((const float*)x + offset);
+    }
+}
+
+void saxpy_f32(int flags, float alpha, int xtype, const float* xf, const void* x, int xoffset, float* y, int yoffset, int length) {
+    __m256 va = _mm256_set1_ps(alpha);
+    for (int i = 0; i < length; i += 8) {
+        __m256 vy = _mm256_loadu_ps(y + yoffset + i);
+        _mm256_storeu_ps(y + yoffset + i, _mm256_fmadd_ps(load_typed_256(flags, xtype, xf, x, xoffset + i), va, vy));
+    }
+}
+
+void sxpby_f32(int flags, float beta, int xtype, const float* xf, const void* x, int xoffset, float* y, int yoffset, int length) {
+    __m256 vb = _mm256_set1_ps(beta);
+    for (int i = 0; i < length; i += 8) {
+        __m256 vy = _mm256_loadu_ps(y + yoffset + i);
+        _mm256_storeu_ps(y + yoffset + i, _mm256_fmadd_ps(vy, vb, load_typed_256(flags, xtype, xf, x, xoffset + i)));
+    }
+}
+
+void saxpy_bf16(int flags, float alpha, const short* x, int xoffset, short* y, int yoffset, int length) {
+    __m256 va = _mm256_set1_ps(alpha);
+    for (int i = 0; i < length; i += 8) {
+        __m256 r = _mm256_fmadd_ps(bf16_load_256(x + xoffset + i), va, bf16_load_256(y + yoffset + i));
+        _mm_storeu_si128((__m128i*)(y + yoffset + i), bf16_from_f32_256(r));
+    }
+}
+
+void sxpby_bf16(int flags, float beta, const short* x, int xoffset, short* y, int yoffset, int length) {
+    __m256 vb = _mm256_set1_ps(beta);
+    for (int i = 0; i < length; i += 8) {
+        __m256 r = _mm256_fmadd_ps(bf16_load_256(y + yoffset + i), vb, bf16_load_256(x + xoffset + i));
+        _mm_storeu_si128((__m128i*)(y + yoffset + i), bf16_from_f32_256(r));
+    }
+}
+
+// Quantizes length values of a into blocks of 32 bytes b with their scales in bf, rounding like Math.round
+void quantize_q8(int flags, const float* a, int aoffset, float* bf, char* b, int length) {
+    __m256 sign_bit = _mm256_set1_ps(-0.0f);
+    __m256 half = _mm256_set1_ps(0.5f);
+
+    for (int i = 0; i < length; i += Q8_BLOCK_SIZE) {
+        __m256 v[4];
+        __m256 amax = _mm256_setzero_ps();
+        for (int j = 0; j < 4; j++) {
+            v[j] = _mm256_loadu_ps(a + aoffset + i + j * 8);
+            amax = _mm256_max_ps(amax, _mm256_andnot_ps(sign_bit, v[j]));
+        }
+
+        __m128 m = _mm_max_ps(_mm256_castps256_ps128(amax), _mm256_extractf128_ps(amax, 1));
+        m = _mm_max_ps(m, _mm_movehl_ps(m, m));
+        m = _mm_max_ss(m, _mm_movehdup_ps(m));
+        float max = _mm_cvtss_f32(m);
+
+        bf[i / Q8_BLOCK_SIZE] = max / 127.0f;
+        __m256 id = _mm256_set1_ps(max != 0.0f ? 127.0f / max : 0.0f);
+
+        __m256i q[4];
+        for (int j = 0; j < 4; j++)
+            q[j] = _mm256_cvttps_epi32(_mm256_floor_ps(_mm256_fmadd_ps(v[j], id, half)));
+
+        // Pack down to bytes, the packs interleave the 128 bit lanes so put them back in order
+        __m256i s = _mm256_packs_epi16(_mm256_packs_epi32(q[0], q[1]), _mm256_packs_epi32(q[2], q[3]));
+        s = _mm256_permutevar8x32_epi32(s, _mm256_setr_epi32(0, 4, 1, 5, 2, 6, 3, 7));
+        _mm256_storeu_si256((__m256i*)(b + i), s);
+    }
+}
+
+// Register blocked matrix-vector products, GEMV_ROWS rows of b at a time so each load of a feeds all of them.
+// Row i starts at boffset + i * stride values, its dot product with a goes to r[roffset + i].
+// Offsets into b are long, a large enough matrix runs past 2^31 values
+static void gemv_f32_256(const float* a, int aoffset, const float* b, long boffset, int stride, float* r, int roffset, int rows, int length) {
+    int i = 0;
+    for (; i + GEMV_ROWS <= rows; i += GEMV_ROWS) {
+        const float* b0 = b + boffset + (long) i * stride;
+        const float* b1 = b0 + stride;
+        const float* b2 = b1 + stride;
+        const float* b3 = b2 + stride;
+        __m256 s0 = _mm256_setzero_ps(), s1 = _mm256_setzero_ps(), s2 = _mm256_setzero_ps(), s3 = _mm256_setzero_ps();
+
+        for (int j = 0; j < length; j += 8) {
+            __m256 va = _mm256_loadu_ps(a + aoffset + j);
+            s0 = _mm256_fmadd_ps(va, _mm256_loadu_ps(b0 + j), s0);
+            s1 = _mm256_fmadd_ps(va, _mm256_loadu_ps(b1 + j), s1);
+            s2 = _mm256_fmadd_ps(va, _mm256_loadu_ps(b2 + j), s2);
+            s3 = _mm256_fmadd_ps(va, _mm256_loadu_ps(b3 + j), s3);
+        }
+
+        r[roffset + i] = sum_f32_256(s0);
+        r[roffset + i + 1] = sum_f32_256(s1);
+        r[roffset + i + 2] = sum_f32_256(s2);
+        r[roffset + i + 3] = sum_f32_256(s3);
+    }
+
+    for (; i < rows; i++)
+        r[roffset + i] = dot_product_f32_256(a, aoffset, b + boffset + (long) i * stride, 0, length);
+}
+
+static void gemv_f32_512(const float* a, int aoffset, const float* b, long boffset, int stride, float* r, int roffset, int rows, int length) {
+#if defined(__AVX512F__)
+    int i = 0;
+    for (; i + GEMV_ROWS <= rows; i += GEMV_ROWS) {
+        const float* b0 = b + boffset + (long) i * stride;
+        const float* b1 = b0 + stride;
+        const float* b2 = b1 + stride;
+        const float* b3 = b2 + stride;
+        __m512 s0 = _mm512_setzero_ps(), s1 = _mm512_setzero_ps(), s2 = _mm512_setzero_ps(), s3 = _mm512_setzero_ps();
+
+        for (int j = 0; j < length; j += 16) {
+            __m512 va = _mm512_loadu_ps(a + aoffset + j);
+            s0 = _mm512_fmadd_ps(va, _mm512_loadu_ps(b0 + j), s0);
+            s1 = _mm512_fmadd_ps(va, _mm512_loadu_ps(b1 + j), s1);
+            s2 = _mm512_fmadd_ps(va, _mm512_loadu_ps(b2 + j), s2);
+            s3 = _mm512_fmadd_ps(va, _mm512_loadu_ps(b3 + j), s3);
+        }
+
+        r[roffset + i] = _mm512_reduce_add_ps(s0);
+        r[roffset + i + 1] = _mm512_reduce_add_ps(s1);
+        r[roffset + i + 2] = _mm512_reduce_add_ps(s2);
+        r[roffset + i + 3] = _mm512_reduce_add_ps(s3);
+    }
+
+    for (; i < rows; i++)
+        r[roffset + i] = dot_product_f32_512(a, aoffset, b + boffset + (long) i * stride, 0, length);
+#else
+    gemv_f32_256(a, aoffset, b, boffset, stride, r, roffset, rows, length);
+#endif
+}
+
+void gemv_f32(int flags, const float* a, int aoffset, const float* b, long boffset, int stride, float* r, int roffset, int rows, int length) {
+    if ((flags & HAS_AVX512) != 0)
+        gemv_f32_512(a, aoffset, b, boffset, stride, r, roffset, rows, length);
+    else
+        gemv_f32_256(a, aoffset, b, boffset, stride, r, roffset, rows, length);
+}
+
+// A Q4 block against the 32 F32 activations it multiplies, before the block's scale
+static inline __m256 f32_q4_block_256(__m256 va0, __m256 va1, __m256 va2, __m256 va3, const char* b) {
+    __m256i q = q4_unpack(b);
+    __m128i lo = _mm256_castsi256_si128(q);
+    __m128i hi = _mm256_extracti128_si256(q, 1);
+    __m256 t = _mm256_mul_ps(va0, _mm256_cvtepi32_ps(_mm256_cvtepi8_epi32(lo)));
+    t = _mm256_fmadd_ps(va1, _mm256_cvtepi32_ps(_mm256_cvtepi8_epi32(_mm_srli_si128(lo, 8))), t);
+    t = _mm256_fmadd_ps(va2, _mm256_cvtepi32_ps(_mm256_cvtepi8_epi32(hi)), t);
+    return _mm256_fmadd_ps(va3, _mm256_cvtepi32_ps(_mm256_cvtepi8_epi32(_mm_srli_si128(hi, 8))), t);
+}
+
+static void gemv_f32_q4_256(const float* a, int aoffset, const float *bf, const char* b, long boffset, int stride, float* r, int roffset, int rows, int length) {
+    int i = 0;
+    for (; i + GEMV_ROWS <= rows; i += GEMV_ROWS) {
+        long bo = boffset + (long) i * stride;
+        __m256 s0 = _mm256_setzero_ps(), s1 = _mm256_setzero_ps(), s2 = _mm256_setzero_ps(), s3 = _mm256_setzero_ps();
+
+        for (int j = 0; j < length; j += Q4_BLOCK_SIZE) {
+            const float* ap = a + aoffset + j;
+            __m256 va0 = _mm256_loadu_ps(ap), va1 = _mm256_loadu_ps(ap + 8), va2 = _mm256_loadu_ps(ap + 16), va3 = _mm256_loadu_ps(ap + 24);
+
+            long b0 = bo + j, b1 = b0 + stride, b2 = b1 + stride, b3 = b2 + stride;
+            s0 = _mm256_fmadd_ps(_mm256_set1_ps(bf[b0 / Q4_BLOCK_SIZE]), f32_q4_block_256(va0, va1, va2, va3, b + b0 / 2), s0);
+            s1 = _mm256_fmadd_ps(_mm256_set1_ps(bf[b1 / Q4_BLOCK_SIZE]), f32_q4_block_256(va0, va1, va2, va3, b + b1 / 2), s1);
+            s2 = _mm256_fmadd_ps(_mm256_set1_ps(bf[b2 / Q4_BLOCK_SIZE]), f32_q4_block_256(va0, va1, va2, va3, b + b2 / 2), s2);
+            s3 = _mm256_fmadd_ps(_mm256_set1_ps(bf[b3 / Q4_BLOCK_SIZE]), f32_q4_block_256(va0, va1, va2, va3, b + b3 / 2), s3);
+        }
+
+        r[roffset + i] = sum_f32_256(s0);
+        r[roffset + i + 1] = sum_f32_256(s1);
+        r[roffset + i + 2] = sum_f32_256(s2);
+        r[roffset + i + 3] = sum_f32_256(s3);
+    }
+
+    for (; i < rows; i++) {
+        long bo = boffset + (long) i * stride;
+        r[roffset + i] = dot_product_f32_q4_256(a, aoffset, bf + bo / Q4_BLOCK_SIZE, b + bo / 2, 0, length);
+    }
+}
+
+#if defined(__AVX512F__)
+static inline __m512 f32_q4_block_512(__m512 va0, __m512 va1, const char* b) {
+    __m256i q = q4_unpack(b);
+    __m512 t = _mm512_mul_ps(va0, _mm512_cvtepi32_ps(_mm512_cvtepi8_epi32(_mm256_castsi256_si128(q))));
+    return _mm512_fmadd_ps(va1, _mm512_cvtepi32_ps(_mm512_cvtepi8_epi32(_mm256_extracti128_si256(q, 1))), t);
+}
+#endif
+
+static void gemv_f32_q4_512(const float* a, int aoffset, const float *bf, const char* b, long boffset, int stride, float* r, int roffset, int rows, int length) {
+#if defined(__AVX512F__)
+    int i = 0;
+    for (; i + GEMV_ROWS <= rows; i += GEMV_ROWS) {
+        long bo = boffset + (long) i * stride;
+        __m512 s0 = _mm512_setzero_ps(), s1 = _mm512_setzero_ps(), s2 = _mm512_setzero_ps(), s3 = _mm512_setzero_ps();
+
+        for (int j = 0; j < length; j += Q4_BLOCK_SIZE) {
+            __m512 va0 = _mm512_loadu_ps(a + aoffset + j);
+            __m512 va1 = _mm512_loadu_ps(a + aoffset + j + 16);
+
+            long b0 = bo + j, b1 = b0 + stride, b2 = b1 + stride, b3 = b2 + stride;
+            s0 = _mm512_fmadd_ps(_mm512_set1_ps(bf[b0 / Q4_BLOCK_SIZE]), f32_q4_block_512(va0, va1, b + b0 / 2), s0);
+            s1 = _mm512_fmadd_ps(_mm512_set1_ps(bf[b1 / Q4_BLOCK_SIZE]), f32_q4_block_512(va0, va1, b + b1 / 2), s1);
+            s2 = _mm512_fmadd_ps(_mm512_set1_ps(bf[b2 / Q4_BLOCK_SIZE]), f32_q4_block_512(va0, va1, b + b2 / 2), s2);
+            s3 = _mm512_fmadd_ps(_mm512_set1_ps(bf[b3 / Q4_BLOCK_SIZE]), f32_q4_block_512(va0, va1, b + b3 / 2), s3);
+        }
+
+        r[roffset + i] = _mm512_reduce_add_ps(s0);
+        r[roffset + i + 1] = _mm512_reduce_add_ps(s1);
+        r[roffset + i + 2] = _mm512_reduce_add_ps(s2);
+        r[roffset + i + 3] = _mm512_reduce_add_ps(s3);
+    }
+
+    for (; i < rows; i++) {
+        long bo = boffset + (long) i * stride;
+        r[roffset + i] = dot_product_f32_q4_512(a, aoffset, bf + bo / Q4_BLOCK_SIZE, b + bo / 2, 0, length);
+    }
+#else
+    gemv_f32_q4_256(a, aoffset, bf, b, boffset, stride, r, roffset, rows, length);
+#endif
+}
+
+void gemv_f32_q4(int flags, const float* a, int aoffset, const float *bf, const char* b, long boffset, int stride, float* r, int roffset, int rows, int length) {
+    if ((flags & HAS_AVX512) != 0)
+        gemv_f32_q4_512(a, aoffset, bf, b, boffset, stride, r, roffset, rows, length);
+    else
+        gemv_f32_q4_256(a, aoffset, bf, b, boffset, stride, r, roffset, rows, length);
+}
+
+static void gemv_q8_q4_256(const float *af, const char* a, int aoffset, const float *bf, const char* b, long boffset, int stride, float* r, int roffset, int rows, int length) {
+    int i = 0;
+    for (; i + GEMV_ROWS <= rows; i += GEMV_ROWS) {
+        long bo = boffset + (long) i * stride;
+        __m256 s0 = _mm256_setzero_ps(), s1 = _mm256_setzero_ps(), s2 = _mm256_setzero_ps(), s3 = _mm256_setzero_ps();
+
+        for (int j = 0; j < length; j += Q4_BLOCK_SIZE) {
+            float ascale = af[(aoffset + j) / Q8_BLOCK_SIZE];
+            __m256i qa = _mm256_loadu_si256((__m256i const*)(a + aoffset + j));
+
+            long b0 = bo + j, b1 = b0 + stride, b2 = b1 + stride, b3 = b2 + stride;
+            s0 = _mm256_fmadd_ps(_mm256_set1_ps(ascale * bf[b0 / Q4_BLOCK_SIZE]), _mm256_cvtepi32_ps(mul_sum_i8_pairs(qa, q4_unpack(b + b0 / 2))), s0);
+            s1 = _mm256_fmadd_ps(_mm256_set1_ps(ascale * bf[b1 / Q4_BLOCK_SIZE]), _mm256_cvtepi32_ps(mul_sum_i8_pairs(qa, q4_unpack(b + b1 / 2))), s1);
+            s2 = _mm256_fmadd_ps(_mm256_set1_ps(ascale * bf[b2 / Q4_BLOCK_SIZE]), _mm256_cvtepi32_ps(mul_sum_i8_pairs(qa, q4_unpack(b + b2 / 2))), s2);
+            s3 = _mm256_fmadd_ps(_mm256_set1_ps(ascale * bf[b3 / Q4_BLOCK_SIZE]), _mm256_cvtepi32_ps(mul_sum_i8_pairs(qa, q4_unpack(b + b3 / 2))), s3);
+        }
+
+        r[roffset + i] = sum_f32_256(s0);
+        r[roffset + i + 1] = sum_f32_256(s1);
+        r[roffset + i + 2] = sum_f32_256(s2);
+        r[roffset + i + 3] = sum_f32_256(s3);
+    }
+
+    for (; i < rows; i++) {
+        long bo = boffset + (long) i * stride;
+        r[roffset + i] = dot_product_q8_q4_256(af, a, aoffset, bf + bo / Q4_BLOCK_SIZE, b + bo / 2, 0, length);
+    }
+}
+
+#if defined(VNNI_TARGETS)
+// With VPDPBUSD the 8 taken back off the nibbles only depends on a, so it is worked out once for all the rows
+AVX_VNNI static inline __m256i q4_nibbles_256(const char* b) {
+    __m128i packed = _mm_loadu_si128((__m128i const*)b);
+    __m128i mask_first_4bits = _mm_set1_epi8(0xF);
+    return _mm256_set_m128i(_mm_and_si128(_mm_srli_epi16(packed, 4), mask_first_4bits), _mm_and_si128(packed, mask_first_4bits));
+}
+
+AVX_VNNI static void gemv_q8_q4_avxvnni_256(const float *af, const char* a, int aoffset, const float *bf, const char* b, long boffset, int stride, float* r, int roffset, int rows, int length) {
+    __m256i eight = _mm256_set1_epi8(8);
+    int i = 0;
+    for (; i + GEMV_ROWS <= rows; i += GEMV_ROWS) {
+        long bo = boffset + (long) i * stride;
+        __m256 s0 = _mm256_setzero_ps(), s1 = _mm256_setzero_ps(), s2 = _mm256_setzero_ps(), s3 = _mm256_setzero_ps();
+
+        for (int j = 0; j < length; j += Q4_BLOCK_SIZE) {
+            float ascale = af[(aoffset + j) / Q8_BLOCK_SIZE];
+            __m256i qa = _mm256_loadu_si256((__m256i const*)(a + aoffset + j));
+            __m256i bias = _mm256_dpbusd_avx_epi32(_mm256_setzero_si256(), eight, qa);
+
+            long b0 = bo + j, b1 = b0 + stride, b2 = b1 + stride, b3 = b2 + stride;
+            s0 = _mm256_fmadd_ps(_mm256_set1_ps(ascale * bf[b0 / Q4_BLOCK_SIZE]), _mm256_cvtepi32_ps(_mm256_sub_epi32(_mm256_dpbusd_avx_epi32(_mm256_setzero_si256(), q4_nibbles_256(b + b0 / 2), qa), bias)), s0);
+            s1 = _mm256_fmadd_ps(_mm256_set1_ps(ascale * bf[b1 / Q4_BLOCK_SIZE]), _mm256_cvtepi32_ps(_mm256_sub_epi32(_mm256_dpbusd_avx_epi32(_mm256_setzero_si256(), q4_nibbles_256(b + b1 / 2), qa), bias)), s1);
+            s2 = _mm256_fmadd_ps(_mm256_set1_ps(ascale * bf[b2 / Q4_BLOCK_SIZE]), _mm256_cvtepi32_ps(_mm256_sub_epi32(_mm256_dpbusd_avx_epi32(_mm256_setzero_si256(), q4_nibbles_256(b + b2 / 2), qa), bias)), s2);
+            s3 = _mm256_fmadd_ps(_mm256_set1_ps(ascale * bf[b3 / Q4_BLOCK_SIZE]), _mm256_cvtepi32_ps(_mm256_sub_epi32(_mm256_dpbusd_avx_epi32(_mm256_setzero_si256(), q4_nibbles_256(b + b3 / 2), qa), bias)), s3);
+        }
+
+        r[roffset + i] = sum_f32_256(s0);
+        r[roffset + i + 1] = sum_f32_256(s1);
+        r[roffset + i + 2] = sum_f32_256(s2);
+        r[roffset + i + 3] = sum_f32_256(s3);
+    }
+
+    for (; i < rows; i++) {
+        long bo = boffset + (long) i * stride;
+        r[roffset + i] = dot_product_q8_q4_avxvnni_256(af, a, aoffset, bf + bo / Q4_BLOCK_SIZE, b + bo / 2, 0, length);
+    }
+}
+
+// Two blocks per step as in dot_product_q8_q4_vnni_512, each load of a, its bias and its scales shared by four rows
+AVX512_VNNI static void gemv_q8_q4_vnni_512(const float *af, const char* a, int aoffset, const float *bf, const char* b, long boffset, int stride, float* r, int roffset, int rows, int length) {
+    __m512i eight = _mm512_set1_epi8(8);
+    int i = 0;
+    for (; i + GEMV_ROWS <= rows; i += GEMV_ROWS) {
+        long bo = boffset + (long) i * stride;
+        const float* bf0 = bf + bo / Q4_BLOCK_SIZE;
+        const float* bf1 = bf0 + stride / Q4_BLOCK_SIZE;
+        const float* bf2 = bf1 + stride / Q4_BLOCK_SIZE;
+        const float* bf3 = bf2 + stride / Q4_BLOCK_SIZE;
+        const char* b0 = b + bo / 2;
+        const char* b1 = b0 + stride / 2;
+        const char* b2 = b1 + stride / 2;
+        const char* b3 = b2 + stride / 2;
+        __m512 s0 = _mm512_setzero_ps(), s1 = _mm512_setzero_ps(), s2 = _mm512_setzero_ps(), s3 = _mm512_setzero_ps();
+
+        for (int j = 0; j < length; j += 2 * Q4_BLOCK_SIZE) {
+            int ao = aoffset + j;
+            int pair = j + Q4_BLOCK_SIZE < length;
+            __m512i qa = _mm512_maskz_loadu_epi8(pair ? ~0ULL : 0xFFFFFFFFULL, a + ao);
+            __m512i bias = _mm512_dpbusd_epi32(_mm512_setzero_si512(), eight, qa);
+            __m512 ascales = block_scales_512(af + ao / Q8_BLOCK_SIZE, pair);
+            int bs = j / Q4_BLOCK_SIZE;
+
+            s0 = _mm512_fmadd_ps(_mm512_mul_ps(ascales, block_scales_512(bf0 + bs, pair)), _mm512_cvtepi32_ps(_mm512_sub_epi32(_mm512_dpbusd_epi32(_mm512_setzero_si512(), q4_pair_512(b0 + j / 2, pair), qa), bias)), s0);
+            s1 = _mm512_fmadd_ps(_mm512_mul_ps(ascales, block_scales_512(bf1 + bs, pair)), _mm512_cvtepi32_ps(_mm512_sub_epi32(_mm512_dpbusd_epi32(_mm512_setzero_si512(), q4_pair_512(b1 + j / 2, pair), qa), bias)), s1);
+            s2 = _mm512_fmadd_ps(_mm512_mul_ps(ascales, block_scales_512(bf2 + bs, pair)), _mm512_cvtepi32_ps(_mm512_sub_epi32(_mm512_dpbusd_epi32(_mm512_setzero_si512(), q4_pair_512(b2 + j / 2, pair), qa), bias)), s2);
+            s3 = _mm512_fmadd_ps(_mm512_mul_ps(ascales, block_scales_512(bf3 + bs, pair)), _mm512_cvtepi32_ps(_mm512_sub_epi32(_mm512_dpbusd_epi32(_mm512_setzero_si512(), q4_pair_512(b3 + j / 2, pair), qa), bias)), s3);
+        }
+
+        r[roffset + i] = _mm512_reduce_add_ps(s0);
+        r[roffset + i + 1] = _mm512_reduce_add_ps(s1);
+        r[roffset + i + 2] = _mm512_reduce_add_ps(s2);
+        r[roffset + i + 3] = _mm512_reduce_add_ps(s3);
+    }
+
+    for (; i < rows; i++) {
+        long bo = boffset + (long) i * stride;
+        r[roffset + i] = dot_product_q8_q4_vnni_512(af, a, aoffset, bf + bo / Q4_BLOCK_SIZE, b + bo / 2, 0, length);
+    }
+}
+#endif
+
+void gemv_q8_q4(int flags, const float *af, const char* a, int aoffset, const float *bf, const char* b, long boffset, int stride, float* r, int roffset, int rows, int length) {
+#if defined(VNNI_TARGETS)
+    if ((flags & HAS_AVX512_VNNI) != 0) {
+        gemv_q8_q4_vnni_512(af, a, aoffset, bf, b, boffset, stride, r, roffset, rows, length);
+        return;
+    }
+    if ((flags & HAS_AVX_VNNI) != 0) {
+        gemv_q8_q4_avxvnni_256(af, a, aoffset, bf, b, boffset, stride, r, roffset, rows, length);
+        return;
+    }
+#endif
+    gemv_q8_q4_256(af, a, aoffset, bf, b, boffset, stride, r, roffset, rows, length);
+}
+
+// Register blocked batch products, each row of b is loaded (and for Q4 unpacked) once for GEMM_BATCH activations.
+// Row i starts at i * stride values, the dot product of a[j] with it goes to r[j][roffset + i]
+static void gemm_f32_256(const float** a, int aoffset, const float* b, int stride, float** r, int roffset, int rows, int length) {
+    const float *a0 = a[0] + aoffset, *a1 = a[1] + aoffset, *a2 = a[2] + aoffset, *a3 = a[3] + aoffset;
+    for (int i = 0; i < rows; i++) {
+        const float* bi = b + (long) i * stride;
+        __m256 s0 = _mm256_setzero_ps(), s1 = _mm256_setzero_ps(), s2 = _mm256_setzero_ps(), s3 = _mm256_setzero_ps();
+
+        for (int j = 0; j < length; j += 8) {
+            __m256 vb = _mm256_loadu_ps(bi + j);
+            s0 = _mm256_fmadd_ps(vb, _mm256_loadu_ps(a0 + j), s0);
+            s1 = _mm256_fmadd_ps(vb, _mm256_loadu_ps(a1 + j), s1);
+            s2 = _mm256_fmadd_ps(vb, _mm256_loadu_ps(a2 + j), s2);
+            s3 = _mm256_fmadd_ps(vb, _mm256_loadu_ps(a3 + j), s3);
+        }
+
+        r[0][roffset + i] = sum_f32_256(s0);
+        r[1][roffset + i] = sum_f32_256(s1);
+        r[2][roffset + i] = sum_f32_256(s2);
+        r[3][roffset + i] = sum_f32_256(s3);
+    }
+}
+
+static void gemm_f32_512(const float** a, int aoffset, const float* b, int stride, float** r, int roffset, int rows, int length) {
+#if defined(__AVX512F__)
+    const float *a0 = a[0] + aoffset, *a1 = a[1] + aoffset, *a2 = a[2] + aoffset, *a3 = a[3] + aoffset;
+    for (int i = 0; i < rows; i++) {
+        const float* bi = b + (long) i * stride;
+        __m512 s0 = _mm512_setzero_ps(), s1 = _mm512_setzero_ps(), s2 = _mm512_setzero_ps(), s3 = _mm512_setzero_ps();
+
+        for (int j = 0; j < length; j += 16) {
+            __m512 vb = _mm512_loadu_ps(bi + j);
+            s0 = _mm512_fmadd_ps(vb, _mm512_loadu_ps(a0 + j), s0);
+            s1 = _mm512_fmadd_ps(vb, _mm512_loadu_ps(a1 + j), s1);
+            s2 = _mm512_fmadd_ps(vb, _mm512_loadu_ps(a2 + j), s2);
+            s3 = _mm512_fmadd_ps(vb, _mm512_loadu_ps(a3 + j), s3);
+        }
+
+        r[0][roffset + i] = _mm512_reduce_add_ps(s0);
+        r[1][roffset + i] = _mm512_reduce_add_ps(s1);
+        r[2][roffset + i] = _mm512_reduce_add_ps(s2);
+        r[3][roffset + i] = _mm512_reduce_add_ps(s3);
+    }
+#else
+    gemm_f32_256(a, aoffset, b, stride, r, roffset, rows, length);
+#endif
+}
+
+// Each chunk of rows stays in cache while every activation of the batch goes past it, GEMM_BATCH at a time
+void gemm_f32(int flags, const float** a, int aoffset, const float* b, long boffset, int stride, float** r, int roffset, int rows, int batch, int length) {
+    for (int i = 0; i < rows; i += GEMM_ROW_CHUNK) {
+        int n = rows - i < GEMM_ROW_CHUNK ? rows - i : GEMM_ROW_CHUNK;
+        const float* bi = b + boffset + (long) i * stride;
+
+        int j = 0;
+        for (; j + GEMM_BATCH <= batch; j += GEMM_BATCH) {
+            if ((flags & HAS_AVX512) != 0)
+                gemm_f32_512(a + j, aoffset, bi, stride, r + j, roffset + i, n, length);
+            else
+                gemm_f32_256(a + j, aoffset, bi, stride, r + j, roffset + i, n, length);
+        }
+        for (; j < batch; j++)
+            gemv_f32(flags, a[j], aoffset, bi, 0, stride, r[j], roffset + i, n, length);
+    }
+}
+
+// The 32 values of a Q4 block widened to F32, before the block's scale
+static inline void q4_widen_256(const char* b, __m256* w) {
+    __m256i q = q4_unpack(b);
+    __m128i lo = _mm256_castsi256_si128(q);
+    __m128i hi = _mm256_extracti128_si256(q, 1);
+    w[0] = _mm256_cvtepi32_ps(_mm256_cvtepi8_epi32(lo));
+    w[1] = _mm256_cvtepi32_ps(_mm256_cvtepi8_epi32(_mm_srli_si128(lo, 8)));
+    w[2] = _mm256_cvtepi32_ps(_mm256_cvtepi8_epi32(hi));
+    w[3] = _mm256_cvtepi32_ps(_mm256_cvtepi8_epi32(_mm_srli_si128(hi, 8)));
+}
+
+static inline __m256 f32_widened_block_256(const float* a, const __m256* w) {
+    __m256 t = _mm256_mul_ps(_mm256_loadu_ps(a), w[0]);
+    t = _mm256_fmadd_ps(_mm256_loadu_ps(a + 8), w[1], t);
+    t = _mm256_fmadd_ps(_mm256_loadu_ps(a + 16), w[2], t);
+    return _mm256_fmadd_ps(_mm256_loadu_ps(a + 24), w[3], t);
+}
+
+static void gemm_f32_q4_256(const float** a, int aoffset, const float *bf, const char* b, int stride, float** r, int roffset, int rows, int length) {
+    const float *a0 = a[0] + aoffset, *a1 = a[1] + aoffset, *a2 = a[2] + aoffset, *a3 = a[3] + aoffset;
+    for (int i = 0; i < rows; i++) {
+        long bo = (long) i * stride;
+        __m256 s0 = _mm256_setzero_ps(), s1 = _mm256_setzero_ps(), s2 = _mm256_setzero_ps(), s3 = _mm256_setzero_ps();
+
+        for (int j = 0; j < length; j += Q4_BLOCK_SIZE) {
+            __m256 w[4];
+            q4_widen_256(b + (bo + j) / 2, w);
+            __m256 scale = _mm256_set1_ps(bf[(bo + j) / Q4_BLOCK_SIZE]);
+            s0 = _mm256_fmadd_ps(scale, f32_widened_block_256(a0 + j, w), s0);
+            s1 = _mm256_fmadd_ps(scale, f32_widened_block_256(a1 + j, w), s1);
+            s2 = _mm256_fmadd_ps(scale, f32_widened_block_256(a2 + j, w), s2);
+            s3 = _mm256_fmadd_ps(scale, f32_widened_block_256(a3 + j, w), s3);
+        }
+
+        r[0][roffset + i] = sum_f32_256(s0);
+        r[1][roffset + i] = sum_f32_256(s1);
+        r[2][roffset + i] = sum_f32_256(s2);
+        r[3][roffset + i] = sum_f32_256(s3);
+    }
+}
+
+static void gemm_f32_q4_512(const float** a, int aoffset, const float *bf, const char* b, int stride, float** r, int roffset, int rows, int length) {
+#if defined(__AVX512F__)
+    const float *a0 = a[0] + aoffset, *a1 = a[1] + aoffset, *a2 = a[2] + aoffset, *a3 = a[3] + aoffset;
+    for (int i = 0; i < rows; i++) {
+        long bo = (long) i * stride;
+        __m512 s0 = _mm512_setzero_ps(), s1 = _mm512_setzero_ps(), s2 = _mm512_setzero_ps(), s3 = _mm512_setzero_ps();
+
+        for (int j = 0; j < length; j += Q4_BLOCK_SIZE) {
+            __m256i q = q4_unpack(b + (bo + j) / 2);
+            __m512 w0 = _mm512_cvtepi32_ps(_mm512_cvtepi8_epi32(_mm256_castsi256_si128(q)));
+            __m512 w1 = _mm512_cvtepi32_ps(_mm512_cvtepi8_epi32(_mm256_extracti128_si256(q, 1)));
+            __m512 scale = _mm512_set1_ps(bf[(bo + j) / Q4_BLOCK_SIZE]);
+            s0 = _mm512_fmadd_ps(scale, _mm512_fmadd_ps(_mm512_loadu_ps(a0 + j + 16), w1, _mm512_mul_ps(_mm512_loadu_ps(a0 + j), w0)), s0);
+            s1 = _mm512_fmadd_ps(scale, _mm512_fmadd_ps(_mm512_loadu_ps(a1 + j + 16), w1, _mm512_mul_ps(_mm512_loadu_ps(a1 + j), w0)), s1);
+            s2 = _mm512_fmadd_ps(scale, _mm512_fmadd_ps(_mm512_loadu_ps(a2 + j + 16), w1, _mm512_mul_ps(_mm512_loadu_ps(a2 + j), w0)), s2);
+            s3 = _mm512_fmadd_ps(scale, _mm512_fmadd_ps(_mm512_loadu_ps(a3 + j + 16), w1, _mm512_mul_ps(_mm512_loadu_ps(a3 + j), w0)), s3);
+        }
+
+        r[0][roffset + i] = _mm512_reduce_add_ps(s0);
+        r[1][roffset + i] = _mm512_reduce_add_ps(s1);
+        r[2][roffset + i] = _mm512_reduce_add_ps(s2);
+        r[3][roffset + i] = _mm512_reduce_add_ps(s3);
+    }
+#else
+    gemm_f32_q4_256(a, aoffset, bf, b, stride, r, roffset, rows, length);
+#endif
+}
+
+void gemm_f32_q4(int flags, const float** a, int aoffset, const float *bf, const char* b, long boffset, int stride, float** r, int roffset, int rows, int batch, int length) {
+    for (int i = 0; i < rows; i += GEMM_ROW_CHUNK) {
+        int n = rows - i < GEMM_ROW_CHUNK ? rows - i : GEMM_ROW_CHUNK;
+        long bo = boffset + (long) i * stride;
+        const float* bfi = bf + bo / Q4_BLOCK_SIZE;
+        const char* bi = b + bo / 2;
+
+        int j = 0;
+        for (; j + GEMM_BATCH <= batch; j += GEMM_BATCH) {
+            if ((flags & HAS_AVX512) != 0)
+                gemm_f32_q4_512(a + j, aoffset, bfi, bi, stride, r + j, roffset + i, n, length);
+            else
+                gemm_f32_q4_256(a + j, aoffset, bfi, bi, stride, r + j, roffset + i, n, length);
+        }
+        for (; j < batch; j++)
+            gemv_f32_q4(flags, a[j], aoffset, bfi, bi, 0, stride, r[j], roffset + i, n, length);
+    }
+}
+
+static void gemm_q8_q4_256(const float** af, const char** a, int aoffset, const float *bf, const char* b, int stride, float** r, int roffset, int rows, int length) {
+    const char *a0 = a[0] + aoffset, *a1 = a[1] + aoffset, *a2 = a[2] + aoffset, *a3 = a[3] + aoffset;
+    const float *af0 = af[0], *af1 = af[1], *af2 = af[2], *af3 = af[3];
+    for (int i = 0; i < rows; i++) {
+        long bo = (long) i * stride;
+        __m256 s0 = _mm256_setzero_ps(), s1 = _mm256_setzero_ps(), s2 = _mm256_setzero_ps(), s3 = _mm256_setzero_ps();
+
+        for (int j = 0; j < length; j += Q4_BLOCK_SIZE) {
+            int as = (aoffset + j) / Q8_BLOCK_SIZE;
+            float bscale = bf[(bo + j) / Q4_BLOCK_SIZE];
+            __m256i qb = q4_unpack(b + (bo + j) / 2);
+            s0 = _mm256_fmadd_ps(_mm256_set1_ps(af0[as] * bscale), _mm256_cvtepi32_ps(mul_sum_i8_pairs(_mm256_loadu_si256((__m256i const*)(a0 + j)), qb)), s0);
+            s1 = _mm256_fmadd_ps(_mm256_set1_ps(af1[as] * bscale), _mm256_cvtepi32_ps(mul_sum_i8_pairs(_mm256_loadu_si256((__m256i const*)(a1 + j)), qb)), s1);
+            s2 = _mm256_fmadd_ps(_mm256_set1_ps(af2[as] * bscale), _mm256_cvtepi32_ps(mul_sum_i8_pairs(_mm256_loadu_si256((__m256i const*)(a2 + j)), qb)), s2);
+            s3 = _mm256_fmadd_ps(_mm256_set1_ps(af3[as] * bscale), _mm256_cvtepi32_ps(mul_sum_i8_pairs(_mm256_loadu_si256((__m256i const*)(a3 + j)), qb)), s3);
+        }
+
+        r[0][roffset + i] = sum_f32_256(s0);
+        r[1][roffset + i] = sum_f32_256(s1);
+        r[2][roffset + i] = sum_f32_256(s2);
+        r[3][roffset + i] = sum_f32_256(s3);
+    }
+}
+
+#if defined(VNNI_TARGETS)
+AVX_VNNI static void gemm_q8_q4_avxvnni_256(const float** af, const char** a, int aoffset, const float *bf, const char* b, int stride, float** r, int roffset, int rows, int length) {
+    const char *a0 = a[0] + aoffset, *a1 = a[1] + aoffset, *a2 = a[2] + aoffset, *a3 = a[3] + aoffset;
+    const float *af0 = af[0], *af1 = af[1], *af2 = af[2], *af3 = af[3];
+    for (int i = 0; i < rows; i++) {
+        long bo = (long) i * stride;
+        __m256 s0 = _mm256_setzero_ps(), s1 = _mm256_setzero_ps(), s2 = _mm256_setzero_ps(), s3 = _mm256_setzero_ps();
+
+        for (int j = 0; j < length; j += Q4_BLOCK_SIZE) {
+            int as = (aoffset + j) / Q8_BLOCK_SIZE;
+            float bscale = bf[(bo + j) / Q4_BLOCK_SIZE];
+            __m256i qb = q4_unpack(b + (bo + j) / 2);
+            s0 = _mm256_fmadd_ps(_mm256_set1_ps(af0[as] * bscale), _mm256_cvtepi32_ps(mul_sum_i8_pairs_avxvnni(_mm256_loadu_si256((__m256i const*)(a0 + j)), qb)), s0);
+            s1 = _mm256_fmadd_ps(_mm256_set1_ps(af1[as] * bscale), _mm256_cvtepi32_ps(mul_sum_i8_pairs_avxvnni(_mm256_loadu_si256((__m256i const*)(a1 + j)), qb)), s1);
+            s2 = _mm256_fmadd_ps(_mm256_set1_ps(af2[as] * bscale), _mm256_cvtepi32_ps(mul_sum_i8_pairs_avxvnni(_mm256_loadu_si256((__m256i const*)(a2 + j)), qb)), s2);
+            s3 = _mm256_fmadd_ps(_mm256_set1_ps(af3[as] * bscale), _mm256_cvtepi32_ps(mul_sum_i8_pairs_avxvnni(_mm256_loadu_si256((__m256i const*)(a3 + j)), qb)), s3);
+        }
+
+        r[0][roffset + i] = sum_f32_256(s0);
+        r[1][roffset + i] = sum_f32_256(s1);
+        r[2][roffset + i] = sum_f32_256(s2);
+        r[3][roffset + i] = sum_f32_256(s3);
+    }
+}
+
+// Here the activations change and the weights don't, so the unsigned side is a + 128 and 128 * sum(b) comes back off once per block of b
+AVX512_VNNI static inline __m512 q8_q4_dot_vnni_512(const float* af, const char* a, __m512i qb, __m512i bias, __m512 bscales, int pair) {
+    __m512i qa = _mm512_xor_si512(_mm512_maskz_loadu_epi8(pair ? ~0ULL : 0xFFFFFFFFULL, a), _mm512_set1_epi8((char) 0x80));
+    __m512i dot = _mm512_sub_epi32(_mm512_dpbusd_epi32(_mm512_setzero_si512(), qa, qb), bias);
+    return _mm512_mul_ps(_mm512_mul_ps(block_scales_512(af, pair), bscales), _mm512_cvtepi32_ps(dot));
+}
+
+AVX512_VNNI static void gemm_q8_q4_vnni_512(const float** af, const char** a, int aoffset, const float *bf, const char* b, int stride, float** r, int roffset, int rows, int length) {
+    __m512i eight = _mm512_set1_epi8(8);
+    __m512i offset = _mm512_set1_epi8((char) 0x80);
+    const char *a0 = a[0] + aoffset, *a1 = a[1] + aoffset, *a2 = a[2] + aoffset, *a3 = a[3] + aoffset;
+    const float *af0 = af[0], *af1 = af[1], *af2 = af[2], *af3 = af[3];
+    for (int i = 0; i < rows; i++) {
+        long bo = (long) i * stride;
+        __m512 s0 = _mm512_setzero_ps(), s1 = _mm512_setzero_ps(), s2 = _mm512_setzero_ps(), s3 = _mm512_setzero_ps();
+
+        for (int j = 0; j < length; j += 2 * Q4_BLOCK_SIZE) {
+            int as = (aoffset + j) / Q8_BLOCK_SIZE;
+            int pair = j + Q4_BLOCK_SIZE < length;
+            __m512i qb = _mm512_sub_epi8(q4_pair_512(b + (bo + j) / 2, pair), eight);
+            __m512i bias = _mm512_dpbusd_epi32(_mm512_setzero_si512(), offset, qb);
+            __m512 bscales = block_scales_512(bf + (bo + j) / Q4_BLOCK_SIZE, pair);
+            s0 = _mm512_add_ps(q8_q4_dot_vnni_512(af0 + as, a0 + j, qb, bias, bscales, pair), s0);
+            s1 = _mm512_add_ps(q8_q4_dot_vnni_512(af1 + as, a1 + j, qb, bias, bscales, pair), s1);
+            s2 = _mm512_add_ps(q8_q4_dot_vnni_512(af2 + as, a2 + j, qb, bias, bscales, pair), s2);
+            s3 = _mm512_add_ps(q8_q4_dot_vnni_512(af3 + as, a3 + j, qb, bias, bscales, pair), s3);
+        }
+
+        r[0][roffset + i] = _mm512_reduce_add_ps(s0);
+        r[1][roffset + i] = _mm512_reduce_add_ps(s1);
+        r[2][roffset + i] = _mm512_reduce_add_ps(s2);
+        r[3][roffset + i] = _mm512_reduce_add_ps(s3);
+    }
+}
+#endif
+
+void gemm_q8_q4(int flags, const float** af, const char** a, int aoffset, const float *bf, const char* b, long boffset, int stride, float** r, int roffset, int rows, int batch, int length) {
+    for (int i = 0; i < rows; i += GEMM_ROW_CHUNK) {
+        int n = rows - i < GEMM_ROW_CHUNK ? rows - i : GEMM_ROW_CHUNK;
+        long bo = boffset + (long) i * stride;
+        const float* bfi = bf + bo / Q4_BLOCK_SIZE;
+        const char* bi = b + bo / 2;
+
+        int j = 0;
+        for (; j + GEMM_BATCH <= batch; j += GEMM_BATCH) {
+#if defined(VNNI_TARGETS)
+            if ((flags & HAS_AVX512_VNNI) != 0) {
+                gemm_q8_q4_vnni_512(af + j, a + j, aoffset, bfi, bi, stride, r + j, roffset + i, n, length);
+                continue;
+            }
+            if ((flags & HAS_AVX_VNNI) != 0) {
+                gemm_q8_q4_avxvnni_256(af + j, a + j, aoffset, bfi, bi, stride, r + j, roffset + i, n, length);
+                continue;
+            }
+#endif
+            gemm_q8_q4_256(af + j, a + j, aoffset, bfi, bi, stride, r + j, roffset + i, n, length);
+        }
+        for (; j < batch; j++)
+            gemv_q8_q4(flags, af[j], a[j], aoffset, bfi, bi, 0, stride, r[j], roffset + i, n, length);
+    }
+}
@@ -3,25 +3,98 @@
 
 //Flags passes in at runtime
 #define HAS_F16C 2
-#define HAS_AVX2 4
+//AVX-512 F, BW, VL and DQ, selects the 512 bit kernels
+#define HAS_AVX512 4
 #define IS_M_SERIES_MAC 8
+#define HAS_AVX512_VNNI 16
+#define HAS_AVX_VNNI 32
+//The least a variant of the library needs, only reported by cpu_features
+#define HAS_AVX2_FMA 64
 
 // Info for quantization
 #define Q8_BLOCK_SIZE 32
 #define Q4_BLOCK_SIZE 32
+#define Q5_BLOCK_SIZE 32
+
+// Info for k-quant super-blocks
+#define QK_K 256
+#define Q4_K_BLOCK_BYTES 144
+#define Q6_K_BLOCK_BYTES 210
+
+// ggml's blocks of 32 with an F16 scale in front
+#define Q4_0_BLOCK_BYTES 18
+#define Q8_0_BLOCK_BYTES 34
+
+// Tensor types for the kernels that take them at runtime
+#define DTYPE_F32 0
+#define DTYPE_F16 1
+#define DTYPE_BF16 2
+#define DTYPE_I8 3
+#define DTYPE_Q4 4
+#define DTYPE_Q5 5
+#define DTYPE_Q4_K 6
+#define DTYPE_Q6_K 7
+#define DTYPE_Q4_0 8
+#define DTYPE_Q8_0 9
+
+//The HAS_ flags this CPU and OS support, checked with CPUID
+int cpu_features();
 
 //F16
 float dot_product_f16(int flags, const short* a, int aoffset, const short* b, int boffset, int length);
 float dot_product_f16_q8(int flags, const short* a, int aoffset, const float *bf, const char* b, int boffset, int length);
 float dot_product_f16_q4(int flags, const short* a, int aoffset, const float *bf, const char* b, int boffset, int length);
 
+//BF16
+float dot_product_bf16(int flags, const short* a, int aoffset, const short* b, int boffset, int length);
+
 //F32
 float dot_product_f32(int flags, const float* a, int aoffset, const float* b, int boffset, int length);
+float dot_product_f32_f16(int flags, const float* a, int aoffset, const short* b, int boffset, int length);
+float dot_product_f32_bf16(int flags, const float* a, int aoffset, const short* b, int boffset, int length);
 float dot_product_f32_q8(int flags, const float* a, int aoffset, const float *bf, const char* b, int boffset, int length);
 float dot_product_f32_q4(int flags, const float* a, int aoffset, const float *bf, const char* b, int boffset, int length);
+float dot_product_f32_q5(int flags, const float* a, int aoffset, const float *bf, const int* bh, const char* b, int boffset, int length);
+float dot_product_f32_q4k(int flags, const float* a, int aoffset, const char* b, int boffset, int length);
+float dot_product_f32_q6k(int flags, const float* a, int aoffset, const char* b, int boffset, int length);
+float dot_product_f32_q4_0(int flags, const float* a, int aoffset, const char* b, int boffset, int length);
+float dot_product_f32_q8_0(int flags, const float* a, int aoffset, const char* b, int boffset, int length);
 
 //I8
 float dot_product_q8(int flags, const float *af, const char* a, int aoffset, const float *bf, const char* b, int boffset, int length);
 float dot_product_q8_q4(int flags, const float *af, const char* a, int aoffset, const float *bf, const char* b, int boffset, int length);
+float dot_product_q8_q5(int flags, const float *af, const char* a, int aoffset, const float *bf, const int* bh, const char* b, int boffset, int length);
+float dot_product_q8_q4_0(int flags, const float *af, const char* a, int aoffset, const char* b, int boffset, int length);
+float dot_product_q8_q8_0(int flags, const float *af, const char* a, int aoffset, const char* b, int boffset, int length);
+
+//Any activation type widened to F32 a chunk at a time, against weights of any type
+float dot_product_widened(int flags, int atype, const float *af, const void* a, int aoffset, int btype, const float *bf, const int* bh, const char* b, int boffset, int length);
+
+//Rows of b at a time against one activation, r[roffset + i] = a . row i, each row stride values apart
+#define GEMV_ROWS 4
+void gemv_f32(int flags, const float* a, int aoffset, const float* b, long boffset, int stride, float* r, int roffset, int rows, int length);
+void gemv_f32_q4(int flags, const float* a, int aoffset, const float *bf, const char* b, long boffset, int stride, float* r, int roffset, int rows, int length);
+void gemv_q8_q4(int flags, const float *af, const char* a, int aoffset, const float *bf, const char* b, long boffset, int stride, float* r, int roffset, int rows, int length);
+
+//A batch of activations against rows of b, r[j][roffset + i] = a[j] . row i, in one call
+#define GEMM_ROW_CHUNK 16
+//Activations of the batch that share each load of a row of b
+#define GEMM_BATCH 4
+void gemm_f32(int flags, const float** a, int aoffset, const float* b, long boffset, int stride, float** r, int roffset, int rows, int batch, int length);
+void gemm_f32_q4(int flags, const float** a, int aoffset, const float *bf, const char* b, long boffset, int stride, float** r, int roffset, int rows, int batch, int length);
+void gemm_q8_q4(int flags, const float** af, const char** a, int aoffset, const float *bf, const char* b, long boffset, int stride, float** r, int roffset, int rows, int batch, int length);
+
+//Element-wise, x is one of the DTYPE_ types
+void accumulate_f32(int flags, float* a, const float* b, int length);
+void accumulate_bf16(int flags, short* a, const short* b, int length);
+void scale_f32(int flags, float factor, float* a, int offset, int length);
+void scale_bf16(int flags, float factor, short* a, int offset, int length);
+void saxpy_f32(int flags, float alpha, int xtype, const float* xf, const void* x, int xoffset, float* y, int yoffset, int length);
+void sxpby_f32(int flags, float beta, int xtype, const float* xf, const void* x, int xoffset, float* y, int yoffset, int length);
+void saxpy_bf16(int flags, float alpha, const short* x, int xoffset, short* y, int yoffset, int length);
+void sxpby_bf16(int flags, float beta, const short* x, int xoffset, short* y, int yoffset, int length);
+
+//Quantization
+void quantize_q8(int flags, const float* a, int aoffset, float* bf, char* b, int length);
 
 #endif
\ No newline at end of file
@@ -1,40 +1,39 @@
 package com.github.tjake.jlama.tensor.operations;
 
+import com.github.tjake.jlama.math.VectorMath;
+import com.github.tjake.jlama.safetensors.DType;
 import com.github.tjake.jlama.tensor.AbstractTensor;
 import com.github.tjake.jlama.tensor.Q4ByteBufferTensor;
+import com.github.tjake.jlama.tensor.Q5ByteBufferTensor;
 import com.github.tjake.jlama.tensor.Q8ByteBufferTensor;
+import com.github.tjake.jlama.tensor.TensorCache;
 import com.github.tjake.jlama.tensor.operations.cnative.NativeSimd;
-import com.github.tjake.jlama.util.MachineSpec;
-import com.github.tjake.jlama.util.RuntimeSupport;
+import com.google.common.base.Preconditions;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
 
 public class NativeTensorOperations implements TensorOperations {
     public static final int HAS_F16C = NativeSimd.HAS_F16C();
-    public static final int HAS_AVX2 = NativeSimd.HAS_AVX2();
-
-    private static final TensorOperations delegate;
-    static {
-        TensorOperations tmp;
-        try {
-            tmp = new PanamaTensorOperations(MachineSpec.VECTOR_TYPE);
-        } catch (Throwable t) {
-            tmp = new NaiveTensorOperations();
-        }
-        delegate = tmp;
-    }
+    public static final int HAS_AVX512 = NativeSimd.HAS_AVX512();
+    public static final int HAS_AVX512_VNNI = NativeSimd.HAS_AVX512_VNNI();
+    public static final int HAS_AVX_VNNI = NativeSimd.HAS_AVX_VNNI();
+    public static final int HAS_AVX2_FMA = NativeSimd.HAS_AVX2_FMA();
+
+    //Pointers to the activations and results of a batch, handed to the gemm kernels
+    private static final ThreadLocal<MemorySegment> batchPointers = new ThreadLocal<>();
 
     final int flags;
 
 
     public NativeTensorOperations() {
-        int f = 0;
+        //The same CPUID check that picked the variant of the library picks its kernels
+        int f = NativeSimd.cpu_features();
+        if ((f & HAS_AVX2_FMA) == 0)
+            throw new UnsupportedOperationException("jlama-native needs AVX2 and FMA");
 
-        if (RuntimeSupport.isLinux())
-            f |= HAS_F16C;
-
-        if (MachineSpec.VECTOR_TYPE == MachineSpec.Type.AVX_512)
-            f |= HAS_AVX2;
-
-        this.flags = f;
+        this.flags = f & ~HAS_AVX2_FMA;
         checkLib();
     }
 
@@ -51,6 +50,8 @@ public class NativeTensorOperations implements TensorOperations {
         NativeSimd.dot_product_f32$MH();
     }
 
+    //The kernels only take native segments, heap segments need Linker.Option.critical(true) from JDK 22, so
+    //tensors, scratch ones included, stay off-heap even for the kernels bound as trivial downcalls
     @Override
     public boolean requiresOffHeapTensor() {
         return true;
@@ -62,36 +63,233 @@ public class NativeTensorOperations implements TensorOperations {
         return switch (a.dType()) {
             case F32 -> switch (b.dType()) {
                 case F32 -> NativeSimd.dot_product_f32(flags, a.getMemorySegment(), aoffset, b.getMemorySegment(), boffset, limit);
+                case F16 -> NativeSimd.dot_product_f32_f16(flags, a.getMemorySegment(), aoffset, b.getMemorySegment(), boffset, limit);
+                case BF16 -> NativeSimd.dot_product_f32_bf16(flags, a.getMemorySegment(), aoffset, b.getMemorySegment(), boffset, limit);
                 case I8 -> NativeSimd.dot_product_f32_q8(flags, a.getMemorySegment(), aoffset, ((Q8ByteBufferTensor)b).getBlockF().getMemorySegment(), b.getMemorySegment(), boffset, limit);
                 case Q4 -> NativeSimd.dot_product_f32_q4(flags, a.getMemorySegment(), aoffset, ((Q4ByteBufferTensor)b).getBlockF().getMemorySegment(), b.getMemorySegment(), boffset, limit);
-                default -> throw new UnsupportedOperationException();
+                case Q5 -> NativeSimd.dot_product_f32_q5(flags, a.getMemorySegment(), aoffset, ((Q5ByteBufferTensor)b).getBlockF().getMemorySegment(), ((Q5ByteBufferTensor)b).getHighBits(), b.getMemorySegment(), boffset, limit);
+                case Q4_K -> NativeSimd.dot_product_f32_q4k(flags, a.getMemorySegment(), aoffset, b.getMemorySegment(), boffset, limit);
+                case Q6_K -> NativeSimd.dot_product_f32_q6k(flags, a.getMemorySegment(), aoffset, b.getMemorySegment(), boffset, limit);
+                case Q4_0 -> NativeSimd.dot_product_f32_q4_0(flags, a.getMemorySegment(), aoffset, b.getMemorySegment(), boffset, limit);
+                case Q8_0 -> NativeSimd.dot_product_f32_q8_0(flags, a.getMemorySegment(), aoffset, b.getMemorySegment(), boffset, limit);
+                default -> throw new UnsupportedOperationException(b.dType().name());
+            };
+            case I8 -> switch (b.dType()) {
+                case F32, F16 -> dotProduct(b, a, boffset, aoffset, limit);
+                case I8 -> NativeSimd.dot_product_q8(flags, ((Q8ByteBufferTensor)a).getBlockF().getMemorySegment(), a.getMemorySegment(), aoffset, ((Q8ByteBufferTensor)b).getBlockF().getMemorySegment(), b.getMemorySegment(), boffset, limit);
+                case Q4 -> NativeSimd.dot_product_q8_q4(flags, ((Q8ByteBufferTensor)a).getBlockF().getMemorySegment(), a.getMemorySegment(), aoffset, ((Q4ByteBufferTensor)b).getBlockF().getMemorySegment(), b.getMemorySegment(), boffset, limit);
+                case Q5 -> NativeSimd.dot_product_q8_q5(flags, ((Q8ByteBufferTensor)a).getBlockF().getMemorySegment(), a.getMemorySegment(), aoffset, ((Q5ByteBufferTensor)b).getBlockF().getMemorySegment(), ((Q5ByteBufferTensor)b).getHighBits(), b.getMemorySegment(), boffset, limit);
+                case Q4_0 -> NativeSimd.dot_product_q8_q4_0(flags, ((Q8ByteBufferTensor)a).getBlockF().getMemorySegment(), a.getMemorySegment(), aoffset, b.getMemorySegment(), boffset, limit);
+                case Q8_0 -> NativeSimd.dot_product_q8_q8_0(flags, ((Q8ByteBufferTensor)a).getBlockF().getMemorySegment(), a.getMemorySegment(), aoffset, b.getMemorySegment(), boffset, limit);
+                default -> dotProductWidened(a, b, aoffset, boffset, limit);
             };
             case F16 -> switch (b.dType()) {
+                case F32 -> dotProduct(b, a, boffset, aoffset, limit);
                 case F16 -> NativeSimd.dot_product_f16(flags, a.getMemorySegment(), aoffset, b.getMemorySegment(), boffset, limit);
                 case I8 -> NativeSimd.dot_product_f16_q8(flags, a.getMemorySegment(), aoffset, ((Q8ByteBufferTensor)b).getBlockF().getMemorySegment(), b.getMemorySegment(), boffset, limit);
-                default -> throw new UnsupportedOperationException();
+                default -> dotProductWidened(a, b, aoffset, boffset, limit);
             };
-            default -> throw new UnsupportedOperationException();
+            case BF16 -> switch (b.dType()) {
+                case F32 -> dotProduct(b, a, boffset, aoffset, limit);
+                case BF16 -> NativeSimd.dot_product_bf16(flags, a.getMemorySegment(), aoffset, b.getMemorySegment(), boffset, limit);
+                default -> dotProductWidened(a, b, aoffset, boffset, limit);
+            };
+            default -> throw new UnsupportedOperationException(a.dType().name());
         };
     }
 
+    @Override
+    public void matmul(AbstractTensor[] a, int batchStart, int batchEnd, AbstractTensor b, int rowStart, int rowEnd, AbstractTensor[] result, int resultOffset, int limit) {
+        Preconditions.checkArgument(b.dims() == 2);
+        int stride = b.shape()[1];
+
+        //One downcall for the whole batch and row range
+        boolean done = batchEnd - batchStart == 1
+                ? gemv(a[batchStart], b, rowStart, rowEnd, stride, result[batchStart], resultOffset, limit)
+                : gemm(a, batchStart, batchEnd, b, rowStart, rowEnd, stride, result, resultOffset, limit);
+
+        if (!done)
+            TensorOperations.super.matmul(a, batchStart, batchEnd, b, rowStart, rowEnd, result, resultOffset, limit);
+    }
+
+    private boolean gemm(AbstractTensor[] a, int batchStart, int batchEnd, AbstractTensor b, int rowStart, int rowEnd, int stride, AbstractTensor[] r, int roffset, int limit) {
+        DType atype = a[batchStart].dType();
+        for (int j = batchStart; j < batchEnd; j++) {
+            if (a[j].dType() != atype || r[j].dType() != DType.F32)
+                return false;
+        }
+
+        boolean q8 = atype == DType.I8;
+        if (!(atype == DType.F32 && (b.dType() == DType.F32 || b.dType() == DType.Q4)) && !(q8 && b.dType() == DType.Q4))
+            return false;
+
+        //Results, activations and (for I8) the activations' block scales, one pointer each per batch entry
+        int batch = batchEnd - batchStart;
+        MemorySegment pointers = batchPointers(3 * batch);
+        MemorySegment rp = pointers.asSlice(0, batch * ValueLayout.ADDRESS.byteSize());
+        MemorySegment ap = pointers.asSlice(batch * ValueLayout.ADDRESS.byteSize(), batch * ValueLayout.ADDRESS.byteSize());
+        MemorySegment afp = pointers.asSlice(2 * batch * ValueLayout.ADDRESS.byteSize(), batch * ValueLayout.ADDRESS.byteSize());
+        for (int j = 0; j < batch; j++) {
+            rp.setAtIndex(ValueLayout.ADDRESS, j, r[batchStart + j].getMemorySegment());
+            ap.setAtIndex(ValueLayout.ADDRESS, j, a[batchStart + j].getMemorySegment());
+            if (q8)
+                afp.setAtIndex(ValueLayout.ADDRESS, j, blockF(a[batchStart + j]));
+        }
+
+        int rows = rowEnd - rowStart;
+        long boffset = (long) rowStart * stride;
+        if (q8)
+            NativeSimd.gemm_q8_q4(flags, afp, ap, 0, blockF(b), b.getMemorySegment(), boffset, stride, rp, roffset + rowStart, rows, batch, limit);
+        else if (b.dType() == DType.Q4)
+            NativeSimd.gemm_f32_q4(flags, ap, 0, blockF(b), b.getMemorySegment(), boffset, stride, rp, roffset + rowStart, rows, batch, limit);
+        else
+            NativeSimd.gemm_f32(flags, ap, 0, b.getMemorySegment(), boffset, stride, rp, roffset + rowStart, rows, batch, limit);
+
+        return true;
+    }
+
+    private static MemorySegment batchPointers(int count) {
+        MemorySegment s = batchPointers.get();
+        if (s == null || s.byteSize() < count * ValueLayout.ADDRESS.byteSize()) {
+            s = Arena.ofAuto().allocateArray(ValueLayout.ADDRESS, Math.max(count, 3 * VectorMath.BATCH_TILE));
+            batchPointers.set(s);
+        }
+        return s;
+    }
+
+    private boolean gemv(AbstractTensor a, AbstractTensor b, int rowStart, int rowEnd, int stride, AbstractTensor r, int roffset, int limit) {
+        if (r.dType() != DType.F32)
+            return false;
+
+        int rows = rowEnd - rowStart;
+        long boffset = (long) rowStart * stride;
+        switch (a.dType()) {
+            case F32 -> {
+                switch (b.dType()) {
+                    case F32 -> NativeSimd.gemv_f32(flags, a.getMemorySegment(), 0, b.getMemorySegment(), boffset, stride, r.getMemorySegment(), roffset + rowStart, rows, limit);
+                    case Q4 -> NativeSimd.gemv_f32_q4(flags, a.getMemorySegment(), 0, blockF(b), b.getMemorySegment(), boffset, stride, r.getMemorySegment(), roffset + rowStart, rows, limit);
+                    default -> { return false; }
+                }
+            }
+            case I8 -> {
+                if (b.dType() != DType.Q4)
+                    return false;
+                NativeSimd.gemv_q8_q4(flags, blockF(a), a.getMemorySegment(), 0, blockF(b), b.getMemorySegment(), boffset, stride, r.getMemorySegment(), roffset + rowStart, rows, limit);
+            }
+            default -> { return false; }
+        }
+        return true;
+    }
+
+    /**
+     * The pairs without a kernel of their own widen a chunk of the activation to F32 at a time
+     * and run it through the F32 kernel for the weights.
+     */
+    private float dotProductWidened(AbstractTensor a, AbstractTensor b, int aoffset, int boffset, int limit) {
+        return NativeSimd.dot_product_widened(flags, nativeType(a), blockF(a), a.getMemorySegment(), aoffset,
+                nativeType(b), blockF(b), b.dType() == DType.Q5 ? ((Q5ByteBufferTensor)b).getHighBits() : MemorySegment.NULL,
+                b.getMemorySegment(), boffset, limit);
+    }
+
+    private static int nativeType(AbstractTensor t) {
+        return switch (t.dType()) {
+            case F32 -> NativeSimd.DTYPE_F32();
+            case F16 -> NativeSimd.DTYPE_F16();
+            case BF16 -> NativeSimd.DTYPE_BF16();
+            case I8 -> NativeSimd.DTYPE_I8();
+            case Q4 -> NativeSimd.DTYPE_Q4();
+            case Q5 -> NativeSimd.DTYPE_Q5();
+            case Q4_K -> NativeSimd.DTYPE_Q4_K();
+            case Q6_K -> NativeSimd.DTYPE_Q6_K();
+            case Q4_0 -> NativeSimd.DTYPE_Q4_0();
+            case Q8_0 -> NativeSimd.DTYPE_Q8_0();
+            default -> throw new UnsupportedOperationException(t.dType().name());
+        };
+    }
+
+    /** The per block scales of a quantized tensor */
+    private static MemorySegment blockF(AbstractTensor t) {
+        return switch (t.dType()) {
+            case I8 -> ((Q8ByteBufferTensor) t).getBlockF().getMemorySegment();
+            case Q4 -> ((Q4ByteBufferTensor) t).getBlockF().getMemorySegment();
+            case Q5 -> ((Q5ByteBufferTensor) t).getBlockF().getMemorySegment();
+            default -> MemorySegment.NULL;
+        };
+    }
+
+    @Override
+    public AbstractTensor quantize(AbstractTensor t, DType qtype) {
+        if (t.dType() != DType.F32 || qtype != DType.I8)
+            return TensorOperations.super.quantize(t, qtype);
+
+        Preconditions.checkArgument(t.size() % Q8ByteBufferTensor.BLOCK_SIZE == 0 && t.dims() == 1);
+
+        //Up to caller to release
+        Q8ByteBufferTensor qft = (Q8ByteBufferTensor) TensorCache.instance.get(DType.I8, t.shape());
+        NativeSimd.quantize_q8(flags, t.getMemorySegment(), 0, qft.getBlockF().getMemorySegment(), qft.getMemorySegment(), t.size());
+        return qft;
+    }
+
     @Override
     public void accumulate(AbstractTensor a, AbstractTensor b) {
-         delegate.accumulate(a, b);
+        Preconditions.checkArgument(a.dType() == b.dType());
+        Preconditions.checkArgument(a.size() == b.size());
+
+        switch (a.dType()) {
+            case F32 -> NativeSimd.accumulate_f32(flags, a.getMemorySegment(), b.getMemorySegment(), a.size());
+            case BF16 -> NativeSimd.accumulate_bf16(flags, a.getMemorySegment(), b.getMemorySegment(), a.size());
+            default -> throw new UnsupportedOperationException(a.dType().name());
+        }
     }
 
     @Override
     public void saxpy(float alpha, AbstractTensor x, AbstractTensor y, int xoffset, int yoffset, int limit) {
-        delegate.saxpy(alpha, x, y, xoffset, yoffset, limit);
+        Preconditions.checkArgument(limit % 8 == 0);
+
+        switch (y.dType()) {
+            //x in any working type accumulating into a F32 y (e.g. a quantized kv cache)
+            case F32 -> {
+                checkElementWise(x);
+                NativeSimd.saxpy_f32(flags, alpha, nativeType(x), blockF(x), x.getMemorySegment(), xoffset, y.getMemorySegment(), yoffset, limit);
+            }
+            case BF16 -> {
+                Preconditions.checkArgument(x.dType() == y.dType());
+                NativeSimd.saxpy_bf16(flags, alpha, x.getMemorySegment(), xoffset, y.getMemorySegment(), yoffset, limit);
+            }
+            default -> throw new UnsupportedOperationException(y.dType().name());
+        }
     }
 
     @Override
     public void sxpby(float beta, AbstractTensor x, AbstractTensor y, int xoffset, int yoffset, int limit) {
-        delegate.sxpby(beta, x, y, xoffset, yoffset, limit);
+        Preconditions.checkArgument(limit % 8 == 0);
+
+        switch (y.dType()) {
+            case F32 -> {
+                checkElementWise(x);
+                NativeSimd.sxpby_f32(flags, beta, nativeType(x), blockF(x), x.getMemorySegment(), xoffset, y.getMemorySegment(), yoffset, limit);
+            }
+            case BF16 -> {
+                Preconditions.checkArgument(x.dType() == y.dType());
+                NativeSimd.sxpby_bf16(flags, beta, x.getMemorySegment(), xoffset, y.getMemorySegment(), yoffset, limit);
+            }
+            default -> throw new UnsupportedOperationException(y.dType().name());
+        }
+    }
+
+    private static void checkElementWise(AbstractTensor x) {
+        switch (x.dType()) {
+            case F32, F16, BF16, I8 -> {}
+            default -> throw new UnsupportedOperationException(x.dType().name());
+        }
     }
 
     @Override
     public void scale(float factor, AbstractTensor x, int offset, int length) {
-        delegate.scale(factor, x, offset, length);
+        switch (x.dType()) {
+            case F32 -> NativeSimd.scale_f32(flags, factor, x.getMemorySegment(), offset, length);
+            case BF16 -> NativeSimd.scale_bf16(flags, factor, x.getMemorySegment(), offset, length);
+            default -> throw new UnsupportedOperationException(x.dType().name());
+        }
     }
 }
@@ -6,6 +6,12 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.SymbolLookup;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
 import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Paths;
@@ -17,27 +23,35 @@ import com.github.tjake.jlama.util.RuntimeSupport;
 
 public class JarSupport {
     private static final Logger logger = LoggerFactory.getLogger(JarSupport.class);
+
+    /**
+     * The jar carries the AVX2 build as libjlama plus an AVX-512 build as libjlama-avx512.
+     * The AVX2 build is only probed for its cpu_features, which runs on any x86 CPU, then the AVX-512 build
+     * is loaded instead if this CPU supports it.
+     */
     static boolean maybeLoadLibrary() {
         String ext = RuntimeSupport.isMac() ? ".dylib" : ".so";
-        URL lib = JarSupport.class.getClassLoader().getResource("META-INF/native/lib/libjlama" + ext);
+        URL lib = resource("libjlama" + ext);
 
         if (lib != null) {
             try {
                 final File libpath = Files.createTempDirectory("jlama").toFile();
                 libpath.deleteOnExit(); // just in case
 
-                File libfile = Paths.get(libpath.getAbsolutePath(), "libjlama"+ext).toFile();
-                libfile.deleteOnExit(); // just in case
+                File libfile = extract(lib, libpath, "libjlama" + ext);
+
+                if (!RuntimeSupport.isMac()) {
+                    int features = cpuFeatures(libfile);
+                    if ((features & NativeSimd.HAS_AVX2_FMA()) == 0) {
+                        logger.warn("jlama-native needs AVX2 and FMA, this CPU doesn't have them");
+                        return false;
+                    }
 
-                final InputStream in = lib.openStream();
-                final OutputStream out = new BufferedOutputStream(new FileOutputStream(libfile));
+                    String variant = "libjlama-avx512" + ext;
+                    if ((features & NativeSimd.HAS_AVX512()) != 0 && resource(variant) != null)
+                        libfile = extract(resource(variant), libpath, variant);
+                }
 
-                int len = 0;
-                byte[] buffer = new byte[8192];
-                while ((len = in.read(buffer)) > -1)
-                    out.write(buffer, 0, len);
-                out.close();
-                in.close();
                 System.load(libfile.getAbsolutePath());
                 logger.info("Loaded jlama-native library: {}", libfile.getAbsolutePath());
                 return true;
@@ -50,4 +64,36 @@ public class JarSupport {
         return false;
     }
 
+    private static URL resource(String name) {
+        return JarSupport.class.getClassLoader().getResource("META-INF/native/lib/" + name);
+    }
+
+    private static File extract(URL lib, File libpath, String name) throws IOException {
+        File libfile = Paths.get(libpath.getAbsolutePath(), name).toFile();
+        libfile.deleteOnExit(); // just in case
+
+        final InputStream in = lib.openStream();
+        final OutputStream out = new BufferedOutputStream(new FileOutputStream(libfile));
+
+        int len = 0;
+        byte[] buffer = new byte[8192];
+        while ((len = in.read(buffer)) > -1)
+            out.write(buffer, 0, len);
+        out.close();
+        in.close();
+        return libfile;
+    }
+
+    /** Calls cpu_features in a library that is unloaded again afterwards, so its symbols don't shadow the variant's */
+    private static int cpuFeatures(File libfile) {
+        try (Arena arena = Arena.ofConfined()) {
+            SymbolLookup lookup = SymbolLookup.libraryLookup(libfile.toPath(), arena);
+            MethodHandle mh = Linker.nativeLinker().downcallHandle(lookup.find("cpu_features").orElseThrow(),
+                    FunctionDescriptor.of(ValueLayout.JAVA_INT));
+            return (int) mh.invokeExact();
+        } catch (Throwable t) {
+            logger.warn("Error checking the CPU features", t);
+            return 0;
+        }
+    }
 }
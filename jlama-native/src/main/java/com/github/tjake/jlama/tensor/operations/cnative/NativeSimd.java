@@ -27,10 +27,10 @@ public class NativeSimd  {
     }
     /**
      * {@snippet :
-     * #define HAS_AVX2 4
+     * #define HAS_AVX512 4
      * }
      */
-    public static int HAS_AVX2() {
+    public static int HAS_AVX512() {
         return (int)4L;
     }
     /**
@@ -41,6 +41,46 @@ public class NativeSimd  {
     public static int IS_M_SERIES_MAC() {
         return (int)8L;
     }
+    /**
+     * {@snippet :
+     * #define HAS_AVX512_VNNI 16
+     * }
+     */
+    public static int HAS_AVX512_VNNI() {
+        return (int)16L;
+    }
+    /**
+     * {@snippet :
+     * #define HAS_AVX_VNNI 32
+     * }
+     */
+    public static int HAS_AVX_VNNI() {
+        return (int)32L;
+    }
+    /**
+     * {@snippet :
+     * #define HAS_AVX2_FMA 64
+     * }
+     */
+    public static int HAS_AVX2_FMA() {
+        return (int)64L;
+    }
+    /**
+     * {@snippet :
+     * #define GEMV_ROWS 4
+     * }
+     */
+    public static int GEMV_ROWS() {
+        return (int)4L;
+    }
+    /**
+     * {@snippet :
+     * #define GEMM_ROW_CHUNK 16
+     * }
+     */
+    public static int GEMM_ROW_CHUNK() {
+        return (int)16L;
+    }
     /**
      * {@snippet :
      * #define Q8_BLOCK_SIZE 256
@@ -57,6 +97,86 @@ public class NativeSimd  {
     public static int Q4_BLOCK_SIZE() {
         return (int)32L;
     }
+    /**
+     * {@snippet :
+     * #define DTYPE_F32 0
+     * }
+     */
+    public static int DTYPE_F32() {
+        return (int)0L;
+    }
+    /**
+     * {@snippet :
+     * #define DTYPE_F16 1
+     * }
+     */
+    public static int DTYPE_F16() {
+        return (int)1L;
+    }
+    /**
+     * {@snippet :
+     * #define DTYPE_BF16 2
+     * }
+     */
+    public static int DTYPE_BF16() {
+        return (int)2L;
+    }
+    /**
+     * {@snippet :
+     * #define DTYPE_I8 3
+     * }
+     */
+    public static int DTYPE_I8() {
+        return (int)3L;
+    }
+    /**
+     * {@snippet :
+     * #define DTYPE_Q4 4
+     * }
+     */
+    public static int DTYPE_Q4() {
+        return (int)4L;
+    }
+    /**
+     * {@snippet :
+     * #define DTYPE_Q5 5
+     * }
+     */
+    public static int DTYPE_Q5() {
+        return (int)5L;
+    }
+    /**
+     * {@snippet :
+     * #define DTYPE_Q4_K 6
+     * }
+     */
+    public static int DTYPE_Q4_K() {
+        return (int)6L;
+    }
+    /**
+     * {@snippet :
+     * #define DTYPE_Q6_K 7
+     * }
+     */
+    public static int DTYPE_Q6_K() {
+        return (int)7L;
+    }
+    /**
+     * {@snippet :
+     * #define DTYPE_Q4_0 8
+     * }
+     */
+    public static int DTYPE_Q4_0() {
+        return (int)8L;
+    }
+    /**
+     * {@snippet :
+     * #define DTYPE_Q8_0 9
+     * }
+     */
+    public static int DTYPE_Q8_0() {
+        return (int)9L;
+    }
     public static MethodHandle dot_product_f16$MH() {
         return RuntimeHelper.requireNonNull(constants$0.dot_product_f16$MH,"dot_product_f16");
     }
@@ -156,6 +276,486 @@ public class NativeSimd  {
             throw new AssertionError("should not reach here", ex$);
         }
     }
+    public static MethodHandle dot_product_f32_q4k$MH() {
+        return RuntimeHelper.requireNonNull(constants$2.dot_product_f32_q4k$MH,"dot_product_f32_q4k");
+    }
+    /**
+     * {@snippet :
+     * float dot_product_f32_q4k(int flags, float* a, int aoffset, char* b, int boffset, int length);
+     * }
+     */
+    public static float dot_product_f32_q4k(int flags, MemorySegment a, int aoffset, MemorySegment b, int boffset, int length) {
+        var mh$ = dot_product_f32_q4k$MH();
+        try {
+            return (float)mh$.invokeExact(flags, a, aoffset, b, boffset, length);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+    public static MethodHandle dot_product_f32_q6k$MH() {
+        return RuntimeHelper.requireNonNull(constants$2.dot_product_f32_q6k$MH,"dot_product_f32_q6k");
+    }
+    /**
+     * {@snippet :
+     * float dot_product_f32_q6k(int flags, float* a, int aoffset, char* b, int boffset, int length);
+     * }
+     */
+    public static float dot_product_f32_q6k(int flags, MemorySegment a, int aoffset, MemorySegment b, int boffset, int length) {
+        var mh$ = dot_product_f32_q6k$MH();
+        try {
+            return (float)mh$.invokeExact(flags, a, aoffset, b, boffset, length);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+    public static MethodHandle dot_product_f32_q5$MH() {
+        return RuntimeHelper.requireNonNull(constants$2.dot_product_f32_q5$MH,"dot_product_f32_q5");
+    }
+    /**
+     * {@snippet :
+     * float dot_product_f32_q5(int flags, float* a, int aoffset, float* bf, int* bh, char* b, int boffset, int length);
+     * }
+     */
+    public static float dot_product_f32_q5(int flags, MemorySegment a, int aoffset, MemorySegment bf, MemorySegment bh, MemorySegment b, int boffset, int length) {
+        var mh$ = dot_product_f32_q5$MH();
+        try {
+            return (float)mh$.invokeExact(flags, a, aoffset, bf, bh, b, boffset, length);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+    public static MethodHandle dot_product_q8_q5$MH() {
+        return RuntimeHelper.requireNonNull(constants$2.dot_product_q8_q5$MH,"dot_product_q8_q5");
+    }
+    /**
+     * {@snippet :
+     * float dot_product_q8_q5(int flags, float* af, char* a, int aoffset, float* bf, int* bh, char* b, int boffset, int length);
+     * }
+     */
+    public static float dot_product_q8_q5(int flags, MemorySegment af, MemorySegment a, int aoffset, MemorySegment bf, MemorySegment bh, MemorySegment b, int boffset, int length) {
+        var mh$ = dot_product_q8_q5$MH();
+        try {
+            return (float)mh$.invokeExact(flags, af, a, aoffset, bf, bh, b, boffset, length);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+    public static MethodHandle dot_product_bf16$MH() {
+        return RuntimeHelper.requireNonNull(constants$3.dot_product_bf16$MH,"dot_product_bf16");
+    }
+    /**
+     * {@snippet :
+     * float dot_product_bf16(int flags, short* a, int aoffset, short* b, int boffset, int length);
+     * }
+     */
+    public static float dot_product_bf16(int flags, MemorySegment a, int aoffset, MemorySegment b, int boffset, int length) {
+        var mh$ = dot_product_bf16$MH();
+        try {
+            return (float)mh$.invokeExact(flags, a, aoffset, b, boffset, length);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+    public static MethodHandle dot_product_f32_f16$MH() {
+        return RuntimeHelper.requireNonNull(constants$3.dot_product_f32_f16$MH,"dot_product_f32_f16");
+    }
+    /**
+     * {@snippet :
+     * float dot_product_f32_f16(int flags, float* a, int aoffset, short* b, int boffset, int length);
+     * }
+     */
+    public static float dot_product_f32_f16(int flags, MemorySegment a, int aoffset, MemorySegment b, int boffset, int length) {
+        var mh$ = dot_product_f32_f16$MH();
+        try {
+            return (float)mh$.invokeExact(flags, a, aoffset, b, boffset, length);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+    public static MethodHandle dot_product_f32_bf16$MH() {
+        return RuntimeHelper.requireNonNull(constants$3.dot_product_f32_bf16$MH,"dot_product_f32_bf16");
+    }
+    /**
+     * {@snippet :
+     * float dot_product_f32_bf16(int flags, float* a, int aoffset, short* b, int boffset, int length);
+     * }
+     */
+    public static float dot_product_f32_bf16(int flags, MemorySegment a, int aoffset, MemorySegment b, int boffset, int length) {
+        var mh$ = dot_product_f32_bf16$MH();
+        try {
+            return (float)mh$.invokeExact(flags, a, aoffset, b, boffset, length);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+    public static MethodHandle dot_product_q8$MH() {
+        return RuntimeHelper.requireNonNull(constants$3.dot_product_q8$MH,"dot_product_q8");
+    }
+    /**
+     * {@snippet :
+     * float dot_product_q8(int flags, float* af, char* a, int aoffset, float* bf, char* b, int boffset, int length);
+     * }
+     */
+    public static float dot_product_q8(int flags, MemorySegment af, MemorySegment a, int aoffset, MemorySegment bf, MemorySegment b, int boffset, int length) {
+        var mh$ = dot_product_q8$MH();
+        try {
+            return (float)mh$.invokeExact(flags, af, a, aoffset, bf, b, boffset, length);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+    public static MethodHandle dot_product_q8_q4$MH() {
+        return RuntimeHelper.requireNonNull(constants$3.dot_product_q8_q4$MH,"dot_product_q8_q4");
+    }
+    /**
+     * {@snippet :
+     * float dot_product_q8_q4(int flags, float* af, char* a, int aoffset, float* bf, char* b, int boffset, int length);
+     * }
+     */
+    public static float dot_product_q8_q4(int flags, MemorySegment af, MemorySegment a, int aoffset, MemorySegment bf, MemorySegment b, int boffset, int length) {
+        var mh$ = dot_product_q8_q4$MH();
+        try {
+            return (float)mh$.invokeExact(flags, af, a, aoffset, bf, b, boffset, length);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+    public static MethodHandle dot_product_widened$MH() {
+        return RuntimeHelper.requireNonNull(constants$4.dot_product_widened$MH,"dot_product_widened");
+    }
+    /**
+     * {@snippet :
+     * float dot_product_widened(int flags, int atype, float* af, void* a, int aoffset, int btype, float* bf, int* bh, char* b, int boffset, int length);
+     * }
+     */
+    public static float dot_product_widened(int flags, int atype, MemorySegment af, MemorySegment a, int aoffset, int btype, MemorySegment bf, MemorySegment bh, MemorySegment b, int boffset, int length) {
+        var mh$ = dot_product_widened$MH();
+        try {
+            return (float)mh$.invokeExact(flags, atype, af, a, aoffset, btype, bf, bh, b, boffset, length);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+    public static MethodHandle accumulate_f32$MH() {
+        return RuntimeHelper.requireNonNull(constants$4.accumulate_f32$MH,"accumulate_f32");
+    }
+    /**
+     * {@snippet :
+     * void accumulate_f32(int flags, float* a, float* b, int length);
+     * }
+     */
+    public static void accumulate_f32(int flags, MemorySegment a, MemorySegment b, int length) {
+        var mh$ = accumulate_f32$MH();
+        try {
+            mh$.invokeExact(flags, a, b, length);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+    public static MethodHandle accumulate_bf16$MH() {
+        return RuntimeHelper.requireNonNull(constants$4.accumulate_bf16$MH,"accumulate_bf16");
+    }
+    /**
+     * {@snippet :
+     * void accumulate_bf16(int flags, short* a, short* b, int length);
+     * }
+     */
+    public static void accumulate_bf16(int flags, MemorySegment a, MemorySegment b, int length) {
+        var mh$ = accumulate_bf16$MH();
+        try {
+            mh$.invokeExact(flags, a, b, length);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+    public static MethodHandle scale_f32$MH() {
+        return RuntimeHelper.requireNonNull(constants$4.scale_f32$MH,"scale_f32");
+    }
+    /**
+     * {@snippet :
+     * void scale_f32(int flags, float factor, float* a, int offset, int length);
+     * }
+     */
+    public static void scale_f32(int flags, float factor, MemorySegment a, int offset, int length) {
+        var mh$ = scale_f32$MH();
+        try {
+            mh$.invokeExact(flags, factor, a, offset, length);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+    public static MethodHandle scale_bf16$MH() {
+        return RuntimeHelper.requireNonNull(constants$4.scale_bf16$MH,"scale_bf16");
+    }
+    /**
+     * {@snippet :
+     * void scale_bf16(int flags, float factor, short* a, int offset, int length);
+     * }
+     */
+    public static void scale_bf16(int flags, float factor, MemorySegment a, int offset, int length) {
+        var mh$ = scale_bf16$MH();
+        try {
+            mh$.invokeExact(flags, factor, a, offset, length);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+    public static MethodHandle saxpy_f32$MH() {
+        return RuntimeHelper.requireNonNull(constants$5.saxpy_f32$MH,"saxpy_f32");
+    }
+    /**
+     * {@snippet :
+     * void saxpy_f32(int flags, float alpha, int xtype, float* xf, void* x, int xoffset, float* y, int yoffset, int length);
+     * }
+     */
+    public static void saxpy_f32(int flags, float alpha, int xtype, MemorySegment xf, MemorySegment x, int xoffset, MemorySegment y, int yoffset, int length) {
+        var mh$ = saxpy_f32$MH();
+        try {
+            mh$.invokeExact(flags, alpha, xtype, xf, x, xoffset, y, yoffset, length);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+    public static MethodHandle sxpby_f32$MH() {
+        return RuntimeHelper.requireNonNull(constants$5.sxpby_f32$MH,"sxpby_f32");
+    }
+    /**
+     * {@snippet :
+     * void sxpby_f32(int flags, float beta, int xtype, float* xf, void* x, int xoffset, float* y, int yoffset, int length);
+     * }
+     */
+    public static void sxpby_f32(int flags, float beta, int xtype, MemorySegment xf, MemorySegment x, int xoffset, MemorySegment y, int yoffset, int length) {
+        var mh$ = sxpby_f32$MH();
+        try {
+            mh$.invokeExact(flags, beta, xtype, xf, x, xoffset, y, yoffset, length);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+    public static MethodHandle saxpy_bf16$MH() {
+        return RuntimeHelper.requireNonNull(constants$5.saxpy_bf16$MH,"saxpy_bf16");
+    }
+    /**
+     * {@snippet :
+     * void saxpy_bf16(int flags, float alpha, short* x, int xoffset, short* y, int yoffset, int length);
+     * }
+     */
+    public static void saxpy_bf16(int flags, float alpha, MemorySegment x, int xoffset, MemorySegment y, int yoffset, int length) {
+        var mh$ = saxpy_bf16$MH();
+        try {
+            mh$.invokeExact(flags, alpha, x, xoffset, y, yoffset, length);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+    public static MethodHandle sxpby_bf16$MH() {
+        return RuntimeHelper.requireNonNull(constants$5.sxpby_bf16$MH,"sxpby_bf16");
+    }
+    /**
+     * {@snippet :
+     * void sxpby_bf16(int flags, float beta, short* x, int xoffset, short* y, int yoffset, int length);
+     * }
+     */
+    public static void sxpby_bf16(int flags, float beta, MemorySegment x, int xoffset, MemorySegment y, int yoffset, int length) {
+        var mh$ = sxpby_bf16$MH();
+        try {
+            mh$.invokeExact(flags, beta, x, xoffset, y, yoffset, length);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+    public static MethodHandle quantize_q8$MH() {
+        return RuntimeHelper.requireNonNull(constants$5.quantize_q8$MH,"quantize_q8");
+    }
+    /**
+     * {@snippet :
+     * void quantize_q8(int flags, float* a, int aoffset, float* bf, char* b, int length);
+     * }
+     */
+    public static void quantize_q8(int flags, MemorySegment a, int aoffset, MemorySegment bf, MemorySegment b, int length) {
+        var mh$ = quantize_q8$MH();
+        try {
+            mh$.invokeExact(flags, a, aoffset, bf, b, length);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+    public static MethodHandle cpu_features$MH() {
+        return RuntimeHelper.requireNonNull(constants$6.cpu_features$MH,"cpu_features");
+    }
+    /**
+     * {@snippet :
+     * int cpu_features();
+     * }
+     */
+    public static int cpu_features() {
+        var mh$ = cpu_features$MH();
+        try {
+            return (int)mh$.invokeExact();
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+    public static MethodHandle gemv_f32$MH() {
+        return RuntimeHelper.requireNonNull(constants$7.gemv_f32$MH,"gemv_f32");
+    }
+    /**
+     * {@snippet :
+     * void gemv_f32(int flags, float* a, int aoffset, float* b, long boffset, int stride, float* r, int roffset, int rows, int length);
+     * }
+     */
+    public static void gemv_f32(int flags, MemorySegment a, int aoffset, MemorySegment b, long boffset, int stride, MemorySegment r, int roffset, int rows, int length) {
+        var mh$ = gemv_f32$MH();
+        try {
+            mh$.invokeExact(flags, a, aoffset, b, boffset, stride, r, roffset, rows, length);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+    public static MethodHandle gemv_f32_q4$MH() {
+        return RuntimeHelper.requireNonNull(constants$7.gemv_f32_q4$MH,"gemv_f32_q4");
+    }
+    /**
+     * {@snippet :
+     * void gemv_f32_q4(int flags, float* a, int aoffset, float* bf, char* b, long boffset, int stride, float* r, int roffset, int rows, int length);
+     * }
+     */
+    public static void gemv_f32_q4(int flags, MemorySegment a, int aoffset, MemorySegment bf, MemorySegment b, long boffset, int stride, MemorySegment r, int roffset, int rows, int length) {
+        var mh$ = gemv_f32_q4$MH();
+        try {
+            mh$.invokeExact(flags, a, aoffset, bf, b, boffset, stride, r, roffset, rows, length);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+    public static MethodHandle gemv_q8_q4$MH() {
+        return RuntimeHelper.requireNonNull(constants$7.gemv_q8_q4$MH,"gemv_q8_q4");
+    }
+    /**
+     * {@snippet :
+     * void gemv_q8_q4(int flags, float* af, char* a, int aoffset, float* bf, char* b, long boffset, int stride, float* r, int roffset, int rows, int length);
+     * }
+     */
+    public static void gemv_q8_q4(int flags, MemorySegment af, MemorySegment a, int aoffset, MemorySegment bf, MemorySegment b, long boffset, int stride, MemorySegment r, int roffset, int rows, int length) {
+        var mh$ = gemv_q8_q4$MH();
+        try {
+            mh$.invokeExact(flags, af, a, aoffset, bf, b, boffset, stride, r, roffset, rows, length);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+    public static MethodHandle gemm_f32$MH() {
+        return RuntimeHelper.requireNonNull(constants$8.gemm_f32$MH,"gemm_f32");
+    }
+    /**
+     * {@snippet :
+     * void gemm_f32(int flags, float** a, int aoffset, float* b, long boffset, int stride, float** r, int roffset, int rows, int batch, int length);
+     * }
+     */
+    public static void gemm_f32(int flags, MemorySegment a, int aoffset, MemorySegment b, long boffset, int stride, MemorySegment r, int roffset, int rows, int batch, int length) {
+        var mh$ = gemm_f32$MH();
+        try {
+            mh$.invokeExact(flags, a, aoffset, b, boffset, stride, r, roffset, rows, batch, length);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+    public static MethodHandle gemm_f32_q4$MH() {
+        return RuntimeHelper.requireNonNull(constants$8.gemm_f32_q4$MH,"gemm_f32_q4");
+    }
+    /**
+     * {@snippet :
+     * void gemm_f32_q4(int flags, float** a, int aoffset, float* bf, char* b, long boffset, int stride, float** r, int roffset, int rows, int batch, int length);
+     * }
+     */
+    public static void gemm_f32_q4(int flags, MemorySegment a, int aoffset, MemorySegment bf, MemorySegment b, long boffset, int stride, MemorySegment r, int roffset, int rows, int batch, int length) {
+        var mh$ = gemm_f32_q4$MH();
+        try {
+            mh$.invokeExact(flags, a, aoffset, bf, b, boffset, stride, r, roffset, rows, batch, length);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+    public static MethodHandle gemm_q8_q4$MH() {
+        return RuntimeHelper.requireNonNull(constants$8.gemm_q8_q4$MH,"gemm_q8_q4");
+    }
+    /**
+     * {@snippet :
+     * void gemm_q8_q4(int flags, float** af, char** a, int aoffset, float* bf, char* b, long boffset, int stride, float** r, int roffset, int rows, int batch, int length);
+     * }
+     */
+    public static void gemm_q8_q4(int flags, MemorySegment af, MemorySegment a, int aoffset, MemorySegment bf, MemorySegment b, long boffset, int stride, MemorySegment r, int roffset, int rows, int batch, int length) {
+        var mh$ = gemm_q8_q4$MH();
+        try {
+            mh$.invokeExact(flags, af, a, aoffset, bf, b, boffset, stride, r, roffset, rows, batch, length);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+    public static MethodHandle dot_product_f32_q4_0$MH() {
+        return RuntimeHelper.requireNonNull(constants$9.dot_product_f32_q4_0$MH,"dot_product_f32_q4_0");
+    }
+    /**
+     * {@snippet :
+     * float dot_product_f32_q4_0(int flags, float* a, int aoffset, char* b, int boffset, int length);
+     * }
+     */
+    public static float dot_product_f32_q4_0(int flags, MemorySegment a, int aoffset, MemorySegment b, int boffset, int length) {
+        var mh$ = dot_product_f32_q4_0$MH();
+        try {
+            return (float)mh$.invokeExact(flags, a, aoffset, b, boffset, length);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+    public static MethodHandle dot_product_f32_q8_0$MH() {
+        return RuntimeHelper.requireNonNull(constants$9.dot_product_f32_q8_0$MH,"dot_product_f32_q8_0");
+    }
+    /**
+     * {@snippet :
+     * float dot_product_f32_q8_0(int flags, float* a, int aoffset, char* b, int boffset, int length);
+     * }
+     */
+    public static float dot_product_f32_q8_0(int flags, MemorySegment a, int aoffset, MemorySegment b, int boffset, int length) {
+        var mh$ = dot_product_f32_q8_0$MH();
+        try {
+            return (float)mh$.invokeExact(flags, a, aoffset, b, boffset, length);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+    public static MethodHandle dot_product_q8_q4_0$MH() {
+        return RuntimeHelper.requireNonNull(constants$9.dot_product_q8_q4_0$MH,"dot_product_q8_q4_0");
+    }
+    /**
+     * {@snippet :
+     * float dot_product_q8_q4_0(int flags, float* af, char* a, int aoffset, char* b, int boffset, int length);
+     * }
+     */
+    public static float dot_product_q8_q4_0(int flags, MemorySegment af, MemorySegment a, int aoffset, MemorySegment b, int boffset, int length) {
+        var mh$ = dot_product_q8_q4_0$MH();
+        try {
+            return (float)mh$.invokeExact(flags, af, a, aoffset, b, boffset, length);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+    public static MethodHandle dot_product_q8_q8_0$MH() {
+        return RuntimeHelper.requireNonNull(constants$9.dot_product_q8_q8_0$MH,"dot_product_q8_q8_0");
+    }
+    /**
+     * {@snippet :
+     * float dot_product_q8_q8_0(int flags, float* af, char* a, int aoffset, char* b, int boffset, int length);
+     * }
+     */
+    public static float dot_product_q8_q8_0(int flags, MemorySegment af, MemorySegment a, int aoffset, MemorySegment b, int boffset, int length) {
+        var mh$ = dot_product_q8_q8_0$MH();
+        try {
+            return (float)mh$.invokeExact(flags, af, a, aoffset, b, boffset, length);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
 }
 
 
@@ -63,6 +63,20 @@ final class RuntimeHelper {
                 orElse(null);
     }
 
+    /**
+     * Downcall that skips the thread state transition.  Only for the kernels attention calls once per head,
+     * where the transition is a large part of each call.  The JVM can't reach a safepoint while one runs,
+     * so kernels over weight rows, and anything looping over many rows, must use downcallHandle.
+     *
+     * Like every other downcall, the arguments must still be native segments: isTrivial() doesn't allow
+     * heap segments, only Linker.Option.critical(true) does and that needs JDK 22.
+     */
+    static MethodHandle downcallHandleTrivial(String name, FunctionDescriptor fdesc) {
+        return SYMBOL_LOOKUP.find(name).
+                map(addr -> LINKER.downcallHandle(addr, fdesc, Linker.Option.isTrivial())).
+                orElse(null);
+    }
+
     static MethodHandle downcallHandle(FunctionDescriptor fdesc) {
         return LINKER.downcallHandle(fdesc);
     }
@@ -32,7 +32,7 @@ final class constants$0 {
         Constants$root.C_INT$LAYOUT,
         Constants$root.C_INT$LAYOUT
     );
-    static final MethodHandle dot_product_f32$MH = RuntimeHelper.downcallHandle(
+    static final MethodHandle dot_product_f32$MH = RuntimeHelper.downcallHandleTrivial(
         "dot_product_f32",
         constants$0.dot_product_f32$FUNC
     );
@@ -20,7 +20,7 @@ final class constants$1 {
         Constants$root.C_INT$LAYOUT,
         Constants$root.C_INT$LAYOUT
     );
-    static final MethodHandle dot_product_f32_q8$MH = RuntimeHelper.downcallHandle(
+    static final MethodHandle dot_product_f32_q8$MH = RuntimeHelper.downcallHandleTrivial(
         "dot_product_f32_q8",
         constants$1.dot_product_f32_q8$FUNC
     );
@@ -0,0 +1,69 @@
+// Generated by jextract
+
+package com.github.tjake.jlama.tensor.operations.cnative;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.lang.foreign.*;
+import static java.lang.foreign.ValueLayout.*;
+final class constants$2 {
+
+    // Suppresses default constructor, ensuring non-instantiability.
+    private constants$2() {}
+    static final FunctionDescriptor dot_product_f32_q4k$FUNC = FunctionDescriptor.of(Constants$root.C_FLOAT$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_INT$LAYOUT
+    );
+    static final MethodHandle dot_product_f32_q4k$MH = RuntimeHelper.downcallHandle(
+        "dot_product_f32_q4k",
+        constants$2.dot_product_f32_q4k$FUNC
+    );
+    static final FunctionDescriptor dot_product_f32_q6k$FUNC = FunctionDescriptor.of(Constants$root.C_FLOAT$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_INT$LAYOUT
+    );
+    static final MethodHandle dot_product_f32_q6k$MH = RuntimeHelper.downcallHandle(
+        "dot_product_f32_q6k",
+        constants$2.dot_product_f32_q6k$FUNC
+    );
+    static final FunctionDescriptor dot_product_f32_q5$FUNC = FunctionDescriptor.of(Constants$root.C_FLOAT$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_INT$LAYOUT
+    );
+    static final MethodHandle dot_product_f32_q5$MH = RuntimeHelper.downcallHandle(
+        "dot_product_f32_q5",
+        constants$2.dot_product_f32_q5$FUNC
+    );
+    static final FunctionDescriptor dot_product_q8_q5$FUNC = FunctionDescriptor.of(Constants$root.C_FLOAT$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_INT$LAYOUT
+    );
+    static final MethodHandle dot_product_q8_q5$MH = RuntimeHelper.downcallHandle(
+        "dot_product_q8_q5",
+        constants$2.dot_product_q8_q5$FUNC
+    );
+}
+
+
@@ -0,0 +1,80 @@
+// Generated by jextract
+
+package com.github.tjake.jlama.tensor.operations.cnative;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.lang.foreign.*;
+import static java.lang.foreign.ValueLayout.*;
+final class constants$3 {
+
+    // Suppresses default constructor, ensuring non-instantiability.
+    private constants$3() {}
+    static final FunctionDescriptor dot_product_bf16$FUNC = FunctionDescriptor.of(Constants$root.C_FLOAT$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_INT$LAYOUT
+    );
+    static final MethodHandle dot_product_bf16$MH = RuntimeHelper.downcallHandle(
+        "dot_product_bf16",
+        constants$3.dot_product_bf16$FUNC
+    );
+    static final FunctionDescriptor dot_product_f32_f16$FUNC = FunctionDescriptor.of(Constants$root.C_FLOAT$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_INT$LAYOUT
+    );
+    static final MethodHandle dot_product_f32_f16$MH = RuntimeHelper.downcallHandleTrivial(
+        "dot_product_f32_f16",
+        constants$3.dot_product_f32_f16$FUNC
+    );
+    static final FunctionDescriptor dot_product_f32_bf16$FUNC = FunctionDescriptor.of(Constants$root.C_FLOAT$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_INT$LAYOUT
+    );
+    static final MethodHandle dot_product_f32_bf16$MH = RuntimeHelper.downcallHandleTrivial(
+        "dot_product_f32_bf16",
+        constants$3.dot_product_f32_bf16$FUNC
+    );
+    static final FunctionDescriptor dot_product_q8$FUNC = FunctionDescriptor.of(Constants$root.C_FLOAT$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_INT$LAYOUT
+    );
+    static final MethodHandle dot_product_q8$MH = RuntimeHelper.downcallHandle(
+        "dot_product_q8",
+        constants$3.dot_product_q8$FUNC
+    );
+    static final FunctionDescriptor dot_product_q8_q4$FUNC = FunctionDescriptor.of(Constants$root.C_FLOAT$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_INT$LAYOUT
+    );
+    static final MethodHandle dot_product_q8_q4$MH = RuntimeHelper.downcallHandle(
+        "dot_product_q8_q4",
+        constants$3.dot_product_q8_q4$FUNC
+    );
+}
+
+
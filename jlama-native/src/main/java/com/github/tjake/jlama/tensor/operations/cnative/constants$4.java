@@ -0,0 +1,75 @@
+// Generated by jextract
+
+package com.github.tjake.jlama.tensor.operations.cnative;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.lang.foreign.*;
+import static java.lang.foreign.ValueLayout.*;
+final class constants$4 {
+
+    // Suppresses default constructor, ensuring non-instantiability.
+    private constants$4() {}
+    static final FunctionDescriptor dot_product_widened$FUNC = FunctionDescriptor.of(Constants$root.C_FLOAT$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_INT$LAYOUT
+    );
+    static final MethodHandle dot_product_widened$MH = RuntimeHelper.downcallHandle(
+        "dot_product_widened",
+        constants$4.dot_product_widened$FUNC
+    );
+    static final FunctionDescriptor accumulate_f32$FUNC = FunctionDescriptor.ofVoid(
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_INT$LAYOUT
+    );
+    static final MethodHandle accumulate_f32$MH = RuntimeHelper.downcallHandle(
+        "accumulate_f32",
+        constants$4.accumulate_f32$FUNC
+    );
+    static final FunctionDescriptor accumulate_bf16$FUNC = FunctionDescriptor.ofVoid(
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_INT$LAYOUT
+    );
+    static final MethodHandle accumulate_bf16$MH = RuntimeHelper.downcallHandle(
+        "accumulate_bf16",
+        constants$4.accumulate_bf16$FUNC
+    );
+    static final FunctionDescriptor scale_f32$FUNC = FunctionDescriptor.ofVoid(
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_FLOAT$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_INT$LAYOUT
+    );
+    static final MethodHandle scale_f32$MH = RuntimeHelper.downcallHandle(
+        "scale_f32",
+        constants$4.scale_f32$FUNC
+    );
+    static final FunctionDescriptor scale_bf16$FUNC = FunctionDescriptor.ofVoid(
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_FLOAT$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_INT$LAYOUT
+    );
+    static final MethodHandle scale_bf16$MH = RuntimeHelper.downcallHandle(
+        "scale_bf16",
+        constants$4.scale_bf16$FUNC
+    );
+}
+
+
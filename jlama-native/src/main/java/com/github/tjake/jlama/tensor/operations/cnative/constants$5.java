@@ -0,0 +1,84 @@
+// Generated by jextract
+
+package com.github.tjake.jlama.tensor.operations.cnative;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.lang.foreign.*;
+import static java.lang.foreign.ValueLayout.*;
+final class constants$5 {
+
+    // Suppresses default constructor, ensuring non-instantiability.
+    private constants$5() {}
+    static final FunctionDescriptor saxpy_f32$FUNC = FunctionDescriptor.ofVoid(
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_FLOAT$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_INT$LAYOUT
+    );
+    static final MethodHandle saxpy_f32$MH = RuntimeHelper.downcallHandleTrivial(
+        "saxpy_f32",
+        constants$5.saxpy_f32$FUNC
+    );
+    static final FunctionDescriptor sxpby_f32$FUNC = FunctionDescriptor.ofVoid(
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_FLOAT$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_INT$LAYOUT
+    );
+    static final MethodHandle sxpby_f32$MH = RuntimeHelper.downcallHandleTrivial(
+        "sxpby_f32",
+        constants$5.sxpby_f32$FUNC
+    );
+    static final FunctionDescriptor saxpy_bf16$FUNC = FunctionDescriptor.ofVoid(
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_FLOAT$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_INT$LAYOUT
+    );
+    static final MethodHandle saxpy_bf16$MH = RuntimeHelper.downcallHandle(
+        "saxpy_bf16",
+        constants$5.saxpy_bf16$FUNC
+    );
+    static final FunctionDescriptor sxpby_bf16$FUNC = FunctionDescriptor.ofVoid(
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_FLOAT$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_INT$LAYOUT
+    );
+    static final MethodHandle sxpby_bf16$MH = RuntimeHelper.downcallHandle(
+        "sxpby_bf16",
+        constants$5.sxpby_bf16$FUNC
+    );
+    static final FunctionDescriptor quantize_q8$FUNC = FunctionDescriptor.ofVoid(
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_INT$LAYOUT
+    );
+    static final MethodHandle quantize_q8$MH = RuntimeHelper.downcallHandle(
+        "quantize_q8",
+        constants$5.quantize_q8$FUNC
+    );
+}
+
+
@@ -0,0 +1,66 @@
+// Generated by jextract
+
+package com.github.tjake.jlama.tensor.operations.cnative;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.lang.foreign.*;
+import static java.lang.foreign.ValueLayout.*;
+final class constants$9 {
+
+    // Suppresses default constructor, ensuring non-instantiability.
+    private constants$9() {}
+    static final FunctionDescriptor dot_product_f32_q4_0$FUNC = FunctionDescriptor.of(Constants$root.C_FLOAT$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_INT$LAYOUT
+    );
+    static final MethodHandle dot_product_f32_q4_0$MH = RuntimeHelper.downcallHandle(
+        "dot_product_f32_q4_0",
+        constants$9.dot_product_f32_q4_0$FUNC
+    );
+    static final FunctionDescriptor dot_product_f32_q8_0$FUNC = FunctionDescriptor.of(Constants$root.C_FLOAT$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_INT$LAYOUT
+    );
+    static final MethodHandle dot_product_f32_q8_0$MH = RuntimeHelper.downcallHandle(
+        "dot_product_f32_q8_0",
+        constants$9.dot_product_f32_q8_0$FUNC
+    );
+    static final FunctionDescriptor dot_product_q8_q4_0$FUNC = FunctionDescriptor.of(Constants$root.C_FLOAT$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_INT$LAYOUT
+    );
+    static final MethodHandle dot_product_q8_q4_0$MH = RuntimeHelper.downcallHandle(
+        "dot_product_q8_q4_0",
+        constants$9.dot_product_q8_q4_0$FUNC
+    );
+    static final FunctionDescriptor dot_product_q8_q8_0$FUNC = FunctionDescriptor.of(Constants$root.C_FLOAT$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_POINTER$LAYOUT,
+        Constants$root.C_INT$LAYOUT,
+        Constants$root.C_INT$LAYOUT
+    );
+    static final MethodHandle dot_product_q8_q8_0$MH = RuntimeHelper.downcallHandle(
+        "dot_product_q8_q8_0",
+        constants$9.dot_product_q8_q8_0$FUNC
+    );
+}
+
+
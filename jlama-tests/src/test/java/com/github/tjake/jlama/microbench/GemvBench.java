@@ -0,0 +1,104 @@
+package com.github.tjake.jlama.microbench;
+
+import com.github.tjake.jlama.math.VectorMath;
+import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.FloatBufferTensor;
+import com.github.tjake.jlama.tensor.Q4ByteBufferTensor;
+import com.github.tjake.jlama.tensor.Q8ByteBufferTensor;
+import com.github.tjake.jlama.tensor.operations.TensorOperations;
+import com.github.tjake.jlama.tensor.operations.TensorOperationsProvider;
+import com.github.tjake.jlama.util.PhysicalCoreExecutor;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Compares one downcall per row of weights, per {@link VectorMath#ROW_TILE} rows and per block of rows.
+ * Decode uses ROW_TILE tiles, coarse row blocks should only replace them once this shows a win.
+ */
+@Warmup(iterations = 1, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(warmups = 1, value = 1, jvmArgsPrepend = {
+        "--add-modules=jdk.incubator.vector",
+        "--add-exports", "java.base/sun.nio.ch=ALL-UNNAMED", "-Djdk.incubator.vector.VECTOR_ACCESS_OOB_CHECK=0",
+        "--enable-preview", "-XX:+UnlockDiagnosticVMOptions", "-XX:CompilerDirectivesFile=inlinerules.json",
+        "--enable-native-access=ALL-UNNAMED", "-XX:+AlignVector"})
+public class GemvBench {
+    private static final TensorOperations ops = TensorOperationsProvider.get();
+    //Row blocks for each core, so cores that finish early pick up more
+    private static final int BLOCKS_PER_CORE = 4;
+
+    @State(Scope.Benchmark)
+    public static class Parameters {
+        @Param({"4096", "11008"})
+        int rows;
+
+        @Param({"1024", "4096"})
+        int cols;
+
+        FloatBufferTensor f;
+        Q8ByteBufferTensor q8;
+        Q4ByteBufferTensor q4;
+        FloatBufferTensor result;
+
+        @Setup
+        public void setup() {
+            FloatBufferTensor w = new FloatBufferTensor(rows, cols);
+            for (int i = 0; i < rows; i++)
+                for (int j = 0; j < cols; j++)
+                    w.set(ThreadLocalRandom.current().nextFloat(), i, j);
+
+            f = new FloatBufferTensor(cols);
+            for (int i = 0; i < cols; i++)
+                f.set(ThreadLocalRandom.current().nextFloat(), i);
+
+            q8 = new Q8ByteBufferTensor(f);
+            q4 = new Q4ByteBufferTensor(w);
+            result = new FloatBufferTensor(rows);
+        }
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @BenchmarkMode(Mode.Throughput)
+    public void a_rowsI8Q4(Parameters p, Blackhole bh) {
+        VectorMath.pfor(0, p.rows, i -> p.result.set(ops.dotProduct(p.q8, p.q4.slice(i), p.cols), i));
+        bh.consume(p.result);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @BenchmarkMode(Mode.Throughput)
+    public void b_tilesI8Q4(Parameters p, Blackhole bh) {
+        int tiles = (p.rows + VectorMath.ROW_TILE - 1) / VectorMath.ROW_TILE;
+        VectorMath.pfor(0, tiles, t -> ops.gemv(p.q8, p.q4, t * VectorMath.ROW_TILE, Math.min(p.rows, (t + 1) * VectorMath.ROW_TILE), p.result, 0, p.cols));
+        bh.consume(p.result);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @BenchmarkMode(Mode.Throughput)
+    public void c_blocksI8Q4(Parameters p, Blackhole bh) {
+        blocks(p.rows, (rowStart, rowEnd) -> ops.gemv(p.q8, p.q4, rowStart, rowEnd, p.result, 0, p.cols));
+        bh.consume(p.result);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @BenchmarkMode(Mode.Throughput)
+    public void d_blocksF32Q4(Parameters p, Blackhole bh) {
+        blocks(p.rows, (rowStart, rowEnd) -> ops.gemv(p.f, p.q4, rowStart, rowEnd, p.result, 0, p.cols));
+        bh.consume(p.result);
+    }
+
+    /** A few blocks of whole ROW_TILEs per core */
+    private static void blocks(int rows, BiConsumer<Integer, Integer> action) {
+        int blocks = PhysicalCoreExecutor.instance.get().getParallelism() * BLOCKS_PER_CORE;
+        int perBlock = Math.max(VectorMath.ROW_TILE, (rows + blocks - 1) / blocks);
+        int blockRows = (perBlock + VectorMath.ROW_TILE - 1) / VectorMath.ROW_TILE * VectorMath.ROW_TILE;
+        VectorMath.pfor(0, (rows + blockRows - 1) / blockRows, b -> action.accept(b * blockRows, Math.min(rows, (b + 1) * blockRows)));
+    }
+}
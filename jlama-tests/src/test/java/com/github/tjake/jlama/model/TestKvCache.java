@@ -0,0 +1,172 @@
+package com.github.tjake.jlama.model;
+
+import com.github.tjake.jlama.safetensors.Config;
+import com.github.tjake.jlama.safetensors.DType;
+import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.FloatBufferTensor;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestKvCache
+{
+    static final int LAYERS = 2;
+    static final int EMBEDDING = 16;
+    static final int BLOCK_SIZE = 4;
+
+    static Config config() {
+        return new Config(64, EMBEDDING, 32, 2, LAYERS, 1e-5f, 100, 1, 2);
+    }
+
+    /** A distinct key/value entry for each layer and position */
+    static FloatBufferTensor entry(int layer, int position) {
+        FloatBufferTensor kv = new FloatBufferTensor(EMBEDDING * 2);
+        for (int i = 0; i < kv.size(); i++)
+            kv.set(layer * 1000 + position + i / 64f, i);
+        return kv;
+    }
+
+    static void write(KvCache kv, int position) {
+        for (int l = 0; l < LAYERS; l++)
+            kv.layer(l).put(position, entry(l, position));
+    }
+
+    /** delta is relative to the largest value of the entry, which is what a quantized block is scaled by */
+    static void assertEntry(KvCache kv, int position, float delta) {
+        for (int l = 0; l < LAYERS; l++) {
+            AbstractTensor expected = entry(l, position);
+            AbstractTensor actual = kv.layer(l).get(position);
+            float max = expected.get(expected.size() - 1);
+            for (int i = 0; i < expected.size(); i++)
+                Assert.assertEquals("layer " + l + " position " + position, expected.get(i), actual.get(i), delta * max);
+        }
+    }
+
+    @Test
+    public void testBlocksAllocatedOnFirstWrite() {
+        KvBlockPool pool = new KvBlockPool(config(), DType.F32, BLOCK_SIZE, Long.MAX_VALUE);
+        Assert.assertEquals(LAYERS * BLOCK_SIZE * EMBEDDING * 2L * Float.BYTES, pool.blockBytes());
+
+        try (KvCache kv = new KvCache(pool, LAYERS, 32)) {
+            Assert.assertEquals(0, kv.blocks());
+
+            write(kv, 0);
+            Assert.assertEquals(1, kv.blocks());
+            Assert.assertEquals(BLOCK_SIZE, kv.capacity());
+
+            //Skipping ahead maps every block up to the position
+            write(kv, 2 * BLOCK_SIZE + 1);
+            Assert.assertEquals(3, kv.blocks());
+            Assert.assertEquals(3 * pool.blockBytes(), kv.bytes());
+            Assert.assertEquals(3 * pool.blockBytes(), pool.bytesInUse());
+
+            for (int p = 1; p < BLOCK_SIZE; p++)
+                write(kv, p);
+            for (int p = 0; p < BLOCK_SIZE; p++)
+                assertEntry(kv, p, 0);
+            assertEntry(kv, 2 * BLOCK_SIZE + 1, 0);
+
+            Assert.assertThrows(IllegalArgumentException.class, () -> kv.layer(0).get(32));
+            Assert.assertThrows(IllegalArgumentException.class, () -> kv.layer(0).get(-1));
+        }
+
+        Assert.assertEquals(0, pool.bytesInUse());
+        Assert.assertEquals(3 * pool.blockBytes(), pool.bytesAllocated());
+    }
+
+    @Test
+    public void testReleasedBlocksAreClearedAndReused() {
+        KvBlockPool pool = new KvBlockPool(config(), DType.F32, BLOCK_SIZE, Long.MAX_VALUE);
+
+        KvCache first = new KvCache(pool, LAYERS, 32);
+        for (int p = 0; p < 2 * BLOCK_SIZE; p++)
+            write(first, p);
+        first.close();
+        Assert.assertEquals(0, first.blocks());
+
+        try (KvCache second = new KvCache(pool, LAYERS, 32)) {
+            //Reads map blocks too, they must come back empty
+            for (int p = 0; p < 2 * BLOCK_SIZE; p++)
+                for (int l = 0; l < LAYERS; l++)
+                    for (int i = 0; i < EMBEDDING * 2; i++)
+                        Assert.assertEquals(0f, second.layer(l).get(p).get(i), 0f);
+
+            Assert.assertEquals(2 * pool.blockBytes(), pool.bytesAllocated());
+        }
+    }
+
+    @Test
+    public void testPoolCapacity() {
+        KvBlockPool pool = new KvBlockPool(config(), DType.F32, BLOCK_SIZE, 0);
+        long blockBytes = pool.blockBytes();
+        pool = new KvBlockPool(config(), DType.F32, BLOCK_SIZE, 2 * blockBytes);
+
+        try (KvCache a = new KvCache(pool, LAYERS, 32); KvCache b = new KvCache(pool, LAYERS, 32)) {
+            write(a, 0);
+            write(b, 0);
+            Assert.assertThrows(IllegalStateException.class, () -> write(a, BLOCK_SIZE));
+
+            //A released block can be handed out again
+            b.close();
+            write(a, BLOCK_SIZE);
+            Assert.assertEquals(2, a.blocks());
+        }
+    }
+
+    @Test
+    public void testFullPoolEvictsUnusedPrefixBlocks() {
+        KvBlockPool pool = new KvBlockPool(config(), DType.F32, BLOCK_SIZE, 0);
+        long blockBytes = pool.blockBytes();
+        pool = new KvBlockPool(config(), DType.F32, BLOCK_SIZE, 3 * blockBytes);
+        PrefixCache cache = new PrefixCache(pool, Long.MAX_VALUE);
+
+        //Two published blocks stay cached after their sequence is done, one block is free
+        int[] tokens = new int[2 * BLOCK_SIZE + 1];
+        try (KvCache a = new KvCache(pool, LAYERS, 32)) {
+            for (int p = 0; p < tokens.length; p++)
+                write(a, p);
+            cache.insert(a, tokens);
+        }
+        Assert.assertEquals(2 * blockBytes, cache.bytesCached());
+
+        try (KvCache b = new KvCache(pool, LAYERS, 32)) {
+            //Blocks attached to a sequence are never evicted
+            KvCache c = new KvCache(pool, LAYERS, 32);
+            Assert.assertEquals(2 * BLOCK_SIZE, cache.attach(c, tokens));
+            write(b, 0);
+            Assert.assertThrows(IllegalStateException.class, () -> write(b, BLOCK_SIZE));
+            c.close();
+            Assert.assertEquals(2 * blockBytes, cache.bytesCached());
+
+            //Unreferenced ones are evicted to make room, leaves before their parents
+            write(b, BLOCK_SIZE);
+            Assert.assertEquals(blockBytes, cache.bytesCached());
+            try (KvCache d = new KvCache(pool, LAYERS, 32)) {
+                Assert.assertEquals(BLOCK_SIZE, cache.attach(d, tokens));
+            }
+            write(b, 2 * BLOCK_SIZE);
+            Assert.assertEquals(0, cache.bytesCached());
+            Assert.assertEquals(3, b.blocks());
+            Assert.assertThrows(IllegalStateException.class, () -> write(b, 3 * BLOCK_SIZE));
+        }
+    }
+
+    @Test
+    public void testReducedPrecisionBlocks() {
+        for (DType type : new DType[]{DType.F16, DType.BF16, DType.I8}) {
+            KvBlockPool pool = new KvBlockPool(config(), type, BLOCK_SIZE, Long.MAX_VALUE);
+            Assert.assertEquals(KvBlockPool.bytesPerPosition(config(), type) * BLOCK_SIZE, pool.blockBytes());
+
+            try (KvCache kv = new KvCache(pool, LAYERS, 32)) {
+                Assert.assertEquals(type, kv.dType());
+                for (int p = 0; p < 2 * BLOCK_SIZE; p++)
+                    write(kv, p);
+
+                for (int p = 0; p < 2 * BLOCK_SIZE; p++) {
+                    Assert.assertEquals(type, kv.layer(0).get(p).dType());
+                    assertEntry(kv, p, type == DType.F16 ? 1e-3f : 1e-2f);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.github.tjake.jlama.model;
+
+import com.github.tjake.jlama.safetensors.DType;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import static com.github.tjake.jlama.model.TestKvCache.*;
+
+public class TestPrefixCache
+{
+    private static int[] tokens(int... t) {
+        return t;
+    }
+
+    private static int[] range(int from, int length) {
+        int[] t = new int[length];
+        for (int i = 0; i < length; i++)
+            t[i] = from + i;
+        return t;
+    }
+
+    /** A sequence that attached what it could, computed the rest and published it */
+    private static KvCache run(PrefixCache cache, KvBlockPool pool, int[] tokens) {
+        KvCache kv = new KvCache(pool, LAYERS, 64);
+        int cached = cache.attach(kv, tokens);
+        for (int p = cached; p < tokens.length; p++)
+            write(kv, p);
+        cache.insert(kv, tokens);
+        return kv;
+    }
+
+    @Test
+    public void testSharedPrefixIsReused() {
+        KvBlockPool pool = new KvBlockPool(config(), DType.F32, BLOCK_SIZE, Long.MAX_VALUE);
+        PrefixCache cache = new PrefixCache(pool, Long.MAX_VALUE);
+
+        //The block holding the last token is never published
+        int[] a = range(0, 3 * BLOCK_SIZE + 1);
+        KvCache kvA = run(cache, pool, a);
+        Assert.assertEquals(3, kvA.sharedBlocks());
+        Assert.assertEquals(3 * pool.blockBytes(), cache.bytesCached());
+        Assert.assertEquals(pool.blockBytes(), kvA.bytes());
+
+        //Matches whole blocks only, up to where the tokens differ
+        int[] b = range(0, 2 * BLOCK_SIZE + 2);
+        b[2 * BLOCK_SIZE + 1] = -1;
+        try (KvCache kvB = new KvCache(pool, LAYERS, 64)) {
+            Assert.assertEquals(2 * BLOCK_SIZE, cache.attach(kvB, b));
+            Assert.assertEquals(2, kvB.sharedBlocks());
+            Assert.assertSame(kvA.blockAt(0), kvB.blockAt(0));
+            for (int p = 0; p < 2 * BLOCK_SIZE; p++)
+                assertEntry(kvB, p, 0);
+            Assert.assertEquals(0, kvB.bytes());
+        }
+
+        //A prompt that is exactly the cached prefix keeps its last token to compute
+        try (KvCache kvC = new KvCache(pool, LAYERS, 64)) {
+            Assert.assertEquals(BLOCK_SIZE, cache.attach(kvC, range(0, 2 * BLOCK_SIZE)));
+        }
+
+        try (KvCache kvD = new KvCache(pool, LAYERS, 64)) {
+            Assert.assertEquals(0, cache.attach(kvD, tokens(7, 7, 7, 7, 7, 7)));
+            Assert.assertEquals(0, kvD.blocks());
+        }
+
+        kvA.close();
+        Assert.assertEquals(3 * pool.blockBytes(), pool.bytesInUse());
+    }
+
+    @Test
+    public void testSamePrefixPublishedTwice() {
+        KvBlockPool pool = new KvBlockPool(config(), DType.F32, BLOCK_SIZE, Long.MAX_VALUE);
+        PrefixCache cache = new PrefixCache(pool, Long.MAX_VALUE);
+        int[] t = range(0, 2 * BLOCK_SIZE + 1);
+
+        //Both computed the prefix before either published it, the second keeps its private copy
+        KvCache first = new KvCache(pool, LAYERS, 64);
+        KvCache second = new KvCache(pool, LAYERS, 64);
+        Assert.assertEquals(0, cache.attach(first, t));
+        Assert.assertEquals(0, cache.attach(second, t));
+        for (int p = 0; p < t.length; p++) {
+            write(first, p);
+            write(second, p);
+        }
+        cache.insert(first, t);
+        cache.insert(second, t);
+
+        Assert.assertEquals(2, first.sharedBlocks());
+        Assert.assertEquals(0, second.sharedBlocks());
+        Assert.assertEquals(2 * pool.blockBytes(), cache.bytesCached());
+
+        first.close();
+        second.close();
+        Assert.assertEquals(2 * pool.blockBytes(), pool.bytesInUse());
+        cache.clear();
+        Assert.assertEquals(0, pool.bytesInUse());
+    }
+
+    @Test
+    public void testReferencedBlocksAreNotEvicted() {
+        KvBlockPool pool = new KvBlockPool(config(), DType.F32, BLOCK_SIZE, Long.MAX_VALUE);
+        PrefixCache cache = new PrefixCache(pool, 0);
+
+        KvCache a = run(cache, pool, range(0, 3 * BLOCK_SIZE + 1));
+        Assert.assertEquals(3 * pool.blockBytes(), cache.bytesCached());
+
+        KvCache b = new KvCache(pool, LAYERS, 64);
+        Assert.assertEquals(BLOCK_SIZE, cache.attach(b, tokens(0, 1, 2, 3, 9)));
+
+        //Only the leaves a no longer holds go, the first block is still used by b
+        a.close();
+        Assert.assertEquals(pool.blockBytes(), cache.bytesCached());
+
+        b.close();
+        Assert.assertEquals(0, cache.bytesCached());
+        Assert.assertEquals(0, pool.bytesInUse());
+
+        Assert.assertThrows(IllegalStateException.class, () -> cache.release(new PrefixCache.Node(null, null, null)));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        KvBlockPool pool = new KvBlockPool(config(), DType.F32, BLOCK_SIZE, Long.MAX_VALUE);
+        PrefixCache cache = new PrefixCache(pool, 2 * pool.blockBytes());
+
+        int[] x = range(0, BLOCK_SIZE + 1);
+        int[] y = range(100, BLOCK_SIZE + 1);
+        int[] z = range(200, BLOCK_SIZE + 1);
+
+        run(cache, pool, x).close();
+        run(cache, pool, y).close();
+        Assert.assertEquals(2 * pool.blockBytes(), cache.bytesCached());
+
+        //Touching x leaves y as the oldest
+        try (KvCache kv = new KvCache(pool, LAYERS, 64)) {
+            Assert.assertEquals(BLOCK_SIZE, cache.attach(kv, x));
+        }
+
+        run(cache, pool, z).close();
+        Assert.assertEquals(2 * pool.blockBytes(), cache.bytesCached());
+
+        for (int[] t : new int[][]{x, y, z}) {
+            try (KvCache kv = new KvCache(pool, LAYERS, 64)) {
+                Assert.assertEquals(t == y ? 0 : BLOCK_SIZE, cache.attach(kv, t));
+            }
+        }
+
+        //Parents outlive their children, so a longer prefix goes leaf first
+        cache.clear();
+        PrefixCache small = new PrefixCache(pool, pool.blockBytes());
+        run(small, pool, range(0, 2 * BLOCK_SIZE + 1)).close();
+        try (KvCache kv = new KvCache(pool, LAYERS, 64)) {
+            Assert.assertEquals(BLOCK_SIZE, small.attach(kv, range(0, 2 * BLOCK_SIZE + 1)));
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.github.tjake.jlama.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class TestPromptLookup
+{
+    private static int[] propose(PromptLookup lookup, int[] tokens, int k) {
+        int[] draft = new int[k];
+        int n = lookup.propose(tokens, tokens.length, k, 0.0f, draft);
+        Assert.assertNull(lookup.probabilities(0));
+        return Arrays.copyOf(draft, n);
+    }
+
+    @Test
+    public void testMostRecentMatch() {
+        int[] tokens = new int[]{1, 2, 3, 9, 5, 2, 3, 7, 8, 2, 3};
+        Assert.assertArrayEquals(new int[]{7, 8, 2}, propose(new PromptLookup(2), tokens, 3));
+
+        //Only as many tokens as followed the match
+        Assert.assertArrayEquals(new int[]{7, 8, 2, 3}, propose(new PromptLookup(2), tokens, 8));
+    }
+
+    @Test
+    public void testLongestNgramFirst() {
+        int[] tokens = new int[]{1, 2, 3, 4, 9, 3, 5, 1, 2, 3};
+        Assert.assertArrayEquals(new int[]{4, 9, 3}, propose(new PromptLookup(3), tokens, 3));
+        Assert.assertArrayEquals(new int[]{5, 1, 2}, propose(new PromptLookup(1), tokens, 3));
+
+        //Falls back to shorter n-grams when the longest has no earlier occurrence
+        Assert.assertArrayEquals(new int[]{5, 1, 2}, propose(new PromptLookup(4), new int[]{8, 3, 5, 1, 2, 3}, 3));
+    }
+
+    @Test
+    public void testEdgeCases() {
+        PromptLookup lookup = new PromptLookup(3);
+        Assert.assertEquals(0, propose(lookup, new int[]{1, 2, 3, 4}, 3).length);
+        Assert.assertEquals(0, propose(lookup, new int[]{1}, 3).length);
+
+        //A match can overlap the suffix
+        Assert.assertArrayEquals(new int[]{7}, propose(lookup, new int[]{7, 7, 7, 7}, 3));
+
+        int[] tokens = new int[]{1, 2, 1, 2, 5, 5};
+        Assert.assertEquals(0, lookup.propose(tokens, 4, 0, 0.0f, new int[0]));
+        int[] draft = new int[2];
+        Assert.assertEquals(2, lookup.propose(tokens, 4, 2, 0.0f, draft));
+        Assert.assertArrayEquals(new int[]{1, 2}, draft);
+
+        Assert.assertThrows(IllegalArgumentException.class, () -> new PromptLookup(0));
+    }
+}
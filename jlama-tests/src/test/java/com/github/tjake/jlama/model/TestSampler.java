@@ -0,0 +1,132 @@
+package com.github.tjake.jlama.model;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestSampler
+{
+    private static final int VOCAB = 32000;
+    private final Random r = new Random(42);
+
+    private float[] randomLogits() {
+        float[] logits = new float[VOCAB];
+        for (int i = 0; i < VOCAB; i++)
+            logits[i] = (float) r.nextGaussian() * 3;
+        return logits;
+    }
+
+    // Reference: softmax then sort the whole vocabulary
+    private static double[] expected(float[] logits, float temperature, int topK, float topP, float minP) {
+        float max = Float.NEGATIVE_INFINITY;
+        for (float l : logits)
+            max = Math.max(max, l);
+
+        double[] p = new double[VOCAB];
+        double sum = 0;
+        for (int i = 0; i < VOCAB; i++) {
+            p[i] = Math.exp((logits[i] - max) / temperature);
+            sum += p[i];
+        }
+
+        Integer[] order = new Integer[VOCAB];
+        for (int i = 0; i < VOCAB; i++)
+            order[i] = i;
+        Arrays.sort(order, Comparator.comparingDouble(i -> -p[i]));
+
+        int limit = topK > 0 ? topK : VOCAB;
+        double acc = 0;
+        int kept = 0;
+        while (kept < limit && (kept == 0 || (p[order[kept]] >= minP && acc < topP * sum)))
+            acc += p[order[kept++]];
+
+        double[] result = new double[VOCAB];
+        for (int i = 0; i < kept; i++)
+            result[order[i]] = p[order[i]] / acc;
+        return result;
+    }
+
+    private void check(float temperature, int topK, float topP, float minP) {
+        float[] logits = randomLogits();
+        Sampler sampler = new Sampler(VOCAB, topK, topP, minP);
+        sampler.fill(i -> logits[i]);
+
+        float[] probs = new float[VOCAB];
+        sampler.probabilities(temperature, probs);
+        double[] expected = expected(logits, temperature, topK, topP, minP);
+
+        for (int i = 0; i < VOCAB; i++)
+            Assert.assertEquals("token " + i, expected[i], probs[i], 1e-6);
+
+        for (int i = 0; i < 100; i++) {
+            int token = sampler.sample(temperature, r.nextFloat());
+            Assert.assertTrue("sampled a truncated token " + token, expected[token] > 0);
+        }
+    }
+
+    @Test
+    public void testGreedy() {
+        float[] logits = randomLogits();
+        int argmax = 0;
+        for (int i = 1; i < VOCAB; i++)
+            if (logits[i] > logits[argmax])
+                argmax = i;
+
+        Sampler sampler = new Sampler(VOCAB, 0, 1.0f, 0.0f);
+        Assert.assertEquals(argmax, sampler.fill(i -> logits[i]));
+        Assert.assertEquals(argmax, sampler.sample(0.0f, r.nextFloat()));
+    }
+
+    @Test
+    public void testFullDistribution() {
+        check(1.0f, 0, 1.0f, 0.0f);
+        check(0.5f, 0, 1.0f, 0.0f);
+    }
+
+    @Test
+    public void testTopK() {
+        check(0.7f, 40, 1.0f, 0.0f);
+        check(1.0f, 1, 1.0f, 0.0f);
+    }
+
+    @Test
+    public void testTopP() {
+        check(1.0f, 0, 0.9f, 0.0f);
+        check(2.0f, 0, 0.95f, 0.0f);
+    }
+
+    @Test
+    public void testMinP() {
+        check(0.8f, 0, 1.0f, 0.05f);
+        check(1.0f, 50, 0.9f, 0.01f);
+    }
+
+    @Test
+    public void testRescore() {
+        float[] exact = randomLogits();
+        float[] coarse = new float[VOCAB];
+        for (int i = 0; i < VOCAB; i++)
+            coarse[i] = exact[i] + (float) r.nextGaussian() * 0.1f;
+
+        int argmax = 0;
+        for (int i = 1; i < VOCAB; i++)
+            if (exact[i] > exact[argmax])
+                argmax = i;
+
+        Sampler sampler = new Sampler(VOCAB, 0, 1.0f, 0.0f);
+        sampler.fill(i -> coarse[i]);
+        Assert.assertEquals(argmax, sampler.rescore(256, i -> exact[i]));
+
+        // The top of the coarse logits are now exact, the rest untouched
+        Integer[] order = new Integer[VOCAB];
+        for (int i = 0; i < VOCAB; i++)
+            order[i] = i;
+        Arrays.sort(order, Comparator.comparingDouble(i -> -coarse[i]));
+        float[] logits = sampler.logits();
+        for (int i = 0; i < VOCAB; i++)
+            Assert.assertEquals("token " + order[i], i < 256 ? exact[order[i]] : coarse[order[i]], logits[order[i]], 0f);
+    }
+}
@@ -0,0 +1,155 @@
+package com.github.tjake.jlama.model;
+
+import com.github.tjake.jlama.safetensors.DType;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static com.github.tjake.jlama.model.TestKvCache.*;
+
+public class TestSessionSnapshot
+{
+    private static final int POSITIONS = 2 * BLOCK_SIZE + 2;
+
+    private static int[] tokens() {
+        int[] t = new int[POSITIONS];
+        for (int i = 0; i < t.length; i++)
+            t[i] = 10 + i;
+        return t;
+    }
+
+    private static void assertSameEntries(KvCache expected, KvCache actual, int positions) {
+        for (int p = 0; p < positions; p++)
+            for (int l = 0; l < LAYERS; l++)
+                for (int i = 0; i < EMBEDDING * 2; i++)
+                    Assert.assertEquals("layer " + l + " position " + p, expected.layer(l).get(p).get(i), actual.layer(l).get(p).get(i), 0f);
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        for (DType type : new DType[]{DType.F32, DType.F16, DType.BF16, DType.I8}) {
+            KvBlockPool pool = new KvBlockPool(config(), type, BLOCK_SIZE, Long.MAX_VALUE);
+            Path file = Files.createTempFile("jlama", ".session");
+
+            try (KvCache kv = new KvCache(pool, LAYERS, 64)) {
+                for (int p = 0; p < POSITIONS; p++)
+                    write(kv, p);
+                SessionSnapshot.write(file, config(), pool, tokens(), POSITIONS, kv);
+
+                SessionSnapshot s = SessionSnapshot.read(file, config(), pool);
+                Assert.assertArrayEquals(tokens(), s.tokens);
+                Assert.assertEquals(POSITIONS, s.position);
+                Assert.assertEquals(3, s.kvmem.blocks());
+                Assert.assertEquals(type, s.kvmem.layer(0).get(0).dType());
+                assertSameEntries(kv, s.kvmem, POSITIONS);
+
+                //Full blocks are views of the file, only the partially filled last one is copied into the pool
+                Assert.assertEquals(4 * pool.blockBytes(), pool.bytesInUse());
+                Assert.assertEquals(pool.blockBytes(), s.kvmem.bytes());
+                s.kvmem.close();
+                Assert.assertEquals(3 * pool.blockBytes(), pool.bytesInUse());
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    @Test
+    public void testRestoredSessionDoesNotModifyTheFile() throws IOException {
+        KvBlockPool pool = new KvBlockPool(config(), DType.F32, BLOCK_SIZE, Long.MAX_VALUE);
+        Path file = Files.createTempFile("jlama", ".session");
+
+        try (KvCache kv = new KvCache(pool, LAYERS, 64)) {
+            for (int p = 0; p < POSITIONS; p++)
+                write(kv, p);
+            SessionSnapshot.write(file, config(), pool, tokens(), POSITIONS, kv);
+
+            try (KvCache restored = SessionSnapshot.read(file, config(), pool).kvmem) {
+                //Full blocks are read only views of the file
+                Assert.assertThrows(IllegalArgumentException.class, () -> restored.layer(0).put(0, entry(0, 50)));
+
+                //Continue the conversation in the last restored block and past it
+                for (int l = 0; l < LAYERS; l++) {
+                    restored.layer(l).put(POSITIONS, entry(l, 51));
+                    restored.layer(l).put(3 * BLOCK_SIZE, entry(l, 52));
+                }
+                Assert.assertEquals(4, restored.blocks());
+
+                try (KvCache again = SessionSnapshot.read(file, config(), pool).kvmem) {
+                    assertSameEntries(kv, again, POSITIONS);
+                    for (int i = 0; i < EMBEDDING * 2; i++)
+                        Assert.assertEquals(0f, again.layer(0).get(POSITIONS).get(i), 0f);
+                }
+
+                //Saving over the snapshot a session was restored from
+                SessionSnapshot.write(file, config(), pool, tokens(), POSITIONS + 1, restored);
+                SessionSnapshot s = SessionSnapshot.read(file, config(), pool);
+                try (KvCache saved = s.kvmem) {
+                    Assert.assertEquals(POSITIONS + 1, s.position);
+                    Assert.assertEquals(3, saved.blocks());
+                    assertSameEntries(restored, saved, POSITIONS + 1);
+                }
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testRestoreFromReadOnlyFile() throws IOException {
+        KvBlockPool pool = new KvBlockPool(config(), DType.I8, BLOCK_SIZE, Long.MAX_VALUE);
+        Path file = Files.createTempFile("jlama", ".session");
+
+        try (KvCache kv = new KvCache(pool, LAYERS, 64)) {
+            for (int p = 0; p < POSITIONS; p++)
+                write(kv, p);
+            SessionSnapshot.write(file, config(), pool, tokens(), POSITIONS, kv);
+            byte[] saved = Files.readAllBytes(file);
+            Assert.assertTrue(file.toFile().setReadOnly());
+
+            try (KvCache restored = SessionSnapshot.read(file, config(), pool).kvmem) {
+                assertSameEntries(kv, restored, POSITIONS);
+                for (int l = 0; l < LAYERS; l++)
+                    restored.layer(l).put(POSITIONS, entry(l, 60));
+            }
+
+            Assert.assertArrayEquals(saved, Files.readAllBytes(file));
+        } finally {
+            file.toFile().setWritable(true);
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testIncompatibleLayoutKeepsTokensOnly() throws IOException {
+        KvBlockPool pool = new KvBlockPool(config(), DType.F32, BLOCK_SIZE, Long.MAX_VALUE);
+        Path file = Files.createTempFile("jlama", ".session");
+
+        try (KvCache kv = new KvCache(pool, LAYERS, 64)) {
+            for (int p = 0; p < POSITIONS; p++)
+                write(kv, p);
+            SessionSnapshot.write(file, config(), pool, tokens(), POSITIONS, kv);
+
+            for (KvBlockPool other : new KvBlockPool[]{
+                    new KvBlockPool(config(), DType.F16, BLOCK_SIZE, Long.MAX_VALUE),
+                    new KvBlockPool(config(), DType.F32, BLOCK_SIZE * 2, Long.MAX_VALUE)}) {
+                SessionSnapshot s = SessionSnapshot.read(file, config(), other);
+                Assert.assertArrayEquals(tokens(), s.tokens);
+                Assert.assertEquals(0, s.position);
+                Assert.assertNull(s.kvmem);
+            }
+
+            //A session without a kv cache only has its history
+            SessionSnapshot.write(file, config(), pool, tokens(), 0, null);
+            SessionSnapshot s = SessionSnapshot.read(file, config(), pool);
+            Assert.assertArrayEquals(tokens(), s.tokens);
+            Assert.assertNull(s.kvmem);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
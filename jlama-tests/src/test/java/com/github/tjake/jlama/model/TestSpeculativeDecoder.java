@@ -0,0 +1,232 @@
+package com.github.tjake.jlama.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.random.RandomGenerator;
+
+public class TestSpeculativeDecoder
+{
+    /** Always returns the same draw */
+    private static RandomGenerator fixed(float u) {
+        return new RandomGenerator() {
+            @Override
+            public long nextLong() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public float nextFloat() {
+                return u;
+            }
+        };
+    }
+
+    @Test
+    public void testSample() {
+        float[] probs = new float[]{0.25f, 0f, 0.5f, 0.25f};
+        Assert.assertEquals(0, SpeculativeDecoder.sample(probs, 4, 0f));
+        Assert.assertEquals(2, SpeculativeDecoder.sample(probs, 4, 0.25f));
+        Assert.assertEquals(3, SpeculativeDecoder.sample(probs, 4, 0.9f));
+        //Rounding can leave the draw past the total
+        Assert.assertEquals(3, SpeculativeDecoder.sample(probs, 4, 1f));
+        Assert.assertEquals(2, SpeculativeDecoder.sample(probs, 3, 1f));
+    }
+
+    @Test
+    public void testAcceptance() {
+        //Kept whenever the target likes x at least as much as the draft did
+        Assert.assertEquals(-1, SpeculativeDecoder.verify(new float[]{0.5f, 0.5f}, new float[]{0.4f, 0.6f}, 0, 2, fixed(0.99f)));
+
+        //Otherwise kept with probability p(x) / q(x) = 0.25
+        Assert.assertEquals(-1, SpeculativeDecoder.verify(new float[]{0.2f, 0.8f}, new float[]{0.8f, 0.2f}, 0, 2, fixed(0.2f)));
+
+        float[] p = new float[]{0.2f, 0.8f};
+        Assert.assertEquals(1, SpeculativeDecoder.verify(p, new float[]{0.8f, 0.2f}, 0, 2, fixed(0.3f)));
+        Assert.assertArrayEquals(new float[]{0f, 0.6f}, p, 1e-6f);
+    }
+
+    @Test
+    public void testDeterministicDraft() {
+        //Without draft probabilities x is kept with probability p(x) and never proposed again on rejection
+        Assert.assertEquals(-1, SpeculativeDecoder.verify(new float[]{0.3f, 0.5f, 0.2f}, null, 1, 3, fixed(0.4f)));
+
+        float[] p = new float[]{0.3f, 0.5f, 0.2f};
+        Assert.assertEquals(2, SpeculativeDecoder.verify(p, null, 1, 3, fixed(0.6f)));
+        Assert.assertArrayEquals(new float[]{0.3f, 0f, 0.2f}, p, 0f);
+
+        //Greedy targets keep exactly their argmax
+        Assert.assertEquals(-1, SpeculativeDecoder.verify(new float[]{0f, 1f, 0f}, null, 1, 3, fixed(0.999f)));
+        Assert.assertEquals(1, SpeculativeDecoder.verify(new float[]{0f, 1f, 0f}, null, 2, 3, fixed(0f)));
+        Assert.assertEquals(1, SpeculativeDecoder.verify(new float[]{0f, 1f, 0f}, new float[]{0.1f, 0.2f, 0.7f}, 2, 3, fixed(0f)));
+    }
+
+    @Test
+    public void testOutputFollowsTarget() {
+        float[] target = new float[]{0.1f, 0.4f, 0.3f, 0.2f};
+        float[] draft = new float[]{0.4f, 0.1f, 0.1f, 0.4f};
+        int trials = 200_000;
+
+        Random random = new Random(42);
+        int[] counts = new int[target.length];
+        for (int t = 0; t < trials; t++) {
+            int x = SpeculativeDecoder.sample(draft, draft.length, random.nextFloat());
+            int r = SpeculativeDecoder.verify(target.clone(), draft, x, target.length, random);
+            counts[r == -1 ? x : r]++;
+        }
+
+        for (int i = 0; i < target.length; i++)
+            Assert.assertEquals("token " + i, target[i], counts[i] / (float) trials, 0.01f);
+    }
+
+    private static final int VOCAB = 8;
+    private static final int CONTEXT = 64;
+    private static final int EOS = VOCAB + 1; //never produced
+
+    /**
+     * Stands in for a model: the token after position i is a function of everything in the kv cache up to i,
+     * so output changes if anything is run at the wrong position or left behind in the cache.
+     */
+    private static class FakeTarget implements SpeculativeDecoder.Target {
+        final int[] kv = new int[CONTEXT];
+        int start, count;
+
+        @Override
+        public int vocabularySize() {
+            return VOCAB;
+        }
+
+        @Override
+        public int contextLength() {
+            return CONTEXT;
+        }
+
+        @Override
+        public int eosToken() {
+            return EOS;
+        }
+
+        @Override
+        public void forward(int[] tokens, int start) {
+            Assert.assertTrue("position " + (start + tokens.length), start + tokens.length <= CONTEXT);
+            System.arraycopy(tokens, 0, kv, start, tokens.length);
+            this.start = start;
+            this.count = tokens.length;
+        }
+
+        @Override
+        public void probabilities(int i, float temperature, float[] p) {
+            Assert.assertTrue(i < count);
+            int h = 17;
+            for (int j = 0; j <= start + i; j++)
+                h = h * 31 + kv[j];
+
+            Arrays.fill(p, 0f);
+            p[1 + Math.floorMod(h, VOCAB - 1)] = 1f;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /** AbstractModel.generate at temperature 0 */
+    private static List<Integer> plain(int[] prompt, int ntokens) {
+        FakeTarget target = new FakeTarget();
+        float[] p = new float[VOCAB];
+        List<Integer> out = new ArrayList<>();
+
+        target.forward(prompt, 0);
+        target.probabilities(prompt.length - 1, 0f, p);
+        int next = SpeculativeDecoder.sample(p, VOCAB, 0.5f);
+        out.add(next);
+        for (int i = prompt.length - 1; i < ntokens; i++) {
+            target.forward(new int[]{next}, i);
+            target.probabilities(0, 0f, p);
+            next = SpeculativeDecoder.sample(p, VOCAB, 0.5f);
+            out.add(next);
+        }
+        return out;
+    }
+
+    private static List<Integer> speculative(int[] prompt, int ntokens, Drafter drafter, int draftTokens) {
+        List<Integer> out = new ArrayList<>();
+        new SpeculativeDecoder(new FakeTarget(), null, drafter, draftTokens).decode(prompt, 0f, ntokens, new Random(42), out::add);
+        return out;
+    }
+
+    /** Proposes random tokens, checking the history it is given never holds the prompt padding */
+    private static Drafter randomDrafter(int promptLength) {
+        Random random = new Random(42);
+        return new Drafter() {
+            @Override
+            public int propose(int[] tokens, int length, int k, float temperature, int[] draft) {
+                Assert.assertTrue(length >= promptLength);
+                Assert.assertNotEquals("padding in the history", 0, tokens[promptLength - 1]);
+                for (int i = 0; i < k; i++)
+                    draft[i] = random.nextInt(VOCAB);
+                return k;
+            }
+
+            @Override
+            public float[] probabilities(int i) {
+                return null;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    @Test
+    public void testSamePositionsAsPlainDecoding() {
+        //BOS, the prompt, then encodePrompt's trailing padding.  Only the padding is 0
+        int[] prompt = new int[]{VOCAB + 2, 3, 1, 4, 1, 5, 0};
+        int ntokens = 40;
+        List<Integer> expected = plain(prompt, ntokens);
+        Assert.assertEquals(ntokens - prompt.length + 2, expected.size());
+
+        for (int k = 1; k <= 6; k++) {
+            Assert.assertEquals("random drafts of " + k, expected, speculative(prompt, ntokens, randomDrafter(prompt.length), k));
+            Assert.assertEquals("prompt lookup of " + k, expected, speculative(prompt, ntokens, new PromptLookup(3), k));
+        }
+    }
+
+    @Test
+    public void testPerfectDrafts() {
+        int[] prompt = new int[]{VOCAB + 2, 2, 7, 1, 8, 0};
+        int ntokens = 40;
+        List<Integer> expected = plain(prompt, ntokens);
+
+        //Proposes exactly what plain decoding produced next
+        Drafter oracle = new Drafter() {
+            @Override
+            public int propose(int[] tokens, int length, int k, float temperature, int[] draft) {
+                int generated = length - (prompt.length - 1);
+                k = Math.min(k, expected.size() - generated);
+                for (int i = 0; i < k; i++)
+                    draft[i] = expected.get(generated + i);
+                return k;
+            }
+
+            @Override
+            public float[] probabilities(int i) {
+                return null;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        SpeculativeDecoder decoder = new SpeculativeDecoder(new FakeTarget(), null, oracle, 4);
+        List<Integer> out = new ArrayList<>();
+        decoder.decode(prompt, 0f, ntokens, new Random(42), out::add);
+        Assert.assertEquals(expected, out);
+    }
+}
@@ -3,6 +3,9 @@ package com.github.tjake.jlama.models;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.github.tjake.jlama.math.VectorMath;
+import com.github.tjake.jlama.model.AbstractModel;
+import com.github.tjake.jlama.model.ChatSession;
+import com.github.tjake.jlama.model.InferenceScheduler;
 import com.github.tjake.jlama.model.bert.BertConfig;
 import com.github.tjake.jlama.model.bert.BertModel;
 import com.github.tjake.jlama.model.bert.BertTokenizer;
@@ -14,6 +17,7 @@ import com.github.tjake.jlama.model.llama.LlamaConfig;
 import com.github.tjake.jlama.model.llama.LlamaModel;
 import com.github.tjake.jlama.model.llama.LlamaTokenizer;
 
+import org.junit.Assert;
 import org.junit.Assume;
 import org.junit.Test;
 import org.slf4j.Logger;
@@ -25,6 +29,10 @@ import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
 
@@ -74,21 +82,221 @@ public class TestModels {
         }
     }
 
+    private static final String TINY_LLAMA = "models/TinyLLama";
+
+    /** TinyLlama from its safetensors file, the calling test is skipped when it isn't downloaded */
+    private static LlamaModel loadTinyLlama(DType workingQType) throws IOException {
+        Assume.assumeTrue(Files.exists(Paths.get(TINY_LLAMA)));
+
+        try (RandomAccessFile sc = new RandomAccessFile(TINY_LLAMA + "/model.safetensors", "r")) {
+            ByteBuffer bb = sc.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, sc.length());
+            return loadTinyLlama(SafeTensorSupport.readWeights(bb), workingQType);
+        }
+    }
+
+    private static LlamaModel loadTinyLlama(WeightLoader weights, DType workingQType) throws IOException {
+        Assume.assumeTrue(Files.exists(Paths.get(TINY_LLAMA)));
+
+        LlamaTokenizer tokenizer = new LlamaTokenizer(Paths.get(TINY_LLAMA));
+        Config c = om.readValue(new File(TINY_LLAMA + "/config.json"), LlamaConfig.class);
+        return new LlamaModel(c, weights, tokenizer, DType.F32, workingQType);
+    }
+
+    /** The echoed prompt and greedy output of a plain generate, the baseline every other way of decoding must match */
+    private static String greedy(AbstractModel model, String prompt, int ntokens) {
+        StringBuilder out = new StringBuilder();
+        model.generate(prompt, 0.0f, ntokens, false, (s, t) -> out.append(s));
+        Assert.assertTrue("nothing generated for " + prompt, out.length() > prompt.length());
+        return out.toString();
+    }
+
     @Test
     public void TinyLlamaRun() throws Exception {
-        String modelPrefix = "models/TinyLLama";
-        Assume.assumeTrue(Files.exists(Paths.get(modelPrefix)));
+        LlamaModel model = loadTinyLlama(DType.F32);
 
-        try (RandomAccessFile sc = new RandomAccessFile(modelPrefix+"/model.safetensors", "r")) {
-            ByteBuffer bb = sc.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, sc.length());
+        String prompt = "Lily picked up a flower and gave it to";
+        model.generate(prompt, 0.9f, 128, false, makeOutHandler());
+    }
 
-            Weights weights = SafeTensorSupport.readWeights(bb);
-            LlamaTokenizer tokenizer = new LlamaTokenizer(Paths.get(modelPrefix));
-            Config c = om.readValue(new File(modelPrefix + "/config.json"), LlamaConfig.class);
-            LlamaModel model = new LlamaModel(c, weights, tokenizer, DType.F32, DType.F32);
+    @Test
+    public void TinyLlamaBatchedRun() throws Exception {
+        LlamaModel model = loadTinyLlama(DType.F32);
+
+        String[] prompts = new String[] {
+                "Lily picked up a flower and gave it to",
+                "Once upon a time there was a little dog named",
+                "Tom and his sister went to the park to"
+        };
+
+        String[] sequential = new String[prompts.length];
+        for (int i = 0; i < prompts.length; i++)
+            sequential[i] = greedy(model, prompts[i], 128);
+
+        //Decoding the prompts together must give each the same greedy output as decoding it alone
+        StringBuilder[] batched = new StringBuilder[prompts.length];
+        try (InferenceScheduler scheduler = new InferenceScheduler(model, prompts.length)) {
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < prompts.length; i++) {
+                StringBuilder out = batched[i] = new StringBuilder();
+                futures.add(scheduler.submit(prompts[i], 0.0f, 128, false, (s, t) -> out.append(s)));
+            }
+
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
+        }
+
+        for (int i = 0; i < prompts.length; i++)
+            Assert.assertEquals(prompts[i], sequential[i], batched[i].toString());
+    }
+
+    @Test
+    public void TinyLlamaPrefixCacheRun() throws Exception {
+        LlamaModel model = loadTinyLlama(DType.F32);
+
+        String prefix = "Once upon a time there was a little girl named Lily. She loved to play outside in the sunshine with her friends. ";
+        String prompt = prefix + "One day she found a shiny";
+        String cold = greedy(model, prompt, 64);
+
+        //First run fills the cache, second attaches to the cached prefix
+        model.configurePrefixCache(64 << 20);
+        Assert.assertEquals(cold, greedy(model, prompt, 64));
+        Assert.assertEquals(cold, greedy(model, prompt, 64));
+    }
+
+    @Test
+    public void TinyLlamaSessionRun() throws Exception {
+        LlamaModel model = loadTinyLlama(DType.F32);
+
+        String[] turns = new String[] {
+                "Lily picked up a flower and gave it to",
+                "Then they went to the park and",
+                "At the end of the day"
+        };
+
+        StringBuilder kept = new StringBuilder();
+        try (ChatSession session = model.newSession()) {
+            for (String turn : turns) {
+                int before = session.position();
+                session.generate(turn, 0.0f, 32, (s, t) -> kept.append(s));
+                Assert.assertTrue(session.position() > before);
+            }
+        }
+
+        //The first turn is a plain generate of up to 32 tokens
+        int encoded = new LlamaTokenizer(Paths.get(TINY_LLAMA)).encode(turns[0]).length;
+        Assert.assertTrue(kept.toString().startsWith(greedy(model, turns[0], encoded - 1 + 32) + turns[1]));
+
+        //Also when its prompt ends with EOS, as the chat command does
+        StringBuilder plainEOS = new StringBuilder();
+        model.generate(turns[0], 0.0f, encoded + 32, true, (s, t) -> plainEOS.append(s));
+        StringBuilder sessionEOS = new StringBuilder();
+        try (ChatSession session = model.newSession()) {
+            session.generate(turns[0], null, 0.0f, 32, true, (s, t) -> sessionEOS.append(s));
+        }
+        Assert.assertEquals(plainEOS.toString(), sessionEOS.toString());
+
+        //Evicting the kv cache between turns rebuilds it from the history
+        model.configureSessions(0);
+        StringBuilder evicted = new StringBuilder();
+        try (ChatSession session = model.newSession()) {
+            for (String turn : turns) {
+                session.generate(turn, 0.0f, 32, (s, t) -> evicted.append(s));
+                model.configureSessions(0);
+                Assert.assertEquals(0, session.bytes());
+            }
+        }
+
+        Assert.assertEquals(kept.toString(), evicted.toString());
+    }
+
+    @Test
+    public void TinyLlamaSessionSnapshotRun() throws Exception {
+        LlamaModel model = loadTinyLlama(DType.F32);
+
+        String first = "Lily picked up a flower and gave it to";
+        String second = "Then they went to the park and";
+
+        StringBuilder uninterrupted = new StringBuilder();
+        try (ChatSession session = model.newSession()) {
+            session.generate(first, 0.0f, 32, (s, t) -> {});
+            session.generate(second, 0.0f, 32, (s, t) -> uninterrupted.append(s));
+        }
+        Assert.assertTrue(uninterrupted.length() > second.length());
+
+        //Save after the first turn and continue from the snapshot
+        Path snapshot = Files.createTempFile("jlama", ".session");
+        try {
+            int position;
+            try (ChatSession session = model.newSession()) {
+                session.generate(first, 0.0f, 32, (s, t) -> {});
+                session.save(snapshot);
+                position = session.position();
+            }
+
+            StringBuilder restored = new StringBuilder();
+            try (ChatSession session = model.restoreSession(snapshot)) {
+                Assert.assertEquals(position, session.position());
+                session.generate(second, 0.0f, 32, (s, t) -> restored.append(s));
+            }
+
+            Assert.assertEquals(uninterrupted.toString(), restored.toString());
+        } finally {
+            Files.deleteIfExists(snapshot);
+        }
+    }
+
+    @Test
+    public void TinyLlamaSpeculativeRun() throws Exception {
+        LlamaModel model = loadTinyLlama(DType.F32);
+        LlamaModel draft = loadTinyLlama(DType.I8);
+
+        String prompt = "Lily picked up a flower and gave it to";
+        String plain = greedy(model, prompt, 64);
+
+        //Greedy output must not change, only how fast it is produced
+        model.configureSpeculativeDecoding(draft, 4);
+        Assert.assertEquals(plain, greedy(model, prompt, 64));
+    }
+
+    @Test
+    public void TinyLlamaPromptLookupRun() throws Exception {
+        LlamaModel model = loadTinyLlama(DType.F32);
+
+        String prompt = "Repeat after me: Lily picked up a flower and gave it to her mother. Lily picked up a flower and";
+        String plain = greedy(model, prompt, 64);
+
+        model.configurePromptLookupDecoding(3, 8);
+        Assert.assertEquals(plain, greedy(model, prompt, 64));
+    }
+
+    @Test
+    public void TinyLlamaApproximateLogitsRun() throws Exception {
+        LlamaModel model = loadTinyLlama(DType.F32);
+
+        String prompt = "Lily picked up a flower and gave it to";
+        String exact = greedy(model, prompt, 64);
+
+        model.configureApproximateLogits(DType.Q4, 256);
+        Assert.assertEquals(exact, greedy(model, prompt, 64));
+    }
+
+    @Test
+    public void TinyLlamaQuantizedRun() throws Exception {
+        Assume.assumeTrue(Files.exists(Paths.get(TINY_LLAMA)));
+
+        Path quantized = Files.createTempDirectory("jlama-quantized");
+        SafeTensorSupport.quantizeModel(Paths.get(TINY_LLAMA), DType.Q4, SafeTensorSupport.DEFAULT_SKIPPED_TENSORS, Optional.of(quantized));
+
+        String prompt = "Lily picked up a flower and gave it to";
+
+        //Quantized while loading
+        String expected;
+        try (SafeTensorIndex weights = SafeTensorIndex.loadSingleFile(Paths.get(TINY_LLAMA), SafeTensorIndex.SINGLE_MODEL_NAME)) {
+            expected = greedy(loadTinyLlama(weights, DType.I8), prompt, 64);
+        }
 
-            String prompt = "Lily picked up a flower and gave it to";
-            model.generate(prompt, 0.9f, 128, false, makeOutHandler());
+        try (SafeTensorIndex weights = SafeTensorIndex.loadSingleFile(quantized, SafeTensorIndex.SINGLE_MODEL_NAME)) {
+            Assert.assertEquals(DType.Q4, weights.getModelDType());
+            Assert.assertEquals(expected, greedy(loadTinyLlama(weights, DType.I8), prompt, 64));
         }
     }
 
@@ -1,7 +1,14 @@
 package com.github.tjake.jlama.safetensors;
 
+import com.github.tjake.jlama.math.FloatConversions;
 import com.github.tjake.jlama.tensor.FloatBufferTensor;
 import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.Q4ByteBufferTensor;
+import com.github.tjake.jlama.tensor.Q4KByteBufferTensor;
+import com.github.tjake.jlama.tensor.Q6KByteBufferTensor;
+import com.github.tjake.jlama.tensor.Q8ByteBufferTensor;
+import com.github.tjake.jlama.tensor.operations.NaiveTensorOperations;
+import com.github.tjake.jlama.tensor.operations.TensorOperationsProvider;
 
 import com.google.common.io.BaseEncoding;
 import org.junit.Assert;
@@ -12,13 +19,19 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.foreign.ValueLayout;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 
 public class TestParser {
     private static Logger logger = LoggerFactory.getLogger(TestParser.class);
@@ -122,6 +135,418 @@ public class TestParser {
         }
     }
 
+    @Test
+    public void testQuantizedTensors() {
+        Random r = new Random(42);
+        FloatBufferTensor t = new FloatBufferTensor(4, 64);
+        for (int i = 0; i < 4; i++)
+            for (int j = 0; j < 64; j++)
+                t.set((float) r.nextGaussian(), i, j);
+
+        for (DType type : new DType[]{DType.Q4, DType.I8}) {
+            AbstractTensor q = t.quantize(type);
+            FloatBufferTensor scales = q instanceof Q4ByteBufferTensor q4 ? q4.getBlockF() : ((Q8ByteBufferTensor) q).getBlockF();
+            byte[] values = q.getMemorySegment().toArray(ValueLayout.JAVA_BYTE);
+
+            // Packed values followed by the block scales
+            ByteBuffer data = ByteBuffer.allocate(values.length + scales.size() * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            data.put(values);
+            for (float f : scales.getMemorySegment().toArray(ValueLayout.JAVA_FLOAT))
+                data.putFloat(f);
+
+            byte[] header = String.format("{\"test\":{\"dtype\":\"%s\",\"shape\":[4,64],\"data_offsets\":[0,%d]}}", type, data.capacity()).getBytes();
+            ByteBuffer serialized = ByteBuffer.allocate(Long.BYTES + header.length + data.capacity()).order(ByteOrder.LITTLE_ENDIAN);
+            serialized.putLong(header.length).put(header).put(data.array()).flip();
+
+            AbstractTensor loaded = SafeTensorSupport.readWeights(serialized).load("test");
+            Assert.assertEquals(type, loaded.dType());
+
+            int[] cursor = new int[2];
+            do {
+                Assert.assertEquals(q.get(cursor), loaded.get(cursor), 0f);
+            } while (q.iterate(cursor));
+        }
+    }
+
+    @Test
+    public void testQuantizeWhileLoading() {
+        Random r = new Random(42);
+        int rows = 8, columns = 256;
+        float[] values = new float[rows * columns];
+        for (int i = 0; i < values.length; i++)
+            values[i] = (float) r.nextGaussian() * (i % 97 == 0 ? 10 : 1);
+
+        for (DType stored : new DType[]{DType.F32, DType.F16, DType.BF16}) {
+            ByteBuffer data = ByteBuffer.allocate(values.length * stored.size()).order(ByteOrder.LITTLE_ENDIAN);
+            for (float v : values) {
+                switch (stored) {
+                    case F32 -> data.putFloat(v);
+                    case F16 -> data.putShort(Float.floatToFloat16(v));
+                    default -> data.putShort(FloatConversions.float32ToBFloat16(v));
+                }
+            }
+
+            byte[] header = String.format("{\"test\":{\"dtype\":\"%s\",\"shape\":[%d,%d],\"data_offsets\":[0,%d]}}", stored, rows, columns, data.capacity()).getBytes();
+            ByteBuffer serialized = ByteBuffer.allocateDirect(Long.BYTES + header.length + data.capacity()).order(ByteOrder.LITTLE_ENDIAN);
+            serialized.putLong(header.length).put(header).put(data.array()).flip();
+            Weights weights = SafeTensorSupport.readWeights(serialized);
+
+            for (DType type : new DType[]{DType.Q4, DType.I8}) {
+                AbstractTensor expected = weights.load("test").quantize(type);
+                AbstractTensor loaded = weights.load("test", type);
+                Assert.assertEquals(type, loaded.dType());
+
+                int[] cursor = new int[2];
+                do {
+                    Assert.assertEquals(stored + " to " + type + " at " + Arrays.toString(cursor), expected.get(cursor), loaded.get(cursor), 0f);
+                } while (expected.iterate(cursor));
+            }
+        }
+    }
+
+    @Test
+    public void testFloatWeightsAreNotCopied() {
+        int columns = 64;
+        for (DType stored : new DType[]{DType.F32, DType.F16, DType.BF16}) {
+            ByteBuffer data = ByteBuffer.allocate(columns * stored.size()).order(ByteOrder.LITTLE_ENDIAN);
+            float[] values = new float[columns];
+            for (int i = 0; i < columns; i++) {
+                values[i] = i / 8f;
+                switch (stored) {
+                    case F32 -> data.putFloat(values[i]);
+                    case F16 -> data.putShort(Float.floatToFloat16(values[i]));
+                    default -> data.putShort(FloatConversions.float32ToBFloat16(values[i]));
+                }
+            }
+
+            byte[] header = String.format("{\"test\":{\"dtype\":\"%s\",\"shape\":[1,%d],\"data_offsets\":[0,%d]}}", stored, columns, data.capacity()).getBytes();
+            ByteBuffer serialized = ByteBuffer.allocateDirect(Long.BYTES + header.length + data.capacity()).order(ByteOrder.LITTLE_ENDIAN);
+            serialized.putLong(header.length).put(header).put(data.array()).flip();
+            AbstractTensor t = SafeTensorSupport.readWeights(serialized).load("test");
+
+            //A view of the file's bytes, not a heap copy, and still usable against heap activations
+            Assert.assertEquals(stored, t.dType());
+            Assert.assertTrue(stored.name(), t.getMemorySegment().isNative());
+            FloatBufferTensor ones = new FloatBufferTensor(columns);
+            float expected = 0;
+            for (int i = 0; i < columns; i++) {
+                ones.set(1f, i);
+                expected += values[i];
+            }
+            Assert.assertEquals(stored.name(), expected, TensorOperationsProvider.get().dotProduct(ones, t.slice(0), columns), 0f);
+        }
+    }
+
+    @Test
+    public void testMappingPast2GB() throws IOException {
+        Path dir = Files.createTempDirectory("jlama-mapping");
+        Path file = dir.resolve(SafeTensorIndex.SINGLE_MODEL_NAME);
+        long far = (1L << 31) + 64;
+        byte[] header = String.format("{\"near\":{\"dtype\":\"F32\",\"shape\":[2],\"data_offsets\":[0,8]},\"far\":{\"dtype\":\"F32\",\"shape\":[2],\"data_offsets\":[%d,%d]}}", far, far + 8).getBytes();
+
+        //Sparse, only the header and the two tensors take space
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE, StandardOpenOption.SPARSE)) {
+            long dataStart = Long.BYTES + header.length;
+            ch.write(ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN).putLong(0, header.length), 0);
+            ch.write(ByteBuffer.wrap(header), Long.BYTES);
+            ch.write(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putFloat(0, 1f).putFloat(4, 2f), dataStart);
+            ch.write(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putFloat(0, 3f).putFloat(4, 4f), dataStart + far);
+        }
+
+        try {
+            AbstractTensor t;
+            try (SafeTensorIndex weights = SafeTensorIndex.loadSingleFile(dir, SafeTensorIndex.SINGLE_MODEL_NAME)) {
+                Assert.assertEquals(2f, weights.load("near").get(1), 0f);
+                t = weights.load("far");
+                Assert.assertEquals(3f, t.get(0), 0f);
+                Assert.assertEquals(4f, t.get(1), 0f);
+            }
+
+            //F32 tensors are views of the mapping whether or not tensors live off heap, closing unmaps the file
+            Assert.assertThrows(IllegalStateException.class, () -> t.get(0));
+        } finally {
+            Files.delete(file);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testShardedModel() throws IOException {
+        Path dir = Files.createTempDirectory("jlama-shards");
+        int shards = SafeTensorIndex.MAX_CONCURRENT_SHARDS + 2;
+        StringBuilder weightMap = new StringBuilder();
+        for (int i = 0; i < shards; i++) {
+            String file = String.format("model-%05d-of-%05d.safetensors", i + 1, shards);
+            byte[] header = String.format("{\"t%d\":{\"dtype\":\"F32\",\"shape\":[2],\"data_offsets\":[0,8]}}", i).getBytes();
+            ByteBuffer b = ByteBuffer.allocate(Long.BYTES + header.length + 8).order(ByteOrder.LITTLE_ENDIAN);
+            b.putLong(header.length).put(header).putFloat(i).putFloat(-i);
+            Files.write(dir.resolve(file), b.array());
+            weightMap.append(i == 0 ? "" : ",").append(String.format("\"t%d\":\"%s\"", i, file));
+        }
+        Files.writeString(dir.resolve(SafeTensorIndex.MODEL_INDEX_JSON), "{\"metadata\":{},\"weight_map\":{" + weightMap + "}}");
+
+        try (SafeTensorIndex weights = SafeTensorIndex.loadWithWeights(dir)) {
+            for (int i = 0; i < shards; i++) {
+                AbstractTensor t = weights.load("t" + i);
+                Assert.assertEquals(i, t.get(0), 0f);
+                Assert.assertEquals(-i, t.get(1), 0f);
+            }
+        }
+    }
+
+    @Test
+    public void testGGUF() throws IOException {
+        int dim = 64, headSize = 32, hidden = 96;
+        Random r = new Random(42);
+        byte[] q4 = ggufBlocks(r, dim * dim / 32, 16);
+        byte[] q8 = ggufBlocks(r, hidden * dim / 32, 32);
+
+        ByteBuffer b = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        b.putInt(0x46554747).putInt(3).putLong(5).putLong(10);
+        ggufString(b, "general.architecture").putInt(8); ggufString(b, "llama");
+        ggufString(b, "llama.embedding_length").putInt(4).putInt(dim);
+        ggufString(b, "llama.feed_forward_length").putInt(4).putInt(hidden);
+        ggufString(b, "llama.block_count").putInt(4).putInt(1);
+        ggufString(b, "llama.attention.head_count").putInt(4).putInt(dim / headSize);
+        ggufString(b, "llama.context_length").putInt(4).putInt(256);
+        ggufString(b, "llama.attention.layer_norm_rms_epsilon").putInt(6).putFloat(1e-5f);
+        ggufString(b, "tokenizer.ggml.tokens").putInt(9).putInt(8).putLong(3);
+        ggufString(b, "<unk>"); ggufString(b, "<s>"); ggufString(b, "</s>");
+        ggufString(b, "tokenizer.ggml.bos_token_id").putInt(4).putInt(1);
+        ggufString(b, "tokenizer.ggml.eos_token_id").putInt(4).putInt(2);
+
+        //Dimensions are listed innermost first
+        ggufString(b, "blk.0.attn_q.weight").putInt(2).putLong(dim).putLong(dim).putInt(2).putLong(0);
+        ggufString(b, "blk.0.attn_k.weight").putInt(2).putLong(dim).putLong(dim).putInt(2).putLong(0);
+        ggufString(b, "blk.0.ffn_up.weight").putInt(2).putLong(dim).putLong(hidden).putInt(8).putLong(q4.length);
+        ggufString(b, "output_norm.weight").putInt(1).putLong(dim).putInt(0).putLong(q4.length + q8.length);
+        ggufString(b, "token_embd.weight").putInt(2).putLong(dim).putLong(3).putInt(1).putLong(q4.length + q8.length + dim * 4);
+
+        b.position((b.position() + 31) / 32 * 32);
+        b.put(q4).put(q8);
+        for (int i = 0; i < dim; i++)
+            b.putFloat(i);
+        for (int i = 0; i < dim * 3; i++)
+            b.putShort(Float.floatToFloat16(-i));
+
+        Path file = Files.createTempFile("jlama", ".gguf");
+        Files.write(file, Arrays.copyOf(b.array(), b.position()));
+
+        try (GGUFWeights weights = GGUFWeights.open(file)) {
+            Config c = weights.config();
+            Assert.assertEquals(dim, c.embeddingLength);
+            Assert.assertEquals(hidden, c.hiddenLength);
+            Assert.assertEquals(2, c.numberOfHeads);
+            Assert.assertEquals(256, c.contextLength);
+            Assert.assertEquals(3, c.vocabularySize);
+            Assert.assertEquals(2, c.eosToken);
+            Assert.assertEquals(List.of("<unk>", "<s>", "</s>"), weights.tokens());
+            Assert.assertEquals(DType.Q4_0, weights.getModelDType());
+
+            //llama.cpp interleaves the halves of each head of q and k, so row s*16+i of a head is stored at 2i+s
+            for (String proj : List.of("q_proj", "k_proj")) {
+                AbstractTensor t = weights.load("model.layers.0.self_attn." + proj + ".weight", DType.Q4);
+                Assert.assertEquals(DType.Q4_0, t.dType());
+                for (int row = 0; row < dim; row++) {
+                    int head = row / headSize, i = row % headSize / 2, s = row % 2;
+                    int hfRow = head * headSize + s * headSize / 2 + i;
+                    for (int col = 0; col < dim; col++)
+                        Assert.assertEquals(ggufValue(q4, 16, row * dim + col), t.get(hfRow, col), 0f);
+                }
+            }
+
+            AbstractTensor up = weights.load("model.layers.0.mlp.up_proj.weight");
+            Assert.assertEquals(DType.Q8_0, up.dType());
+            //Tensors that keep their row order are views of the file when tensors live off heap
+            if (TensorOperationsProvider.get().requiresOffHeapTensor())
+                Assert.assertTrue(up.getMemorySegment().isReadOnly());
+            Assert.assertArrayEquals(new int[]{hidden, dim}, up.shape());
+            for (int row = 0; row < hidden; row++)
+                for (int col = 0; col < dim; col++)
+                    Assert.assertEquals(ggufValue(q8, 32, row * dim + col), up.get(row, col), 0f);
+
+            Assert.assertEquals(5f, weights.load("model.norm.weight").get(5), 0f);
+
+            //The output layer is tied to the embeddings when the file has none
+            Assert.assertEquals(-70f, weights.load("lm_head.weight").get(1, 6), 0f);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testGGUFKQuants() throws IOException {
+        int dim = 256, headSize = 32;
+        Random r = new Random(42);
+        byte[] q4k = ggufKBlocks(r, dim, Q4KByteBufferTensor.BLOCK_BYTES, 0);
+        byte[] q6k = ggufKBlocks(r, dim, Q6KByteBufferTensor.BLOCK_BYTES, Q6KByteBufferTensor.D_OFFSET);
+
+        ByteBuffer b = ByteBuffer.allocate(1 << 17).order(ByteOrder.LITTLE_ENDIAN);
+        b.putInt(0x46554747).putInt(3).putLong(3).putLong(2);
+        ggufString(b, "llama.embedding_length").putInt(4).putInt(dim);
+        ggufString(b, "llama.attention.head_count").putInt(4).putInt(dim / headSize);
+        ggufString(b, "blk.0.attn_q.weight").putInt(2).putLong(dim).putLong(dim).putInt(12).putLong(0);
+        ggufString(b, "blk.0.attn_v.weight").putInt(2).putLong(dim).putLong(dim).putInt(12).putLong(0);
+        ggufString(b, "blk.0.ffn_down.weight").putInt(2).putLong(dim).putLong(dim).putInt(14).putLong(q4k.length);
+        b.position((b.position() + 31) / 32 * 32);
+        b.put(q4k).put(q6k);
+
+        Path file = Files.createTempFile("jlama", ".gguf");
+        Files.write(file, Arrays.copyOf(b.array(), b.position()));
+
+        try (GGUFWeights weights = GGUFWeights.open(file)) {
+            Assert.assertEquals(DType.Q4_K, weights.getModelDType());
+
+            //Stored k-quants aren't quantized again
+            AbstractTensor v = weights.load("model.layers.0.self_attn.v_proj.weight", DType.Q4);
+            AbstractTensor q = weights.load("model.layers.0.self_attn.q_proj.weight", DType.Q4);
+            AbstractTensor down = weights.load("model.layers.0.mlp.down_proj.weight", DType.Q4);
+            Assert.assertEquals(DType.Q4_K, v.dType());
+            Assert.assertEquals(DType.Q4_K, q.dType());
+            Assert.assertEquals(DType.Q6_K, down.dType());
+
+            float[] q4kValues = dequantizeQ4K(q4k);
+            float[] q6kValues = dequantizeQ6K(q6k);
+            for (int row = 0; row < dim; row++) {
+                int head = row / headSize, i = row % headSize / 2, s = row % 2;
+                int hfRow = head * headSize + s * headSize / 2 + i;
+                for (int col = 0; col < dim; col++) {
+                    Assert.assertEquals(q4kValues[row * dim + col], v.get(row, col), 0f);
+                    Assert.assertEquals(q4kValues[row * dim + col], q.get(hfRow, col), 0f);
+                    Assert.assertEquals(q6kValues[row * dim + col], down.get(row, col), 0f);
+                }
+            }
+
+            //The kernels read the same values
+            FloatBufferTensor a = new FloatBufferTensor(dim);
+            for (int i = 0; i < dim; i++)
+                a.set(r.nextFloat() - 0.5f, i);
+            for (AbstractTensor t : List.of(v, down)) {
+                float expected = new NaiveTensorOperations().dotProduct(a, t.slice(3), dim);
+                Assert.assertEquals(expected, TensorOperationsProvider.get().dotProduct(a, t.slice(3), dim), 0.001f);
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testGGUFTokenizer() {
+        List<String> vocab = List.of("<unk>", "<s>", "</s>", "<0x0A>", "<0xC3>", "<0xA9>",
+                "▁", "h", "e", "l", "o", "w", "r", "d", "ll", "he", "llo", "hello", "▁hello", "▁w", "or");
+        float[] scores = new float[vocab.size()];
+        int[] types = new int[vocab.size()];
+        Arrays.fill(scores, -10);
+        Arrays.fill(types, GGUFTokenizer.NORMAL);
+        types[0] = GGUFTokenizer.UNKNOWN;
+        types[1] = types[2] = GGUFTokenizer.CONTROL;
+        types[3] = types[4] = types[5] = GGUFTokenizer.BYTE;
+        for (int i = 14; i < vocab.size(); i++)
+            scores[i] = -(i - 12);
+
+        Tokenizer t = new GGUFTokenizer(vocab, scores, types, 0);
+
+        //Pieces merge best score first, characters outside the vocabulary fall back to bytes or <unk>
+        Assert.assertArrayEquals(new long[]{18, 19, 20, 9, 13, 3}, t.encode("hello world\n"));
+        Assert.assertArrayEquals(new long[]{18, 6, 4, 5, 0}, t.encode("hello éx"));
+        Assert.assertEquals(List.of("▁hello", "▁w", "or", "l", "d"), t.tokenize("hello world"));
+
+        Assert.assertEquals("hello world\n", t.decode(new long[]{1, 18, 19, 20, 9, 13, 3, 2}));
+        Assert.assertEquals("hello é", t.decode(new long[]{18, 6, 4, 5}));
+        Assert.assertEquals(" hello", t.decode(18));
+        Assert.assertEquals("", t.decode(2));
+    }
+
+    /** Random Q4_K or Q6_K super-blocks with a small F16 scale d at dOffset (and dmin after it for Q4_K) */
+    private static byte[] ggufKBlocks(Random r, int blocks, int blockBytes, int dOffset) {
+        ByteBuffer b = ByteBuffer.allocate(blocks * blockBytes).order(ByteOrder.LITTLE_ENDIAN);
+        r.nextBytes(b.array());
+        for (int i = 0; i < blocks; i++) {
+            b.putShort(i * blockBytes + dOffset, Float.floatToFloat16(r.nextFloat() / 256));
+            if (dOffset == 0)
+                b.putShort(i * blockBytes + 2, Float.floatToFloat16(r.nextFloat() / 256));
+        }
+        return b.array();
+    }
+
+    /** ggml's dequantize_row_q4_K */
+    private static float[] dequantizeQ4K(byte[] blocks) {
+        ByteBuffer b = ByteBuffer.wrap(blocks).order(ByteOrder.LITTLE_ENDIAN);
+        float[] y = new float[blocks.length / Q4KByteBufferTensor.BLOCK_BYTES * 256];
+        for (int block = 0, o = 0; o < y.length; block += Q4KByteBufferTensor.BLOCK_BYTES) {
+            float d = Float.float16ToFloat(b.getShort(block));
+            float min = Float.float16ToFloat(b.getShort(block + 2));
+            int q = block + 16;
+            for (int j = 0, is = 0; j < 256; j += 64, is += 2, q += 32) {
+                int[] sm1 = scaleMinK4(blocks, block + 4, is), sm2 = scaleMinK4(blocks, block + 4, is + 1);
+                for (int l = 0; l < 32; l++)
+                    y[o++] = d * sm1[0] * (blocks[q + l] & 0xF) - min * sm1[1];
+                for (int l = 0; l < 32; l++)
+                    y[o++] = d * sm2[0] * ((blocks[q + l] & 0xFF) >> 4) - min * sm2[1];
+            }
+        }
+        return y;
+    }
+
+    /** ggml's get_scale_min_k4 */
+    private static int[] scaleMinK4(byte[] b, int q, int j) {
+        if (j < 4)
+            return new int[]{b[q + j] & 63, b[q + j + 4] & 63};
+        return new int[]{(b[q + j + 4] & 0xF) | (((b[q + j - 4] & 0xFF) >> 6) << 4), ((b[q + j + 4] & 0xFF) >> 4) | (((b[q + j] & 0xFF) >> 6) << 4)};
+    }
+
+    /** ggml's dequantize_row_q6_K */
+    private static float[] dequantizeQ6K(byte[] blocks) {
+        ByteBuffer b = ByteBuffer.wrap(blocks).order(ByteOrder.LITTLE_ENDIAN);
+        float[] y = new float[blocks.length / Q6KByteBufferTensor.BLOCK_BYTES * 256];
+        for (int block = 0, o = 0; o < y.length; block += Q6KByteBufferTensor.BLOCK_BYTES) {
+            float d = Float.float16ToFloat(b.getShort(block + 208));
+            int ql = block, qh = block + 128, sc = block + 192;
+            for (int n = 0; n < 256; n += 128, ql += 64, qh += 32, sc += 8, o += 128) {
+                for (int l = 0; l < 32; l++) {
+                    int is = l / 16;
+                    int h = blocks[qh + l] & 0xFF;
+                    int q1 = ((blocks[ql + l] & 0xF) | ((h & 3) << 4)) - 32;
+                    int q2 = ((blocks[ql + l + 32] & 0xF) | (((h >> 2) & 3) << 4)) - 32;
+                    int q3 = (((blocks[ql + l] & 0xFF) >> 4) | (((h >> 4) & 3) << 4)) - 32;
+                    int q4 = (((blocks[ql + l + 32] & 0xFF) >> 4) | ((h >> 6) << 4)) - 32;
+                    y[o + l] = d * blocks[sc + is] * q1;
+                    y[o + l + 32] = d * blocks[sc + is + 2] * q2;
+                    y[o + l + 64] = d * blocks[sc + is + 4] * q3;
+                    y[o + l + 96] = d * blocks[sc + is + 6] * q4;
+                }
+            }
+        }
+        return y;
+    }
+
+    private static ByteBuffer ggufString(ByteBuffer b, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        return b.putLong(bytes.length).put(bytes);
+    }
+
+    /** Random Q4_0 or Q8_0 blocks, each an F16 scale followed by the values */
+    private static byte[] ggufBlocks(Random r, int blocks, int valueBytes) {
+        ByteBuffer b = ByteBuffer.allocate(blocks * (2 + valueBytes)).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < blocks; i++) {
+            b.putShort(Float.floatToFloat16(r.nextFloat() / 8));
+            for (int j = 0; j < valueBytes; j++)
+                b.put((byte) r.nextInt());
+        }
+        return b.array();
+    }
+
+    private static float ggufValue(byte[] blocks, int valueBytes, int i) {
+        ByteBuffer b = ByteBuffer.wrap(blocks).order(ByteOrder.LITTLE_ENDIAN);
+        int block = i / 32 * (2 + valueBytes), j = i % 32;
+        float d = Float.float16ToFloat(b.getShort(block));
+        if (valueBytes == 32)
+            return b.get(block + 2 + j) * d;
+
+        int packed = b.get(block + 2 + j % 16);
+        return ((j < 16 ? packed & 0xF : packed >> 4 & 0xF) - 8) * d;
+    }
+
     @Test
     public void testMMappedFile() throws IOException {
         String file = "data/gpt2/model.safetensors";
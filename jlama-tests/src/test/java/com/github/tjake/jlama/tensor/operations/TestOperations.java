@@ -17,13 +17,20 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.github.tjake.jlama.math.VectorMath;
 import com.github.tjake.jlama.safetensors.DType;
 import com.github.tjake.jlama.tensor.AbstractTensor;
 import com.github.tjake.jlama.tensor.BFloat16BufferTensor;
 import com.github.tjake.jlama.tensor.Float16BufferTensor;
 import com.github.tjake.jlama.tensor.FloatBufferTensor;
+import com.github.tjake.jlama.tensor.Q40ByteBufferTensor;
 import com.github.tjake.jlama.tensor.Q4ByteBufferTensor;
+import com.github.tjake.jlama.tensor.Q4KByteBufferTensor;
+import com.github.tjake.jlama.tensor.Q5ByteBufferTensor;
+import com.github.tjake.jlama.tensor.Q6KByteBufferTensor;
+import com.github.tjake.jlama.tensor.Q80ByteBufferTensor;
 import com.github.tjake.jlama.tensor.Q8ByteBufferTensor;
+import com.github.tjake.jlama.tensor.operations.cnative.NativeSimd;
 
 import static com.github.tjake.jlama.tensor.operations.NativeTensorOperations.*;
 
@@ -54,13 +61,20 @@ public class TestOperations
             opTypes.add(new NativeTensorOperations(0));
 
             if (MachineSpec.VECTOR_TYPE == MachineSpec.Type.AVX_512)
-                opTypes.add(new NativeTensorOperations(HAS_AVX2));
+                opTypes.add(new NativeTensorOperations(HAS_AVX512));
 
             if (RuntimeSupport.isLinux() || RuntimeSupport.isWin())
             {
                 opTypes.add(new NativeTensorOperations(HAS_F16C));
                 if (MachineSpec.VECTOR_TYPE == MachineSpec.Type.AVX_512)
-                    opTypes.add(new NativeTensorOperations(HAS_F16C | HAS_AVX2));
+                    opTypes.add(new NativeTensorOperations(HAS_F16C | HAS_AVX512));
+            }
+
+            //Each int8 extension the CPU has, on its own
+            int features = NativeSimd.cpu_features();
+            for (int vnni : new int[]{HAS_AVX512_VNNI, HAS_AVX_VNNI}) {
+                if ((features & vnni) != 0)
+                    opTypes.add(new NativeTensorOperations(HAS_F16C | (features & HAS_AVX512) | vnni));
             }
         }
 
@@ -74,6 +88,11 @@ public class TestOperations
         bTypes.put(DType.BF16, BFloat16BufferTensor::new);
         bTypes.put(DType.I8, Q8ByteBufferTensor::new);
         bTypes.put(DType.Q4, Q4ByteBufferTensor::new);
+        bTypes.put(DType.Q5, Q5ByteBufferTensor::new);
+        bTypes.put(DType.Q4_K, Q4KByteBufferTensor::new);
+        bTypes.put(DType.Q6_K, Q6KByteBufferTensor::new);
+        bTypes.put(DType.Q4_0, Q40ByteBufferTensor::new);
+        bTypes.put(DType.Q8_0, Q80ByteBufferTensor::new);
     }
 
     static FloatBufferTensor makeTensor(int size) {
@@ -112,6 +131,27 @@ public class TestOperations
         }
     }
 
+    @Test
+    public void testWeightTypeCoverage() {
+        AbstractTensor a = makeTensor(SIZE);
+        AbstractTensor b = makeTensor(SIZE);
+        float control = controlOps.dotProduct(a, b, SIZE);
+
+        //Activations in the working types against weights in any stored or quantized type
+        List<DType> activations = List.of(DType.F32, DType.BF16, DType.I8);
+        for (TensorOperations t : opTypes) {
+            if (t instanceof NaiveTensorOperations)
+                continue;
+
+            for (DType aType : activations) {
+                for (Map.Entry<DType, Function<AbstractTensor, AbstractTensor>> bType : bTypes.entrySet()) {
+                    float dp = t.dotProduct(aTypes.get(aType).apply(a), bType.getValue().apply(b), SIZE);
+                    Assert.assertEquals("OP " + t.name() + ", AType " + aType + ", BType " + bType.getKey(), control, dp, control * .01f);
+                }
+            }
+        }
+    }
+
     @Test
     public void testAccumulate() {
         AbstractTensor a = makeTensor(SIZE);
@@ -250,5 +290,225 @@ public class TestOperations
 
         Assert.assertEquals(controlOps.sum(ref), controlOps.sum(qv), 0.0001);
         Assert.assertEquals(controlOps.sum(ref), controlOps.sum(qv1), 0.0001);
+
+        for (TensorOperations t : opTypes) {
+            if (t instanceof NativeTensorOperations) {
+                AbstractTensor qn = t.quantize(a, DType.I8);
+                Assert.assertEquals(DType.I8, qn.dType());
+                Assert.assertEquals(controlOps.sum(ref), controlOps.sum(qn), 0.0001);
+            }
+        }
+    }
+
+    @Test
+    public void testNativeCoverage() {
+        AbstractTensor a = makeTensor(SIZE);
+        AbstractTensor b = makeTensor(SIZE);
+        float control = controlOps.dotProduct(a, b, SIZE);
+
+        for (TensorOperations t : opTypes) {
+            if (!(t instanceof NativeTensorOperations))
+                continue;
+
+            //Every activation type against every weight type, none of them unsupported
+            for (Map.Entry<DType, Function<AbstractTensor, AbstractTensor>> aType : aTypes.entrySet()) {
+                for (Map.Entry<DType, Function<AbstractTensor, AbstractTensor>> bType : bTypes.entrySet()) {
+                    float dp = t.dotProduct(aType.getValue().apply(a), bType.getValue().apply(b), SIZE);
+                    Assert.assertEquals("OP " + t.name() + ", AType " + aType.getKey() + ", BType " + bType.getKey(), control, dp, control * .01f);
+                }
+
+                //Element-wise into F32, from any working type
+                AbstractTensor y = new FloatBufferTensor(b);
+                t.saxpy(2.0f, aType.getValue().apply(a), y, 0, 0, SIZE);
+                Assert.assertEquals("saxpy " + aType.getKey(), 2.0f * controlOps.sum(a) + controlOps.sum(b), t.sum(y), control * .01f);
+
+                y = new FloatBufferTensor(b);
+                t.sxpby(2.0f, aType.getValue().apply(a), y, 0, 0, SIZE);
+                Assert.assertEquals("sxpby " + aType.getKey(), controlOps.sum(a) + 2.0f * controlOps.sum(b), t.sum(y), control * .01f);
+            }
+
+            //Weights are read from an offset into the row, in values
+            int offset = SIZE / 2;
+            float half = 0;
+            for (int i = 0; i < offset; i++)
+                half += a.get(i) * b.get(offset + i);
+
+            for (Map.Entry<DType, Function<AbstractTensor, AbstractTensor>> bType : bTypes.entrySet()) {
+                AbstractTensor qb = bType.getValue().apply(b);
+                Assert.assertEquals("Offset BType " + bType.getKey(), controlOps.dotProduct(a, qb, 0, offset, offset), t.dotProduct(a, qb, 0, offset, offset), Math.abs(half) * .01f);
+                Assert.assertEquals("Offset I8 BType " + bType.getKey(), half, t.dotProduct(new Q8ByteBufferTensor(a), qb, 0, offset, offset), Math.abs(half) * .02f);
+            }
+
+            //An odd number of blocks, the wide int8 kernels do two at a time
+            AbstractTensor qa = new Q8ByteBufferTensor(a);
+            int odd = SIZE - Q8ByteBufferTensor.BLOCK_SIZE;
+            for (AbstractTensor qb : List.of(new Q8ByteBufferTensor(b), new Q4ByteBufferTensor(b))) {
+                float expected = controlOps.dotProduct(qa, qb, odd);
+                Assert.assertEquals("Odd blocks " + qb.dType(), expected, t.dotProduct(qa, qb, odd), Math.abs(expected) * .001f);
+            }
+        }
+    }
+
+    @Test
+    public void testMatmul() {
+        //Several GEMM_ROW_CHUNKs and ROW_TILEs plus a partial one, more than a BATCH_TILE, offsets everywhere
+        int rows = 75, batch = VectorMath.BATCH_TILE + 5, rowStart = 3, rowEnd = 70, batchStart = 1, batchEnd = batch - 1, resultOffset = 2;
+        FloatBufferTensor w = new FloatBufferTensor(rows, SIZE);
+        for (int i = 0; i < rows; i++)
+            for (int j = 0; j < SIZE; j++)
+                w.set((float) r.nextGaussian(), i, j);
+
+        AbstractTensor[] a = new AbstractTensor[batch];
+        for (int j = 0; j < batch; j++)
+            a[j] = makeTensor(SIZE);
+
+        //The blocked kernels and the row by row fallback, against dot products of each row
+        for (AbstractTensor qw : List.of(w, new Q4ByteBufferTensor(w), new BFloat16BufferTensor(w))) {
+            for (DType aType : List.of(DType.F32, DType.I8)) {
+                AbstractTensor[] qa = new AbstractTensor[batch];
+                for (int j = 0; j < batch; j++)
+                    qa[j] = aType == DType.I8 ? new Q8ByteBufferTensor(a[j]) : a[j];
+
+                for (TensorOperations t : opTypes) {
+                    String msg = "OP " + t.name() + ", AType " + aType + ", BType " + qw.dType();
+
+                    //The whole range in one call, a single activation, and split up in tiles
+                    AbstractTensor[] results = makeResults(batch, rows + resultOffset);
+                    t.matmul(qa, batchStart, batchEnd, qw, rowStart, rowEnd, results, resultOffset, SIZE);
+                    checkMatmul(msg, t, qa, qw, results, batchStart, batchEnd, rowStart, rowEnd, resultOffset);
+
+                    results = makeResults(batch, rows + resultOffset);
+                    t.matmul(qa, batchStart, batchStart + 1, qw, rowStart, rowEnd, results, resultOffset, SIZE);
+                    checkMatmul(msg + ", batch of 1", t, qa, qw, results, batchStart, batchStart + 1, rowStart, rowEnd, resultOffset);
+
+                    AbstractTensor[] tiled = makeResults(batch, rows + resultOffset);
+                    AbstractTensor[] tiledA = qa;
+                    VectorMath.pforTiled(rowEnd - rowStart, batchEnd - batchStart, (rs, re, bs, be) ->
+                            t.matmul(tiledA, batchStart + bs, batchStart + be, qw, rowStart + rs, rowStart + re, tiled, resultOffset, SIZE));
+                    checkMatmul(msg + ", tiled", t, qa, qw, tiled, batchStart, batchEnd, rowStart, rowEnd, resultOffset);
+                }
+            }
+        }
+    }
+
+    private AbstractTensor[] makeResults(int batch, int size) {
+        AbstractTensor[] results = new AbstractTensor[batch];
+        for (int j = 0; j < batch; j++)
+            results[j] = new FloatBufferTensor(size);
+        return results;
+    }
+
+    private void checkMatmul(String msg, TensorOperations t, AbstractTensor[] a, AbstractTensor b, AbstractTensor[] results,
+                             int batchStart, int batchEnd, int rowStart, int rowEnd, int resultOffset) {
+        for (int j = 0; j < results.length; j++) {
+            for (int i = 0; i < b.shape()[0]; i++) {
+                String m = msg + ", batch " + j + ", row " + i;
+                if (j < batchStart || j >= batchEnd || i < rowStart || i >= rowEnd) {
+                    Assert.assertEquals(m, 0f, results[j].get(i + resultOffset), 0f);
+                    continue;
+                }
+
+                float expected = t.dotProduct(a[j], b.slice(i), SIZE);
+                Assert.assertEquals(m, expected, results[j].get(i + resultOffset), Math.max(1e-3f, Math.abs(expected) * 1e-4f));
+            }
+        }
+    }
+
+    @Test
+    public void testKQuantKernels() {
+        FloatBufferTensor a = new FloatBufferTensor(SIZE);
+        FloatBufferTensor b = new FloatBufferTensor(SIZE);
+        for (int i = 0; i < SIZE; i++) {
+            a.set((float) r.nextGaussian(), i);
+            b.set((float) r.nextGaussian(), i);
+        }
+
+        for (AbstractTensor q : List.of(new Q4KByteBufferTensor(b), new Q6KByteBufferTensor(b))) {
+            //The kernels must agree with the values the tensor decodes to
+            float control = controlOps.dotProduct(a, q, SIZE);
+            for (TensorOperations t : opTypes) {
+                float dp = t.dotProduct(a, q, SIZE);
+                Assert.assertEquals("OP " + t.name() + ", BType " + q.dType(), control, dp, 0.01f);
+            }
+
+            float error = 0;
+            for (int i = 0; i < SIZE; i++)
+                error += Math.abs(q.get(i) - b.get(i));
+
+            Assert.assertTrue(q.dType() + " error " + error / SIZE, error / SIZE < (q.dType() == DType.Q4_K ? 0.08f : 0.02f));
+        }
+    }
+
+    @Test
+    public void testGGMLBlockKernels() {
+        FloatBufferTensor a = new FloatBufferTensor(SIZE);
+        FloatBufferTensor b = new FloatBufferTensor(SIZE);
+        for (int i = 0; i < SIZE; i++) {
+            a.set((float) r.nextGaussian(), i);
+            b.set((float) r.nextGaussian(), i);
+        }
+        Q8ByteBufferTensor a8 = new Q8ByteBufferTensor(a);
+
+        for (AbstractTensor q : List.of(new Q40ByteBufferTensor(b), new Q80ByteBufferTensor(b))) {
+            //The kernels must agree with the values the tensors decode to, for F32 and I8 activations
+            for (AbstractTensor x : List.of(a, a8)) {
+                float control = 0;
+                for (int i = 0; i < SIZE; i++)
+                    control += x.get(i) * q.get(i);
+
+                for (TensorOperations t : opTypes) {
+                    float dp = t.dotProduct(x, q, SIZE);
+                    Assert.assertEquals("OP " + t.name() + ", AType " + x.dType() + ", BType " + q.dType(), control, dp, 0.01f);
+                    //Offsets land on the block holding them
+                    float split = t.dotProduct(x, q, 0, 0, 64) + t.dotProduct(x, q, 64, 64, SIZE - 128) + t.dotProduct(x, q, SIZE - 64, SIZE - 64, 64);
+                    Assert.assertEquals(dp, split, 0.01f);
+                }
+            }
+
+            float error = 0;
+            for (int i = 0; i < SIZE; i++)
+                error += Math.abs(q.get(i) - b.get(i));
+
+            Assert.assertTrue(q.dType() + " error " + error / SIZE, error / SIZE < (q.dType() == DType.Q4_0 ? 0.1f : 0.01f));
+        }
+    }
+
+    @Test
+    public void testQ5Kernels() {
+        FloatBufferTensor a = new FloatBufferTensor(SIZE);
+        FloatBufferTensor b = new FloatBufferTensor(SIZE);
+        for (int i = 0; i < SIZE; i++) {
+            a.set((float) r.nextGaussian(), i);
+            b.set((float) r.nextGaussian(), i);
+        }
+
+        FloatBufferTensor rows = new FloatBufferTensor(2, SIZE);
+        for (int i = 0; i < SIZE; i++) {
+            rows.set(a.get(i), 0, i);
+            rows.set(b.get(i), 1, i);
+        }
+
+        Q5ByteBufferTensor q = new Q5ByteBufferTensor(b);
+        AbstractTensor m = new Q5ByteBufferTensor(rows);
+        Q8ByteBufferTensor a8 = new Q8ByteBufferTensor(a);
+
+        //The kernels must agree with the values the tensor decodes to, for F32 and I8 activations
+        float control = controlOps.dotProduct(a, q, SIZE);
+        float control8 = controlOps.dotProduct(a8, q, SIZE);
+        for (TensorOperations t : opTypes) {
+            Assert.assertEquals("OP " + t.name(), control, t.dotProduct(a, q, SIZE), 0.01f);
+            Assert.assertEquals("OP " + t.name() + ", I8", control8, t.dotProduct(a8, q, SIZE), 0.01f);
+
+            //A row of a matrix, past the first blocks
+            Assert.assertEquals("OP " + t.name() + ", slice", controlOps.dotProduct(a, m.slice(1), SIZE), t.dotProduct(a, m.slice(1), SIZE), 0.01f);
+        }
+
+        float q4Error = 0, q5Error = 0;
+        Q4ByteBufferTensor q4 = new Q4ByteBufferTensor(b);
+        for (int i = 0; i < SIZE; i++) {
+            q4Error += Math.abs(q4.get(i) - b.get(i));
+            q5Error += Math.abs(q.get(i) - b.get(i));
+        }
+        Assert.assertTrue("Q5 error " + q5Error + " Q4 error " + q4Error, q5Error < q4Error * 0.6f);
     }
 }